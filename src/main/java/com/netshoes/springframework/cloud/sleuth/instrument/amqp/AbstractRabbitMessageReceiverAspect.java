@@ -1,15 +1,30 @@
 package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
 
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpConsumeEvent;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpConvertEvent;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpFlightRecorder;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverhead;
+import java.util.List;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
+import org.springframework.cloud.sleuth.Span;
 
 /**
  * This abstract class is used to execute methods {@link
  * AmqpMessagingSpanManager}#beforeHandle(Message)} and {@link
  * AmqpMessagingSpanManager#afterHandle(Exception)} around a method.
  *
+ * <p>Methods receiving a {@link List} of messages instead of a {@link Message} are handled as a
+ * batch by {@link AmqpMessagingSpanManager#beforeHandleBatch(List)}, with a single span.
+ *
+ * <p>Message conversions are started by {@link AmqpMessagingSpanManager#beforeConvert(Message)}, so
+ * the listener handle of the same delivery can tell them apart.
+ *
+ * <p>Each handling is also recorded as an {@link AmqpConsumeEvent} of JDK Flight Recorder, or as an
+ * {@link AmqpConvertEvent} for message conversions, when the event is enabled.
+ *
  * @see RabbitListenerAspect
  * @see RabbitHandlerAspect
  * @author André Ignacio
@@ -18,7 +33,9 @@ import org.springframework.amqp.core.Message;
  */
 public abstract class AbstractRabbitMessageReceiverAspect {
   private final AmqpMessagingSpanManager spanManager;
+  private final boolean conversion;
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
+  private InstrumentationOverhead overhead;
 
   /**
    * Creates a new instance.
@@ -26,7 +43,31 @@ public abstract class AbstractRabbitMessageReceiverAspect {
    * @param spanManager Span manager for AMQP messaging
    */
   public AbstractRabbitMessageReceiverAspect(AmqpMessagingSpanManager spanManager) {
+    this(spanManager, false);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager Span manager for AMQP messaging
+   * @param conversion True if the advised methods convert messages instead of handling them
+   * @since 0.11
+   */
+  AbstractRabbitMessageReceiverAspect(AmqpMessagingSpanManager spanManager, boolean conversion) {
     this.spanManager = spanManager;
+    this.conversion = conversion;
+  }
+
+  /**
+   * Sets the accounting of the overhead of the instrumentation, which times the work of this
+   * aspect around each delivery, without the listener itself, as {@link
+   * InstrumentationOverhead.Stage#RECEIVE}.
+   *
+   * @param overhead Overhead of the instrumentation, or null to not account for it
+   * @since 0.11
+   */
+  public void setInstrumentationOverhead(InstrumentationOverhead overhead) {
+    this.overhead = overhead;
   }
 
   /**
@@ -41,24 +82,68 @@ public abstract class AbstractRabbitMessageReceiverAspect {
     final Object result;
     final Object[] args = call.getArgs();
     final Message message = getMessageArgument(args);
-    if (message == null) {
+    final List<Message> batch = message == null ? getBatchArgument(args) : null;
+    if (message == null && batch == null) {
       logger.debug("Ignoring execution around {}. Message argument not found.", call);
       result = call.proceed();
     } else {
-      spanManager.beforeHandle(message);
+      final AmqpConvertEvent convertEvent =
+          conversion && message != null ? AmqpFlightRecorder.beginConvert(message) : null;
+      final AmqpConsumeEvent consumeEvent =
+          conversion
+              ? null
+              : message != null
+                  ? AmqpFlightRecorder.beginConsume(message)
+                  : AmqpFlightRecorder.beginConsume(batch);
+      InstrumentationOverhead.Probe probe = startProbe(true);
+      final Span span;
+      if (message != null) {
+        span = conversion ? spanManager.beforeConvert(message) : spanManager.beforeHandle(message);
+      } else {
+        span = spanManager.beforeHandleBatch(batch);
+      }
+      stopProbe(probe);
       try {
         result = call.proceed();
+        AmqpFlightRecorder.endConvert(convertEvent, span);
+        AmqpFlightRecorder.endConsume(consumeEvent, span);
+        probe = startProbe(false);
         spanManager.afterHandle(null);
+        stopProbe(probe);
 
         return result;
       } catch (Exception e) {
+        AmqpFlightRecorder.endConvert(convertEvent, span);
+        AmqpFlightRecorder.endConsume(consumeEvent, span);
+        probe = startProbe(false);
         spanManager.afterHandle(e);
+        stopProbe(probe);
         throw e;
       }
     }
     return result;
   }
 
+  /**
+   * Starts timing the work of this aspect, if the overhead is accounted for and the call sampled.
+   *
+   * @param newMessage True for the first work done on a delivery
+   */
+  private InstrumentationOverhead.Probe startProbe(boolean newMessage) {
+    if (overhead == null) {
+      return null;
+    }
+    return newMessage
+        ? overhead.startMessage(InstrumentationOverhead.Stage.RECEIVE)
+        : overhead.startSegment(InstrumentationOverhead.Stage.RECEIVE);
+  }
+
+  private void stopProbe(InstrumentationOverhead.Probe probe) {
+    if (probe != null) {
+      probe.stop();
+    }
+  }
+
   private Message getMessageArgument(Object[] args) {
     for (Object arg : args) {
       if (arg instanceof Message) {
@@ -67,4 +152,26 @@ public abstract class AbstractRabbitMessageReceiverAspect {
     }
     return null;
   }
+
+  @SuppressWarnings("unchecked")
+  private List<Message> getBatchArgument(Object[] args) {
+    for (Object arg : args) {
+      if (arg instanceof List && isBatch((List<?>) arg)) {
+        return (List<Message>) arg;
+      }
+    }
+    return null;
+  }
+
+  private boolean isBatch(List<?> list) {
+    if (list.isEmpty()) {
+      return false;
+    }
+    for (Object element : list) {
+      if (!(element instanceof Message)) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
@@ -0,0 +1,97 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.support.RetrySynchronizationManager;
+
+/**
+ * Before publish post processor that traces a message without an AOP proxy around the {@link
+ * RabbitTemplate}. It starts the send span with {@link AmqpMessagingSpanManager#startSend(Message,
+ * String)} right before the message is published.
+ *
+ * <p>The template has no hook after the publish, so this class is also a {@link RetryListener} of
+ * the retry template of the {@link RabbitTemplate}, which wraps each channel operation: the send
+ * span is finished with {@link AmqpMessagingSpanManager#finishSend(SendToken, Exception)} when the
+ * operation that published the message ends, with the exception thrown by the publish if any. A
+ * failed attempt finishes its span before the next attempt starts another one. Without a retry
+ * template registering this listener, the span is finished as soon as it starts.
+ *
+ * @see RabbitTemplateTracingBeanPostProcessor
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class AmqpMessagingBeforePublishPostProcessor
+    implements MessagePostProcessor, RetryListener {
+  private static final String SEND_TOKEN = AmqpMessagingBeforePublishPostProcessor.class.getName();
+  private static final Object NO_SEND = new Object();
+  private final AmqpMessagingSpanManager spanManager;
+  private final String spanName;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager AMQP span messaging manager
+   * @param spanName Name of Span
+   */
+  public AmqpMessagingBeforePublishPostProcessor(
+      AmqpMessagingSpanManager spanManager, String spanName) {
+    this.spanManager = spanManager;
+    this.spanName = spanName;
+  }
+
+  @Override
+  public Message postProcessMessage(Message message) throws AmqpException {
+    final RetryContext context = RetrySynchronizationManager.getContext();
+    final boolean deferred = context != null && context.hasAttribute(SEND_TOKEN);
+    if (deferred) {
+      finish(context, null);
+    }
+    final SendToken token = spanManager.startSend(message, spanName);
+    if (deferred) {
+      context.setAttribute(SEND_TOKEN, token);
+    } else {
+      spanManager.finishSend(token, null);
+    }
+    return message;
+  }
+
+  @Override
+  public <T, E extends Throwable> boolean open(RetryContext context, RetryCallback<T, E> callback) {
+    // Marks the operations of the template, so sends know their span can wait for the publish
+    context.setAttribute(SEND_TOKEN, NO_SEND);
+    return true;
+  }
+
+  @Override
+  public <T, E extends Throwable> void onError(
+      RetryContext context, RetryCallback<T, E> callback, Throwable throwable) {
+    finish(context, throwable);
+  }
+
+  @Override
+  public <T, E extends Throwable> void close(
+      RetryContext context, RetryCallback<T, E> callback, Throwable throwable) {
+    finish(context, throwable);
+    context.removeAttribute(SEND_TOKEN);
+  }
+
+  private void finish(RetryContext context, Throwable throwable) {
+    final Object token = context.getAttribute(SEND_TOKEN);
+    if (token instanceof SendToken) {
+      context.setAttribute(SEND_TOKEN, NO_SEND);
+      spanManager.finishSend((SendToken) token, toException(throwable));
+    }
+  }
+
+  private Exception toException(Throwable throwable) {
+    if (throwable == null || throwable instanceof Exception) {
+      return (Exception) throwable;
+    }
+    return new IllegalStateException(throwable);
+  }
+}
@@ -10,7 +10,9 @@ import org.springframework.amqp.core.Message;
  *
  * @see AmqpMessagingSpanManager
  * @author André Ignacio
+ * @deprecated Never finishes the span it continues, use {@link AmqpMessagingReceiveInterceptor}
  */
+@Deprecated
 public class AmqpMessagingBeforeReceiveInterceptor implements MethodInterceptor {
   private final AmqpMessagingSpanManager spanManager;
 
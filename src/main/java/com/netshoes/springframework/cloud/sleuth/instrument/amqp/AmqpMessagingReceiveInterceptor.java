@@ -0,0 +1,64 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+/**
+ * Interceptor for the advice chain of a {@link SimpleMessageListenerContainer}, which wraps the
+ * invocation of the listener for each delivery. It calls {@link
+ * AmqpMessagingSpanManager#beforeHandle(Message)} before the listener and {@link
+ * AmqpMessagingSpanManager#afterHandle(Exception)} after it, also when the listener fails, so the
+ * span continued on the container thread is always detached. Listeners do not need a {@link
+ * Message} parameter; invocations without a {@link Message} argument are not traced.
+ *
+ * <p>Receive aspects handling the same delivery inside the listener reuse the span continued by
+ * this interceptor.
+ *
+ * @see ListenerContainerTracingBeanPostProcessor
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class AmqpMessagingReceiveInterceptor implements MethodInterceptor {
+  private final AmqpMessagingSpanManager spanManager;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager AMQP messaging span manager
+   */
+  public AmqpMessagingReceiveInterceptor(AmqpMessagingSpanManager spanManager) {
+    this.spanManager = spanManager;
+  }
+
+  @Override
+  public Object invoke(MethodInvocation invocation) throws Throwable {
+    final Message message = getMessageArgument(invocation.getArguments());
+    if (message == null) {
+      return invocation.proceed();
+    }
+    spanManager.beforeHandle(message);
+    final Object result;
+    try {
+      result = invocation.proceed();
+    } catch (Exception e) {
+      spanManager.afterHandle(e);
+      throw e;
+    } catch (Throwable t) {
+      spanManager.afterHandle(new IllegalStateException(t));
+      throw t;
+    }
+    spanManager.afterHandle(null);
+    return result;
+  }
+
+  private Message getMessageArgument(Object[] args) {
+    for (Object arg : args) {
+      if (arg instanceof Message) {
+        return (Message) arg;
+      }
+    }
+    return null;
+  }
+}
@@ -1,19 +1,26 @@
 package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.function.Consumer;
 
 import org.springframework.amqp.core.Message;
 import org.springframework.cloud.sleuth.Span;
-import org.springframework.cloud.sleuth.Span.SpanBuilder;
 import org.springframework.cloud.sleuth.SpanExtractor;
-import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
+import org.springframework.util.Assert;
 
-import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverhead;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.AmqpPropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.MultiHeaderPropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
 
 /**
- * Class responsible for extracting a {@link Span} from an AMQP message.
+ * Class responsible for extracting a {@link Span} from an AMQP message. The accepted {@link
+ * AmqpPropagationFormat}s are tried in order, each of them probing a single header, until one of
+ * them finds a span. By default the B3 and {@code TraceMessageHeaders} multi header formats are
+ * accepted.
  *
  * @author André Ignacio
  */
@@ -21,79 +28,103 @@ public class AmqpMessagingSpanExtractor implements SpanExtractor<Message> {
 
   private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AmqpMessagingSpanExtractor.class);
   private final Random random;
+  private final AmqpPropagationFormat[] propagationFormats;
+  private InstrumentationOverhead overhead;
 
   public AmqpMessagingSpanExtractor(Random random) {
+    this(random, Arrays.asList(
+      MultiHeaderPropagationFormat.b3Headers(),
+      MultiHeaderPropagationFormat.messagingHeaders()));
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param random Random
+   * @param propagationFormats Accepted formats, in the order they are tried
+   * @since 0.11
+   */
+  public AmqpMessagingSpanExtractor(Random random, List<AmqpPropagationFormat> propagationFormats) {
+    Assert.notEmpty(propagationFormats, "propagationFormats must not be empty");
     this.random = random;
+    this.propagationFormats = new ArrayList<>(propagationFormats).toArray(new AmqpPropagationFormat[0]);
+  }
+
+  /**
+   * Sets the accounting of the overhead of the instrumentation, which times {@link
+   * #joinTrace(Message)} as {@link InstrumentationOverhead.Stage#EXTRACT}.
+   *
+   * @param overhead Overhead of the instrumentation, or null to not account for it
+   * @since 0.11
+   */
+  public void setInstrumentationOverhead(InstrumentationOverhead overhead) {
+    this.overhead = overhead;
   }
 
   @Override
   public Span joinTrace(Message message) {
-    log.debug("joining trace for message: {}", message);
-
-    final AmqpMessageHeaderAccessor accessor = AmqpMessageHeaderAccessor.getAccessor(message);
-
-    if ((!hasHeader(accessor, Span.TRACE_ID_NAME) || !hasHeader(accessor, Span.SPAN_ID_NAME))
-      && (!hasHeader(accessor, TraceMessageHeaders.SPAN_ID_NAME)
-      || !hasHeader(accessor, TraceMessageHeaders.TRACE_ID_NAME))) {
-      return null;
-    }
-
-    if (hasHeader(accessor, Span.TRACE_ID_NAME)) {
-      return extractSpanFromHeaders(accessor,
-        Span.TRACE_ID_NAME,
-        Span.SPAN_ID_NAME,
-        Span.SAMPLED_NAME,
-        Span.PROCESS_ID_NAME,
-        Span.SPAN_NAME_NAME,
-        Span.PARENT_ID_NAME);
-    } else {
-      return extractSpanFromHeaders(accessor,
-        TraceMessageHeaders.TRACE_ID_NAME,
-        TraceMessageHeaders.SPAN_ID_NAME,
-        TraceMessageHeaders.SAMPLED_NAME,
-        TraceMessageHeaders.PROCESS_ID_NAME,
-        TraceMessageHeaders.SPAN_NAME_NAME,
-        TraceMessageHeaders.PARENT_ID_NAME);
+    final InstrumentationOverhead.Probe probe =
+        overhead != null ? overhead.startMessage(InstrumentationOverhead.Stage.EXTRACT) : null;
+    try {
+      return doJoinTrace(message);
+    } finally {
+      if (probe != null) {
+        probe.stop();
+      }
     }
   }
 
-  private Span extractSpanFromHeaders(final AmqpMessageHeaderAccessor accessor,
-                                      final String traceIdHeader,
-                                      final String spanIdHeader,
-                                      final String spanSampledHeader,
-                                      final String spanProcessIdHeader,
-                                      final String spanNameHeader,
-                                      final String spanParentIdHeader) {
-
-    SpanBuilder spanBuilder = Span.builder().remote(true);
-
-    log.debug("extracting span from headers: ", Arrays.asList(traceIdHeader, spanIdHeader, spanSampledHeader, spanProcessIdHeader, spanNameHeader, spanParentIdHeader));
+  private Span doJoinTrace(Message message) {
+    if (log.isDebugEnabled()) {
+      log.debug("joining trace for message: {}", message);
+    }
 
-    withHeader(accessor, traceIdHeader, traceId -> {
-      spanBuilder.traceIdHigh(traceId.length() == 32 ? Span.hexToId(traceId, 0) : 0);
-      spanBuilder.traceId(Span.hexToId(traceId));
-    });
-    withHeader(accessor, spanIdHeader, spanId -> spanBuilder.spanId(Span.hexToId(spanId)));
-    withHeader(accessor, spanSampledHeader, spanSampled -> spanBuilder.exportable(Span.SPAN_SAMPLED.equals(spanSampled)));
-    withHeader(accessor, spanNameHeader, spanName -> spanBuilder.name(spanName));
-    withHeader(accessor, spanProcessIdHeader, processId -> spanBuilder.processId(processId));
-    withHeader(accessor, spanParentIdHeader, parentId -> spanBuilder.parent(Span.hexToId(parentId)));
+    final Map<String, Object> headers = message.getMessageProperties().getHeaders();
 
-    return spanBuilder.build();
-  }
-
-  private String getHeader(AmqpMessageHeaderAccessor accessor, String name) {
-    return accessor.getHeader(name, String.class);
+    for (AmqpPropagationFormat propagationFormat : propagationFormats) {
+      final Span span = propagationFormat.extract(headers);
+      if (span != null) {
+        return span;
+      }
+    }
+    return null;
   }
 
-  private boolean hasHeader(AmqpMessageHeaderAccessor accessor, String name) {
-    return accessor.hasHeader(name);
+  /**
+   * Reads the trace context of a message explicitly marked as not sampled, without building a
+   * {@link Span}. Messages carrying several formats are expected to agree on the sampling decision.
+   *
+   * @param message Message
+   * @return Unsampled context, or null if the message is sampled or carries no sampling decision
+   * @since 0.11
+   */
+  public UnsampledContext joinUnsampled(Message message) {
+    final Map<String, Object> headers = message.getMessageProperties().getHeaders();
+    for (AmqpPropagationFormat propagationFormat : propagationFormats) {
+      final UnsampledContext context = propagationFormat.extractUnsampled(headers);
+      if (context != null) {
+        return context;
+      }
+    }
+    return null;
   }
 
-  private void withHeader(AmqpMessageHeaderAccessor accessor, String headerName, Consumer<String> valueConsumer) {
-    String headerValue = getHeader(accessor, headerName);
-    if (headerValue != null) {
-      valueConsumer.accept(headerValue);
+  /**
+   * Reads the IDs of the trace context of a message, whatever its sampling decision, without
+   * building a {@link Span}.
+   *
+   * @param message Message
+   * @return IDs of the trace context, or null if the message carries no trace context
+   * @since 0.11
+   */
+  public UnsampledContext joinIds(Message message) {
+    final Map<String, Object> headers = message.getMessageProperties().getHeaders();
+    for (AmqpPropagationFormat propagationFormat : propagationFormats) {
+      final UnsampledContext context = propagationFormat.extractIds(headers);
+      if (context != null) {
+        return context;
+      }
     }
+    return null;
   }
 }
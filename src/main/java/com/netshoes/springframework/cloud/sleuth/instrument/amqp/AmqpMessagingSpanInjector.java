@@ -1,26 +1,43 @@
 package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
 
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverhead;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.AmqpPropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.MultiHeaderPropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessageProperties;
 import org.springframework.cloud.sleuth.Span;
 import org.springframework.cloud.sleuth.SpanInjector;
 import org.springframework.cloud.sleuth.TraceKeys;
 import org.springframework.cloud.sleuth.TraceKeys.Message.Payload;
-import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
-import org.springframework.util.StringUtils;
 
 /**
- * Class responsible for injecting a {@link Span} in AMQP message.
+ * Class responsible for injecting a {@link Span} in AMQP message. Headers are written in a single
+ * {@link AmqpPropagationFormat}, by default the {@link
+ * MultiHeaderPropagationFormat#messagingHeaders()} format. Sampled spans are tagged with the
+ * message headers listed in {@link TraceKeys} and the payload type and size, unless these tags are
+ * disabled for the destination.
  *
  * @author André Ignacio
  */
 public class AmqpMessagingSpanInjector implements SpanInjector {
+  public static final String PUBLISH_TIMESTAMP_HEADER = "x-publish-timestamp-micros";
 
   private static final String SPAN_HEADER = "currentSpan";
+  private static final String PAYLOAD_TYPE = byte[].class.getCanonicalName();
   private final TraceKeys traceKeys;
+  private final AmqpPropagationFormat propagationFormat;
+  private boolean spanHeaderEnabled = true;
+  private boolean publishTimestampEnabled;
+  private Set<String> headerTagsDisabled = Collections.emptySet();
+  private Set<String> payloadTagsDisabled = Collections.emptySet();
+  private volatile TagPlan tagPlan;
+  private InstrumentationOverhead overhead;
 
   /**
    * Creates a new instance.
@@ -28,95 +45,191 @@ public class AmqpMessagingSpanInjector implements SpanInjector {
    * @param traceKeys Trace`s keys of Spring Cloud Sleuth
    */
   public AmqpMessagingSpanInjector(TraceKeys traceKeys) {
+    this(traceKeys, MultiHeaderPropagationFormat.messagingHeaders());
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param traceKeys Trace`s keys of Spring Cloud Sleuth
+   * @param propagationFormat Format of headers written to messages
+   * @since 0.11
+   */
+  public AmqpMessagingSpanInjector(TraceKeys traceKeys, AmqpPropagationFormat propagationFormat) {
     this.traceKeys = traceKeys;
+    this.propagationFormat = propagationFormat;
+  }
+
+  /**
+   * Enables the header holding the {@link Span} object, used by consumers running in the same
+   * process. Enabled by default.
+   *
+   * @param spanHeaderEnabled True to add the {@link Span} object to headers
+   * @since 0.11
+   */
+  public void setSpanHeaderEnabled(boolean spanHeaderEnabled) {
+    this.spanHeaderEnabled = spanHeaderEnabled;
+  }
+
+  /**
+   * Enables the {@value #PUBLISH_TIMESTAMP_HEADER} header, holding the time the trace headers were
+   * written in microseconds since the epoch, so consumers can measure how long messages waited in
+   * the broker with a {@link DwellTimeRecorder}. Written for sampled and unsampled messages.
+   *
+   * @param publishTimestampEnabled True to write the publish timestamp header
+   * @since 0.11
+   */
+  public void setPublishTimestampEnabled(boolean publishTimestampEnabled) {
+    this.publishTimestampEnabled = publishTimestampEnabled;
+  }
+
+  /**
+   * Sets the destinations whose spans are not tagged with the message headers listed in {@link
+   * TraceKeys.Message#getHeaders()}. Destinations are span names, like {@code
+   * amqp://exchange/routingKey}.
+   *
+   * @param destinations Span names of destinations
+   * @since 0.11
+   */
+  public void setHeaderTagsDisabled(Collection<String> destinations) {
+    this.headerTagsDisabled = new HashSet<>(destinations);
+  }
+
+  /**
+   * Sets the destinations whose spans are not tagged with the payload type and size. Destinations
+   * are span names, like {@code amqp://exchange/routingKey}.
+   *
+   * @param destinations Span names of destinations
+   * @since 0.11
+   */
+  public void setPayloadTagsDisabled(Collection<String> destinations) {
+    this.payloadTagsDisabled = new HashSet<>(destinations);
+  }
+
+  /**
+   * Sets the accounting of the overhead of the instrumentation, which times {@link #inject(Span,
+   * Object)} as {@link InstrumentationOverhead.Stage#INJECT}.
+   *
+   * @param overhead Overhead of the instrumentation, or null to not account for it
+   * @since 0.11
+   */
+  public void setInstrumentationOverhead(InstrumentationOverhead overhead) {
+    this.overhead = overhead;
   }
 
   @Override
   public void inject(Span span, Object carrier) {
-    final Message message = (Message) carrier;
+    final InstrumentationOverhead.Probe probe =
+        overhead != null ? overhead.startMessage(InstrumentationOverhead.Stage.INJECT) : null;
+    try {
+      doInject(span, (Message) carrier);
+    } finally {
+      if (probe != null) {
+        probe.stop();
+      }
+    }
+  }
+
+  private void doInject(Span span, Message message) {
 
     final AmqpMessageHeaderAccessor accessor = AmqpMessageHeaderAccessor.getAccessor(message);
+    stampPublishTime(accessor);
     if (span == null) {
-      if (!isSampled(message, Span.SAMPLED_NAME)
-          && !isSampled(message, TraceMessageHeaders.SAMPLED_NAME)) {
-        accessor.setHeader(TraceMessageHeaders.SAMPLED_NAME, Span.SPAN_NOT_SAMPLED);
-        return;
-      }
+      propagationFormat.injectNotSampled(accessor);
       return;
     }
     addHeaders(span, message, accessor);
   }
 
-  private boolean isSampled(Message message, String sampledHeaderName) {
-    return Span.SPAN_SAMPLED.equals(
-        message.getMessageProperties().getHeaders().get(sampledHeaderName));
+  /**
+   * Writes only the trace headers of a span to a message, without tags on the span and without the
+   * {@link Span} object header.
+   *
+   * @param span Span, or null to mark the message as not sampled
+   * @param message Message
+   * @since 0.11
+   */
+  public void injectContext(Span span, Message message) {
+    injectContext(span, message.getMessageProperties().getHeaders());
+  }
+
+  /**
+   * Writes only the trace headers of a span to a map of headers.
+   *
+   * @param span Span, or null to mark the headers as not sampled
+   * @param headers Headers
+   * @since 0.11
+   */
+  public void injectContext(Span span, Map<String, Object> headers) {
+    final AmqpMessageHeaderAccessor accessor = AmqpMessageHeaderAccessor.getAccessor(headers);
+    stampPublishTime(accessor);
+    if (span == null) {
+      propagationFormat.injectNotSampled(accessor);
+    } else {
+      propagationFormat.inject(span, accessor);
+    }
+  }
+
+  /**
+   * Writes the headers of an unsampled trace context to a message: IDs and the not sampled flag.
+   *
+   * @param context Unsampled context
+   * @param message Message
+   * @since 0.11
+   */
+  public void injectUnsampled(UnsampledContext context, Message message) {
+    final AmqpMessageHeaderAccessor accessor = AmqpMessageHeaderAccessor.getAccessor(message);
+    stampPublishTime(accessor);
+    propagationFormat.injectUnsampled(context, accessor);
+  }
+
+  private void stampPublishTime(AmqpMessageHeaderAccessor accessor) {
+    if (publishTimestampEnabled) {
+      accessor.setHeader(PUBLISH_TIMESTAMP_HEADER, EpochMicrosClock.currentTimeMicros());
+    }
   }
 
   private void addHeaders(Span span, Message initialMessage, AmqpMessageHeaderAccessor accessor) {
-    addHeaders(
-        span,
-        initialMessage,
-        accessor,
-        TraceMessageHeaders.TRACE_ID_NAME,
-        TraceMessageHeaders.SPAN_ID_NAME,
-        TraceMessageHeaders.PARENT_ID_NAME,
-        TraceMessageHeaders.SPAN_NAME_NAME,
-        TraceMessageHeaders.PROCESS_ID_NAME,
-        TraceMessageHeaders.SAMPLED_NAME,
-        SPAN_HEADER);
-  }
-
-  private void addHeaders(
-      Span span,
-      Message initialMessage,
-      AmqpMessageHeaderAccessor accessor,
-      String traceIdHeader,
-      String spanIdHeader,
-      String spanParentIdHeader,
-      String spanNameHeader,
-      String processIdHeader,
-      String spanSampledHeader,
-      String spanHeader) {
-    addHeader(traceIdHeader, span.traceIdString(), accessor);
-    addHeader(spanIdHeader, Span.idToHex(span.getSpanId()), accessor);
+    propagationFormat.inject(span, accessor);
     if (span.isExportable()) {
-      addAnnotations(this.traceKeys, initialMessage, span);
-      final Long parentId = getFirst(span.getParents());
-      if (parentId != null) {
-        addHeader(spanParentIdHeader, Span.idToHex(parentId), accessor);
-      }
-      addHeader(spanNameHeader, span.getName(), accessor);
-      addHeader(processIdHeader, span.getProcessId(), accessor);
-      addHeader(spanSampledHeader, Span.SPAN_SAMPLED, accessor);
-    } else {
-      addHeader(spanSampledHeader, Span.SPAN_NOT_SAMPLED, accessor);
+      addAnnotations(initialMessage, span);
+    }
+    if (spanHeaderEnabled) {
+      accessor.setHeader(SPAN_HEADER, span);
     }
-    accessor.setHeader(spanHeader, span);
   }
 
-  private void addAnnotations(TraceKeys traceKeys, Message message, Span span) {
-    for (String name : traceKeys.getMessage().getHeaders()) {
-      final MessageProperties messageProperties = message.getMessageProperties();
-      final Map<String, Object> headers = messageProperties.getHeaders();
-      if (headers.containsKey(name)) {
-        final String key = traceKeys.getMessage().getPrefix() + name.toLowerCase();
-        Object value = headers.get(name);
+  private void addAnnotations(Message message, Span span) {
+    final TagPlan plan = getTagPlan();
+    final String destination = span.getName();
+    if (!headerTagsDisabled.contains(destination)) {
+      final Map<String, Object> headers = message.getMessageProperties().getHeaders();
+      final String[] headerNames = plan.headerNames;
+      for (int i = 0; i < headerNames.length; i++) {
+        Object value = headers.get(headerNames[i]);
         if (value == null) {
+          if (!headers.containsKey(headerNames[i])) {
+            continue;
+          }
           value = "null";
         }
-        tagIfEntryMissing(span, key, value.toString());
+        tagIfEntryMissing(span, plan.headerTagKeys[i], value.toString());
       }
     }
-    addPayloadAnnotations(traceKeys, message.getBody(), span);
+    final byte[] payload = message.getBody();
+    if (payload != null && !payloadTagsDisabled.contains(destination)) {
+      tagIfEntryMissing(span, plan.payloadTypeTagKey, PAYLOAD_TYPE);
+      tagIfEntryMissing(span, plan.payloadSizeTagKey, String.valueOf(payload.length));
+    }
   }
 
-  private void addPayloadAnnotations(TraceKeys traceKeys, byte[] payload, Span span) {
-    if (payload != null) {
-      final Payload traceKeyPayloadMessage = traceKeys.getMessage().getPayload();
-      tagIfEntryMissing(
-          span, traceKeyPayloadMessage.getType(), payload.getClass().getCanonicalName());
-      tagIfEntryMissing(span, traceKeyPayloadMessage.getSize(), String.valueOf((payload).length));
+  private TagPlan getTagPlan() {
+    TagPlan plan = tagPlan;
+    if (plan == null || !plan.isCompiledFrom(traceKeys.getMessage())) {
+      plan = new TagPlan(traceKeys.getMessage());
+      tagPlan = plan;
     }
+    return plan;
   }
 
   private void tagIfEntryMissing(Span span, String key, String value) {
@@ -125,13 +238,42 @@ public class AmqpMessagingSpanInjector implements SpanInjector {
     }
   }
 
-  private void addHeader(String name, String value, AmqpMessageHeaderAccessor accessor) {
-    if (StringUtils.hasText(value)) {
-      accessor.setHeader(name, value);
+  /**
+   * Tag keys and header names compiled from {@link TraceKeys.Message}, so sampled sends do not
+   * build tag keys. Compiled again when the prefix, header names or payload keys are replaced.
+   */
+  private static class TagPlan {
+    private final String prefix;
+    private final Collection<String> headers;
+    private final int headerCount;
+    private final Payload payload;
+    private final String[] headerNames;
+    private final String[] headerTagKeys;
+    private final String payloadTypeTagKey;
+    private final String payloadSizeTagKey;
+
+    private TagPlan(TraceKeys.Message message) {
+      this.prefix = message.getPrefix();
+      this.headers = message.getHeaders();
+      this.headerCount = headers.size();
+      this.payload = message.getPayload();
+      this.headerNames = headers.toArray(new String[0]);
+      this.headerTagKeys = new String[headerNames.length];
+      for (int i = 0; i < headerNames.length; i++) {
+        headerTagKeys[i] = prefix + headerNames[i].toLowerCase();
+      }
+      this.payloadTypeTagKey = payload.getType();
+      this.payloadSizeTagKey = payload.getSize();
     }
-  }
 
-  private Long getFirst(List<Long> parents) {
-    return parents.isEmpty() ? null : parents.get(0);
+    private boolean isCompiledFrom(TraceKeys.Message message) {
+      // Identity checks on purpose: binding new properties replaces these objects
+      return message.getPrefix() == prefix
+          && message.getHeaders() == headers
+          && headers.size() == headerCount
+          && message.getPayload() == payload
+          && payload.getType() == payloadTypeTagKey
+          && payload.getSize() == payloadSizeTagKey;
+    }
   }
 }
@@ -1,5 +1,6 @@
 package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
 
+import java.util.List;
 import org.springframework.amqp.core.Message;
 import org.springframework.cloud.sleuth.Span;
 
@@ -14,9 +15,119 @@ public interface AmqpMessagingSpanManager {
 
   void afterHandle(Exception ex);
 
+  /**
+   * Starts handling a message converted before it reaches the listener, finished by {@link
+   * #afterHandle(Exception)}. A listener taking the same delivery may handle it afterwards. By
+   * default the message is handled by {@link #beforeHandle(Message)}.
+   *
+   * @param message Message being converted
+   * @return Consumer span
+   * @since 0.11
+   */
+  default Span beforeConvert(Message message) {
+    return beforeHandle(message);
+  }
+
+  /**
+   * Starts a single span for a batch of messages, finished by {@link #afterHandle(Exception)}. The
+   * span references the trace context of the messages in the batch.
+   *
+   * <p>By default the batch is handled as its first message, with {@link #beforeHandle(Message)}.
+   *
+   * @param messages Messages of the batch
+   * @return Batch span, or null if the batch is empty
+   * @since 0.11
+   */
+  default Span beforeHandleBatch(List<Message> messages) {
+    return messages.isEmpty() ? null : beforeHandle(messages.get(0));
+  }
+
+  /**
+   * Starts a send span. The span is finished by {@link #afterSend(Exception)} on the same thread.
+   *
+   * @param message Message being sent
+   * @param spanName Name of send span
+   * @return Send span, or null if the send is not sampled and no span was built
+   */
   Span beforeSend(Message message, String spanName);
 
+  /**
+   * Finishes the last send span started by {@link #beforeSend(Message, String)} on the current
+   * thread and not finished yet.
+   *
+   * @param ex Exception thrown while sending, or null
+   */
   void afterSend(Exception ex);
 
+  /**
+   * Removes the last send span started by {@link #beforeSend(Message, String)} from the current
+   * thread without finishing it, so it can be finished later by {@link #afterSend(Span, Exception)}
+   * from any thread. By default the span is finished right away, as implementations that do not
+   * override both methods cannot finish it from another thread.
+   *
+   * @return Send span, or null if there is none or it is already finished
+   * @since 0.11
+   */
+  default Span suspendSend() {
+    afterSend((Exception) null);
+    return null;
+  }
+
+  /**
+   * Finishes a send span suspended by {@link #suspendSend()}. Does nothing by default, as the
+   * default {@link #suspendSend()} already finishes the span.
+   *
+   * @param span Send span, may be null
+   * @param ex Exception thrown while waiting for the reply, or null
+   * @since 0.11
+   */
+  default void afterSend(Span span, Exception ex) {}
+
+  /**
+   * Starts a send span. By default the span is started by {@link #beforeSend(Message, String)}.
+   *
+   * @param message Message being sent
+   * @param spanName Name of send span
+   * @return Token to finish the send span with {@link #finishSend(SendToken, Exception)}
+   * @since 0.11
+   */
+  default SendToken startSend(Message message, String spanName) {
+    return new SendToken(beforeSend(message, spanName), false);
+  }
+
+  /**
+   * Finishes a send span. Suspended spans may be finished from any thread. By default the span is
+   * finished by {@link #afterSend(Exception)}, or by {@link #afterSend(Span, Exception)} once
+   * suspended.
+   *
+   * @param token Token of send span, may be null
+   * @param ex Exception thrown while sending or waiting for the reply, or null
+   * @since 0.11
+   */
+  default void finishSend(SendToken token, Exception ex) {
+    if (token == null) {
+      return;
+    }
+    if (token.transition(SendToken.State.STARTED, SendToken.State.FINISHED)) {
+      afterSend(ex);
+    } else if (token.transition(SendToken.State.SUSPENDED, SendToken.State.FINISHED)) {
+      afterSend(token.getSpan(), ex);
+    }
+  }
+
+  /**
+   * Removes a send span from the current thread without finishing it, so it can be finished later
+   * by {@link #finishSend(SendToken, Exception)} from any thread. By default the span is suspended
+   * by {@link #suspendSend()}.
+   *
+   * @param token Token of send span, may be null
+   * @since 0.11
+   */
+  default void suspendSend(SendToken token) {
+    if (token != null && token.transition(SendToken.State.STARTED, SendToken.State.SUSPENDED)) {
+      suspendSend();
+    }
+  }
+
   boolean isTracing();
 }
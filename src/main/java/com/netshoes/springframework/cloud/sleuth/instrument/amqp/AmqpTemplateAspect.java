@@ -1,5 +1,9 @@
 package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
 
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpFlightRecorder;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpPublishEvent;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverhead;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming.AmqpSpanNameResolver;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -11,15 +15,18 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate;
 /**
  * Aspect responsible for add tracing information to {@link AmqpTemplate} methods.
  *
+ * <p>Each send is also recorded as an {@link AmqpPublishEvent} of JDK Flight Recorder, when the
+ * event is enabled.
+ *
  * @see AmqpMessagingSpanManager
  * @author André Ignacio
  */
 @Aspect
 public class AmqpTemplateAspect {
   private static final String CONVERT_AND_SEND = "convertAndSend";
-  private static final String UNKNOWN_EXCHANGE = "unknown-exchange";
-  private static final String SPAN_NAME_PREFIX = "amqp://";
   private final AmqpMessagingSpanManager spanManager;
+  private final AmqpSpanNameResolver spanNameResolver;
+  private InstrumentationOverhead overhead;
 
   /**
    * Creates a new instance.
@@ -27,7 +34,32 @@ public class AmqpTemplateAspect {
    * @param spanManager Span manager for AMQP messaging
    */
   public AmqpTemplateAspect(AmqpMessagingSpanManager spanManager) {
+    this(spanManager, new AmqpSpanNameResolver());
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager Span manager for AMQP messaging
+   * @param spanNameResolver Resolver of span names
+   * @since 0.11
+   */
+  public AmqpTemplateAspect(
+      AmqpMessagingSpanManager spanManager, AmqpSpanNameResolver spanNameResolver) {
     this.spanManager = spanManager;
+    this.spanNameResolver = spanNameResolver;
+  }
+
+  /**
+   * Sets the accounting of the overhead of the instrumentation, which times the work of this
+   * aspect around each send, without the send itself, as {@link
+   * InstrumentationOverhead.Stage#SEND}. Set it before the first send.
+   *
+   * @param overhead Overhead of the instrumentation, or null to not account for it
+   * @since 0.11
+   */
+  public void setInstrumentationOverhead(InstrumentationOverhead overhead) {
+    this.overhead = overhead;
   }
 
   @Around("execution(* org.springframework.amqp.core.AmqpTemplate.send(..))")
@@ -103,14 +135,17 @@ public class AmqpTemplateAspect {
     final Object[] args = argumentDiscover.args;
     final MessagePostProcessor argPostProcessor = argumentDiscover.messagePostProcessor;
 
+    final InstrumentationOverhead.Probe startProbe = startProbe(true);
+    final SpanManagerMessagePostProcessor postProcessor =
+        createPostProcessor(argumentDiscover.exchangeOfSender, argumentDiscover.routingKey);
+    stopProbe(startProbe);
+    final AmqpPublishEvent event =
+        AmqpFlightRecorder.beginPublish(
+            argumentDiscover.exchangeOfSender, argumentDiscover.routingKey);
     boolean executed;
 
     try {
       if (argPostProcessor != null) {
-        final String exchange = argumentDiscover.exchangeOfSender;
-        final String routingKey = argumentDiscover.routingKey;
-        final SpanManagerMessagePostProcessor postProcessor =
-            new SpanManagerMessagePostProcessor(spanManager, buildSpanName(exchange, routingKey));
         final MessagePostProcessor overwritePostProcessor =
             new CompositeMessagePostProcessor(argPostProcessor, postProcessor);
 
@@ -118,14 +153,20 @@ public class AmqpTemplateAspect {
         call.proceed(args);
         executed = true;
       } else {
-        executed = changeExecutionOfMethodToUsePostProcessor(call, argumentDiscover);
+        executed = changeExecutionOfMethodToUsePostProcessor(call, postProcessor);
       }
     } catch (Exception e) {
-      spanManager.afterSend(e);
+      final InstrumentationOverhead.Probe probe = startProbe(false);
+      spanManager.finishSend(postProcessor.getSendToken(), e);
+      stopProbe(probe);
       throw e;
+    } finally {
+      AmqpFlightRecorder.endPublish(event);
     }
     if (executed) {
-      spanManager.afterSend(null);
+      final InstrumentationOverhead.Probe probe = startProbe(false);
+      spanManager.finishSend(postProcessor.getSendToken(), null);
+      stopProbe(probe);
     } else {
       executeWithoutPostProcessor(call, argumentDiscover);
     }
@@ -137,24 +178,33 @@ public class AmqpTemplateAspect {
     final Message message = argumentDiscover.message;
     final String exchange = argumentDiscover.exchangeOfSender;
     final String routingKey = argumentDiscover.routingKey;
-    before(message, exchange, routingKey);
+    InstrumentationOverhead.Probe probe = startProbe(true);
+    final SendToken token = before(message, exchange, routingKey);
+    stopProbe(probe);
+    final AmqpPublishEvent event = AmqpFlightRecorder.beginPublish(exchange, routingKey);
+    final Object result;
     try {
-      Object result = call.proceed(args);
-      spanManager.afterSend(null);
-      return result;
+      if (event != null && message != null) {
+        AmqpFlightRecorder.publishing(message, token != null ? token.getSpan() : null);
+      }
+      result = call.proceed(args);
     } catch (Exception e) {
-      spanManager.afterSend(e);
+      probe = startProbe(false);
+      spanManager.finishSend(token, e);
+      stopProbe(probe);
       throw e;
+    } finally {
+      AmqpFlightRecorder.endPublish(event);
     }
+    probe = startProbe(false);
+    spanManager.finishSend(token, null);
+    stopProbe(probe);
+    return result;
   }
 
   private boolean changeExecutionOfMethodToUsePostProcessor(
-      ProceedingJoinPoint call, ArgumentDiscover argumentDiscover) {
+      ProceedingJoinPoint call, SpanManagerMessagePostProcessor beforePublishPostProcessor) {
     final Object[] args = call.getArgs();
-    final String exchange = argumentDiscover.exchangeOfSender;
-    final String routingKey = argumentDiscover.routingKey;
-    final SpanManagerMessagePostProcessor beforePublishPostProcessor =
-        new SpanManagerMessagePostProcessor(spanManager, buildSpanName(exchange, routingKey));
     final AmqpTemplate amqpTemplate = (AmqpTemplate) call.getTarget();
 
     boolean executed = true;
@@ -177,19 +227,39 @@ public class AmqpTemplateAspect {
     return executed;
   }
 
-  private void before(Message message, String exchange, String routingKey) {
-    if (message != null) {
-      spanManager.beforeSend(message, buildSpanName(exchange, routingKey));
+  private SendToken before(Message message, String exchange, String routingKey) {
+    if (message == null) {
+      return null;
+    }
+    return spanManager.startSend(message, spanNameResolver.resolve(exchange, routingKey));
+  }
+
+  private SpanManagerMessagePostProcessor createPostProcessor(String exchange, String routingKey) {
+    final SpanManagerMessagePostProcessor postProcessor =
+        new SpanManagerMessagePostProcessor(
+            spanManager, spanNameResolver.resolve(exchange, routingKey));
+    postProcessor.setInstrumentationOverhead(overhead);
+    return postProcessor;
+  }
+
+  /**
+   * Starts timing the work of this aspect, if the overhead is accounted for and the call sampled.
+   *
+   * @param newMessage True for the first work done on a message
+   */
+  private InstrumentationOverhead.Probe startProbe(boolean newMessage) {
+    if (overhead == null) {
+      return null;
     }
+    return newMessage
+        ? overhead.startMessage(InstrumentationOverhead.Stage.SEND)
+        : overhead.startSegment(InstrumentationOverhead.Stage.SEND);
   }
 
-  private String buildSpanName(String exchange, String routingKey) {
-    final StringBuilder sb = new StringBuilder();
-    sb.append(SPAN_NAME_PREFIX);
-    sb.append(exchange != null ? exchange : UNKNOWN_EXCHANGE);
-    sb.append("/");
-    sb.append(routingKey);
-    return sb.toString();
+  private void stopProbe(InstrumentationOverhead.Probe probe) {
+    if (probe != null) {
+      probe.stop();
+    }
   }
 
   private static class ArgumentDiscover {
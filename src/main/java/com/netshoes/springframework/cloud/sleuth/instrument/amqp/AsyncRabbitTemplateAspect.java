@@ -0,0 +1,308 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming.AmqpSpanNameResolver;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.AsyncRabbitTemplate;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.util.StringUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+
+/**
+ * Aspect responsible for add tracing information to {@link AsyncRabbitTemplate} request/reply
+ * methods. The client span is created when the request is sent and finished by a callback of the
+ * returned future, so neither the caller thread nor a thread local span is held while waiting for
+ * the reply.
+ *
+ * <p>Besides the client send and receive events, the span records {@code ws} when the request was
+ * published and {@code wr} when the reply reached the reply container, which split the round trip
+ * in request in flight, broker and reply processing times. Reply timeouts and cancellations are
+ * tagged as errors.
+ *
+ * <p>A request is registered by its correlation ID before it is published, so a reply arriving
+ * before the send returns still finds its span. Requests without a correlation ID get one, set as
+ * {@link AsyncRabbitTemplate} would.
+ *
+ * @see AmqpMessagingSpanManager#suspendSend(SendToken)
+ * @see AmqpMessagingSpanManager#finishSend(SendToken, Exception)
+ * @author André Ignacio
+ * @since 0.11
+ */
+@Aspect
+public class AsyncRabbitTemplateAspect {
+  private static final String WIRE_RECV = "wr";
+  private static final String ANY_ROUTING_KEY = "*";
+  private static final String CANCELLED = "Cancelled";
+  private static final String TEMPLATE = "template";
+  private static final String CONTAINER = "container";
+  private static final String AFTER_RECEIVE_POST_PROCESSORS = "afterReceivePostProcessors";
+  private final AmqpMessagingSpanManager spanManager;
+  private final AmqpSpanNameResolver spanNameResolver;
+  private final ConcurrentMap<AsyncRabbitTemplate, RabbitTemplate> templates =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, SendToken> inFlight = new ConcurrentHashMap<>();
+  private final MessagePostProcessor replyPostProcessor = this::replyReceived;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager Span manager for AMQP messaging
+   */
+  public AsyncRabbitTemplateAspect(AmqpMessagingSpanManager spanManager) {
+    this(spanManager, new AmqpSpanNameResolver());
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager Span manager for AMQP messaging
+   * @param spanNameResolver Resolver of span names
+   */
+  public AsyncRabbitTemplateAspect(
+      AmqpMessagingSpanManager spanManager, AmqpSpanNameResolver spanNameResolver) {
+    this.spanManager = spanManager;
+    this.spanNameResolver = spanNameResolver;
+  }
+
+  @Around("execution(* org.springframework.amqp.rabbit.AsyncRabbitTemplate.sendAndReceive(..))")
+  public Object executeAroundSendAndReceive(ProceedingJoinPoint call) throws Throwable {
+    final Object[] args = call.getArgs();
+    final Message message = (Message) args[args.length - 1];
+    final String spanName = resolveSpanName(call, args.length - 1);
+    final SendToken token = spanManager.startSend(message, spanName);
+    final String correlationId = register(message, token);
+    final Object result;
+    try {
+      result = call.proceed(args);
+    } catch (Exception e) {
+      unregister(correlationId, token);
+      spanManager.finishSend(token, e);
+      throw e;
+    }
+    return suspend(result, token, correlationId);
+  }
+
+  @Around(
+      "execution(* org.springframework.amqp.rabbit.AsyncRabbitTemplate.convertSendAndReceive(..))")
+  public Object executeAroundConvertSendAndReceive(ProceedingJoinPoint call) throws Throwable {
+    final Object[] args = call.getArgs();
+    final boolean hasPostProcessor =
+        args.length > 1 && args[args.length - 1] instanceof MessagePostProcessor;
+    final int destinationArgs = hasPostProcessor ? args.length - 2 : args.length - 1;
+    final RequestPostProcessor requestPostProcessor =
+        new RequestPostProcessor(resolveSpanName(call, destinationArgs));
+    final Object result;
+    try {
+      if (hasPostProcessor) {
+        args[args.length - 1] =
+            new CompositeMessagePostProcessor(
+                (MessagePostProcessor) args[args.length - 1], requestPostProcessor);
+        result = call.proceed(args);
+      } else {
+        result = proceedWithPostProcessor(call, args, requestPostProcessor);
+      }
+    } catch (Exception e) {
+      unregister(requestPostProcessor.correlationId, requestPostProcessor.token);
+      spanManager.finishSend(requestPostProcessor.token, e);
+      throw e;
+    }
+    if (requestPostProcessor.token == null) {
+      return result;
+    }
+    return suspend(result, requestPostProcessor.token, requestPostProcessor.correlationId);
+  }
+
+  private Object proceedWithPostProcessor(
+      ProceedingJoinPoint call, Object[] args, MessagePostProcessor postProcessor) {
+    final AsyncRabbitTemplate asyncRabbitTemplate = (AsyncRabbitTemplate) call.getTarget();
+    switch (args.length) {
+      case 1:
+        return asyncRabbitTemplate.convertSendAndReceive(args[0], postProcessor);
+      case 2:
+        return asyncRabbitTemplate.convertSendAndReceive((String) args[0], args[1], postProcessor);
+      default:
+        return asyncRabbitTemplate.convertSendAndReceive(
+            (String) args[0], (String) args[1], args[2], postProcessor);
+    }
+  }
+
+  private Object suspend(Object result, SendToken token, String correlationId) {
+    spanManager.suspendSend(token);
+    if (!(result instanceof ListenableFuture)) {
+      unregister(correlationId, token);
+      spanManager.finishSend(token, null);
+      return result;
+    }
+    ((ListenableFuture<?>) result).addCallback(new ReplyCallback(token, correlationId));
+    return result;
+  }
+
+  /**
+   * Registers the send of a request by its correlation ID, setting one if the request has none.
+   *
+   * @param message Request
+   * @param token Send of the request, may be null
+   * @return Correlation ID, or null if the send was not registered
+   */
+  // AsyncRabbitTemplate 1.7 matches replies on the deprecated byte[] correlation ID
+  @SuppressWarnings("deprecation")
+  private String register(Message message, SendToken token) {
+    final MessageProperties messageProperties = message.getMessageProperties();
+    if (token == null || messageProperties == null) {
+      return null;
+    }
+    byte[] correlationId = messageProperties.getCorrelationId();
+    if (correlationId == null) {
+      correlationId = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+      messageProperties.setCorrelationId(correlationId);
+    }
+    final String key = new String(correlationId, StandardCharsets.UTF_8);
+    inFlight.put(key, token);
+    return key;
+  }
+
+  private void unregister(String correlationId, SendToken token) {
+    if (correlationId != null) {
+      inFlight.remove(correlationId, token);
+    }
+  }
+
+  private String resolveSpanName(ProceedingJoinPoint call, int destinationArgs) {
+    final Object[] args = call.getArgs();
+    final RabbitTemplate rabbitTemplate = getRabbitTemplate((AsyncRabbitTemplate) call.getTarget());
+    final String exchange;
+    final String routingKey;
+    if (destinationArgs >= 2) {
+      exchange = (String) args[0];
+      routingKey = (String) args[1];
+    } else {
+      exchange = rabbitTemplate != null ? rabbitTemplate.getExchange() : null;
+      if (destinationArgs == 1) {
+        routingKey = (String) args[0];
+      } else if (rabbitTemplate != null && StringUtils.hasText(rabbitTemplate.getRoutingKey())) {
+        routingKey = rabbitTemplate.getRoutingKey();
+      } else {
+        routingKey = ANY_ROUTING_KEY;
+      }
+    }
+    return spanNameResolver.resolve(exchange, routingKey);
+  }
+
+  private RabbitTemplate getRabbitTemplate(AsyncRabbitTemplate asyncRabbitTemplate) {
+    final RabbitTemplate rabbitTemplate = templates.get(asyncRabbitTemplate);
+    if (rabbitTemplate != null) {
+      return rabbitTemplate;
+    }
+    return templates.computeIfAbsent(asyncRabbitTemplate, this::instrument);
+  }
+
+  /**
+   * Installs the reply post processor in the reply container of a template.
+   *
+   * @param asyncRabbitTemplate Template
+   * @return Template used to send requests
+   */
+  @SuppressWarnings("unchecked")
+  private RabbitTemplate instrument(AsyncRabbitTemplate asyncRabbitTemplate) {
+    final DirectFieldAccessor templateAccessor = new DirectFieldAccessor(asyncRabbitTemplate);
+    final Object container = templateAccessor.getPropertyValue(CONTAINER);
+    if (container instanceof AbstractMessageListenerContainer) {
+      final Collection<MessagePostProcessor> current =
+          (Collection<MessagePostProcessor>)
+              new DirectFieldAccessor(container).getPropertyValue(AFTER_RECEIVE_POST_PROCESSORS);
+      final List<MessagePostProcessor> postProcessors =
+          current != null ? new ArrayList<>(current) : new ArrayList<>();
+      postProcessors.add(replyPostProcessor);
+      ((AbstractMessageListenerContainer) container)
+          .setAfterReceivePostProcessors(
+              postProcessors.toArray(new MessagePostProcessor[postProcessors.size()]));
+    }
+    return (RabbitTemplate) templateAccessor.getPropertyValue(TEMPLATE);
+  }
+
+  private Message replyReceived(Message message) {
+    final String correlationId = getCorrelationId(message);
+    final SendToken token = correlationId != null ? inFlight.get(correlationId) : null;
+    if (token != null && token.getSpan() != null) {
+      token.getSpan().logEvent(WIRE_RECV);
+    }
+    return message;
+  }
+
+  // AsyncRabbitTemplate 1.7 matches replies on the deprecated byte[] correlation ID
+  @SuppressWarnings("deprecation")
+  private String getCorrelationId(Message message) {
+    final MessageProperties messageProperties = message.getMessageProperties();
+    if (messageProperties == null) {
+      return null;
+    }
+    final byte[] correlationId = messageProperties.getCorrelationId();
+    return correlationId != null
+        ? new String(correlationId, StandardCharsets.UTF_8)
+        : messageProperties.getCorrelationIdString();
+  }
+
+  private class RequestPostProcessor implements MessagePostProcessor {
+    private final String spanName;
+    private SendToken token;
+    private String correlationId;
+
+    private RequestPostProcessor(String spanName) {
+      this.spanName = spanName;
+    }
+
+    @Override
+    public Message postProcessMessage(Message message) throws AmqpException {
+      this.token = spanManager.startSend(message, spanName);
+      this.correlationId = register(message, token);
+      return message;
+    }
+  }
+
+  private class ReplyCallback implements ListenableFutureCallback<Object> {
+    private final SendToken token;
+    private final String correlationId;
+
+    private ReplyCallback(SendToken token, String correlationId) {
+      this.token = token;
+      this.correlationId = correlationId;
+    }
+
+    @Override
+    public void onSuccess(Object result) {
+      finish(null);
+    }
+
+    @Override
+    public void onFailure(Throwable ex) {
+      if (ex instanceof CancellationException) {
+        finish(new CancellationException(CANCELLED));
+      } else if (ex instanceof Exception) {
+        finish((Exception) ex);
+      } else {
+        finish(new IllegalStateException(ex));
+      }
+    }
+
+    private void finish(Exception ex) {
+      unregister(correlationId, token);
+      spanManager.finishSend(token, ex);
+    }
+  }
+}
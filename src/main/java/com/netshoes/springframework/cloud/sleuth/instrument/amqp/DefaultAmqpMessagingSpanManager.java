@@ -1,25 +1,83 @@
 package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
 
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.SpanIdGenerator;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.ThreadLocalSpanIdGenerator;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.AmqpMessagingMetrics;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.sampler.DestinationRateLimitingSampler;
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
 import org.springframework.amqp.core.Message;
-import org.springframework.cloud.sleuth.Log;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Sampler;
 import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.SpanReporter;
 import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.sampler.AlwaysSampler;
 import org.springframework.cloud.sleuth.util.ExceptionUtils;
+import org.springframework.util.Assert;
 
 /**
  * Default implementation for {@link AmqpMessagingSpanManager} who uses {@link
  * AmqpMessagingSpanExtractor} and {@link AmqpMessagingSpanInjector} to create or get {@link Span}
  * from {@link Tracer}.
  *
+ * <p>Each send is tracked by a {@link SendToken} handed back by the caller. The token records
+ * whether the span closes with a server send or a client receive, so finishing a send does not
+ * depend on the current span of the thread and nested sends finish their own spans. Only sends
+ * started by {@link #beforeSend(Message, String)}, which returns no token, are kept in a thread
+ * local stack until {@link #afterSend(Exception)}.
+ *
+ * <p>A delivery may be handled by several interception points, like a message converter and a
+ * listener method. The trace of a delivery is extracted once: nested handles of the same delivery
+ * only increment a counter, and a listener handle after the conversion of the delivery reuses the
+ * extracted span. Server send is logged once per delivery, when its first outermost handle ends.
+ * The extracted span is kept for the thread after a conversion, until the listener handle of the
+ * delivery ends or another delivery is handled.
+ *
+ * <p>A batch of messages is handled by a single local span. Only the IDs of the trace context of
+ * each message are read. The span is a child of the trace context of the messages when they all
+ * share it; otherwise it starts a new trace, even when a span is current, and references the trace
+ * contexts of the first messages in the {@value #BATCH_LINKS_TAG_NAME} tag.
+ *
  * @author André Ignacio
  * @since 0.8
  */
 public class DefaultAmqpMessagingSpanManager implements AmqpMessagingSpanManager {
+  public static final String BATCH_SPAN_NAME = "amqp-batch";
+  public static final String BATCH_SIZE_TAG_NAME = "amqp.batch.size";
+  public static final String BATCH_LINKS_TAG_NAME = "amqp.batch.links";
+  public static final String BATCH_LINKS_COUNT_TAG_NAME = "amqp.batch.links.count";
+  public static final String BATCH_AGE_MIN_TAG_NAME = "amqp.batch.age.min.millis";
+  public static final String BATCH_AGE_AVG_TAG_NAME = "amqp.batch.age.avg.millis";
+  public static final String BATCH_AGE_MAX_TAG_NAME = "amqp.batch.age.max.millis";
+  public static final String DWELL_TIME_TAG_NAME = "amqp.dwell.micros";
   private static final String MESSAGE_SENT_FROM_CLIENT = "messageSent";
+  private static final String WIRE_SEND = "ws";
+  private static final int MAX_SEND_DEPTH = 32;
+  private static final int MAX_HANDLE_DEPTH = 32;
+  private static final int DEFAULT_MAX_BATCH_LINKS = 16;
+  private static final Sampler ALWAYS_SAMPLER = new AlwaysSampler();
+  private final ThreadLocal<Deque<OpenSend>> sends = ThreadLocal.withInitial(ArrayDeque::new);
+  private final ThreadLocal<Deque<Delivery>> deliveries = ThreadLocal.withInitial(ArrayDeque::new);
+  private final ThreadLocal<Delivery> lastDelivery = ThreadLocal.withInitial(Delivery::new);
   private final AmqpMessagingSpanExtractor extractor;
   private final AmqpMessagingSpanInjector injector;
   private final Tracer tracer;
+  private PublisherConfirmSpanTracker publisherConfirmSpanTracker;
+  private boolean leanPropagation;
+  private boolean unsampledFastPath;
+  private SpanReporter spanReporter;
+  private Sampler sampler;
+  private SpanIdGenerator idGenerator = new ThreadLocalSpanIdGenerator();
+  private DestinationRateLimitingSampler destinationSampler;
+  private DwellTimeRecorder dwellTimeRecorder;
+  private AmqpMessagingMetrics metrics;
+  private MessageHistory messageHistory;
+  private int maxBatchLinks = DEFAULT_MAX_BATCH_LINKS;
 
   /**
    * Creates a new instance.
@@ -35,6 +93,148 @@ public class DefaultAmqpMessagingSpanManager implements AmqpMessagingSpanManager
     this.tracer = tracer;
   }
 
+  /**
+   * Enables spans that stay open until the publisher confirm of the message arrives.
+   *
+   * @param publisherConfirmSpanTracker Tracker of spans waiting for a publisher confirm, or null to
+   *     close send spans as soon as the message is sent
+   */
+  public void setPublisherConfirmSpanTracker(
+      PublisherConfirmSpanTracker publisherConfirmSpanTracker) {
+    this.publisherConfirmSpanTracker = publisherConfirmSpanTracker;
+  }
+
+  /**
+   * Enables the lean propagation mode. In this mode only trace headers are written to messages: the
+   * {@link Span} object is not added to headers by the injector and messages being sent by {@link
+   * #beforeSend(Message, String)} are only tracked in a thread local table, cleared when the send
+   * ends, without a marker header.
+   *
+   * @param leanPropagation True to enable the lean propagation mode
+   * @see #getSendSpan(Message)
+   */
+  public void setLeanPropagation(boolean leanPropagation) {
+    this.leanPropagation = leanPropagation;
+    injector.setSpanHeaderEnabled(!leanPropagation);
+  }
+
+  /**
+   * Enables the unsampled fast path. Messages explicitly marked as not sampled are handled with an
+   * {@link UnsampledContext} holding only their IDs: no span is built, continued or closed and no
+   * events or tags are recorded. Messages sent while handling them, or while the current span is
+   * not sampled, carry the IDs and the not sampled flag, and their send spans are null.
+   *
+   * <p>The tracer has no current span while an unsampled message is handled, so other
+   * instrumentation used by the listener makes its own sampling decision.
+   *
+   * @param unsampledFastPath True to enable the unsampled fast path
+   * @since 0.11
+   */
+  public void setUnsampledFastPath(boolean unsampledFastPath) {
+    this.unsampledFastPath = unsampledFastPath;
+  }
+
+  /**
+   * Enables ephemeral send spans. A send span is built straight from its parent, the send being
+   * performed by the current thread or else the current span of the tracer or the trace of the
+   * message, and reported when the send finishes. It never becomes the current span of the tracer,
+   * so sends do not push to or pop from the thread local context of the tracer.
+   *
+   * @param spanReporter Reporter of finished send spans, or null to disable ephemeral send spans
+   * @param sampler Sampler of send spans without a parent, required with a reporter
+   * @since 0.11
+   */
+  public void setEphemeralSendSpans(SpanReporter spanReporter, Sampler sampler) {
+    Assert.isTrue(
+        spanReporter == null || sampler != null, "sampler is required with ephemeral send spans");
+    this.spanReporter = spanReporter;
+    this.sampler = sampler;
+  }
+
+  /**
+   * Sets the sampler of the traces started by sends without a parent span, keyed by destination.
+   * Its decision is taken before any span is built or header written: dropped sends only carry
+   * the not sampled flag and new IDs, as in the unsampled fast path. Destinations without a limit
+   * are sampled by the tracer.
+   *
+   * @param destinationSampler Sampler of traces per destination, or null to sample every trace with
+   *     the sampler of the tracer
+   * @since 0.11
+   */
+  public void setDestinationSampler(DestinationRateLimitingSampler destinationSampler) {
+    this.destinationSampler = destinationSampler;
+  }
+
+  /**
+   * Enables the measurement of how long delivered messages waited in the broker. The dwell time of
+   * each delivery is recorded, also for unsampled messages, and sampled consumer spans are tagged
+   * with it as {@value #DWELL_TIME_TAG_NAME}.
+   *
+   * @param dwellTimeRecorder Recorder of dwell times, or null to not measure them
+   * @since 0.11
+   */
+  public void setDwellTimeRecorder(DwellTimeRecorder dwellTimeRecorder) {
+    this.dwellTimeRecorder = dwellTimeRecorder;
+  }
+
+  /**
+   * Enables rate, error and duration metrics of publishes and deliveries. They are recorded for
+   * every message, whether its span is sampled or not.
+   *
+   * @param metrics Metrics of AMQP messaging, or null to not record metrics
+   * @since 0.11
+   */
+  public void setMetrics(AmqpMessagingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Enables the history of the last publishes and deliveries, with their trace IDs, duration and
+   * outcome. They are recorded for every message, whether its span is sampled or not.
+   *
+   * @param messageHistory History of messages, or null to not keep it
+   * @since 0.11
+   */
+  public void setMessageHistory(MessageHistory messageHistory) {
+    this.messageHistory = messageHistory;
+  }
+
+  /**
+   * Sets how many trace contexts of the messages of a batch are written in the {@value
+   * #BATCH_LINKS_TAG_NAME} tag. The {@value #BATCH_LINKS_COUNT_TAG_NAME} tag holds how many
+   * messages of the batch carried a trace context. Defaults to 16.
+   *
+   * @param maxBatchLinks Maximum number of trace contexts in the links tag
+   * @since 0.11
+   */
+  public void setMaxBatchLinks(int maxBatchLinks) {
+    Assert.isTrue(maxBatchLinks >= 0, "maxBatchLinks must not be negative");
+    this.maxBatchLinks = maxBatchLinks;
+  }
+
+  /**
+   * Sets the generator of the IDs of the spans built by this manager, instead of the tracer.
+   * Defaults to a {@link ThreadLocalSpanIdGenerator} with 64-bit trace IDs.
+   *
+   * @param idGenerator Generator of span and trace IDs
+   * @since 0.11
+   */
+  public void setIdGenerator(SpanIdGenerator idGenerator) {
+    this.idGenerator = idGenerator;
+  }
+
+  /**
+   * Gets the span of a message being sent by the current thread with {@link #beforeSend(Message,
+   * String)}.
+   *
+   * @param message Message
+   * @return Send span, or null if the message is not being sent by the current thread
+   */
+  public Span getSendSpan(Message message) {
+    final OpenSend send = findSend(message);
+    return send != null ? send.token.getSpan() : null;
+  }
+
   @Override
   public boolean isTracing() {
     return tracer.isTracing();
@@ -42,9 +242,31 @@ public class DefaultAmqpMessagingSpanManager implements AmqpMessagingSpanManager
 
   @Override
   public void afterHandle(Exception ex) {
+    final Deque<Delivery> stack = deliveries.get();
+    final Delivery delivery = stack.peek();
+    if (delivery != null) {
+      if (delivery.depth > 0) {
+        delivery.depth--;
+        return;
+      }
+      stack.pop();
+      if (metrics != null || messageHistory != null) {
+        recordProcessing(delivery, ex);
+      }
+      if (delivery.unsampled != null) {
+        return;
+      }
+      if (delivery.batch != null) {
+        finishBatch(delivery, ex);
+        return;
+      }
+    }
+    final boolean serverSendLogged = delivery != null && finishDelivery(delivery);
     final Span currentSpan = tracer.getCurrentSpan();
     if (currentSpan != null) {
-      currentSpan.logEvent(Span.SERVER_SEND);
+      if (!serverSendLogged) {
+        currentSpan.logEvent(Span.SERVER_SEND);
+      }
       addErrorTag(ex);
     }
     if (tracer.isTracing()) {
@@ -54,50 +276,478 @@ public class DefaultAmqpMessagingSpanManager implements AmqpMessagingSpanManager
 
   @Override
   public Span beforeHandle(Message message) {
-    final Span span = extractor.joinTrace(message);
-    if (span != null) {
-      span.logEvent(Span.SERVER_RECV);
+    return beforeHandle(message, false);
+  }
+
+  @Override
+  public Span beforeConvert(Message message) {
+    return beforeHandle(message, true);
+  }
+
+  private Span beforeHandle(Message message, boolean conversion) {
+    final Deque<Delivery> stack = deliveries.get();
+    final Delivery current = stack.peek();
+    if (current != null && current.isOf(message)) {
+      current.depth++;
+      return current.span;
+    }
+    if (unsampledFastPath) {
+      final UnsampledContext context = extractor.joinUnsampled(message);
+      if (context != null) {
+        if (dwellTimeRecorder != null) {
+          recordDwellTime(message, null);
+        }
+        pushDelivery(stack, new Delivery(message, context));
+        return null;
+      }
+    }
+    final Delivery last = lastDelivery.get();
+    final Span span;
+    if (last.isOf(message)) {
+      span = last.span;
+    } else {
+      span = extractor.joinTrace(message);
+      if (span != null) {
+        span.logEvent(Span.SERVER_RECV);
+      }
+      if (dwellTimeRecorder != null) {
+        recordDwellTime(message, span);
+      }
+      last.set(message, span);
     }
-    return tracer.continueSpan(span);
+    final Span continuedSpan = tracer.continueSpan(span);
+    final Delivery delivery = new Delivery(message, continuedSpan);
+    delivery.conversion = conversion;
+    pushDelivery(stack, delivery);
+    return continuedSpan;
   }
 
   @Override
-  public Span beforeSend(Message message, String spanName) {
-    final Span parentSpan = tracer.isTracing() ? tracer.getCurrentSpan() : buildSpan(message);
-    final Span span = tracer.createSpan(spanName, parentSpan);
-    final AmqpMessageHeaderAccessor accessor = AmqpMessageHeaderAccessor.getAccessor(message);
-    if (accessor.hasHeader(MESSAGE_SENT_FROM_CLIENT)) {
-      span.logEvent(Span.SERVER_RECV);
+  public Span beforeHandleBatch(List<Message> messages) {
+    final Deque<Delivery> stack = deliveries.get();
+    final Delivery current = stack.peek();
+    if (current != null && current.batch == messages) {
+      current.depth++;
+      return current.span;
+    }
+    final StringBuilder links = new StringBuilder();
+    Message parentMessage = null;
+    UnsampledContext parent = null;
+    boolean sharedParent = true;
+    int linkCount = 0;
+    long minAge = Long.MAX_VALUE;
+    long maxAge = Long.MIN_VALUE;
+    long totalAge = 0;
+    int timestamped = 0;
+    final long now = System.currentTimeMillis();
+    for (Message message : messages) {
+      final UnsampledContext context = extractor.joinIds(message);
+      if (context != null) {
+        if (parent == null) {
+          parent = context;
+          parentMessage = message;
+        } else if (!isSameContext(parent, context)) {
+          sharedParent = false;
+        }
+        if (linkCount++ < maxBatchLinks) {
+          if (links.length() > 0) {
+            links.append(',');
+          }
+          links.append(context.traceIdString()).append('/');
+          links.append(Span.idToHex(context.getSpanId()));
+        }
+      }
+      final MessageProperties messageProperties = message.getMessageProperties();
+      final Date timestamp = messageProperties != null ? messageProperties.getTimestamp() : null;
+      if (timestamp != null) {
+        final long age = Math.max(0, now - timestamp.getTime());
+        minAge = Math.min(minAge, age);
+        maxAge = Math.max(maxAge, age);
+        totalAge += age;
+        timestamped++;
+      }
+    }
+    final Span remoteParent =
+        sharedParent && parentMessage != null ? extractor.joinTrace(parentMessage) : null;
+    final Span detachedSpan;
+    final Span span;
+    if (remoteParent != null) {
+      detachedSpan = null;
+      span = tracer.createSpan(BATCH_SPAN_NAME, remoteParent);
     } else {
-      span.logEvent(Span.CLIENT_SEND);
-      accessor.setHeader(MESSAGE_SENT_FROM_CLIENT, Boolean.TRUE.toString());
+      // The tracer would make the span a child of the current span, so it is detached meanwhile
+      detachedSpan = tracer.isTracing() ? tracer.getCurrentSpan() : null;
+      if (detachedSpan != null) {
+        tracer.detach(detachedSpan);
+      }
+      span = tracer.createSpan(BATCH_SPAN_NAME);
     }
-    injector.inject(span, message);
+    span.logEvent(Span.SERVER_RECV);
+    span.tag(BATCH_SIZE_TAG_NAME, String.valueOf(messages.size()));
+    if (remoteParent == null && linkCount > 0) {
+      span.tag(BATCH_LINKS_TAG_NAME, links.toString());
+      span.tag(BATCH_LINKS_COUNT_TAG_NAME, String.valueOf(linkCount));
+    }
+    if (timestamped > 0) {
+      span.tag(BATCH_AGE_MIN_TAG_NAME, String.valueOf(minAge));
+      span.tag(BATCH_AGE_AVG_TAG_NAME, String.valueOf(totalAge / timestamped));
+      span.tag(BATCH_AGE_MAX_TAG_NAME, String.valueOf(maxAge));
+    }
+    final Delivery delivery = new Delivery(messages, span);
+    delivery.detachedSpan = detachedSpan;
+    pushDelivery(stack, delivery);
     return span;
   }
 
+  @Override
+  public Span beforeSend(Message message, String spanName) {
+    final SendToken token = startSend(message, spanName);
+    pushSend(new OpenSend(message, token));
+    return token.getSpan();
+  }
+
   @Override
   public void afterSend(Exception ex) {
-    final Span currentSpan = tracer.getCurrentSpan();
-    if (containsServerReceived(currentSpan)) {
-      currentSpan.logEvent(Span.SERVER_SEND);
-    } else if (currentSpan != null) {
-      currentSpan.logEvent(Span.CLIENT_RECV);
+    final OpenSend send = sends.get().poll();
+    if (send != null) {
+      finishSend(send.token, ex);
     }
-    addErrorTag(ex);
-    tracer.close(currentSpan);
   }
 
-  private boolean containsServerReceived(Span span) {
+  @Override
+  public Span suspendSend() {
+    final OpenSend send = sends.get().poll();
+    if (send == null) {
+      return null;
+    }
+    final SendToken token = send.token;
+    suspendSend(token);
+    return token.getState() == SendToken.State.SUSPENDED ? token.getSpan() : null;
+  }
+
+  @Override
+  public void afterSend(Span span, Exception ex) {
     if (span == null) {
+      return;
+    }
+    final boolean ephemeral = spanReporter != null;
+    final Span continuedSpan = ephemeral ? span : tracer.continueSpan(span);
+    continuedSpan.logEvent(Span.CLIENT_RECV);
+    addErrorTag(continuedSpan, ex);
+    closeSendSpan(ephemeral, continuedSpan);
+  }
+
+  @Override
+  public SendToken startSend(Message message, String spanName) {
+    if (metrics == null && messageHistory == null) {
+      return doStartSend(message, spanName);
+    }
+    final long startNanos = System.nanoTime();
+    final SendToken token = doStartSend(message, spanName);
+    token.startTimer(spanName, startNanos);
+    return token;
+  }
+
+  private SendToken doStartSend(Message message, String spanName) {
+    if (unsampledFastPath) {
+      final UnsampledContext parent = getUnsampledParent(message);
+      if (parent != null) {
+        return startUnsampledSend(message, parent.child(idGenerator.nextId()));
+      }
+    }
+    final boolean ephemeral = spanReporter != null;
+    final Span parentSpan;
+    if (ephemeral) {
+      parentSpan = getEphemeralParent(message);
+    } else {
+      parentSpan = tracer.isTracing() ? tracer.getCurrentSpan() : buildSpan(message);
+    }
+    boolean rootSampled = false;
+    if (parentSpan == null && destinationSampler != null) {
+      final Boolean sampled = destinationSampler.isSampled(spanName);
+      if (Boolean.FALSE.equals(sampled)) {
+        final long id = idGenerator.nextId();
+        return startUnsampledSend(
+            message, new UnsampledContext(idGenerator.nextTraceIdHigh(), id, id));
+      }
+      rootSampled = Boolean.TRUE.equals(sampled);
+    }
+    final Span span;
+    if (ephemeral) {
+      span = createEphemeralSpan(spanName, parentSpan, rootSampled);
+    } else if (rootSampled) {
+      span = tracer.createSpan(spanName, ALWAYS_SAMPLER);
+    } else {
+      span = tracer.createSpan(spanName, parentSpan);
+    }
+    boolean serverSide = findSend(message) != null;
+    if (!leanPropagation) {
+      final AmqpMessageHeaderAccessor accessor = AmqpMessageHeaderAccessor.getAccessor(message);
+      if (accessor.hasHeader(MESSAGE_SENT_FROM_CLIENT)) {
+        serverSide = true;
+      } else {
+        accessor.setHeader(MESSAGE_SENT_FROM_CLIENT, Boolean.TRUE.toString());
+      }
+    }
+    span.logEvent(serverSide ? Span.SERVER_RECV : Span.CLIENT_SEND);
+    final SendToken token = new SendToken(span, serverSide, ephemeral);
+    try {
+      injector.inject(span, message);
+    } catch (RuntimeException e) {
+      finishSend(token, e);
+      throw e;
+    }
+    if (publisherConfirmSpanTracker != null) {
+      publisherConfirmSpanTracker.sendStarted(span, !ephemeral);
+    }
+    return token;
+  }
+
+  @Override
+  public void finishSend(SendToken token, Exception ex) {
+    if (token == null) {
+      return;
+    }
+    final Span span = token.getSpan();
+    if (span == null) {
+      // Unsampled send, only the token was started
+      if (token.transition(SendToken.State.STARTED, SendToken.State.FINISHED)) {
+        recordPublish(token, ex);
+      } else {
+        token.transition(SendToken.State.SUSPENDED, SendToken.State.FINISHED);
+      }
+      return;
+    }
+    if (token.transition(SendToken.State.STARTED, SendToken.State.FINISHED)) {
+      recordPublish(token, ex);
+      if (publisherConfirmSpanTracker != null
+          && publisherConfirmSpanTracker.sendFinished(span, ex)) {
+        token.transition(SendToken.State.FINISHED, SendToken.State.AWAITING_CONFIRM);
+        if (!token.isEphemeral()) {
+          detachAndRestoreParent(span);
+        }
+        return;
+      }
+      span.logEvent(token.isServerSide() ? Span.SERVER_SEND : Span.CLIENT_RECV);
+      addErrorTag(span, ex);
+      closeSendSpan(token.isEphemeral(), span);
+    } else if (token.transition(SendToken.State.SUSPENDED, SendToken.State.FINISHED)) {
+      final Span continuedSpan = token.isEphemeral() ? span : tracer.continueSpan(span);
+      continuedSpan.logEvent(Span.CLIENT_RECV);
+      addErrorTag(continuedSpan, ex);
+      closeSendSpan(token.isEphemeral(), continuedSpan);
+    }
+  }
+
+  @Override
+  public void suspendSend(SendToken token) {
+    if (token == null || !token.transition(SendToken.State.STARTED, SendToken.State.SUSPENDED)) {
+      return;
+    }
+    recordPublish(token, null);
+    final Span span = token.getSpan();
+    if (span == null) {
+      return;
+    }
+    if (publisherConfirmSpanTracker != null && publisherConfirmSpanTracker.sendSuspended(span)) {
+      // The confirm already finished the span, finishing the token later must not close it
+      token.transition(SendToken.State.SUSPENDED, SendToken.State.AWAITING_CONFIRM);
+    } else {
+      span.logEvent(WIRE_SEND);
+    }
+    if (!token.isEphemeral()) {
+      detachAndRestoreParent(span);
+    }
+  }
+
+  private void closeSendSpan(boolean ephemeral, Span span) {
+    if (ephemeral) {
+      span.stop();
+      if (span.isExportable()) {
+        spanReporter.report(span);
+      }
+    } else {
+      tracer.close(span);
+    }
+  }
+
+  private Span getEphemeralParent(Message message) {
+    final OpenSend outerSend = sends.get().peek();
+    if (outerSend != null) {
+      return outerSend.token.getSpan();
+    }
+    return tracer.isTracing() ? tracer.getCurrentSpan() : buildSpan(message);
+  }
+
+  private SendToken startUnsampledSend(Message message, UnsampledContext context) {
+    injector.injectUnsampled(context, message);
+    return new SendToken(context);
+  }
+
+  private Span createEphemeralSpan(String name, Span parent, boolean rootSampled) {
+    final long id = idGenerator.nextId();
+    if (parent == null) {
+      final Span span =
+          Span.builder()
+              .name(name)
+              .traceIdHigh(idGenerator.nextTraceIdHigh())
+              .traceId(id)
+              .spanId(id)
+              .build();
+      if (rootSampled || sampler.isSampled(span)) {
+        return span;
+      }
+      return Span.builder().from(span).exportable(false).build();
+    }
+    return Span.builder()
+        .name(name)
+        .traceIdHigh(parent.getTraceIdHigh())
+        .traceId(parent.getTraceId())
+        .parent(parent.getSpanId())
+        .spanId(id)
+        .exportable(parent.isExportable())
+        .processId(parent.getProcessId())
+        .baggage(parent.getBaggage())
+        .build();
+  }
+
+  /**
+   * Gets the unsampled context a send continues: the send started by {@link #beforeSend(Message,
+   * String)} on the current thread, or else the current span of the tracer, the unsampled delivery
+   * being handled or the message.
+   *
+   * @param message Message being sent
+   * @return Unsampled context, or null if the send is sampled or has no sampling decision yet
+   */
+  private UnsampledContext getUnsampledParent(Message message) {
+    final OpenSend outerSend = sends.get().peek();
+    Span span = outerSend != null ? outerSend.token.getSpan() : null;
+    if (span == null && tracer.isTracing()) {
+      span = tracer.getCurrentSpan();
+    }
+    if (span != null) {
+      return span.isExportable() ? null : UnsampledContext.of(span);
+    }
+    final Delivery delivery = deliveries.get().peek();
+    if (delivery != null && delivery.unsampled != null) {
+      return delivery.unsampled;
+    }
+    return extractor.joinUnsampled(message);
+  }
+
+  private void recordDwellTime(Message message, Span span) {
+    final long dwellTime = dwellTimeRecorder.record(message);
+    if (dwellTime >= 0 && span != null && span.isExportable()) {
+      span.tag(DWELL_TIME_TAG_NAME, String.valueOf(dwellTime));
+    }
+  }
+
+  private void recordPublish(SendToken token, Exception ex) {
+    if (token.getDestination() == null) {
+      return;
+    }
+    final long durationNanos = System.nanoTime() - token.getStartNanos();
+    if (metrics != null) {
+      metrics.recordPublish(token.getDestination(), durationNanos, ex != null);
+    }
+    if (messageHistory != null) {
+      messageHistory.recordPublish(
+          token.getSpan(), token.getUnsampled(), token.getDestination(), durationNanos, ex != null);
+    }
+  }
+
+  private void recordProcessing(Delivery delivery, Exception ex) {
+    final long durationNanos = System.nanoTime() - delivery.startNanos;
+    final Message message =
+        delivery.message != null
+            ? delivery.message
+            : !delivery.batch.isEmpty() ? delivery.batch.get(0) : null;
+    final MessageProperties messageProperties =
+        message != null ? message.getMessageProperties() : null;
+    final String queue = messageProperties != null ? messageProperties.getConsumerQueue() : null;
+    if (metrics != null) {
+      metrics.recordProcessing(queue, durationNanos, ex != null);
+    }
+    if (messageHistory != null) {
+      messageHistory.recordDelivery(
+          delivery.span,
+          delivery.unsampled,
+          queue,
+          messageProperties != null ? messageProperties.getReceivedExchange() : null,
+          durationNanos,
+          ex != null);
+    }
+  }
+
+  /**
+   * Ends the outermost handle of a delivery. The span of a conversion is kept for the listener
+   * handle of the same delivery; otherwise it is released.
+   *
+   * @return True if server send was already logged by a previous handle of the delivery
+   */
+  private boolean finishDelivery(Delivery delivery) {
+    final Delivery last = lastDelivery.get();
+    if (!last.isOf(delivery.message)) {
       return false;
     }
-    for (Log log : span.logs()) {
-      if (Span.SERVER_RECV.equals(log.getEvent())) {
-        return true;
+    final boolean serverSendLogged = last.serverSendLogged;
+    if (delivery.conversion) {
+      last.serverSendLogged = true;
+    } else {
+      last.clear();
+    }
+    return serverSendLogged;
+  }
+
+  private void pushDelivery(Deque<Delivery> stack, Delivery delivery) {
+    if (metrics != null || messageHistory != null) {
+      delivery.startNanos = System.nanoTime();
+    }
+    if (stack.size() >= MAX_HANDLE_DEPTH) {
+      // Handles that never reached afterHandle, drop them instead of leaking messages
+      stack.clear();
+    }
+    stack.push(delivery);
+  }
+
+  private OpenSend findSend(Message message) {
+    for (OpenSend send : sends.get()) {
+      if (send.message == message) {
+        return send;
       }
     }
-    return false;
+    return null;
+  }
+
+  private void pushSend(OpenSend send) {
+    final Deque<OpenSend> stack = sends.get();
+    if (stack.size() >= MAX_SEND_DEPTH) {
+      // Sends that never reached afterSend, drop them instead of leaking messages
+      stack.clear();
+    }
+    stack.push(send);
+  }
+
+  private void detachAndRestoreParent(Span span) {
+    final Span savedSpan = tracer.detach(span);
+    if (savedSpan != null) {
+      tracer.continueSpan(savedSpan);
+    }
+  }
+
+  private void finishBatch(Delivery delivery, Exception ex) {
+    delivery.span.logEvent(Span.SERVER_SEND);
+    addErrorTag(delivery.span, ex);
+    tracer.close(delivery.span);
+    if (delivery.detachedSpan != null) {
+      tracer.continueSpan(delivery.detachedSpan);
+    }
+  }
+
+  private boolean isSameContext(UnsampledContext context, UnsampledContext other) {
+    return context.getTraceIdHigh() == other.getTraceIdHigh()
+        && context.getTraceId() == other.getTraceId()
+        && context.getSpanId() == other.getSpanId();
   }
 
   private Span buildSpan(Message message) {
@@ -109,4 +759,83 @@ public class DefaultAmqpMessagingSpanManager implements AmqpMessagingSpanManager
       tracer.addTag(Span.SPAN_ERROR_TAG_NAME, ExceptionUtils.getExceptionMessage(ex));
     }
   }
+
+  private void addErrorTag(Span span, Exception ex) {
+    if (ex != null) {
+      span.tag(Span.SPAN_ERROR_TAG_NAME, ExceptionUtils.getExceptionMessage(ex));
+    }
+  }
+
+  /** Send started by {@link #beforeSend(Message, String)} and not finished yet. */
+  private static class OpenSend {
+    private final Message message;
+    private final SendToken token;
+
+    private OpenSend(Message message, SendToken token) {
+      this.message = message;
+      this.token = token;
+    }
+  }
+
+  /**
+   * Delivery being handled. Deliveries are identified by consumer tag and delivery tag, so the
+   * converted message and the listener message of a delivery match even if they are not the same
+   * instance. A batch delivery holds the batch and its local span instead.
+   */
+  private static class Delivery {
+    private String consumerTag;
+    private long deliveryTag;
+    private Message message;
+    private List<Message> batch;
+    private Span detachedSpan;
+    private UnsampledContext unsampled;
+    private Span span;
+    private int depth;
+    private long startNanos;
+    private boolean conversion;
+    private boolean serverSendLogged;
+
+    private Delivery() {}
+
+    private Delivery(Message message, Span span) {
+      set(message, span);
+      this.message = message;
+    }
+
+    private Delivery(Message message, UnsampledContext unsampled) {
+      this(message, (Span) null);
+      this.unsampled = unsampled;
+    }
+
+    private Delivery(List<Message> batch, Span span) {
+      this.batch = batch;
+      this.span = span;
+    }
+
+    private void set(Message message, Span span) {
+      final MessageProperties messageProperties = message.getMessageProperties();
+      this.consumerTag = messageProperties != null ? messageProperties.getConsumerTag() : null;
+      this.deliveryTag = messageProperties != null ? messageProperties.getDeliveryTag() : 0;
+      this.span = span;
+      this.serverSendLogged = false;
+    }
+
+    private void clear() {
+      this.consumerTag = null;
+      this.deliveryTag = 0;
+      this.span = null;
+      this.serverSendLogged = false;
+    }
+
+    private boolean isOf(Message message) {
+      if (message == this.message) {
+        return true;
+      }
+      final MessageProperties messageProperties = message.getMessageProperties();
+      return consumerTag != null
+          && messageProperties != null
+          && messageProperties.getDeliveryTag() == deliveryTag
+          && consumerTag.equals(messageProperties.getConsumerTag());
+    }
+  }
 }
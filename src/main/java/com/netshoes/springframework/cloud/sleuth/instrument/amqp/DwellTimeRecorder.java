@@ -0,0 +1,153 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.util.Assert;
+
+/**
+ * Records how long messages waited in the broker, from their publish to their delivery, in an
+ * HdrHistogram {@link Recorder} per consumer queue. Recording is wait free; {@link
+ * #getIntervalHistogram(String)} returns the values recorded since its previous call.
+ *
+ * <p>The publish time is read from the {@value AmqpMessagingSpanInjector#PUBLISH_TIMESTAMP_HEADER}
+ * header, written by {@link AmqpMessagingSpanInjector#setPublishTimestampEnabled(boolean)}, or else
+ * from {@link MessageProperties#getTimestamp()}, with millisecond resolution. Publishers and
+ * consumers on different hosts see different clocks: negative dwell times within the clock skew
+ * tolerance are recorded as zero, larger ones are discarded, and dwell times above the maximum are
+ * recorded as the maximum.
+ *
+ * <p>Requires {@code org.hdrhistogram:HdrHistogram} in the classpath.
+ *
+ * @see DefaultAmqpMessagingSpanManager#setDwellTimeRecorder(DwellTimeRecorder)
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class DwellTimeRecorder {
+  public static final long DEFAULT_MAX_DWELL_TIME = TimeUnit.HOURS.toMicros(1);
+  public static final long DEFAULT_CLOCK_SKEW_TOLERANCE = TimeUnit.SECONDS.toMicros(1);
+  public static final String UNKNOWN_QUEUE = "unknown-queue";
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private final ConcurrentMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+  private final LongAdder clamped = new LongAdder();
+  private final LongAdder discarded = new LongAdder();
+  private final long maxDwellTime;
+  private final long clockSkewTolerance;
+
+  /** Creates a new instance with the default maximum and clock skew tolerance. */
+  public DwellTimeRecorder() {
+    this(DEFAULT_MAX_DWELL_TIME, DEFAULT_CLOCK_SKEW_TOLERANCE);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param maxDwellTime Highest dwell time recorded, in microseconds
+   * @param clockSkewTolerance Highest clock skew between publishers and consumers, in microseconds
+   */
+  public DwellTimeRecorder(long maxDwellTime, long clockSkewTolerance) {
+    Assert.isTrue(maxDwellTime > 0, "maxDwellTime must be positive");
+    Assert.isTrue(clockSkewTolerance >= 0, "clockSkewTolerance must not be negative");
+    this.maxDwellTime = maxDwellTime;
+    this.clockSkewTolerance = clockSkewTolerance;
+  }
+
+  /**
+   * Records the dwell time of a delivered message.
+   *
+   * @param message Delivered message
+   * @return Dwell time in microseconds, or -1 if the message has no publish time or its dwell time
+   *     was discarded
+   */
+  public long record(Message message) {
+    final MessageProperties messageProperties = message.getMessageProperties();
+    if (messageProperties == null) {
+      return -1;
+    }
+    final long publishTime = getPublishTime(messageProperties);
+    if (publishTime <= 0) {
+      return -1;
+    }
+    long dwellTime = EpochMicrosClock.currentTimeMicros() - publishTime;
+    if (dwellTime < 0) {
+      if (-dwellTime > clockSkewTolerance) {
+        discarded.increment();
+        return -1;
+      }
+      dwellTime = 0;
+    } else if (dwellTime > maxDwellTime) {
+      clamped.increment();
+      dwellTime = maxDwellTime;
+    }
+    getRecorder(messageProperties.getConsumerQueue()).recordValue(dwellTime);
+    return dwellTime;
+  }
+
+  /**
+   * Gets the dwell times recorded for a queue since the previous call for the same queue.
+   *
+   * @param queue Consumer queue
+   * @return Histogram of dwell times in microseconds, empty if none was recorded
+   */
+  public Histogram getIntervalHistogram(String queue) {
+    final Recorder recorder = recorders.get(queue);
+    return recorder != null ? recorder.getIntervalHistogram() : new Histogram(SIGNIFICANT_DIGITS);
+  }
+
+  /**
+   * Gets the queues with recorded dwell times. Messages without a consumer queue are recorded for
+   * {@value #UNKNOWN_QUEUE}.
+   *
+   * @return Consumer queues
+   */
+  public Set<String> getQueues() {
+    return Collections.unmodifiableSet(new TreeSet<>(recorders.keySet()));
+  }
+
+  /**
+   * Gets how many dwell times were above the maximum and recorded as the maximum.
+   *
+   * @return Clamped dwell times
+   */
+  public long getClamped() {
+    return clamped.sum();
+  }
+
+  /**
+   * Gets how many dwell times were discarded because of a clock skew above the tolerance.
+   *
+   * @return Discarded dwell times
+   */
+  public long getDiscarded() {
+    return discarded.sum();
+  }
+
+  private long getPublishTime(MessageProperties messageProperties) {
+    final Object header =
+        messageProperties.getHeaders().get(AmqpMessagingSpanInjector.PUBLISH_TIMESTAMP_HEADER);
+    if (header instanceof Number) {
+      return ((Number) header).longValue();
+    }
+    final Date timestamp = messageProperties.getTimestamp();
+    return timestamp != null ? TimeUnit.MILLISECONDS.toMicros(timestamp.getTime()) : -1;
+  }
+
+  private Recorder getRecorder(String queue) {
+    final String key = queue != null ? queue : UNKNOWN_QUEUE;
+    Recorder recorder = recorders.get(key);
+    if (recorder == null) {
+      recorder =
+          recorders.computeIfAbsent(key, k -> new Recorder(maxDwellTime, SIGNIFICANT_DIGITS));
+    }
+    return recorder;
+  }
+}
@@ -0,0 +1,32 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+/**
+ * Wall clock with microsecond resolution. {@link System#currentTimeMillis()} only has millisecond
+ * resolution on Java 8, so microseconds are derived from {@link System#nanoTime()} and realigned
+ * with the wall clock whenever they drift apart by a millisecond or more.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+final class EpochMicrosClock {
+  private static volatile long offsetNanos =
+      System.currentTimeMillis() * 1000000 - System.nanoTime();
+
+  private EpochMicrosClock() {}
+
+  /**
+   * Gets the current time.
+   *
+   * @return Microseconds since the epoch
+   */
+  static long currentTimeMicros() {
+    final long millis = System.currentTimeMillis();
+    final long nanos = System.nanoTime();
+    final long micros = (nanos + offsetNanos) / 1000;
+    if (Math.abs(micros - millis * 1000) < 1000) {
+      return micros;
+    }
+    offsetNanos = millis * 1000000 - nanos;
+    return millis * 1000;
+  }
+}
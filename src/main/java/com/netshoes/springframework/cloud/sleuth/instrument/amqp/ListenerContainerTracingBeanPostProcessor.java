@@ -0,0 +1,86 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.aopalliance.aop.Advice;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+/**
+ * Bean post processor that adds an {@link AmqpMessagingReceiveInterceptor} to the advice chain of
+ * every {@link SimpleRabbitListenerContainerFactory} and {@link SimpleMessageListenerContainer}
+ * bean. Every delivery is then traced at a single interception point, including listeners that do
+ * not take a {@link org.springframework.amqp.core.Message} parameter, without proxies around
+ * listener beans.
+ *
+ * <p>The interceptor is placed first in the chain, so retries of a delivery happen inside its
+ * span. Containers created before this post processor runs are not instrumented.
+ *
+ * @see AmqpMessagingReceiveInterceptor
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class ListenerContainerTracingBeanPostProcessor implements BeanPostProcessor {
+  private static final String ADVICE_CHAIN = "adviceChain";
+  private final AmqpMessagingSpanManager spanManager;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager Span manager for AMQP messaging
+   */
+  public ListenerContainerTracingBeanPostProcessor(AmqpMessagingSpanManager spanManager) {
+    this.spanManager = spanManager;
+  }
+
+  @Override
+  public Object postProcessBeforeInitialization(Object bean, String beanName)
+      throws BeansException {
+    if (bean instanceof SimpleRabbitListenerContainerFactory) {
+      final SimpleRabbitListenerContainerFactory factory =
+          (SimpleRabbitListenerContainerFactory) bean;
+      final Advice[] adviceChain = instrument(factory.getAdviceChain());
+      if (adviceChain != null) {
+        factory.setAdviceChain(adviceChain);
+      }
+    } else if (bean instanceof SimpleMessageListenerContainer) {
+      final SimpleMessageListenerContainer container = (SimpleMessageListenerContainer) bean;
+      final Advice[] adviceChain =
+          instrument((Advice[]) new DirectFieldAccessor(container).getPropertyValue(ADVICE_CHAIN));
+      if (adviceChain != null) {
+        container.setAdviceChain(adviceChain);
+      }
+    }
+    return bean;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName)
+      throws BeansException {
+    return bean;
+  }
+
+  /**
+   * Adds the interceptor to an advice chain.
+   *
+   * @param current Current advice chain, may be null
+   * @return New advice chain, or null if the chain already holds the interceptor
+   */
+  private Advice[] instrument(Advice[] current) {
+    final List<Advice> adviceChain = new ArrayList<>();
+    adviceChain.add(new AmqpMessagingReceiveInterceptor(spanManager));
+    if (current != null) {
+      for (Advice advice : current) {
+        if (advice instanceof AmqpMessagingReceiveInterceptor) {
+          return null;
+        }
+      }
+      adviceChain.addAll(Arrays.asList(current));
+    }
+    return adviceChain.toArray(new Advice[adviceChain.size()]);
+  }
+}
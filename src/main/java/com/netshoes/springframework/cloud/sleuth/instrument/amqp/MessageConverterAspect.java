@@ -6,7 +6,9 @@ import org.aspectj.lang.annotation.Aspect;
 
 /**
  * This Aspect add tracing information when a {@link
- * org.springframework.amqp.support.converter.MessageConverter} is used.
+ * org.springframework.amqp.support.converter.MessageConverter} is used. Conversions are recorded as
+ * {@link com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpConvertEvent}s of JDK
+ * Flight Recorder.
  *
  * @author André Ignacio
  * @since 0.9
@@ -19,7 +21,7 @@ public class MessageConverterAspect extends AbstractRabbitMessageReceiverAspect
    * @param spanManager Span manager for AMQP messaging
    */
   public MessageConverterAspect(AmqpMessagingSpanManager spanManager) {
-    super(spanManager);
+    super(spanManager, true);
   }
 
   @Around(
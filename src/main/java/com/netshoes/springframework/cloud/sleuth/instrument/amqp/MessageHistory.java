@@ -0,0 +1,247 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.util.Assert;
+
+/**
+ * Keeps the last publishes and deliveries handled by this instance, sampled or not, with their
+ * trace IDs, duration and outcome. Records are written to a fixed-size ring buffer of primitive
+ * fields; the oldest records are overwritten. Writing is lock free and does not allocate, except
+ * the first time a destination is seen, so the history can stay enabled in production.
+ *
+ * <p>Destinations are kept as indexes into a table of names, bounded by the maximum number of
+ * names: destinations seen after the table is full are recorded without a name. Spans are never
+ * retained.
+ *
+ * <p>Each slot is guarded by its sequence number: it is cleared before the fields are written and
+ * set after them, so readers skip slots being overwritten. Reading allocates a {@link
+ * MessageRecord} per returned record.
+ *
+ * @see DefaultAmqpMessagingSpanManager#setMessageHistory(MessageHistory)
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class MessageHistory {
+  public static final int DEFAULT_CAPACITY = 4096;
+  public static final int DEFAULT_MAX_NAMES = 2048;
+  private static final int FIELDS = 7;
+  private static final int SEQUENCE = 0;
+  private static final int TRACE_ID_HIGH = 1;
+  private static final int TRACE_ID = 2;
+  private static final int SPAN_ID = 3;
+  private static final int TIMESTAMP = 4;
+  private static final int DURATION = 5;
+  private static final int FLAGS = 6;
+  private static final long WRITING = 0;
+  private static final long DELIVERY_FLAG = 1;
+  private static final long ERROR_FLAG = 1 << 1;
+  private static final long SAMPLED_FLAG = 1 << 2;
+  private static final int EXCHANGE_SHIFT = 8;
+  private static final int DESTINATION_SHIFT = 32;
+  private static final int NO_NAME = 0xFFFFFF;
+  private static final String NAME_PREFIX = "amqp://";
+  private final AtomicLongArray slots;
+  private final AtomicLong cursor = new AtomicLong();
+  private final int mask;
+  private final ConcurrentMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+  private final AtomicReferenceArray<String> names;
+  private final AtomicInteger nameCount = new AtomicInteger();
+
+  /** Creates a new instance keeping {@value #DEFAULT_CAPACITY} records. */
+  public MessageHistory() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_NAMES);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param capacity Number of records kept, rounded up to a power of two
+   * @param maxNames Maximum number of distinct queues, exchanges and destinations named
+   */
+  public MessageHistory(int capacity, int maxNames) {
+    Assert.isTrue(capacity > 0 && capacity <= 1 << 24, "capacity must be in (0, 2^24]");
+    Assert.isTrue(maxNames > 0 && maxNames < NO_NAME, "maxNames must be in (0, 2^24 - 1)");
+    final int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = Math.max(size, 1) - 1;
+    this.slots = new AtomicLongArray((mask + 1) * FIELDS);
+    this.names = new AtomicReferenceArray<>(maxNames);
+  }
+
+  /**
+   * Gets the number of records kept.
+   *
+   * @return Capacity of the ring buffer
+   */
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Gets the number of records written since this history was created, including overwritten ones.
+   *
+   * @return Number of records written
+   */
+  public long getWritten() {
+    return cursor.get();
+  }
+
+  /**
+   * Gets the records kept, newest first.
+   *
+   * @param filter Filter of records
+   * @param limit Maximum number of records returned
+   * @return Matching records
+   */
+  public List<MessageRecord> getRecords(Predicate<MessageRecord> filter, int limit) {
+    final List<MessageRecord> records = new ArrayList<>();
+    final long last = cursor.get() - 1;
+    final long first = Math.max(0, last - mask);
+    for (long sequence = last; sequence >= first && records.size() < limit; sequence--) {
+      final MessageRecord record = read(sequence);
+      if (record != null && filter.test(record)) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
+  /** Records a publish, for {@link DefaultAmqpMessagingSpanManager}. */
+  void recordPublish(
+      Span span, UnsampledContext unsampled, String destination, long durationNanos, boolean error) {
+    final long flags =
+        (error ? ERROR_FLAG : 0)
+            | ((long) NO_NAME << EXCHANGE_SHIFT)
+            | ((long) getNameId(destination) << DESTINATION_SHIFT);
+    write(span, unsampled, flags, durationNanos);
+  }
+
+  /** Records the handling of a delivery, for {@link DefaultAmqpMessagingSpanManager}. */
+  void recordDelivery(
+      Span span,
+      UnsampledContext unsampled,
+      String queue,
+      String exchange,
+      long durationNanos,
+      boolean error) {
+    final long flags =
+        DELIVERY_FLAG
+            | (error ? ERROR_FLAG : 0)
+            | ((long) getNameId(exchange) << EXCHANGE_SHIFT)
+            | ((long) getNameId(queue) << DESTINATION_SHIFT);
+    write(span, unsampled, flags, durationNanos);
+  }
+
+  private void write(Span span, UnsampledContext unsampled, long flags, long durationNanos) {
+    final long timestamp = EpochMicrosClock.currentTimeMicros() - durationNanos / 1000;
+    final long sequence = cursor.getAndIncrement();
+    final int base = (int) (sequence & mask) * FIELDS;
+    slots.lazySet(base + SEQUENCE, WRITING);
+    if (span != null) {
+      slots.lazySet(base + TRACE_ID_HIGH, span.getTraceIdHigh());
+      slots.lazySet(base + TRACE_ID, span.getTraceId());
+      slots.lazySet(base + SPAN_ID, span.getSpanId());
+      if (span.isExportable()) {
+        flags |= SAMPLED_FLAG;
+      }
+    } else if (unsampled != null) {
+      slots.lazySet(base + TRACE_ID_HIGH, unsampled.getTraceIdHigh());
+      slots.lazySet(base + TRACE_ID, unsampled.getTraceId());
+      slots.lazySet(base + SPAN_ID, unsampled.getSpanId());
+    } else {
+      slots.lazySet(base + TRACE_ID_HIGH, 0);
+      slots.lazySet(base + TRACE_ID, 0);
+      slots.lazySet(base + SPAN_ID, 0);
+    }
+    slots.lazySet(base + TIMESTAMP, timestamp);
+    slots.lazySet(base + DURATION, durationNanos);
+    slots.lazySet(base + FLAGS, flags);
+    slots.lazySet(base + SEQUENCE, sequence + 1);
+  }
+
+  private MessageRecord read(long sequence) {
+    final int base = (int) (sequence & mask) * FIELDS;
+    if (slots.get(base + SEQUENCE) != sequence + 1) {
+      return null;
+    }
+    final long traceIdHigh = slots.get(base + TRACE_ID_HIGH);
+    final long traceId = slots.get(base + TRACE_ID);
+    final long spanId = slots.get(base + SPAN_ID);
+    final long timestamp = slots.get(base + TIMESTAMP);
+    final long duration = slots.get(base + DURATION);
+    final long flags = slots.get(base + FLAGS);
+    if (slots.get(base + SEQUENCE) != sequence + 1) {
+      return null;
+    }
+    final boolean delivery = (flags & DELIVERY_FLAG) != 0;
+    final String destination = getName((int) (flags >>> DESTINATION_SHIFT) & NO_NAME);
+    final String exchange =
+        delivery
+            ? getName((int) (flags >>> EXCHANGE_SHIFT) & NO_NAME)
+            : getExchange(destination);
+    return new MessageRecord(
+        delivery ? MessageRecord.Type.DELIVERY : MessageRecord.Type.PUBLISH,
+        traceId != 0 ? toTraceIdString(traceIdHigh, traceId) : null,
+        spanId != 0 ? Span.idToHex(spanId) : null,
+        (flags & SAMPLED_FLAG) != 0,
+        destination,
+        exchange,
+        timestamp,
+        duration,
+        (flags & ERROR_FLAG) != 0);
+  }
+
+  private int getNameId(String name) {
+    if (name == null) {
+      return NO_NAME;
+    }
+    final Integer id = nameIds.get(name);
+    if (id != null) {
+      return id;
+    }
+    return addName(name);
+  }
+
+  private synchronized int addName(String name) {
+    final Integer id = nameIds.get(name);
+    if (id != null) {
+      return id;
+    }
+    final int next = nameCount.get();
+    if (next >= names.length()) {
+      return NO_NAME;
+    }
+    names.set(next, name);
+    nameIds.put(name, next);
+    nameCount.set(next + 1);
+    return next;
+  }
+
+  private String getName(int id) {
+    return id != NO_NAME ? names.get(id) : null;
+  }
+
+  /** Gets the exchange of a destination named like {@code amqp://exchange/routingKey}. */
+  private String getExchange(String destination) {
+    if (destination == null || !destination.startsWith(NAME_PREFIX)) {
+      return null;
+    }
+    final int end = destination.indexOf('/', NAME_PREFIX.length());
+    return end >= 0 ? destination.substring(NAME_PREFIX.length(), end) : null;
+  }
+
+  private String toTraceIdString(long traceIdHigh, long traceId) {
+    return traceIdHigh != 0
+        ? Span.idToHex(traceIdHigh) + Span.idToHex(traceId)
+        : Span.idToHex(traceId);
+  }
+}
@@ -0,0 +1,144 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+/**
+ * Publish or delivery kept by a {@link MessageHistory}. Instances are built when the history is
+ * read.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public final class MessageRecord {
+  private final Type type;
+  private final String traceId;
+  private final String spanId;
+  private final boolean sampled;
+  private final String destination;
+  private final String exchange;
+  private final long timestamp;
+  private final long durationNanos;
+  private final boolean error;
+
+  /** Kind of record. */
+  public enum Type {
+    PUBLISH,
+    DELIVERY
+  }
+
+  MessageRecord(
+      Type type,
+      String traceId,
+      String spanId,
+      boolean sampled,
+      String destination,
+      String exchange,
+      long timestamp,
+      long durationNanos,
+      boolean error) {
+    this.type = type;
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.sampled = sampled;
+    this.destination = destination;
+    this.exchange = exchange;
+    this.timestamp = timestamp;
+    this.durationNanos = durationNanos;
+    this.error = error;
+  }
+
+  /**
+   * Gets whether this is a publish or a delivery.
+   *
+   * @return Type of record
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the trace ID, in hex.
+   *
+   * @return Trace ID, or null if the message carried no trace context
+   */
+  public String getTraceId() {
+    return traceId;
+  }
+
+  /**
+   * Gets the ID of the send or consumer span, in hex.
+   *
+   * @return Span ID, or null if the message carried no trace context
+   */
+  public String getSpanId() {
+    return spanId;
+  }
+
+  /**
+   * Whether the span of the message was sampled.
+   *
+   * @return True if the span was exported
+   */
+  public boolean isSampled() {
+    return sampled;
+  }
+
+  /**
+   * Gets the span name of a publish, like {@code amqp://exchange/routingKey}, or the consumer queue
+   * of a delivery.
+   *
+   * @return Destination, or null if unknown
+   */
+  public String getDestination() {
+    return destination;
+  }
+
+  /**
+   * Gets the exchange the message was published to.
+   *
+   * @return Exchange, or null if unknown
+   */
+  public String getExchange() {
+    return exchange;
+  }
+
+  /**
+   * Gets the time the publish or the handling of the delivery started.
+   *
+   * @return Microseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Gets how long the publish or the handling of the delivery took.
+   *
+   * @return Duration in nanoseconds
+   */
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /**
+   * Whether the publish or the handling of the delivery failed.
+   *
+   * @return True on error
+   */
+  public boolean isError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return type
+        + " "
+        + destination
+        + " trace="
+        + traceId
+        + " span="
+        + spanId
+        + " duration="
+        + durationNanos
+        + "ns"
+        + (error ? " error" : "");
+  }
+}
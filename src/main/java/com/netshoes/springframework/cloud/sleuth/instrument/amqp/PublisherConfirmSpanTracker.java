@@ -0,0 +1,404 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpConfirmEvent;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpFlightRecorder;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.CorrelationDataPostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ReturnCallback;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.SpanReporter;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.util.Assert;
+
+/**
+ * Keeps send spans open until the broker confirms the message. When a message is published with
+ * publisher confirms, {@link DefaultAmqpMessagingSpanManager#finishSend(SendToken, Exception)}
+ * detaches the send span instead of closing it, and this tracker finishes and reports the span when
+ * the {@link ConfirmCallback} for its {@link CorrelationData} arrives. The span is tagged with the
+ * outcome (ack, nack or timeout), the confirm latency and, for mandatory publishes, the return.
+ * Confirms are also recorded as {@link AmqpConfirmEvent}s of JDK Flight Recorder, lasting from the
+ * publish to the confirm.
+ *
+ * <p>Pending spans are bounded: once {@link #getMaxPending()} spans wait for a confirm, new sends
+ * are closed as usual. Spans whose confirm does not arrive within the timeout are finished by a
+ * sweeper thread, started by {@link #afterPropertiesSet()} and stopped by {@link #destroy()}.
+ *
+ * <p>Each pending span is reported once: the confirm, the sweeper and a failed send race to claim
+ * it, and only the winner finishes it. A span claimed by the confirm before the send returns is
+ * left to the tracker, even if the send fails afterwards.
+ *
+ * <p>Register this tracker as confirm callback, return callback and correlation data post
+ * processor of the {@link RabbitTemplate}, see {@link #configure(RabbitTemplate)}. It works with
+ * {@link AmqpTemplateAspect}, which keeps the send span open while the template publishes.
+ *
+ * @see DefaultAmqpMessagingSpanManager#setPublisherConfirmSpanTracker(PublisherConfirmSpanTracker)
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class PublisherConfirmSpanTracker
+    implements ConfirmCallback,
+        ReturnCallback,
+        CorrelationDataPostProcessor,
+        InitializingBean,
+        DisposableBean {
+  public static final String CONFIRM_TAG_NAME = "amqp.confirm";
+  public static final String CONFIRM_LATENCY_TAG_NAME = "amqp.confirm.latency.micros";
+  public static final String RETURN_TAG_NAME = "amqp.return";
+  public static final String CONFIRM_ACK = "ack";
+  public static final String CONFIRM_NACK = "nack";
+  public static final String CONFIRM_TIMEOUT = "timeout";
+  public static final int DEFAULT_MAX_PENDING = 10000;
+  public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+  private static final Logger logger = LoggerFactory.getLogger(PublisherConfirmSpanTracker.class);
+  private final ConcurrentMap<CorrelationData, PendingConfirm> pending = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Long, PendingConfirm> pendingBySpanId = new ConcurrentHashMap<>();
+  private final ThreadLocal<PublishState> publishState = ThreadLocal.withInitial(PublishState::new);
+  private final LongAdder overflows = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final Tracer tracer;
+  private final SpanReporter spanReporter;
+  private final AmqpMessagingSpanExtractor extractor;
+  private final int maxPending;
+  private final long timeoutNanos;
+  private ScheduledExecutorService sweeper;
+  private ConfirmCallback confirmCallback;
+  private ReturnCallback returnCallback;
+  private CorrelationDataPostProcessor correlationDataPostProcessor;
+
+  /**
+   * Creates a new instance with default limits.
+   *
+   * @param tracer Tracer
+   * @param spanReporter Reporter of finished spans
+   * @param extractor Extractor used to find the span of returned messages
+   */
+  public PublisherConfirmSpanTracker(
+      Tracer tracer, SpanReporter spanReporter, AmqpMessagingSpanExtractor extractor) {
+    this(tracer, spanReporter, extractor, DEFAULT_MAX_PENDING, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param tracer Tracer
+   * @param spanReporter Reporter of finished spans
+   * @param extractor Extractor used to find the span of returned messages
+   * @param maxPending Maximum number of spans waiting for a confirm
+   * @param timeoutMillis Time after which a span waiting for a confirm is finished
+   */
+  public PublisherConfirmSpanTracker(
+      Tracer tracer,
+      SpanReporter spanReporter,
+      AmqpMessagingSpanExtractor extractor,
+      int maxPending,
+      long timeoutMillis) {
+    Assert.isTrue(maxPending > 0, "maxPending must be greater than zero");
+    Assert.isTrue(timeoutMillis > 0, "timeoutMillis must be greater than zero");
+    this.tracer = tracer;
+    this.spanReporter = spanReporter;
+    this.extractor = extractor;
+    this.maxPending = maxPending;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /** Starts the sweeper thread that finishes the spans whose confirm did not arrive in time. */
+  @Override
+  public synchronized void afterPropertiesSet() {
+    if (sweeper != null) {
+      return;
+    }
+    sweeper =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              final Thread thread = new Thread(runnable, "amqp-confirm-sweeper");
+              thread.setDaemon(true);
+              return thread;
+            });
+    final long sweepInterval = Math.max(TimeUnit.NANOSECONDS.toMillis(timeoutNanos) / 2, 10);
+    sweeper.scheduleWithFixedDelay(
+        this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Registers this tracker as confirm callback, return callback and correlation data post processor
+   * of a template.
+   *
+   * @param rabbitTemplate Template
+   */
+  public void configure(RabbitTemplate rabbitTemplate) {
+    rabbitTemplate.setConfirmCallback(this);
+    rabbitTemplate.setReturnCallback(this);
+    rabbitTemplate.setCorrelationDataPostProcessor(this);
+  }
+
+  /**
+   * Marks a send span as started in the current thread. Called by the span manager.
+   *
+   * @param span Send span
+   */
+  void sendStarted(Span span) {
+    sendStarted(span, true);
+  }
+
+  /**
+   * Marks a send span as started in the current thread. Called by the span manager.
+   *
+   * @param span Send span
+   * @param current False if the span never becomes the current span of the tracer
+   */
+  void sendStarted(Span span, boolean current) {
+    final PublishState state = publishState.get();
+    state.sendSpan = span;
+    state.sendSpanCurrent = current;
+    state.pendingConfirm = null;
+  }
+
+  /**
+   * Marks the send span as finished in the current thread. Called by the span manager.
+   *
+   * @param span Send span
+   * @param ex Exception thrown while sending, or null
+   * @return True if the span waits for a confirm, or was already finished by the tracker, and must
+   *     not be closed by the caller
+   */
+  boolean sendFinished(Span span, Exception ex) {
+    final PublishState state = publishState.get();
+    final PendingConfirm pendingConfirm = state.pendingConfirm;
+    state.sendSpan = null;
+    state.pendingConfirm = null;
+    if (pendingConfirm == null || pendingConfirm.span != span) {
+      return false;
+    }
+    // A failed send takes the span back, unless the confirm or the sweeper already reported it
+    return ex == null || !claim(pendingConfirm);
+  }
+
+  /**
+   * Stops tracking a send span that is detached from the current thread and finished elsewhere.
+   * Called by the span manager.
+   *
+   * @param span Send span
+   * @return True if the tracker already finished the span, so the caller must not close it
+   */
+  boolean sendSuspended(Span span) {
+    final PublishState state = publishState.get();
+    final PendingConfirm pendingConfirm = state.pendingConfirm;
+    state.sendSpan = null;
+    state.pendingConfirm = null;
+    return pendingConfirm != null && pendingConfirm.span == span && !claim(pendingConfirm);
+  }
+
+  @Override
+  public CorrelationData postProcess(Message message, CorrelationData correlationData) {
+    CorrelationData result =
+        correlationDataPostProcessor != null
+            ? correlationDataPostProcessor.postProcess(message, correlationData)
+            : correlationData;
+    final PublishState state = publishState.get();
+    final Span span = state.sendSpan;
+    if (span == null || (state.sendSpanCurrent && !span.equals(tracer.getCurrentSpan()))) {
+      return result;
+    }
+    if (pending.size() >= maxPending) {
+      overflows.increment();
+      return result;
+    }
+    final boolean provided = result != null;
+    if (!provided) {
+      result = new CorrelationData(span.traceIdString() + "-" + Span.idToHex(span.getSpanId()));
+    }
+    final PendingConfirm pendingConfirm =
+        new PendingConfirm(
+            span, result, provided, System.nanoTime(), AmqpFlightRecorder.beginConfirm());
+    pending.put(result, pendingConfirm);
+    pendingBySpanId.put(span.getSpanId(), pendingConfirm);
+    state.pendingConfirm = pendingConfirm;
+    return result;
+  }
+
+  @Override
+  public void confirm(CorrelationData correlationData, boolean ack, String cause) {
+    final PendingConfirm pendingConfirm =
+        correlationData != null ? pending.get(correlationData) : null;
+    if (pendingConfirm != null && claim(pendingConfirm)) {
+      finish(pendingConfirm, ack ? CONFIRM_ACK : CONFIRM_NACK, ack ? null : cause);
+    }
+    if (confirmCallback != null) {
+      final boolean provided = pendingConfirm == null || pendingConfirm.correlationDataProvided;
+      confirmCallback.confirm(provided ? correlationData : null, ack, cause);
+    }
+  }
+
+  @Override
+  public void returnedMessage(
+      Message message, int replyCode, String replyText, String exchange, String routingKey) {
+    final Span span = extractor.joinTrace(message);
+    final PendingConfirm pendingConfirm =
+        span != null ? pendingBySpanId.get(span.getSpanId()) : null;
+    if (pendingConfirm != null) {
+      pendingConfirm.span.tag(RETURN_TAG_NAME, replyCode + " " + replyText);
+    }
+    if (returnCallback != null) {
+      returnCallback.returnedMessage(message, replyCode, replyText, exchange, routingKey);
+    }
+  }
+
+  /** Finishes the spans whose confirm did not arrive within the timeout. */
+  private void sweep() {
+    final long now = System.nanoTime();
+    final Iterator<Map.Entry<CorrelationData, PendingConfirm>> iterator =
+        pending.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final PendingConfirm pendingConfirm = iterator.next().getValue();
+      if (now - pendingConfirm.startNanos >= timeoutNanos && claim(pendingConfirm)) {
+        timeouts.increment();
+        finish(pendingConfirm, CONFIRM_TIMEOUT, null);
+      }
+    }
+  }
+
+  /** Makes the caller the only one to finish a pending span, and stops tracking it. */
+  private boolean claim(PendingConfirm pendingConfirm) {
+    if (!pendingConfirm.claimed.compareAndSet(false, true)) {
+      return false;
+    }
+    pending.remove(pendingConfirm.correlationData, pendingConfirm);
+    pendingBySpanId.remove(pendingConfirm.span.getSpanId(), pendingConfirm);
+    return true;
+  }
+
+  private void finish(PendingConfirm pendingConfirm, String outcome, String cause) {
+    final Span span = pendingConfirm.span;
+    final long latencyNanos = System.nanoTime() - pendingConfirm.startNanos;
+    final long latencyMicros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+    span.tag(CONFIRM_TAG_NAME, outcome);
+    span.tag(CONFIRM_LATENCY_TAG_NAME, String.valueOf(latencyMicros));
+    if (!CONFIRM_ACK.equals(outcome)) {
+      span.tag(Span.SPAN_ERROR_TAG_NAME, cause != null ? cause : outcome);
+    }
+    span.logEvent(Span.CLIENT_RECV);
+    span.stop();
+    AmqpFlightRecorder.endConfirm(pendingConfirm.confirmEvent, span, outcome);
+    if (span.isExportable()) {
+      spanReporter.report(span);
+    }
+    logger.debug("Span {} finished after publisher confirm {}", span, outcome);
+  }
+
+  @Override
+  public synchronized void destroy() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+      sweeper = null;
+    }
+  }
+
+  /**
+   * Number of spans waiting for a confirm.
+   *
+   * @return Number of pending spans
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Maximum number of spans waiting for a confirm.
+   *
+   * @return Maximum number of pending spans
+   */
+  public int getMaxPending() {
+    return maxPending;
+  }
+
+  /**
+   * Number of sends closed without waiting for a confirm because too many spans were pending.
+   *
+   * @return Number of overflows
+   */
+  public long getOverflows() {
+    return overflows.sum();
+  }
+
+  /**
+   * Number of spans finished because their confirm did not arrive within the timeout.
+   *
+   * @return Number of timeouts
+   */
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  /**
+   * Sets the confirm callback invoked after the span of the confirmed message is finished.
+   *
+   * @param confirmCallback Confirm callback
+   */
+  public void setConfirmCallback(ConfirmCallback confirmCallback) {
+    this.confirmCallback = confirmCallback;
+  }
+
+  /**
+   * Sets the return callback invoked after the span of the returned message is tagged.
+   *
+   * @param returnCallback Return callback
+   */
+  public void setReturnCallback(ReturnCallback returnCallback) {
+    this.returnCallback = returnCallback;
+  }
+
+  /**
+   * Sets the correlation data post processor invoked before the span is registered.
+   *
+   * @param correlationDataPostProcessor Correlation data post processor
+   */
+  public void setCorrelationDataPostProcessor(
+      CorrelationDataPostProcessor correlationDataPostProcessor) {
+    this.correlationDataPostProcessor = correlationDataPostProcessor;
+  }
+
+  private static class PublishState {
+    private Span sendSpan;
+    private boolean sendSpanCurrent;
+    private PendingConfirm pendingConfirm;
+  }
+
+  private static class PendingConfirm {
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final Span span;
+    private final CorrelationData correlationData;
+    private final boolean correlationDataProvided;
+    private final long startNanos;
+    private final AmqpConfirmEvent confirmEvent;
+
+    private PendingConfirm(
+        Span span,
+        CorrelationData correlationData,
+        boolean provided,
+        long startNanos,
+        AmqpConfirmEvent confirmEvent) {
+      this.span = span;
+      this.correlationData = correlationData;
+      this.correlationDataProvided = provided;
+      this.startNanos = startNanos;
+      this.confirmEvent = confirmEvent;
+    }
+  }
+}
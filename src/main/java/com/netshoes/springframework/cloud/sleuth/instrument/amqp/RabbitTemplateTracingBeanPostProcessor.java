@@ -0,0 +1,119 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming.AmqpSpanNameResolver;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.retry.policy.NeverRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.util.StringUtils;
+
+/**
+ * Bean post processor that instruments every {@link RabbitTemplate} bean by installing an {@link
+ * AmqpMessagingBeforePublishPostProcessor} through {@link
+ * RabbitTemplate#setBeforePublishPostProcessors(MessagePostProcessor...)}. Unlike {@link
+ * AmqpTemplateAspect}, no proxy is created around the template.
+ *
+ * <p>The post processor is also registered as a listener of the retry template of the {@link
+ * RabbitTemplate}, so send spans are finished after the publish. Templates without a retry
+ * template get one that never retries.
+ *
+ * <p>Use this bean or {@link AmqpTemplateAspect}, not both, otherwise every publish is traced
+ * twice. The before publish hook does not know the exchange and routing key of each call, so spans
+ * are named after the default exchange and routing key of the template. The span name also keys the
+ * per destination sampling, metrics and tag settings, so a send to another destination is sampled,
+ * counted and tagged as a send to the default one; use {@link AmqpTemplateAspect} when these must
+ * follow the destination of each call. A {@link TracingBatchingRabbitTemplate} traces its own
+ * publishes and is left as is.
+ *
+ * @see AmqpMessagingBeforePublishPostProcessor
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class RabbitTemplateTracingBeanPostProcessor implements BeanPostProcessor {
+  private static final String BEFORE_PUBLISH_POST_PROCESSORS = "beforePublishPostProcessors";
+  private static final String RETRY_TEMPLATE = "retryTemplate";
+  private final AmqpMessagingSpanManager spanManager;
+  private final AmqpSpanNameResolver spanNameResolver;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager Span manager for AMQP messaging
+   */
+  public RabbitTemplateTracingBeanPostProcessor(AmqpMessagingSpanManager spanManager) {
+    this(spanManager, new AmqpSpanNameResolver());
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanManager Span manager for AMQP messaging
+   * @param spanNameResolver Resolver of span names
+   */
+  public RabbitTemplateTracingBeanPostProcessor(
+      AmqpMessagingSpanManager spanManager, AmqpSpanNameResolver spanNameResolver) {
+    this.spanManager = spanManager;
+    this.spanNameResolver = spanNameResolver;
+  }
+
+  @Override
+  public Object postProcessBeforeInitialization(Object bean, String beanName)
+      throws BeansException {
+    return bean;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName)
+      throws BeansException {
+    if (bean instanceof RabbitTemplate && !(bean instanceof TracingBatchingRabbitTemplate)) {
+      instrument((RabbitTemplate) bean);
+    }
+    return bean;
+  }
+
+  private void instrument(RabbitTemplate rabbitTemplate) {
+    final List<MessagePostProcessor> postProcessors = getBeforePublishPostProcessors(rabbitTemplate);
+    for (MessagePostProcessor postProcessor : postProcessors) {
+      if (postProcessor instanceof AmqpMessagingBeforePublishPostProcessor) {
+        return;
+      }
+    }
+    final String routingKey = rabbitTemplate.getRoutingKey();
+    final String spanName =
+        spanNameResolver.resolve(
+            rabbitTemplate.getExchange(), StringUtils.hasText(routingKey) ? routingKey : null);
+    final AmqpMessagingBeforePublishPostProcessor postProcessor =
+        new AmqpMessagingBeforePublishPostProcessor(spanManager, spanName);
+    postProcessors.add(postProcessor);
+    rabbitTemplate.setBeforePublishPostProcessors(
+        postProcessors.toArray(new MessagePostProcessor[postProcessors.size()]));
+    getRetryTemplate(rabbitTemplate).registerListener(postProcessor);
+  }
+
+  private RetryTemplate getRetryTemplate(RabbitTemplate rabbitTemplate) {
+    final RetryTemplate current =
+        (RetryTemplate) new DirectFieldAccessor(rabbitTemplate).getPropertyValue(RETRY_TEMPLATE);
+    if (current != null) {
+      return current;
+    }
+    final RetryTemplate retryTemplate = new RetryTemplate();
+    retryTemplate.setRetryPolicy(new NeverRetryPolicy());
+    rabbitTemplate.setRetryTemplate(retryTemplate);
+    return retryTemplate;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<MessagePostProcessor> getBeforePublishPostProcessors(RabbitTemplate rabbitTemplate) {
+    final Collection<MessagePostProcessor> current =
+        (Collection<MessagePostProcessor>)
+            new DirectFieldAccessor(rabbitTemplate)
+                .getPropertyValue(BEFORE_PUBLISH_POST_PROCESSORS);
+    return current != null ? new ArrayList<>(current) : new ArrayList<>();
+  }
+}
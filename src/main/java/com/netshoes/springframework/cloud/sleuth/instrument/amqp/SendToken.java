@@ -0,0 +1,118 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import org.springframework.amqp.core.Message;
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * State of a message being sent. It is returned when the send span starts and passed back to
+ * finish it, so the span manager knows which span to finish and which event closes it without
+ * looking at the current span of the thread. The token does not hold the message, so its body is
+ * not kept alive while a span waits for a reply or a confirm.
+ *
+ * <p>A token starts as {@code STARTED}. It ends as {@code FINISHED}, or as {@code AWAITING_CONFIRM}
+ * when the span is handed over to a {@link PublisherConfirmSpanTracker}. A token may be {@code
+ * SUSPENDED} in between, while the span waits for a reply on another thread. Finishing a token
+ * twice has no effect.
+ *
+ * @see AmqpMessagingSpanManager#startSend(Message, String)
+ * @see AmqpMessagingSpanManager#finishSend(SendToken, Exception)
+ * @author André Ignacio
+ * @since 0.11
+ */
+public final class SendToken {
+  private static final AtomicReferenceFieldUpdater<SendToken, State> STATE =
+      AtomicReferenceFieldUpdater.newUpdater(SendToken.class, State.class, "state");
+
+  private final Span span;
+  private final boolean serverSide;
+  private final boolean ephemeral;
+  private final UnsampledContext unsampled;
+  private volatile State state = State.STARTED;
+  private String destination;
+  private long startNanos;
+
+  /**
+   * Creates a new instance, for implementations of {@link AmqpMessagingSpanManager}.
+   *
+   * @param span Send span, or null if the send is not sampled
+   * @param serverSide True if the span closes with {@link Span#SERVER_SEND}
+   */
+  public SendToken(Span span, boolean serverSide) {
+    this(span, serverSide, false);
+  }
+
+  SendToken(Span span, boolean serverSide, boolean ephemeral) {
+    this(span, serverSide, ephemeral, null);
+  }
+
+  /** Creates the token of an unsampled send, which only carries the trace context. */
+  SendToken(UnsampledContext unsampled) {
+    this(null, false, false, unsampled);
+  }
+
+  private SendToken(
+      Span span, boolean serverSide, boolean ephemeral, UnsampledContext unsampled) {
+    this.span = span;
+    this.serverSide = serverSide;
+    this.ephemeral = ephemeral;
+    this.unsampled = unsampled;
+  }
+
+  /**
+   * Gets the send span.
+   *
+   * @return Send span, or null if the send is not sampled and no span was built
+   */
+  public Span getSpan() {
+    return span;
+  }
+
+  /** Gets the trace context of an unsampled send, or null if the send has a span. */
+  UnsampledContext getUnsampled() {
+    return unsampled;
+  }
+
+  /**
+   * Whether the message was already being sent when the span started, so the span is closed with
+   * {@link Span#SERVER_SEND} instead of {@link Span#CLIENT_RECV}.
+   */
+  boolean isServerSide() {
+    return serverSide;
+  }
+
+  /** Whether the span never becomes the current span of the tracer and is reported directly. */
+  boolean isEphemeral() {
+    return ephemeral;
+  }
+
+  /** Starts timing the publish, for metrics and the message history. */
+  void startTimer(String destination, long startNanos) {
+    this.destination = destination;
+    this.startNanos = startNanos;
+  }
+
+  String getDestination() {
+    return destination;
+  }
+
+  long getStartNanos() {
+    return startNanos;
+  }
+
+  State getState() {
+    return state;
+  }
+
+  boolean transition(State expected, State next) {
+    return STATE.compareAndSet(this, expected, next);
+  }
+
+  enum State {
+    STARTED,
+    SUSPENDED,
+    AWAITING_CONFIRM,
+    FINISHED
+  }
+}
@@ -1,12 +1,16 @@
 package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
 
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpFlightRecorder;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverhead;
 import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessagePostProcessor;
 
 /**
  * This message post processor invoke method {@link
- * AmqpMessagingSpanManager#beforeSend(Message,String)}.
+ * AmqpMessagingSpanManager#startSend(Message,String)}. The token of the send is kept by the post
+ * processor, so use an instance per send and finish it with {@link
+ * AmqpMessagingSpanManager#finishSend(SendToken, Exception)}.
  *
  * @see AmqpMessagingSpanManager
  * @author André Ignacio
@@ -14,6 +18,8 @@ import org.springframework.amqp.core.MessagePostProcessor;
 public class SpanManagerMessagePostProcessor implements MessagePostProcessor {
   private final AmqpMessagingSpanManager spanManager;
   private final String spanName;
+  private InstrumentationOverhead overhead;
+  private SendToken sendToken;
 
   /**
    * Creates a new instance.
@@ -26,9 +32,40 @@ public class SpanManagerMessagePostProcessor implements MessagePostProcessor {
     this.spanName = spanName;
   }
 
+  /**
+   * Sets the accounting of the overhead of the instrumentation, which times {@link
+   * AmqpMessagingSpanManager#startSend(Message, String)} as part of the {@link
+   * InstrumentationOverhead.Stage#SEND} work of {@link AmqpTemplateAspect}.
+   *
+   * @param overhead Overhead of the instrumentation, or null to not account for it
+   * @since 0.11
+   */
+  public void setInstrumentationOverhead(InstrumentationOverhead overhead) {
+    this.overhead = overhead;
+  }
+
+  /**
+   * Gets the token of the send started by this post processor.
+   *
+   * @return Token of send span, or null if no message was processed
+   * @since 0.11
+   */
+  public SendToken getSendToken() {
+    return sendToken;
+  }
+
   @Override
   public Message postProcessMessage(Message message) throws AmqpException {
-    spanManager.beforeSend(message, spanName);
+    final InstrumentationOverhead.Probe probe =
+        overhead != null ? overhead.startSegment(InstrumentationOverhead.Stage.SEND) : null;
+    try {
+      sendToken = spanManager.startSend(message, spanName);
+    } finally {
+      if (probe != null) {
+        probe.stop();
+      }
+    }
+    AmqpFlightRecorder.publishing(message, sendToken != null ? sendToken.getSpan() : null);
     return message;
   }
 }
@@ -0,0 +1,450 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.SpanIdGenerator;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.ThreadLocalSpanIdGenerator;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming.AmqpSpanNameResolver;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.AmqpTimeoutException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.PublisherCallbackChannelConnectionFactory;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.SpanReporter;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.util.ExceptionUtils;
+import org.springframework.util.Assert;
+
+/**
+ * Publisher of large numbers of messages in a single traced operation.
+ *
+ * <p>All messages of an operation are published on one channel of the {@link RabbitTemplate},
+ * obtained through {@code RabbitTemplate.execute}, under a single span named after the exchange and
+ * routing key. Each message carries the context of its own child of that span. Child spans are
+ * built without the {@link Tracer} and reported straight to the {@link SpanReporter} once their
+ * message is published, so the thread local state of the tracer is not touched per message.
+ *
+ * <p>A payload sent to several destinations is converted once by {@link #fanOut(Object,
+ * Collection)}, under a single span. The body is shared by every destination; each destination
+ * gets its own copy of the properties and headers, with the context of its own child of that span
+ * tagged with the exchange and routing key of the destination.
+ *
+ * <p>Publisher confirms are pipelined: at most {@link #setMaxOutstandingConfirms(int)} messages
+ * wait for a confirm at a time. The operation ends when every message is confirmed, and fails if
+ * the broker nacks any of them. When the connection factory of the template has publisher confirms
+ * enabled, its channels are already in confirm mode and are used as they are. Otherwise the channel
+ * is put in confirm mode and closed after the operation, instead of going back to the channel cache
+ * in confirm mode. Messages are published straight to the channel, without the post processors,
+ * correlation data and confirm callback of the template.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class TracedRabbitPublisher {
+  public static final String BULK_COUNT_TAG_NAME = "amqp.bulk.count";
+  public static final String BULK_NACKS_TAG_NAME = "amqp.bulk.nacks";
+  public static final String FANOUT_SPAN_NAME = "amqp-fanout";
+  public static final String FANOUT_DESTINATIONS_TAG_NAME = "amqp.fanout.destinations";
+  public static final String EXCHANGE_TAG_NAME = "amqp.exchange";
+  public static final String ROUTING_KEY_TAG_NAME = "amqp.routing.key";
+  public static final int DEFAULT_MAX_OUTSTANDING_CONFIRMS = 1000;
+  public static final long DEFAULT_CONFIRM_TIMEOUT = 30000;
+  private static final String ENCODING = "UTF-8";
+
+  private final RabbitTemplate rabbitTemplate;
+  private final AmqpMessagingSpanInjector injector;
+  private final Tracer tracer;
+  private final AmqpSpanNameResolver spanNameResolver;
+  private final MessagePropertiesConverter messagePropertiesConverter =
+      new DefaultMessagePropertiesConverter();
+  private final SpanReporter spanReporter;
+  private int maxOutstandingConfirms = DEFAULT_MAX_OUTSTANDING_CONFIRMS;
+  private long confirmTimeout = DEFAULT_CONFIRM_TIMEOUT;
+  private SpanIdGenerator idGenerator = new ThreadLocalSpanIdGenerator();
+
+  /**
+   * Creates a new instance.
+   *
+   * @param rabbitTemplate Template providing channels and the message converter
+   * @param injector Injector for AMQP messaging
+   * @param tracer Tracer
+   * @param spanReporter Reporter of the child spans of each message
+   */
+  public TracedRabbitPublisher(
+      RabbitTemplate rabbitTemplate,
+      AmqpMessagingSpanInjector injector,
+      Tracer tracer,
+      SpanReporter spanReporter) {
+    this(rabbitTemplate, injector, tracer, spanReporter, new AmqpSpanNameResolver());
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param rabbitTemplate Template providing channels and the message converter
+   * @param injector Injector for AMQP messaging
+   * @param tracer Tracer
+   * @param spanReporter Reporter of the child spans of each message
+   * @param spanNameResolver Resolver of span names
+   */
+  public TracedRabbitPublisher(
+      RabbitTemplate rabbitTemplate,
+      AmqpMessagingSpanInjector injector,
+      Tracer tracer,
+      SpanReporter spanReporter,
+      AmqpSpanNameResolver spanNameResolver) {
+    this.rabbitTemplate = rabbitTemplate;
+    this.injector = injector;
+    this.tracer = tracer;
+    this.spanReporter = spanReporter;
+    this.spanNameResolver = spanNameResolver;
+  }
+
+  /**
+   * Sets the maximum number of messages waiting for a publisher confirm. Publishing blocks while
+   * the limit is reached. Defaults to {@value #DEFAULT_MAX_OUTSTANDING_CONFIRMS}.
+   *
+   * @param maxOutstandingConfirms Maximum number of unconfirmed messages, or 0 to publish without
+   *     confirms
+   */
+  public void setMaxOutstandingConfirms(int maxOutstandingConfirms) {
+    Assert.isTrue(maxOutstandingConfirms >= 0, "maxOutstandingConfirms must not be negative");
+    this.maxOutstandingConfirms = maxOutstandingConfirms;
+  }
+
+  /**
+   * Sets how long to wait for publisher confirms, both for room in the confirm window and for the
+   * last confirms of an operation. Defaults to {@value #DEFAULT_CONFIRM_TIMEOUT} milliseconds.
+   *
+   * @param confirmTimeout Timeout in milliseconds
+   */
+  public void setConfirmTimeout(long confirmTimeout) {
+    Assert.isTrue(confirmTimeout > 0, "confirmTimeout must be greater than zero");
+    this.confirmTimeout = confirmTimeout;
+  }
+
+  /**
+   * Sets the generator of the IDs of the child spans of each message. Defaults to a {@link
+   * ThreadLocalSpanIdGenerator}.
+   *
+   * @param idGenerator Generator of span IDs
+   */
+  public void setIdGenerator(SpanIdGenerator idGenerator) {
+    this.idGenerator = idGenerator;
+  }
+
+  /**
+   * Publishes every payload of a stream. Payloads that are not a {@link Message} are converted by
+   * the message converter of the template.
+   *
+   * @param exchange Exchange
+   * @param routingKey Routing key
+   * @param payloads Payloads
+   * @return Number of messages published
+   * @throws AmqpException If a message could not be published or was nacked by the broker
+   */
+  public long publishAll(String exchange, String routingKey, Stream<?> payloads) {
+    return publishAll(exchange, routingKey, payloads.iterator());
+  }
+
+  /**
+   * Publishes every payload of an iterator. Payloads that are not a {@link Message} are converted
+   * by the message converter of the template.
+   *
+   * @param exchange Exchange
+   * @param routingKey Routing key
+   * @param payloads Payloads
+   * @return Number of messages published
+   * @throws AmqpException If a message could not be published or was nacked by the broker
+   */
+  public long publishAll(String exchange, String routingKey, Iterator<?> payloads) {
+    final Span span = tracer.createSpan(spanNameResolver.resolve(exchange, routingKey));
+    final MessageConverter messageConverter = rabbitTemplate.getMessageConverter();
+    return execute(
+        span,
+        (channel, window) -> {
+          long published = 0;
+          while (payloads.hasNext()) {
+            final Message message = toMessage(messageConverter, payloads.next());
+            final Span child = childSpan(span, span.getName());
+            injector.injectContext(child, message);
+            publish(
+                channel,
+                window,
+                child,
+                exchange,
+                routingKey,
+                convertProperties(message.getMessageProperties()),
+                message.getBody());
+            published++;
+          }
+          return published;
+        });
+  }
+
+  /**
+   * Publishes a payload to several destinations. The payload is converted once and the body is
+   * shared by every destination; each destination gets its own copy of the message properties and
+   * headers, with the context of its own child of the span of the operation.
+   *
+   * @param payload Payload, converted by the message converter of the template unless it is a
+   *     {@link Message}
+   * @param destinations Exchange and routing key of each destination
+   * @return Number of messages published
+   * @throws AmqpException If a message could not be published or was nacked by the broker
+   */
+  public long fanOut(Object payload, Collection<Address> destinations) {
+    final Message message = toMessage(rabbitTemplate.getMessageConverter(), payload);
+    final Span span = tracer.createSpan(FANOUT_SPAN_NAME);
+    span.tag(FANOUT_DESTINATIONS_TAG_NAME, String.valueOf(destinations.size()));
+    return execute(
+        span,
+        (channel, window) -> {
+          final BasicProperties properties = convertProperties(message.getMessageProperties());
+          final Map<String, Object> headers =
+              properties.getHeaders() != null ? properties.getHeaders() : Collections.emptyMap();
+          long published = 0;
+          for (Address destination : destinations) {
+            final String exchange = destination.getExchangeName();
+            final String routingKey = destination.getRoutingKey();
+            final Span child = childSpan(span, spanNameResolver.resolve(exchange, routingKey));
+            child.tag(EXCHANGE_TAG_NAME, exchange);
+            child.tag(ROUTING_KEY_TAG_NAME, routingKey);
+            final Map<String, Object> destinationHeaders = new HashMap<>(headers);
+            injector.injectContext(child, destinationHeaders);
+            publish(
+                channel,
+                window,
+                child,
+                exchange,
+                routingKey,
+                properties.builder().headers(destinationHeaders).build(),
+                message.getBody());
+            published++;
+          }
+          return published;
+        });
+  }
+
+  private long execute(Span span, PublishOperation operation) {
+    span.logEvent(Span.CLIENT_SEND);
+    final ConfirmWindow window =
+        maxOutstandingConfirms > 0 ? new ConfirmWindow(maxOutstandingConfirms) : null;
+    try {
+      final long count =
+          rabbitTemplate.execute(
+              channel -> {
+                if (window != null) {
+                  if (!isPublisherConfirms()) {
+                    // Keeps the channel out of the cache once in confirm mode
+                    RabbitUtils.setPhysicalCloseRequired(channel, true);
+                    channel.confirmSelect();
+                  }
+                  channel.addConfirmListener(window);
+                }
+                try {
+                  final long published = operation.publish(channel, window);
+                  if (window != null) {
+                    window.awaitEmpty(confirmTimeout);
+                  }
+                  return published;
+                } finally {
+                  if (window != null) {
+                    channel.removeConfirmListener(window);
+                  }
+                }
+              });
+      span.tag(BULK_COUNT_TAG_NAME, String.valueOf(count));
+      if (window != null && window.nacks > 0) {
+        span.tag(BULK_NACKS_TAG_NAME, String.valueOf(window.nacks));
+        throw new AmqpException(window.nacks + " of " + count + " messages nacked by the broker");
+      }
+      return count;
+    } catch (RuntimeException e) {
+      span.tag(Span.SPAN_ERROR_TAG_NAME, ExceptionUtils.getExceptionMessage(e));
+      throw e;
+    } finally {
+      span.logEvent(Span.CLIENT_RECV);
+      tracer.close(span);
+    }
+  }
+
+  /**
+   * Builds a child of the span of an operation, without the {@link Tracer}.
+   *
+   * @param parent Span of the operation
+   * @param name Name of the child span
+   * @return Child span, started
+   */
+  private Span childSpan(Span parent, String name) {
+    return Span.builder()
+        .name(name)
+        .traceIdHigh(parent.getTraceIdHigh())
+        .traceId(parent.getTraceId())
+        .parent(parent.getSpanId())
+        .spanId(idGenerator.nextId())
+        .exportable(parent.isExportable())
+        .processId(parent.getProcessId())
+        .baggage(parent.getBaggage())
+        .build();
+  }
+
+  private boolean isPublisherConfirms() {
+    final ConnectionFactory connectionFactory = rabbitTemplate.getConnectionFactory();
+    return connectionFactory instanceof PublisherCallbackChannelConnectionFactory
+        && ((PublisherCallbackChannelConnectionFactory) connectionFactory).isPublisherConfirms();
+  }
+
+  private BasicProperties convertProperties(MessageProperties messageProperties) {
+    return messagePropertiesConverter.fromMessageProperties(messageProperties, ENCODING);
+  }
+
+  private void publish(
+      Channel channel,
+      ConfirmWindow window,
+      Span child,
+      String exchange,
+      String routingKey,
+      BasicProperties properties,
+      byte[] body)
+      throws Exception {
+    child.logEvent(Span.CLIENT_SEND);
+    try {
+      if (window != null) {
+        window.awaitCapacity(confirmTimeout);
+        window.add(channel.getNextPublishSeqNo());
+      }
+      channel.basicPublish(exchange, routingKey, false, properties, body);
+    } catch (Exception e) {
+      child.tag(Span.SPAN_ERROR_TAG_NAME, ExceptionUtils.getExceptionMessage(e));
+      throw e;
+    } finally {
+      child.logEvent(Span.CLIENT_RECV);
+      child.stop();
+      if (child.isExportable()) {
+        spanReporter.report(child);
+      }
+    }
+  }
+
+  private Message toMessage(MessageConverter messageConverter, Object payload) {
+    if (payload instanceof Message) {
+      return (Message) payload;
+    }
+    return messageConverter.toMessage(payload, new MessageProperties());
+  }
+
+  /** Messages published in a single operation. */
+  private interface PublishOperation {
+    long publish(Channel channel, ConfirmWindow window) throws Exception;
+  }
+
+  /**
+   * Sequence numbers of published messages waiting for a publisher confirm. Messages of an
+   * operation are published in order on one channel, so their sequence numbers are consecutive and
+   * kept in a ring of flags: at most {@code capacity} sequence numbers, from the oldest one waiting
+   * for a confirm, are in flight.
+   */
+  private static class ConfirmWindow implements ConfirmListener {
+    private final boolean[] outstanding;
+    private long head;
+    private long tail;
+    private int size;
+    private long nacks;
+
+    private ConfirmWindow(int capacity) {
+      this.outstanding = new boolean[capacity];
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+      confirm(deliveryTag, multiple, false);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+      confirm(deliveryTag, multiple, true);
+    }
+
+    private synchronized void add(long sequenceNumber) {
+      if (size == 0) {
+        head = sequenceNumber;
+      }
+      outstanding[index(sequenceNumber)] = true;
+      tail = sequenceNumber + 1;
+      size++;
+    }
+
+    private synchronized void confirm(long deliveryTag, boolean multiple, boolean nack) {
+      // Confirms of messages published on the channel before the operation are ignored
+      final long last = Math.min(deliveryTag, tail - 1);
+      for (long sequenceNumber = multiple ? head : deliveryTag;
+          size > 0 && sequenceNumber <= last;
+          sequenceNumber++) {
+        final int index = index(sequenceNumber);
+        if (sequenceNumber >= head && outstanding[index]) {
+          outstanding[index] = false;
+          size--;
+          if (nack) {
+            nacks++;
+          }
+        }
+      }
+      while (size > 0 && !outstanding[index(head)]) {
+        head++;
+      }
+      notifyAll();
+    }
+
+    private int index(long sequenceNumber) {
+      return (int) (sequenceNumber % outstanding.length);
+    }
+
+    private synchronized void awaitCapacity(long timeout) {
+      final long deadline = deadline(timeout);
+      while (size > 0 && tail - head >= outstanding.length) {
+        await(deadline, timeout);
+      }
+    }
+
+    private synchronized void awaitEmpty(long timeout) {
+      final long deadline = deadline(timeout);
+      while (size > 0) {
+        await(deadline, timeout);
+      }
+    }
+
+    private long deadline(long timeout) {
+      return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    private void await(long deadline, long timeout) {
+      final long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new AmqpTimeoutException(size + " messages not confirmed in " + timeout + " ms");
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AmqpException("Interrupted while waiting for publisher confirms", e);
+      }
+    }
+  }
+}
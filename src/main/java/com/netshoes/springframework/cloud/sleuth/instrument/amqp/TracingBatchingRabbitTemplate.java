@@ -0,0 +1,334 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming.AmqpSpanNameResolver;
+import com.rabbitmq.client.Channel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.core.BatchingRabbitTemplate;
+import org.springframework.amqp.rabbit.core.support.BatchingStrategy;
+import org.springframework.amqp.rabbit.core.support.MessageBatch;
+import org.springframework.amqp.rabbit.core.support.SimpleBatchingStrategy;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.util.ExceptionUtils;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.Assert;
+
+/**
+ * {@link BatchingRabbitTemplate} that traces each publish of a batch with a single span, instead
+ * of a span per message.
+ *
+ * <p>When a message is added to the batch buffer, the trace context of the current span is
+ * recorded. When the batch is published, a span named after its exchange and routing key is tagged
+ * with the number of messages ({@value DefaultAmqpMessagingSpanManager#BATCH_SIZE_TAG_NAME}), the
+ * size of the batch in bytes, what released the batch and how long its first message waited in the
+ * buffer. The trace contexts of the first messages are listed in the {@value
+ * DefaultAmqpMessagingSpanManager#BATCH_LINKS_TAG_NAME} tag, and the number of messages sent with
+ * a trace context in the {@value DefaultAmqpMessagingSpanManager#BATCH_LINKS_COUNT_TAG_NAME} tag.
+ * The publish span is a child of the current span of the publishing thread, if any: the thread
+ * sending the message that completed the batch, or the scheduler thread when the batch times out.
+ *
+ * <p>A batch is published as a single message with the properties of its first message only, so
+ * the trace headers of the publish span are written to it: consumers of the batch join the trace of
+ * the publish span, not the traces of the senders of each message. The headers are written to a
+ * copy of the properties, leaving those of the first message untouched. A publish retried by the retry
+ * template of this template is traced again, with a span per attempt.
+ *
+ * <p>Do not apply {@link AmqpTemplateAspect} to this template, otherwise every message is also
+ * traced with its own span. {@link RabbitTemplateTracingBeanPostProcessor} skips it.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class TracingBatchingRabbitTemplate extends BatchingRabbitTemplate {
+  public static final String BATCH_BYTES_TAG_NAME = "amqp.batch.bytes";
+  public static final String BATCH_TRIGGER_TAG_NAME = "amqp.batch.trigger";
+  public static final String BATCH_FLUSH_LATENCY_TAG_NAME = "amqp.batch.flush.latency.micros";
+  public static final String TRIGGER_SIZE = "size";
+  public static final String TRIGGER_BUFFER_LIMIT = "buffer-limit";
+  public static final String TRIGGER_TIMEOUT = "timeout";
+  public static final String TRIGGER_FLUSH = "flush";
+
+  private final BatchRecorder recorder;
+  private final AmqpMessagingSpanInjector injector;
+  private final Tracer tracer;
+  private final AmqpSpanNameResolver spanNameResolver;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param batchingStrategy Batching strategy
+   * @param scheduler Scheduler of batch timeouts
+   * @param injector Injector for AMQP messaging
+   * @param tracer Tracer
+   */
+  public TracingBatchingRabbitTemplate(
+      BatchingStrategy batchingStrategy,
+      TaskScheduler scheduler,
+      AmqpMessagingSpanInjector injector,
+      Tracer tracer) {
+    this(batchingStrategy, scheduler, injector, tracer, new AmqpSpanNameResolver());
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param batchingStrategy Batching strategy
+   * @param scheduler Scheduler of batch timeouts
+   * @param injector Injector for AMQP messaging
+   * @param tracer Tracer
+   * @param spanNameResolver Resolver of span names
+   */
+  public TracingBatchingRabbitTemplate(
+      BatchingStrategy batchingStrategy,
+      TaskScheduler scheduler,
+      AmqpMessagingSpanInjector injector,
+      Tracer tracer,
+      AmqpSpanNameResolver spanNameResolver) {
+    this(
+        new BatchRecorder(batchingStrategy, tracer),
+        scheduler,
+        injector,
+        tracer,
+        spanNameResolver);
+  }
+
+  private TracingBatchingRabbitTemplate(
+      BatchRecorder recorder,
+      TaskScheduler scheduler,
+      AmqpMessagingSpanInjector injector,
+      Tracer tracer,
+      AmqpSpanNameResolver spanNameResolver) {
+    super(recorder, scheduler);
+    this.recorder = recorder;
+    this.injector = injector;
+    this.tracer = tracer;
+    this.spanNameResolver = spanNameResolver;
+  }
+
+  /**
+   * Sets how many trace contexts of the messages of a batch are written in the {@value
+   * DefaultAmqpMessagingSpanManager#BATCH_LINKS_TAG_NAME} tag. Defaults to 16.
+   *
+   * @param maxBatchLinks Maximum number of trace contexts in the links tag
+   */
+  public void setMaxBatchLinks(int maxBatchLinks) {
+    Assert.isTrue(maxBatchLinks >= 0, "maxBatchLinks must not be negative");
+    recorder.maxLinks = maxBatchLinks;
+  }
+
+  @Override
+  public void flush() {
+    recorder.flushingThread = Thread.currentThread();
+    try {
+      super.flush();
+    } finally {
+      recorder.flushingThread = null;
+    }
+  }
+
+  @Override
+  protected void doSend(
+      Channel channel,
+      String exchange,
+      String routingKey,
+      Message message,
+      boolean mandatory,
+      CorrelationData correlationData)
+      throws Exception {
+    final ReleasedBatch batch = recorder.findReleased(message);
+    if (batch == null) {
+      super.doSend(channel, exchange, routingKey, message, mandatory, correlationData);
+      return;
+    }
+    final Span span = tracer.createSpan(spanNameResolver.resolve(exchange, routingKey));
+    span.logEvent(Span.CLIENT_SEND);
+    span.tag(DefaultAmqpMessagingSpanManager.BATCH_SIZE_TAG_NAME, String.valueOf(batch.count));
+    span.tag(BATCH_BYTES_TAG_NAME, String.valueOf(message.getBody().length));
+    span.tag(BATCH_TRIGGER_TAG_NAME, batch.trigger);
+    span.tag(BATCH_FLUSH_LATENCY_TAG_NAME, String.valueOf(batch.latencyNanos / 1000));
+    if (batch.linkCount > 0) {
+      span.tag(DefaultAmqpMessagingSpanManager.BATCH_LINKS_TAG_NAME, batch.links);
+      span.tag(
+          DefaultAmqpMessagingSpanManager.BATCH_LINKS_COUNT_TAG_NAME,
+          String.valueOf(batch.linkCount));
+    }
+    // The batch shares the properties of its first message, still held by its sender
+    final Message tracedMessage = MessageBuilder.fromMessage(message).build();
+    injector.injectContext(span, tracedMessage);
+    try {
+      super.doSend(channel, exchange, routingKey, tracedMessage, mandatory, correlationData);
+      recorder.removeReleased(batch);
+    } catch (Exception e) {
+      span.tag(Span.SPAN_ERROR_TAG_NAME, ExceptionUtils.getExceptionMessage(e));
+      throw e;
+    } finally {
+      span.logEvent(Span.CLIENT_RECV);
+      tracer.close(span);
+    }
+  }
+
+  /**
+   * Batching strategy that records the trace context of the current span for each message of the
+   * pending batch. It is only called by the template while it holds its own lock, except for
+   * {@link #findReleased(Message)} and {@link #removeReleased(ReleasedBatch)}.
+   */
+  private static class BatchRecorder implements BatchingStrategy {
+    private static final int LENGTH_HEADER_SIZE = 4;
+    private static final int DEFAULT_MAX_LINKS = 16;
+    private final BatchingStrategy delegate;
+    private final Tracer tracer;
+    private final int batchSize;
+    private final int bufferLimit;
+    private final Deque<ReleasedBatch> released = new ArrayDeque<>();
+    private final StringBuilder links = new StringBuilder();
+    private volatile int maxLinks = DEFAULT_MAX_LINKS;
+    private int count;
+    private int linkCount;
+    private long bytes;
+    private long firstAddNanos;
+    private volatile Thread flushingThread;
+
+    private BatchRecorder(BatchingStrategy delegate, Tracer tracer) {
+      this.delegate = delegate;
+      this.tracer = tracer;
+      if (delegate instanceof SimpleBatchingStrategy) {
+        final DirectFieldAccessor accessor = new DirectFieldAccessor(delegate);
+        this.batchSize = getIntField(accessor, "batchSize");
+        this.bufferLimit = getIntField(accessor, "bufferLimit");
+      } else {
+        this.batchSize = Integer.MAX_VALUE;
+        this.bufferLimit = Integer.MAX_VALUE;
+      }
+    }
+
+    private static int getIntField(DirectFieldAccessor accessor, String name) {
+      final Object value = accessor.getPropertyValue(name);
+      Assert.state(
+          value instanceof Integer,
+          "Cannot read the " + name + " of the SimpleBatchingStrategy, found " + value);
+      return (Integer) value;
+    }
+
+    @Override
+    public MessageBatch addToBatch(String exchange, String routingKey, Message message) {
+      final Span span = tracer.isTracing() ? tracer.getCurrentSpan() : null;
+      final MessageBatch batch = delegate.addToBatch(exchange, routingKey, message);
+      final long now = System.nanoTime();
+      final int size = LENGTH_HEADER_SIZE + message.getBody().length;
+      if (batch == null) {
+        addPending(span, size, now);
+      } else if (count > 0 && bytes + size > bufferLimit) {
+        // Released before the message was added, the message did not fit in the buffer
+        release(batch, TRIGGER_BUFFER_LIMIT, now);
+        addPending(span, size, now);
+      } else {
+        addPending(span, size, now);
+        release(batch, count >= batchSize ? TRIGGER_SIZE : TRIGGER_BUFFER_LIMIT, now);
+      }
+      return batch;
+    }
+
+    @Override
+    public Date nextRelease() {
+      return delegate.nextRelease();
+    }
+
+    @Override
+    public Collection<MessageBatch> releaseBatches() {
+      final Collection<MessageBatch> batches = delegate.releaseBatches();
+      final String trigger =
+          flushingThread == Thread.currentThread() ? TRIGGER_FLUSH : TRIGGER_TIMEOUT;
+      final long now = System.nanoTime();
+      for (MessageBatch batch : batches) {
+        release(batch, trigger, now);
+      }
+      return batches;
+    }
+
+    /**
+     * Finds the recorded batch of a message being published. The batch is kept until its publish
+     * succeeds, so a retried publish finds it again. Batches released before it and never
+     * published, because their publish failed, are dropped.
+     *
+     * @param message Message being published
+     * @return Released batch, or null if the message is not a batch
+     */
+    private synchronized ReleasedBatch findReleased(Message message) {
+      for (Iterator<ReleasedBatch> iterator = released.iterator(); iterator.hasNext(); ) {
+        if (iterator.next().message == message) {
+          while (released.peek().message != message) {
+            released.poll();
+          }
+          return released.peek();
+        }
+      }
+      return null;
+    }
+
+    private synchronized void removeReleased(ReleasedBatch batch) {
+      released.remove(batch);
+    }
+
+    private void addPending(Span span, int size, long now) {
+      if (count == 0) {
+        firstAddNanos = now;
+      }
+      count++;
+      bytes += size;
+      if (span != null && linkCount++ < maxLinks) {
+        if (links.length() > 0) {
+          links.append(',');
+        }
+        links.append(span.traceIdString()).append('/').append(Span.idToHex(span.getSpanId()));
+      }
+    }
+
+    private synchronized void release(MessageBatch batch, String trigger, long now) {
+      released.add(
+          new ReleasedBatch(
+              batch.getMessage(),
+              trigger,
+              count,
+              links.toString(),
+              linkCount,
+              now - firstAddNanos));
+      count = 0;
+      linkCount = 0;
+      bytes = 0;
+      links.setLength(0);
+    }
+  }
+
+  /** Batch released by the batching strategy and waiting to be published. */
+  private static class ReleasedBatch {
+    private final Message message;
+    private final String trigger;
+    private final int count;
+    private final String links;
+    private final int linkCount;
+    private final long latencyNanos;
+
+    private ReleasedBatch(
+        Message message,
+        String trigger,
+        int count,
+        String links,
+        int linkCount,
+        long latencyNanos) {
+      this.message = message;
+      this.trigger = trigger;
+      this.count = count;
+      this.links = links;
+      this.linkCount = linkCount;
+      this.latencyNanos = latencyNanos;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.actuate;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.MessageHistory;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.MessageRecord;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+/**
+ * Actuator endpoint listing the last publishes and deliveries kept by a {@link MessageHistory},
+ * newest first. Through HTTP, use {@link MessageHistoryMvcEndpoint} to filter them. The endpoint is
+ * sensitive by default, since it exposes trace IDs and destinations.
+ *
+ * <p>Requires {@code org.springframework.boot:spring-boot-actuator} in the classpath.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class MessageHistoryEndpoint extends AbstractEndpoint<List<MessageRecord>> {
+  public static final String ID = "amqphistory";
+  public static final int DEFAULT_LIMIT = 100;
+  private final MessageHistory history;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param history History of messages
+   */
+  public MessageHistoryEndpoint(MessageHistory history) {
+    super(ID);
+    this.history = history;
+  }
+
+  @Override
+  public List<MessageRecord> invoke() {
+    return getRecords(null, null, 0, null, DEFAULT_LIMIT);
+  }
+
+  /**
+   * Gets the records matching all the given criteria, newest first.
+   *
+   * @param queue Consumer queue of deliveries, or null for any publish or delivery
+   * @param exchange Exchange, or null for any
+   * @param minDurationMicros Minimum duration, in microseconds
+   * @param error True for failed messages only, false for successful ones only, or null for any
+   * @param limit Maximum number of records
+   * @return Matching records
+   */
+  public List<MessageRecord> getRecords(
+      String queue, String exchange, long minDurationMicros, Boolean error, int limit) {
+    final long minDurationNanos = TimeUnit.MICROSECONDS.toNanos(minDurationMicros);
+    return history.getRecords(
+        record ->
+            (queue == null
+                    || record.getType() == MessageRecord.Type.DELIVERY
+                        && queue.equals(record.getDestination()))
+                && (exchange == null || exchange.equals(record.getExchange()))
+                && record.getDurationNanos() >= minDurationNanos
+                && (error == null || error == record.isError()),
+        limit);
+  }
+}
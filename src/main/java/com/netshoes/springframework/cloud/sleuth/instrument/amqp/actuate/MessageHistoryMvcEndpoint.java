@@ -0,0 +1,58 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.actuate;
+
+import org.springframework.boot.actuate.endpoint.mvc.AbstractEndpointMvcAdapter;
+import org.springframework.boot.actuate.endpoint.mvc.ActuatorMediaTypes;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Exposes a {@link MessageHistoryEndpoint} over HTTP, filtered by the {@code queue}, {@code
+ * exchange}, {@code minDurationMicros} and {@code error} request parameters and limited to {@code
+ * limit} records, like {@code /amqphistory?queue=orders&minDurationMicros=50000}.
+ *
+ * <p>Requires {@code org.springframework.boot:spring-boot-actuator} and Spring MVC in the classpath.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class MessageHistoryMvcEndpoint extends AbstractEndpointMvcAdapter<MessageHistoryEndpoint> {
+
+  /**
+   * Creates a new instance.
+   *
+   * @param delegate Endpoint
+   */
+  public MessageHistoryMvcEndpoint(MessageHistoryEndpoint delegate) {
+    super(delegate);
+  }
+
+  /**
+   * Lists the records matching all the given criteria, newest first.
+   *
+   * @param queue Consumer queue of deliveries
+   * @param exchange Exchange
+   * @param minDurationMicros Minimum duration, in microseconds
+   * @param error True for failed messages only, false for successful ones only
+   * @param limit Maximum number of records
+   * @return Matching records, or the disabled response
+   */
+  @GetMapping(
+      produces = {
+        ActuatorMediaTypes.APPLICATION_ACTUATOR_V1_JSON_VALUE,
+        MediaType.APPLICATION_JSON_VALUE
+      })
+  @ResponseBody
+  public Object invoke(
+      @RequestParam(required = false) String queue,
+      @RequestParam(required = false) String exchange,
+      @RequestParam(defaultValue = "0") long minDurationMicros,
+      @RequestParam(required = false) Boolean error,
+      @RequestParam(defaultValue = "" + MessageHistoryEndpoint.DEFAULT_LIMIT) int limit) {
+    if (!getDelegate().isEnabled()) {
+      return getDisabledResponse();
+    }
+    return getDelegate().getRecords(queue, exchange, minDurationMicros, error, limit);
+  }
+}
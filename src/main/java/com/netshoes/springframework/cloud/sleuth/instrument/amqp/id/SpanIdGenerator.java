@@ -0,0 +1,25 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.id;
+
+/**
+ * Generator of the span and trace IDs of the spans created by this library.
+ *
+ * @see ThreadLocalSpanIdGenerator
+ * @see SpanIdGeneratorRandom
+ * @author André Ignacio
+ * @since 0.11
+ */
+public interface SpanIdGenerator {
+  /**
+   * Generates a span ID, also used as the lower 64 bits of new trace IDs.
+   *
+   * @return ID, never 0
+   */
+  long nextId();
+
+  /**
+   * Generates the higher 64 bits of a new trace ID.
+   *
+   * @return Higher bits of trace ID, or 0 for 64-bit trace IDs
+   */
+  long nextTraceIdHigh();
+}
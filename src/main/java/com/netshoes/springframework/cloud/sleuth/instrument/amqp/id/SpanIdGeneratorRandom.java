@@ -0,0 +1,49 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.id;
+
+import java.util.Random;
+
+/**
+ * {@link Random} drawing its values from a {@link SpanIdGenerator}, for the Sleuth tracer, which
+ * takes the {@link Random} of its span IDs as a bean. Declare it as the {@link Random} bean so the
+ * tracer and this library share the same generator:
+ *
+ * <pre>
+ * &#64;Bean
+ * public Random randomForSpanIds(SpanIdGenerator spanIdGenerator) {
+ *   return new SpanIdGeneratorRandom(spanIdGenerator);
+ * }
+ * </pre>
+ *
+ * <p>Seeds are ignored.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class SpanIdGeneratorRandom extends Random {
+  private static final long serialVersionUID = 1L;
+  private final transient SpanIdGenerator spanIdGenerator;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param spanIdGenerator Generator of IDs
+   */
+  public SpanIdGeneratorRandom(SpanIdGenerator spanIdGenerator) {
+    this.spanIdGenerator = spanIdGenerator;
+  }
+
+  @Override
+  public synchronized void setSeed(long seed) {
+    // Called by the constructor of Random, values never come from the seed
+  }
+
+  @Override
+  protected int next(int bits) {
+    return (int) (spanIdGenerator.nextId() >>> (64 - bits));
+  }
+
+  @Override
+  public long nextLong() {
+    return spanIdGenerator.nextId();
+  }
+}
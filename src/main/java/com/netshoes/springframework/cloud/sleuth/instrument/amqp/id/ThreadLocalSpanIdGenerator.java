@@ -0,0 +1,44 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.id;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@link SpanIdGenerator} backed by {@link ThreadLocalRandom}. Each thread draws IDs from its own
+ * generator, so threads never contend on a shared seed like they do on a shared {@link
+ * java.util.Random}.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class ThreadLocalSpanIdGenerator implements SpanIdGenerator {
+  private final boolean traceId128;
+
+  /** Creates a new instance generating 64-bit trace IDs. */
+  public ThreadLocalSpanIdGenerator() {
+    this(false);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param traceId128 True to generate 128-bit trace IDs
+   */
+  public ThreadLocalSpanIdGenerator(boolean traceId128) {
+    this.traceId128 = traceId128;
+  }
+
+  @Override
+  public long nextId() {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    long id;
+    do {
+      id = random.nextLong();
+    } while (id == 0);
+    return id;
+  }
+
+  @Override
+  public long nextTraceIdHigh() {
+    return traceId128 ? ThreadLocalRandom.current().nextLong() : 0;
+  }
+}
@@ -0,0 +1,35 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event for the publisher confirm of a message, or its timeout. It begins when
+ * the message is published and ends when the confirm arrives, so its duration is the confirm
+ * latency.
+ *
+ * @see AmqpFlightRecorder
+ * @author André Ignacio
+ * @since 0.11
+ */
+@Name(AmqpConfirmEvent.NAME)
+@Label("AMQP Confirm")
+@Category({"Spring Cloud Sleuth", "AMQP"})
+@Description("Publisher confirm of a message, or its timeout.")
+@StackTrace(false)
+public final class AmqpConfirmEvent extends Event {
+  public static final String NAME = "com.netshoes.amqp.Confirm";
+
+  @Label("Trace ID")
+  String traceId;
+
+  @Label("Span ID")
+  String spanId;
+
+  @Label("Outcome")
+  String outcome;
+}
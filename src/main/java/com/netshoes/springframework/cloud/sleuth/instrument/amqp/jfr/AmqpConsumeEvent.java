@@ -0,0 +1,48 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event for the handling of a delivery, or of a batch of deliveries, by a
+ * listener.
+ *
+ * @see AmqpFlightRecorder
+ * @author André Ignacio
+ * @since 0.11
+ */
+@Name(AmqpConsumeEvent.NAME)
+@Label("AMQP Consume")
+@Category({"Spring Cloud Sleuth", "AMQP"})
+@Description("Handling of a delivery, or of a batch of deliveries, by a listener.")
+@StackTrace(false)
+public final class AmqpConsumeEvent extends Event {
+  public static final String NAME = "com.netshoes.amqp.Consume";
+
+  @Label("Trace ID")
+  String traceId;
+
+  @Label("Span ID")
+  String spanId;
+
+  @Label("Queue")
+  String queue;
+
+  @Label("Exchange")
+  String exchange;
+
+  @Label("Routing Key")
+  String routingKey;
+
+  @Label("Messages")
+  int messages;
+
+  @Label("Payload Size")
+  @DataAmount
+  long payloadSize;
+}
@@ -0,0 +1,39 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event for the conversion of a delivered message by a {@link
+ * org.springframework.amqp.support.converter.MessageConverter}.
+ *
+ * @see AmqpFlightRecorder
+ * @author André Ignacio
+ * @since 0.11
+ */
+@Name(AmqpConvertEvent.NAME)
+@Label("AMQP Convert")
+@Category({"Spring Cloud Sleuth", "AMQP"})
+@Description("Conversion of a delivered message by a MessageConverter.")
+@StackTrace(false)
+public final class AmqpConvertEvent extends Event {
+  public static final String NAME = "com.netshoes.amqp.Convert";
+
+  @Label("Trace ID")
+  String traceId;
+
+  @Label("Span ID")
+  String spanId;
+
+  @Label("Queue")
+  String queue;
+
+  @Label("Payload Size")
+  @DataAmount
+  long payloadSize;
+}
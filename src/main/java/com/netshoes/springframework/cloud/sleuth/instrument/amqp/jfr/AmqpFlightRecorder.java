@@ -0,0 +1,256 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr;
+
+import java.util.List;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Emits the JDK Flight Recorder events of the instrumentation: {@link AmqpPublishEvent}, {@link
+ * AmqpConsumeEvent}, {@link AmqpConvertEvent} and {@link AmqpConfirmEvent}. Events carry the trace
+ * and span IDs of the message, so stack samples of a recording can be matched to traces.
+ *
+ * <p>Events are enabled and thresholded by the settings of the recording, using their names, like
+ * {@value AmqpPublishEvent#NAME}. Nothing is recorded and nothing is allocated for a disabled
+ * event, and the trace IDs are only formatted for events that are committed. In JVMs without the
+ * {@code jdk.jfr} module every method of this class does nothing; event classes are never loaded
+ * there.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public final class AmqpFlightRecorder {
+  private static final boolean AVAILABLE =
+      ClassUtils.isPresent("jdk.jfr.Event", AmqpFlightRecorder.class.getClassLoader());
+  private static final ThreadLocal<AmqpPublishEvent> PUBLISHING =
+      AVAILABLE ? new ThreadLocal<>() : null;
+
+  private AmqpFlightRecorder() {}
+
+  /**
+   * Whether the JVM supports JDK Flight Recorder events.
+   *
+   * @return True if events can be recorded
+   */
+  public static boolean isAvailable() {
+    return AVAILABLE;
+  }
+
+  /**
+   * Begins the publish event of a send, if enabled. The message sent is set with {@link
+   * #publishing(Message, Span)}.
+   *
+   * @param exchange Exchange
+   * @param routingKey Routing key
+   * @return Event to end with {@link #endPublish(AmqpPublishEvent)}, or null if not recorded
+   */
+  public static AmqpPublishEvent beginPublish(String exchange, String routingKey) {
+    if (!AVAILABLE) {
+      return null;
+    }
+    final AmqpPublishEvent event = new AmqpPublishEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.exchange = exchange;
+    event.routingKey = routingKey;
+    event.previous = PUBLISHING.get();
+    PUBLISHING.set(event);
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Sets the message of the publish event begun in the current thread, if any.
+   *
+   * @param message Message being sent
+   * @param span Send span, or null if the send is not sampled
+   */
+  public static void publishing(Message message, Span span) {
+    if (!AVAILABLE) {
+      return;
+    }
+    final AmqpPublishEvent event = PUBLISHING.get();
+    if (event != null) {
+      event.payloadSize = getPayloadSize(message);
+      event.span = span;
+    }
+  }
+
+  /**
+   * Ends a publish event and commits it if it lasted longer than its threshold.
+   *
+   * @param event Event, may be null
+   */
+  public static void endPublish(AmqpPublishEvent event) {
+    if (event == null) {
+      return;
+    }
+    event.end();
+    PUBLISHING.set(event.previous);
+    event.previous = null;
+    if (event.shouldCommit()) {
+      if (event.span != null) {
+        event.traceId = event.span.traceIdString();
+        event.spanId = Span.idToHex(event.span.getSpanId());
+      }
+      event.commit();
+    }
+    event.span = null;
+  }
+
+  /**
+   * Begins the consume event of a delivery, if enabled.
+   *
+   * @param message Delivered message
+   * @return Event to end with {@link #endConsume(AmqpConsumeEvent, Span)}, or null if not recorded
+   */
+  public static AmqpConsumeEvent beginConsume(Message message) {
+    if (!AVAILABLE) {
+      return null;
+    }
+    final AmqpConsumeEvent event = new AmqpConsumeEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    setDelivery(event, message);
+    event.messages = 1;
+    event.payloadSize = getPayloadSize(message);
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Begins the consume event of a batch of deliveries, if enabled. The queue, exchange and routing
+   * key are those of the first message.
+   *
+   * @param messages Delivered messages
+   * @return Event to end with {@link #endConsume(AmqpConsumeEvent, Span)}, or null if not recorded
+   */
+  public static AmqpConsumeEvent beginConsume(List<Message> messages) {
+    if (!AVAILABLE) {
+      return null;
+    }
+    final AmqpConsumeEvent event = new AmqpConsumeEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    setDelivery(event, messages.get(0));
+    event.messages = messages.size();
+    for (Message message : messages) {
+      event.payloadSize += getPayloadSize(message);
+    }
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends a consume event and commits it if it lasted longer than its threshold.
+   *
+   * @param event Event, may be null
+   * @param span Consumer span, or null if the delivery is not sampled
+   */
+  public static void endConsume(AmqpConsumeEvent event, Span span) {
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      if (span != null) {
+        event.traceId = span.traceIdString();
+        event.spanId = Span.idToHex(span.getSpanId());
+      }
+      event.commit();
+    }
+  }
+
+  /**
+   * Begins the convert event of a delivery, if enabled.
+   *
+   * @param message Delivered message
+   * @return Event to end with {@link #endConvert(AmqpConvertEvent, Span)}, or null if not recorded
+   */
+  public static AmqpConvertEvent beginConvert(Message message) {
+    if (!AVAILABLE) {
+      return null;
+    }
+    final AmqpConvertEvent event = new AmqpConvertEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.queue = message.getMessageProperties().getConsumerQueue();
+    event.payloadSize = getPayloadSize(message);
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends a convert event and commits it if it lasted longer than its threshold.
+   *
+   * @param event Event, may be null
+   * @param span Consumer span, or null if the delivery is not sampled
+   */
+  public static void endConvert(AmqpConvertEvent event, Span span) {
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      if (span != null) {
+        event.traceId = span.traceIdString();
+        event.spanId = Span.idToHex(span.getSpanId());
+      }
+      event.commit();
+    }
+  }
+
+  /**
+   * Begins the confirm event of a message waiting for its publisher confirm, if enabled.
+   *
+   * @return Event to end with {@link #endConfirm(AmqpConfirmEvent, Span, String)}, or null if not
+   *     recorded
+   */
+  public static AmqpConfirmEvent beginConfirm() {
+    if (!AVAILABLE) {
+      return null;
+    }
+    final AmqpConfirmEvent event = new AmqpConfirmEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends a confirm event and commits it if the confirm took longer than its threshold.
+   *
+   * @param event Event, may be null
+   * @param span Send span
+   * @param outcome Outcome of the confirm: ack, nack or timeout
+   */
+  public static void endConfirm(AmqpConfirmEvent event, Span span, String outcome) {
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.traceId = span.traceIdString();
+      event.spanId = Span.idToHex(span.getSpanId());
+      event.outcome = outcome;
+      event.commit();
+    }
+  }
+
+  private static void setDelivery(AmqpConsumeEvent event, Message message) {
+    final MessageProperties properties = message.getMessageProperties();
+    event.queue = properties.getConsumerQueue();
+    event.exchange = properties.getReceivedExchange();
+    event.routingKey = properties.getReceivedRoutingKey();
+  }
+
+  private static long getPayloadSize(Message message) {
+    return message.getBody() != null ? message.getBody().length : 0;
+  }
+}
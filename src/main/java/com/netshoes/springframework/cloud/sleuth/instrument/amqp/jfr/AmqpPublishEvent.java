@@ -0,0 +1,49 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * JDK Flight Recorder event for the publish of a message by an {@link
+ * org.springframework.amqp.core.AmqpTemplate}, from the start of the send to its return.
+ *
+ * @see AmqpFlightRecorder
+ * @author André Ignacio
+ * @since 0.11
+ */
+@Name(AmqpPublishEvent.NAME)
+@Label("AMQP Publish")
+@Category({"Spring Cloud Sleuth", "AMQP"})
+@Description("Publish of a message by an AmqpTemplate.")
+@StackTrace(false)
+public final class AmqpPublishEvent extends Event {
+  public static final String NAME = "com.netshoes.amqp.Publish";
+
+  @Label("Trace ID")
+  String traceId;
+
+  @Label("Span ID")
+  String spanId;
+
+  @Label("Exchange")
+  String exchange;
+
+  @Label("Routing Key")
+  String routingKey;
+
+  @Label("Payload Size")
+  @DataAmount
+  long payloadSize;
+
+  /** Send span, read when the event is committed. */
+  transient Span span;
+
+  /** Publish event begun before this one on the same thread, restored when this one ends. */
+  transient AmqpPublishEvent previous;
+}
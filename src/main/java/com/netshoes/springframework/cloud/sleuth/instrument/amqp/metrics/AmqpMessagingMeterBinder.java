@@ -0,0 +1,66 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes {@link AmqpMessagingMetrics} through Micrometer. Each destination and queue gets a
+ * timer, a counter of errors suffixed with {@code .errors} and a gauge of the longest duration
+ * suffixed with {@code .max}, tagged with {@value #DESTINATION_TAG} or {@value #QUEUE_TAG}. Meters
+ * read the stats when they are published, so recording does not go through Micrometer.
+ *
+ * <p>Requires {@code io.micrometer:micrometer-core} in the classpath.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class AmqpMessagingMeterBinder implements MeterBinder {
+  public static final String DESTINATION_TAG = "destination";
+  public static final String QUEUE_TAG = "queue";
+  private final AmqpMessagingMetrics metrics;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param metrics Metrics of AMQP messaging
+   */
+  public AmqpMessagingMeterBinder(AmqpMessagingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    metrics.addStatsListener(stats -> register(registry, stats));
+  }
+
+  private void register(MeterRegistry registry, AmqpTimerStats stats) {
+    final String tag =
+        AmqpMessagingMetrics.PUBLISH_METRIC_NAME.equals(stats.getName())
+            ? DESTINATION_TAG
+            : QUEUE_TAG;
+    final Tags tags = Tags.of(tag, stats.getKey());
+    FunctionTimer.builder(
+            stats.getName(),
+            stats,
+            AmqpTimerStats::getCount,
+            s -> s.getTotalTime(TimeUnit.MICROSECONDS),
+            TimeUnit.MICROSECONDS)
+        .tags(tags)
+        .register(registry);
+    FunctionCounter.builder(stats.getName() + ".errors", stats, AmqpTimerStats::getErrors)
+        .tags(tags)
+        .register(registry);
+    TimeGauge.builder(
+            stats.getName() + ".max",
+            stats,
+            TimeUnit.MICROSECONDS,
+            s -> s.getMax(TimeUnit.MICROSECONDS))
+        .tags(tags)
+        .register(registry);
+  }
+}
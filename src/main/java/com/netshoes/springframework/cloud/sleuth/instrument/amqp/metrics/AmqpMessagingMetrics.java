@@ -0,0 +1,102 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Rate, error and duration metrics of AMQP messaging, recorded by {@link
+ * com.netshoes.springframework.cloud.sleuth.instrument.amqp.DefaultAmqpMessagingSpanManager} from
+ * the same hooks that manage spans. Metrics are recorded for every message, sampled or not, so
+ * they keep their fidelity when only a fraction of the spans is exported.
+ *
+ * <p>Publishes are timed per destination, like {@code amqp://exchange/routingKey}, from the start
+ * of the send until the message is handed to the broker. Deliveries are timed per consumer queue,
+ * from the start of the handle until the listener returns. Publishes of templates instrumented by
+ * {@link
+ * com.netshoes.springframework.cloud.sleuth.instrument.amqp.RabbitTemplateTracingBeanPostProcessor}
+ * count toward the default destination of the template.
+ *
+ * @see AmqpMessagingMeterBinder
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class AmqpMessagingMetrics {
+  public static final String PUBLISH_METRIC_NAME = "amqp.publish";
+  public static final String PROCESS_METRIC_NAME = "amqp.process";
+  public static final String UNKNOWN_QUEUE = "unknown-queue";
+  private final ConcurrentMap<String, AmqpTimerStats> publishes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AmqpTimerStats> deliveries = new ConcurrentHashMap<>();
+  private final List<Consumer<AmqpTimerStats>> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Records a publish.
+   *
+   * @param destination Destination, the name of the send span
+   * @param nanos Duration in nanoseconds
+   * @param error True if the publish failed
+   */
+  public void recordPublish(String destination, long nanos, boolean error) {
+    getStats(publishes, PUBLISH_METRIC_NAME, destination).record(nanos, error);
+  }
+
+  /**
+   * Records the processing of a delivery.
+   *
+   * @param queue Consumer queue, or null if unknown
+   * @param nanos Duration in nanoseconds
+   * @param error True if the listener failed
+   */
+  public void recordProcessing(String queue, long nanos, boolean error) {
+    getStats(deliveries, PROCESS_METRIC_NAME, queue != null ? queue : UNKNOWN_QUEUE)
+        .record(nanos, error);
+  }
+
+  /**
+   * Gets the stats of publishes, one for each destination.
+   *
+   * @return Stats of publishes
+   */
+  public Collection<AmqpTimerStats> getPublishStats() {
+    return Collections.unmodifiableCollection(publishes.values());
+  }
+
+  /**
+   * Gets the stats of deliveries, one for each consumer queue.
+   *
+   * @return Stats of deliveries
+   */
+  public Collection<AmqpTimerStats> getProcessingStats() {
+    return Collections.unmodifiableCollection(deliveries.values());
+  }
+
+  /**
+   * Adds a listener of stats, called with the stats already created and then with each new one.
+   *
+   * @param listener Listener of stats
+   */
+  public void addStatsListener(Consumer<AmqpTimerStats> listener) {
+    listeners.add(listener);
+    publishes.values().forEach(listener);
+    deliveries.values().forEach(listener);
+  }
+
+  private AmqpTimerStats getStats(
+      ConcurrentMap<String, AmqpTimerStats> stats, String name, String key) {
+    final AmqpTimerStats current = stats.get(key);
+    if (current != null) {
+      return current;
+    }
+    final AmqpTimerStats created = new AmqpTimerStats(name, key);
+    final AmqpTimerStats previous = stats.putIfAbsent(key, created);
+    if (previous != null) {
+      return previous;
+    }
+    listeners.forEach(listener -> listener.accept(created));
+    return created;
+  }
+}
@@ -0,0 +1,123 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, errors and durations of the publishes to a destination or the deliveries of a queue.
+ * Every value is kept in striped {@link LongAdder}s, so concurrent records do not contend on a
+ * single counter. Durations are also counted in a histogram with a bucket for each power of two
+ * microseconds, to estimate percentiles.
+ *
+ * @see AmqpMessagingMetrics
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class AmqpTimerStats {
+  private static final int BUCKETS = 40;
+  private final String name;
+  private final String key;
+  private final LongAdder count = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder totalMicros = new LongAdder();
+  private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+  AmqpTimerStats(String name, String key) {
+    this.name = name;
+    this.key = key;
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  void record(long nanos, boolean error) {
+    final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    count.increment();
+    if (error) {
+      errors.increment();
+    }
+    totalMicros.add(micros);
+    maxMicros.accumulate(micros);
+    buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+  }
+
+  /**
+   * Gets the name of the metric, {@value AmqpMessagingMetrics#PUBLISH_METRIC_NAME} or {@value
+   * AmqpMessagingMetrics#PROCESS_METRIC_NAME}.
+   *
+   * @return Name of metric
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the destination of publishes, like {@code amqp://exchange/routingKey}, or the consumer
+   * queue of deliveries.
+   *
+   * @return Destination or queue
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  /**
+   * Gets the total duration.
+   *
+   * @param unit Unit of duration
+   * @return Total duration
+   */
+  public double getTotalTime(TimeUnit unit) {
+    return convert(totalMicros.sum(), unit);
+  }
+
+  /**
+   * Gets the longest duration.
+   *
+   * @param unit Unit of duration
+   * @return Longest duration
+   */
+  public double getMax(TimeUnit unit) {
+    return convert(maxMicros.get(), unit);
+  }
+
+  /**
+   * Estimates a percentile of durations from the histogram, as the upper bound of the bucket
+   * holding it, so the estimate is at most twice the actual value.
+   *
+   * @param percentile Percentile, between 0 and 1
+   * @param unit Unit of duration
+   * @return Estimated duration, or 0 if nothing was recorded
+   */
+  public double getPercentile(double percentile, TimeUnit unit) {
+    final long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+      total += counts[i];
+    }
+    final long rank = (long) Math.ceil(percentile * total);
+    long cumulative = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulative += counts[i];
+      if (counts[i] > 0 && cumulative >= rank) {
+        return convert(i == 0 ? 0 : (1L << i) - 1, unit);
+      }
+    }
+    return 0;
+  }
+
+  private double convert(long micros, TimeUnit unit) {
+    return micros * 1000.0 / unit.toNanos(1);
+  }
+}
@@ -0,0 +1,209 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.util.Assert;
+
+/**
+ * Accounts for the time and memory the instrumentation itself spends on each message. One in
+ * {@link #getSampleRate()} calls is timed with {@link System#nanoTime()} and its allocated bytes
+ * read from the {@link ThreadMXBean}, so the probes themselves cost close to nothing; totals are
+ * kept in striped {@link LongAdder}s and scaled back by the sample rate.
+ *
+ * <p>Stages nest: {@link Stage#SEND} and {@link Stage#RECEIVE} include the time of the {@link
+ * Stage#INJECT} and {@link Stage#EXTRACT} calls they make. The work of AMQP clients and listeners
+ * is left out of every stage.
+ *
+ * <p>Register it in JMX under {@value #OBJECT_NAME}, or expose it through Micrometer with {@link
+ * InstrumentationOverheadMeterBinder}.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class InstrumentationOverhead implements InstrumentationOverheadMXBean {
+  public static final String OBJECT_NAME =
+      "com.netshoes.springframework.cloud.sleuth.amqp:type=InstrumentationOverhead";
+  public static final int DEFAULT_SAMPLE_RATE = 100;
+  private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = getAllocationMXBean();
+  private final int sampleRate;
+  private final Map<Stage, StageStats> stats = new EnumMap<>(Stage.class);
+
+  /** Instrumented stages. */
+  public enum Stage {
+    /** Work of {@code AmqpTemplateAspect} around a send. */
+    SEND,
+    /** Work of the receiver aspects around a delivery. */
+    RECEIVE,
+    /** {@code AmqpMessagingSpanInjector#inject}. */
+    INJECT,
+    /** {@code AmqpMessagingSpanExtractor#joinTrace}. */
+    EXTRACT
+  }
+
+  /** Creates a new instance timing one in {@value #DEFAULT_SAMPLE_RATE} calls. */
+  public InstrumentationOverhead() {
+    this(DEFAULT_SAMPLE_RATE);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param sampleRate N, to time 1-in-N calls
+   */
+  public InstrumentationOverhead(int sampleRate) {
+    Assert.isTrue(sampleRate > 0, "sampleRate must be positive");
+    this.sampleRate = sampleRate;
+    for (Stage stage : Stage.values()) {
+      stats.put(stage, new StageStats());
+    }
+  }
+
+  /**
+   * Counts a message handled by a stage and starts timing its first segment, if sampled.
+   *
+   * @param stage Stage
+   * @return Probe to stop, or null if this call is not timed
+   */
+  public Probe startMessage(Stage stage) {
+    stats.get(stage).messages.increment();
+    return startSegment(stage);
+  }
+
+  /**
+   * Starts timing another segment of the work of a stage on a message, if sampled.
+   *
+   * @param stage Stage
+   * @return Probe to stop, or null if this call is not timed
+   */
+  public Probe startSegment(Stage stage) {
+    if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+      return null;
+    }
+    return new Probe(stats.get(stage));
+  }
+
+  @Override
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Gets the messages handled by a stage.
+   *
+   * @param stage Stage
+   * @return Messages
+   */
+  public long getMessages(Stage stage) {
+    return stats.get(stage).messages.sum();
+  }
+
+  /**
+   * Gets the estimated time spent by a stage per message.
+   *
+   * @param stage Stage
+   * @return Nanoseconds per message, or 0 if no message was handled
+   */
+  public double getNanosPerMessage(Stage stage) {
+    final StageStats stageStats = stats.get(stage);
+    return perMessage(stageStats.nanos.sum(), stageStats.messages.sum());
+  }
+
+  /**
+   * Gets the estimated memory allocated by a stage per message.
+   *
+   * @param stage Stage
+   * @return Bytes per message, or -1 if the JVM does not measure allocations
+   */
+  public double getBytesPerMessage(Stage stage) {
+    if (THREAD_MX_BEAN == null) {
+      return -1;
+    }
+    final StageStats stageStats = stats.get(stage);
+    return perMessage(stageStats.bytes.sum(), stageStats.messages.sum());
+  }
+
+  @Override
+  public Map<String, Long> getMessages() {
+    final Map<String, Long> messages = new LinkedHashMap<>();
+    for (Stage stage : Stage.values()) {
+      messages.put(stage.name(), getMessages(stage));
+    }
+    return messages;
+  }
+
+  @Override
+  public Map<String, Double> getNanosPerMessage() {
+    final Map<String, Double> nanos = new LinkedHashMap<>();
+    for (Stage stage : Stage.values()) {
+      nanos.put(stage.name(), getNanosPerMessage(stage));
+    }
+    return nanos;
+  }
+
+  @Override
+  public Map<String, Double> getBytesPerMessage() {
+    final Map<String, Double> bytes = new LinkedHashMap<>();
+    for (Stage stage : Stage.values()) {
+      bytes.put(stage.name(), getBytesPerMessage(stage));
+    }
+    return bytes;
+  }
+
+  private double perMessage(long sampledTotal, long messages) {
+    return messages > 0 ? (double) sampledTotal * sampleRate / messages : 0;
+  }
+
+  private static com.sun.management.ThreadMXBean getAllocationMXBean() {
+    try {
+      final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+      if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+        final com.sun.management.ThreadMXBean allocationMXBean =
+            (com.sun.management.ThreadMXBean) threadMXBean;
+        if (allocationMXBean.isThreadAllocatedMemorySupported()
+            && allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+          return allocationMXBean;
+        }
+      }
+    } catch (LinkageError e) {
+      // com.sun.management is not available in this JVM
+    }
+    return null;
+  }
+
+  private static long currentThreadAllocatedBytes() {
+    return THREAD_MX_BEAN != null
+        ? THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId())
+        : 0;
+  }
+
+  /** Timing of a segment of work, started by a sampled call. */
+  public static final class Probe {
+    private final StageStats stageStats;
+    private final long startBytes;
+    private final long startNanos;
+
+    private Probe(StageStats stageStats) {
+      this.stageStats = stageStats;
+      this.startBytes = currentThreadAllocatedBytes();
+      this.startNanos = System.nanoTime();
+    }
+
+    /** Stops timing and adds the time and memory of the segment to its stage. */
+    public void stop() {
+      final long nanos = System.nanoTime() - startNanos;
+      stageStats.nanos.add(nanos);
+      stageStats.bytes.add(currentThreadAllocatedBytes() - startBytes);
+    }
+  }
+
+  private static class StageStats {
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+  }
+}
@@ -0,0 +1,40 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link InstrumentationOverhead}. Maps are keyed by the name of each
+ * {@link InstrumentationOverhead.Stage}.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public interface InstrumentationOverheadMXBean {
+  /**
+   * Gets how many calls out of each are timed.
+   *
+   * @return N, for 1-in-N calls
+   */
+  int getSampleRate();
+
+  /**
+   * Gets the messages handled by each stage.
+   *
+   * @return Messages per stage
+   */
+  Map<String, Long> getMessages();
+
+  /**
+   * Gets the estimated time spent by each stage per message.
+   *
+   * @return Nanoseconds per message per stage
+   */
+  Map<String, Double> getNanosPerMessage();
+
+  /**
+   * Gets the estimated memory allocated by each stage per message.
+   *
+   * @return Bytes per message per stage, or -1 if the JVM does not measure allocations
+   */
+  Map<String, Double> getBytesPerMessage();
+}
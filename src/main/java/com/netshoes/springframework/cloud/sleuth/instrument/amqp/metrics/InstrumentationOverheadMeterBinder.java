@@ -0,0 +1,46 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Exposes {@link InstrumentationOverhead} through Micrometer, as the gauges {@value
+ * #NANOS_METRIC_NAME} and {@value #BYTES_METRIC_NAME} tagged with the {@value #STAGE_TAG}.
+ *
+ * <p>Requires {@code io.micrometer:micrometer-core} in the classpath.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class InstrumentationOverheadMeterBinder implements MeterBinder {
+  public static final String NANOS_METRIC_NAME = "amqp.instrumentation.overhead.nanos";
+  public static final String BYTES_METRIC_NAME = "amqp.instrumentation.overhead.bytes";
+  public static final String STAGE_TAG = "stage";
+  private final InstrumentationOverhead overhead;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param overhead Overhead of the instrumentation
+   */
+  public InstrumentationOverheadMeterBinder(InstrumentationOverhead overhead) {
+    this.overhead = overhead;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    for (InstrumentationOverhead.Stage stage : InstrumentationOverhead.Stage.values()) {
+      final String tag = stage.name().toLowerCase();
+      Gauge.builder(NANOS_METRIC_NAME, overhead, o -> o.getNanosPerMessage(stage))
+          .description("Time spent by the instrumentation per message")
+          .tag(STAGE_TAG, tag)
+          .register(registry);
+      Gauge.builder(BYTES_METRIC_NAME, overhead, o -> o.getBytesPerMessage(stage))
+          .description("Memory allocated by the instrumentation per message")
+          .tag(STAGE_TAG, tag)
+          .baseUnit("bytes")
+          .register(registry);
+    }
+  }
+}
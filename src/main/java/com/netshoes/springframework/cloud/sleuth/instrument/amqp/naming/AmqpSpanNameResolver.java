@@ -0,0 +1,274 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.util.Assert;
+
+/**
+ * Resolves span names like {@code amqp://exchange/routingKey} for a pair of exchange and routing
+ * key. Routing keys are normalized by {@link RoutingKeyNormalizationRule}s and the number of
+ * distinct names is capped: once the cap is reached, new names are replaced by a fallback name.
+ * This class is thread safe.
+ *
+ * <p>Resolved names are kept in a bounded cache keyed by exchange and normalized routing key, so
+ * routing keys left as is by the rules resolve without allocating, and routing keys rewritten by a
+ * rule, like keys carrying IDs, only pay for the normalization. When the cache is full, the oldest
+ * entries are evicted first. Normalized routing keys are expected to normalize to themselves.
+ *
+ * @see RoutingKeyNormalizationRule
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class AmqpSpanNameResolver {
+  public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+  public static final int DEFAULT_MAX_SPAN_NAMES = 1000;
+  public static final String DEFAULT_FALLBACK_SPAN_NAME = "amqp://other";
+  private static final String UNKNOWN_EXCHANGE = "unknown-exchange";
+  private static final String ANY_ROUTING_KEY = "*";
+  private static final String SPAN_NAME_PREFIX = "amqp://";
+
+  private final ConcurrentMap<String, ConcurrentMap<String, String>> cache =
+      new ConcurrentHashMap<>();
+  private final Set<String> spanNames = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private final AtomicInteger spanNameCount = new AtomicInteger();
+  private final Queue<CacheEntry> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger cacheSize = new AtomicInteger();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder overflows = new LongAdder();
+  private final List<RoutingKeyNormalizationRule> rules;
+  private final int maxCacheSize;
+  private final int maxSpanNames;
+  private final String fallbackSpanName;
+
+  /** Creates a new instance without normalization rules and with default limits. */
+  public AmqpSpanNameResolver() {
+    this(Collections.emptyList());
+  }
+
+  /**
+   * Creates a new instance with default limits.
+   *
+   * @param rules Normalization rules, applied in order until one of them matches
+   */
+  public AmqpSpanNameResolver(List<RoutingKeyNormalizationRule> rules) {
+    this(rules, DEFAULT_MAX_CACHE_SIZE, DEFAULT_MAX_SPAN_NAMES, DEFAULT_FALLBACK_SPAN_NAME);
+  }
+
+  /**
+   * Creates a new instance.
+   *
+   * @param rules Normalization rules, applied in order until one of them matches
+   * @param maxCacheSize Maximum number of (exchange, normalized routing key) pairs kept in cache
+   * @param maxSpanNames Maximum number of distinct span names
+   * @param fallbackSpanName Name used when the maximum number of distinct span names is reached
+   */
+  public AmqpSpanNameResolver(
+      List<RoutingKeyNormalizationRule> rules,
+      int maxCacheSize,
+      int maxSpanNames,
+      String fallbackSpanName) {
+    Assert.notNull(rules, "rules must not be null");
+    Assert.isTrue(maxCacheSize > 0, "maxCacheSize must be greater than zero");
+    Assert.isTrue(maxSpanNames > 0, "maxSpanNames must be greater than zero");
+    Assert.hasText(fallbackSpanName, "fallbackSpanName must not be empty");
+    this.rules = new ArrayList<>(rules);
+    this.maxCacheSize = maxCacheSize;
+    this.maxSpanNames = maxSpanNames;
+    this.fallbackSpanName = fallbackSpanName;
+  }
+
+  /**
+   * Resolves the span name.
+   *
+   * @param exchange Exchange, may be null
+   * @param routingKey Routing key, may be null
+   * @return Span name
+   */
+  public String resolve(String exchange, String routingKey) {
+    final String exchangeKey = exchange != null ? exchange : UNKNOWN_EXCHANGE;
+    final String routingKeyKey = routingKey != null ? routingKey : ANY_ROUTING_KEY;
+    ConcurrentMap<String, String> names = cache.get(exchangeKey);
+    if (names != null) {
+      final String name = names.get(routingKeyKey);
+      if (name != null) {
+        hits.increment();
+        return name;
+      }
+    }
+    final String normalizedKey = normalize(routingKeyKey);
+    if (names != null && normalizedKey != routingKeyKey) {
+      final String name = names.get(normalizedKey);
+      if (name != null) {
+        hits.increment();
+        return name;
+      }
+    }
+    misses.increment();
+    final String name = limit(buildSpanName(exchangeKey, normalizedKey));
+    if (names == null) {
+      names = cache.computeIfAbsent(exchangeKey, key -> new ConcurrentHashMap<>());
+    }
+    put(exchangeKey, names, normalizedKey, name);
+    return name;
+  }
+
+  private String normalize(String routingKey) {
+    for (RoutingKeyNormalizationRule rule : rules) {
+      final String normalized = rule.normalize(routingKey);
+      if (normalized != null) {
+        return normalized;
+      }
+    }
+    return routingKey;
+  }
+
+  private String limit(String name) {
+    if (spanNames.contains(name)) {
+      return name;
+    }
+    int count;
+    do {
+      count = spanNameCount.get();
+      if (count >= maxSpanNames) {
+        overflows.increment();
+        return fallbackSpanName;
+      }
+    } while (!spanNameCount.compareAndSet(count, count + 1));
+    if (!spanNames.add(name)) {
+      // Added by a concurrent resolution
+      spanNameCount.decrementAndGet();
+    }
+    return name;
+  }
+
+  /**
+   * Caches a span name. A slot is reserved before the name is added, evicting the oldest entries
+   * if needed, so the cache never holds more than its maximum size. The name is not cached if no
+   * entry can be evicted, because every slot is reserved by a concurrent resolution.
+   */
+  private void put(
+      String exchange, ConcurrentMap<String, String> names, String routingKey, String name) {
+    while (!reserveSlot()) {
+      if (!evictOldest()) {
+        return;
+      }
+    }
+    if (names.putIfAbsent(routingKey, name) == null) {
+      insertionOrder.add(new CacheEntry(exchange, names, routingKey));
+    } else {
+      cacheSize.decrementAndGet();
+    }
+  }
+
+  private boolean reserveSlot() {
+    int size;
+    do {
+      size = cacheSize.get();
+      if (size >= maxCacheSize) {
+        return false;
+      }
+    } while (!cacheSize.compareAndSet(size, size + 1));
+    return true;
+  }
+
+  private boolean evictOldest() {
+    final CacheEntry entry = insertionOrder.poll();
+    if (entry == null) {
+      return false;
+    }
+    entry.names.remove(entry.routingKey);
+    cacheSize.decrementAndGet();
+    evictions.increment();
+    if (entry.names.isEmpty()) {
+      cache.remove(entry.exchange, entry.names);
+    }
+    return true;
+  }
+
+  private String buildSpanName(String exchange, String routingKey) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(SPAN_NAME_PREFIX);
+    sb.append(exchange);
+    sb.append("/");
+    sb.append(routingKey);
+    return sb.toString();
+  }
+
+  /**
+   * Number of resolutions served from cache.
+   *
+   * @return Number of cache hits
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Number of resolutions that had to build a span name.
+   *
+   * @return Number of cache misses
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Number of entries removed from cache because it was full.
+   *
+   * @return Number of evictions
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * Number of entries in cache.
+   *
+   * @return Size of the cache
+   */
+  public int getCacheSize() {
+    return cacheSize.get();
+  }
+
+  /**
+   * Number of resolutions that returned the fallback span name because the maximum number of
+   * distinct span names was reached.
+   *
+   * @return Number of overflows
+   */
+  public long getOverflows() {
+    return overflows.sum();
+  }
+
+  /**
+   * Number of distinct span names resolved so far.
+   *
+   * @return Number of distinct span names
+   */
+  public int getSpanNameCount() {
+    return spanNames.size();
+  }
+
+  /** Entry of the cache, in insertion order. */
+  private static class CacheEntry {
+    private final String exchange;
+    private final ConcurrentMap<String, String> names;
+    private final String routingKey;
+
+    private CacheEntry(String exchange, ConcurrentMap<String, String> names, String routingKey) {
+      this.exchange = exchange;
+      this.names = names;
+      this.routingKey = routingKey;
+    }
+  }
+}
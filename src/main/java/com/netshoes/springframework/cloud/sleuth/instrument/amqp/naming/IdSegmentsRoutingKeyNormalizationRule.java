@@ -0,0 +1,56 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming;
+
+/**
+ * Rule that replaces identifier-like words of a routing key with {@code {id}}.
+ *
+ * @see RoutingKeyNormalizationRule#idSegments()
+ * @author André Ignacio
+ * @since 0.11
+ */
+class IdSegmentsRoutingKeyNormalizationRule implements RoutingKeyNormalizationRule {
+  private static final String PLACEHOLDER = "{id}";
+  private static final int MIN_HEX_LENGTH = 8;
+
+  @Override
+  public String normalize(String routingKey) {
+    StringBuilder sb = null;
+    int start = 0;
+    final int length = routingKey.length();
+    for (int i = 0; i <= length; i++) {
+      if (i == length || routingKey.charAt(i) == '.') {
+        if (isId(routingKey, start, i)) {
+          if (sb == null) {
+            sb = new StringBuilder(length);
+            sb.append(routingKey, 0, start);
+          }
+          sb.append(PLACEHOLDER);
+        } else if (sb != null) {
+          sb.append(routingKey, start, i);
+        }
+        if (sb != null && i < length) {
+          sb.append('.');
+        }
+        start = i + 1;
+      }
+    }
+    return sb != null ? sb.toString() : null;
+  }
+
+  private boolean isId(String value, int start, int end) {
+    if (start == end) {
+      return false;
+    }
+    boolean allDigits = true;
+    boolean anyDigit = false;
+    boolean allHexOrDash = true;
+    for (int i = start; i < end; i++) {
+      final char c = value.charAt(i);
+      final boolean digit = c >= '0' && c <= '9';
+      final boolean hex = digit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+      anyDigit |= digit;
+      allDigits &= digit;
+      allHexOrDash &= hex || c == '-';
+    }
+    return allDigits || (allHexOrDash && anyDigit && end - start >= MIN_HEX_LENGTH);
+  }
+}
@@ -0,0 +1,86 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.springframework.util.Assert;
+
+/**
+ * Rule that collapses the variable parts of a routing key, like entity IDs, so that the span names
+ * built by {@link AmqpSpanNameResolver} keep a low cardinality.
+ *
+ * @see AmqpSpanNameResolver
+ * @author André Ignacio
+ * @since 0.11
+ */
+public interface RoutingKeyNormalizationRule {
+  /**
+   * Normalizes a routing key.
+   *
+   * @param routingKey Routing key, never null
+   * @return Normalized routing key or null if this rule does not apply
+   */
+  String normalize(String routingKey);
+
+  /**
+   * Creates a rule that replaces every match of a regular expression.
+   *
+   * @param regex Regular expression
+   * @param replacement Replacement, as in {@link Matcher#replaceAll(String)}
+   * @return A new rule
+   */
+  static RoutingKeyNormalizationRule regex(String regex, String replacement) {
+    Assert.hasText(regex, "regex must not be empty");
+    Assert.notNull(replacement, "replacement must not be null");
+    final Pattern pattern = Pattern.compile(regex);
+    return routingKey -> {
+      final Matcher matcher = pattern.matcher(routingKey);
+      return matcher.find() ? matcher.replaceAll(replacement) : null;
+    };
+  }
+
+  /**
+   * Creates a rule from a template like {@code order.*.{id}}. Each segment of the template is
+   * matched against a dot separated word of the routing key: {@code *} and {@code {name}} match any
+   * word, {@code #} matches zero or more words and any other segment must be equal. A matching
+   * routing key is normalized to the template itself.
+   *
+   * @param template Template
+   * @return A new rule
+   */
+  static RoutingKeyNormalizationRule template(String template) {
+    Assert.hasText(template, "template must not be empty");
+    final StringBuilder regex = new StringBuilder();
+    final String[] segments = template.split("\\.", -1);
+    for (int i = 0; i < segments.length; i++) {
+      final String segment = segments[i];
+      if ("#".equals(segment)) {
+        if (i > 0) {
+          regex.append("(\\..*)?");
+        } else {
+          regex.append(segments.length == 1 ? ".*" : "(.*\\.)?");
+        }
+        continue;
+      }
+      if (i > 1 || (i == 1 && !"#".equals(segments[0]))) {
+        regex.append("\\.");
+      }
+      if ("*".equals(segment) || (segment.startsWith("{") && segment.endsWith("}"))) {
+        regex.append("[^.]+");
+      } else {
+        regex.append(Pattern.quote(segment));
+      }
+    }
+    final Pattern pattern = Pattern.compile(regex.toString());
+    return routingKey -> pattern.matcher(routingKey).matches() ? template : null;
+  }
+
+  /**
+   * Creates a rule that replaces every word of the routing key that looks like an identifier
+   * (numbers, UUIDs and hexadecimal values with at least eight digits) with {@code {id}}.
+   *
+   * @return A new rule
+   */
+  static RoutingKeyNormalizationRule idSegments() {
+    return new IdSegmentsRoutingKeyNormalizationRule();
+  }
+}
@@ -0,0 +1,80 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.Map;
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * Format used to propagate a {@link Span} in AMQP message headers. Producers write one format,
+ * consumers may accept several of them.
+ *
+ * @see MultiHeaderPropagationFormat
+ * @see B3SinglePropagationFormat
+ * @see W3cTraceContextPropagationFormat
+ * @author André Ignacio
+ * @since 0.11
+ */
+public interface AmqpPropagationFormat {
+  /**
+   * Writes the headers of a span.
+   *
+   * @param span Span
+   * @param accessor Accessor of message headers
+   */
+  void inject(Span span, AmqpMessageHeaderAccessor accessor);
+
+  /**
+   * Writes the headers telling consumers that the trace is not sampled, unless the message already
+   * carries a sampling decision.
+   *
+   * @param accessor Accessor of message headers
+   */
+  void injectNotSampled(AmqpMessageHeaderAccessor accessor);
+
+  /**
+   * Reads a span from headers. Implementations probe a single header to detect whether the message
+   * uses this format.
+   *
+   * @param headers Message headers
+   * @return Remote span, or null if the message does not use this format
+   */
+  Span extract(Map<String, Object> headers);
+
+  /**
+   * Writes the headers of an unsampled trace context. By default only the not sampled flag is
+   * written, formats propagating IDs write them without building a {@link Span}.
+   *
+   * @param context Unsampled context
+   * @param accessor Accessor of message headers
+   */
+  default void injectUnsampled(UnsampledContext context, AmqpMessageHeaderAccessor accessor) {
+    injectNotSampled(accessor);
+  }
+
+  /**
+   * Reads the context of a message that is explicitly not sampled. Unlike {@link #extract(Map)},
+   * implementations should not build a {@link Span}; by default the span is extracted and
+   * discarded.
+   *
+   * @param headers Message headers
+   * @return Unsampled context, or null if the message does not use this format or is not marked as
+   *     not sampled
+   */
+  default UnsampledContext extractUnsampled(Map<String, Object> headers) {
+    final Span span = extract(headers);
+    return span != null && !span.isExportable() ? UnsampledContext.of(span) : null;
+  }
+
+  /**
+   * Reads the IDs of the trace context of a message, whatever its sampling decision. Unlike {@link
+   * #extract(Map)}, implementations should not build a {@link Span}; by default the span is
+   * extracted and discarded.
+   *
+   * @param headers Message headers
+   * @return IDs of the trace context, or null if the message does not use this format
+   */
+  default UnsampledContext extractIds(Map<String, Object> headers) {
+    final Span span = extract(headers);
+    return span != null ? UnsampledContext.of(span) : null;
+  }
+}
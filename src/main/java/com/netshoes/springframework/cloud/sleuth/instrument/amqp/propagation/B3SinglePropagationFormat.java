@@ -0,0 +1,146 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.List;
+import java.util.Map;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Span.SpanBuilder;
+
+/**
+ * Format that writes a span in the single {@code b3} header: {@code
+ * traceId-spanId-sampled-parentSpanId}, where sampled and parent span ID are optional. A header
+ * holding only the sampled flag tells that the trace is not sampled. Span name and process ID are
+ * not propagated.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class B3SinglePropagationFormat implements AmqpPropagationFormat {
+  public static final String B3_HEADER = "b3";
+  private static final char SEPARATOR = '-';
+  private static final char SAMPLED = '1';
+  private static final char NOT_SAMPLED = '0';
+  private static final char DEBUG = 'd';
+
+  @Override
+  public void inject(Span span, AmqpMessageHeaderAccessor accessor) {
+    final StringBuilder sb = new StringBuilder(68);
+    sb.append(span.traceIdString());
+    sb.append(SEPARATOR);
+    sb.append(Span.idToHex(span.getSpanId()));
+    sb.append(SEPARATOR);
+    sb.append(span.isExportable() ? Span.SPAN_SAMPLED : Span.SPAN_NOT_SAMPLED);
+    final List<Long> parents = span.getParents();
+    if (!parents.isEmpty()) {
+      sb.append(SEPARATOR);
+      sb.append(Span.idToHex(parents.get(0)));
+    }
+    accessor.setHeader(B3_HEADER, sb.toString());
+  }
+
+  @Override
+  public void injectNotSampled(AmqpMessageHeaderAccessor accessor) {
+    if (!accessor.hasHeader(B3_HEADER)) {
+      accessor.setHeader(B3_HEADER, Span.SPAN_NOT_SAMPLED);
+    }
+  }
+
+  @Override
+  public void injectUnsampled(UnsampledContext context, AmqpMessageHeaderAccessor accessor) {
+    if (!context.hasIds()) {
+      injectNotSampled(accessor);
+      return;
+    }
+    final StringBuilder sb = new StringBuilder(51);
+    sb.append(context.traceIdString());
+    sb.append(SEPARATOR);
+    sb.append(Span.idToHex(context.getSpanId()));
+    sb.append(SEPARATOR);
+    sb.append(Span.SPAN_NOT_SAMPLED);
+    accessor.setHeader(B3_HEADER, sb.toString());
+  }
+
+  @Override
+  public UnsampledContext extractUnsampled(Map<String, Object> headers) {
+    final Object value = headers.get(B3_HEADER);
+    if (!(value instanceof String)) {
+      return null;
+    }
+    final String b3 = (String) value;
+    if (Span.SPAN_NOT_SAMPLED.equals(b3)) {
+      return UnsampledContext.WITHOUT_IDS;
+    }
+    final int traceIdEnd = b3.indexOf(SEPARATOR);
+    if (traceIdEnd != 16 && traceIdEnd != 32) {
+      return null;
+    }
+    final int spanIdEnd = indexOfOrLength(b3, traceIdEnd + 1);
+    if (spanIdEnd - traceIdEnd - 1 != 16
+        || indexOfOrLength(b3, spanIdEnd + 1) - spanIdEnd != 2
+        || b3.charAt(spanIdEnd + 1) != NOT_SAMPLED) {
+      return null;
+    }
+    return new UnsampledContext(
+        traceIdEnd == 32 ? HexIds.parse(b3, 0, 16) : 0,
+        HexIds.parse(b3, traceIdEnd - 16, traceIdEnd),
+        HexIds.parse(b3, traceIdEnd + 1, spanIdEnd));
+  }
+
+  @Override
+  public UnsampledContext extractIds(Map<String, Object> headers) {
+    final Object value = headers.get(B3_HEADER);
+    if (!(value instanceof String)) {
+      return null;
+    }
+    final String b3 = (String) value;
+    final int traceIdEnd = b3.indexOf(SEPARATOR);
+    if (traceIdEnd != 16 && traceIdEnd != 32) {
+      return null;
+    }
+    final int spanIdEnd = indexOfOrLength(b3, traceIdEnd + 1);
+    if (spanIdEnd - traceIdEnd - 1 != 16) {
+      return null;
+    }
+    return new UnsampledContext(
+        traceIdEnd == 32 ? HexIds.parse(b3, 0, 16) : 0,
+        HexIds.parse(b3, traceIdEnd - 16, traceIdEnd),
+        HexIds.parse(b3, traceIdEnd + 1, spanIdEnd));
+  }
+
+  @Override
+  public Span extract(Map<String, Object> headers) {
+    final Object value = headers.get(B3_HEADER);
+    if (!(value instanceof String)) {
+      return null;
+    }
+    final String b3 = (String) value;
+    final int traceIdEnd = b3.indexOf(SEPARATOR);
+    if (traceIdEnd != 16 && traceIdEnd != 32) {
+      return null;
+    }
+    final int spanIdEnd = indexOfOrLength(b3, traceIdEnd + 1);
+    if (spanIdEnd - traceIdEnd - 1 != 16) {
+      return null;
+    }
+    final SpanBuilder spanBuilder = Span.builder().remote(true);
+    spanBuilder.traceIdHigh(traceIdEnd == 32 ? HexIds.parse(b3, 0, 16) : 0);
+    spanBuilder.traceId(HexIds.parse(b3, traceIdEnd - 16, traceIdEnd));
+    spanBuilder.spanId(HexIds.parse(b3, traceIdEnd + 1, spanIdEnd));
+    if (spanIdEnd < b3.length()) {
+      final int sampledEnd = indexOfOrLength(b3, spanIdEnd + 1);
+      final boolean sampled =
+          sampledEnd - spanIdEnd == 2
+              && (b3.charAt(spanIdEnd + 1) == SAMPLED || b3.charAt(spanIdEnd + 1) == DEBUG);
+      spanBuilder.exportable(sampled);
+      if (b3.length() - sampledEnd - 1 == 16) {
+        spanBuilder.parent(HexIds.parse(b3, sampledEnd + 1, b3.length()));
+      }
+    }
+    return spanBuilder.build();
+  }
+
+  private int indexOfOrLength(String value, int fromIndex) {
+    final int index = value.indexOf(SEPARATOR, fromIndex);
+    return index >= 0 ? index : value.length();
+  }
+}
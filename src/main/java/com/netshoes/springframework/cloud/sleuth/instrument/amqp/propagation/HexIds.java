@@ -0,0 +1,65 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation;
+
+/**
+ * Parses hex encoded IDs straight from the characters of a String, without substrings.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+final class HexIds {
+  private HexIds() {}
+
+  /**
+   * Parses the low 64 bits of a hex ID of up to 32 characters.
+   *
+   * @param hex Hex ID
+   * @return ID
+   */
+  static long lowBits(String hex) {
+    final int length = hex.length();
+    if (length > 32) {
+      throw new IllegalArgumentException("Malformed id: " + hex);
+    }
+    return parse(hex, length > 16 ? length - 16 : 0, length);
+  }
+
+  /**
+   * Parses the high 64 bits of a 128-bit hex ID.
+   *
+   * @param hex Hex ID
+   * @return High bits of ID, or zero if the ID has 64 bits
+   */
+  static long highBits(String hex) {
+    return hex.length() == 32 ? parse(hex, 0, 16) : 0;
+  }
+
+  /**
+   * Parses a range of characters as an unsigned hex number.
+   *
+   * @param hex String holding the hex number
+   * @param start Index of first character, inclusive
+   * @param end Index of last character, exclusive
+   * @return Number
+   */
+  static long parse(String hex, int start, int end) {
+    if (end <= start || end - start > 16 || end > hex.length()) {
+      throw new IllegalArgumentException("Malformed id: " + hex);
+    }
+    long result = 0;
+    for (int i = start; i < end; i++) {
+      final char c = hex.charAt(i);
+      final int digit;
+      if (c >= '0' && c <= '9') {
+        digit = c - '0';
+      } else if (c >= 'a' && c <= 'f') {
+        digit = c - 'a' + 10;
+      } else if (c >= 'A' && c <= 'F') {
+        digit = c - 'A' + 10;
+      } else {
+        throw new IllegalArgumentException("Malformed id: " + hex);
+      }
+      result = (result << 4) | digit;
+    }
+    return result;
+  }
+}
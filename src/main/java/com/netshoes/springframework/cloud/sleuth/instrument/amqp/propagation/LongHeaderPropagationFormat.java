@@ -0,0 +1,123 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.List;
+import java.util.Map;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Span.SpanBuilder;
+
+/**
+ * Format that writes IDs as 64-bit integer field values instead of hex strings, so neither
+ * producers nor consumers convert IDs to or from text. Trace ID high and low bits, span ID, parent
+ * ID and sampled flag are propagated; span name and process ID are not.
+ *
+ * <p>Consumers that also receive messages from producers writing hex headers should accept this
+ * format followed by a {@link MultiHeaderPropagationFormat}.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class LongHeaderPropagationFormat implements AmqpPropagationFormat {
+  public static final String TRACE_ID_HIGH_HEADER = "x-trace-id-high";
+  public static final String TRACE_ID_HEADER = "x-trace-id";
+  public static final String SPAN_ID_HEADER = "x-span-id";
+  public static final String PARENT_ID_HEADER = "x-parent-span-id";
+  public static final String SAMPLED_HEADER = "x-sampled";
+  private static final Long SAMPLED = 1L;
+  private static final Long NOT_SAMPLED = 0L;
+
+  @Override
+  public void inject(Span span, AmqpMessageHeaderAccessor accessor) {
+    if (span.getTraceIdHigh() != 0) {
+      accessor.setHeader(TRACE_ID_HIGH_HEADER, span.getTraceIdHigh());
+    }
+    accessor.setHeader(TRACE_ID_HEADER, span.getTraceId());
+    accessor.setHeader(SPAN_ID_HEADER, span.getSpanId());
+    final List<Long> parents = span.getParents();
+    if (!parents.isEmpty()) {
+      accessor.setHeader(PARENT_ID_HEADER, parents.get(0));
+    }
+    accessor.setHeader(SAMPLED_HEADER, span.isExportable() ? SAMPLED : NOT_SAMPLED);
+  }
+
+  @Override
+  public void injectNotSampled(AmqpMessageHeaderAccessor accessor) {
+    if (!SAMPLED.equals(accessor.getHeader(SAMPLED_HEADER))) {
+      accessor.setHeader(SAMPLED_HEADER, NOT_SAMPLED);
+    }
+  }
+
+  @Override
+  public void injectUnsampled(UnsampledContext context, AmqpMessageHeaderAccessor accessor) {
+    if (!context.hasIds()) {
+      injectNotSampled(accessor);
+      return;
+    }
+    if (context.getTraceIdHigh() != 0) {
+      accessor.setHeader(TRACE_ID_HIGH_HEADER, context.getTraceIdHigh());
+    }
+    accessor.setHeader(TRACE_ID_HEADER, context.getTraceId());
+    accessor.setHeader(SPAN_ID_HEADER, context.getSpanId());
+    accessor.setHeader(SAMPLED_HEADER, NOT_SAMPLED);
+  }
+
+  @Override
+  public UnsampledContext extractUnsampled(Map<String, Object> headers) {
+    final Object sampled = headers.get(SAMPLED_HEADER);
+    if (!(sampled instanceof Number) || ((Number) sampled).longValue() != 0L) {
+      return null;
+    }
+    final Object traceId = headers.get(TRACE_ID_HEADER);
+    final Object spanId = headers.get(SPAN_ID_HEADER);
+    if (!(traceId instanceof Number) || !(spanId instanceof Number)) {
+      return UnsampledContext.WITHOUT_IDS;
+    }
+    final Object traceIdHigh = headers.get(TRACE_ID_HIGH_HEADER);
+    return new UnsampledContext(
+        traceIdHigh instanceof Number ? ((Number) traceIdHigh).longValue() : 0,
+        ((Number) traceId).longValue(),
+        ((Number) spanId).longValue());
+  }
+
+  @Override
+  public UnsampledContext extractIds(Map<String, Object> headers) {
+    final Object traceId = headers.get(TRACE_ID_HEADER);
+    final Object spanId = headers.get(SPAN_ID_HEADER);
+    if (!(traceId instanceof Number) || !(spanId instanceof Number)) {
+      return null;
+    }
+    final Object traceIdHigh = headers.get(TRACE_ID_HIGH_HEADER);
+    return new UnsampledContext(
+        traceIdHigh instanceof Number ? ((Number) traceIdHigh).longValue() : 0,
+        ((Number) traceId).longValue(),
+        ((Number) spanId).longValue());
+  }
+
+  @Override
+  public Span extract(Map<String, Object> headers) {
+    final Object traceId = headers.get(TRACE_ID_HEADER);
+    if (!(traceId instanceof Number)) {
+      return null;
+    }
+    final Object spanId = headers.get(SPAN_ID_HEADER);
+    if (!(spanId instanceof Number)) {
+      return null;
+    }
+    final SpanBuilder spanBuilder = Span.builder().remote(true);
+    final Object traceIdHigh = headers.get(TRACE_ID_HIGH_HEADER);
+    if (traceIdHigh instanceof Number) {
+      spanBuilder.traceIdHigh(((Number) traceIdHigh).longValue());
+    }
+    spanBuilder.traceId(((Number) traceId).longValue());
+    spanBuilder.spanId(((Number) spanId).longValue());
+    final Object parentId = headers.get(PARENT_ID_HEADER);
+    if (parentId instanceof Number) {
+      spanBuilder.parent(((Number) parentId).longValue());
+    }
+    final Object sampled = headers.get(SAMPLED_HEADER);
+    if (sampled instanceof Number) {
+      spanBuilder.exportable(((Number) sampled).longValue() == 1L);
+    }
+    return spanBuilder.build();
+  }
+}
@@ -0,0 +1,186 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.List;
+import java.util.Map;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Span.SpanBuilder;
+import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
+import org.springframework.util.StringUtils;
+
+/**
+ * Format that writes one header for each attribute of a span: trace ID, span ID, parent ID, span
+ * name, process ID and sampled flag. IDs are hex encoded.
+ *
+ * <p>Extraction looks each header up once and parses IDs straight from the header values.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class MultiHeaderPropagationFormat implements AmqpPropagationFormat {
+  private final String traceIdHeader;
+  private final String spanIdHeader;
+  private final String parentIdHeader;
+  private final String spanNameHeader;
+  private final String processIdHeader;
+  private final String sampledHeader;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param traceIdHeader Name of trace ID header
+   * @param spanIdHeader Name of span ID header
+   * @param parentIdHeader Name of parent ID header
+   * @param spanNameHeader Name of span name header
+   * @param processIdHeader Name of process ID header
+   * @param sampledHeader Name of sampled header
+   */
+  public MultiHeaderPropagationFormat(
+      String traceIdHeader,
+      String spanIdHeader,
+      String parentIdHeader,
+      String spanNameHeader,
+      String processIdHeader,
+      String sampledHeader) {
+    this.traceIdHeader = traceIdHeader;
+    this.spanIdHeader = spanIdHeader;
+    this.parentIdHeader = parentIdHeader;
+    this.spanNameHeader = spanNameHeader;
+    this.processIdHeader = processIdHeader;
+    this.sampledHeader = sampledHeader;
+  }
+
+  /**
+   * Format using the header names of {@link TraceMessageHeaders}, written by default.
+   *
+   * @return A new format
+   */
+  public static MultiHeaderPropagationFormat messagingHeaders() {
+    return new MultiHeaderPropagationFormat(
+        TraceMessageHeaders.TRACE_ID_NAME,
+        TraceMessageHeaders.SPAN_ID_NAME,
+        TraceMessageHeaders.PARENT_ID_NAME,
+        TraceMessageHeaders.SPAN_NAME_NAME,
+        TraceMessageHeaders.PROCESS_ID_NAME,
+        TraceMessageHeaders.SAMPLED_NAME);
+  }
+
+  /**
+   * Format using the B3 header names of {@link Span}, like {@code X-B3-TraceId}.
+   *
+   * @return A new format
+   */
+  public static MultiHeaderPropagationFormat b3Headers() {
+    return new MultiHeaderPropagationFormat(
+        Span.TRACE_ID_NAME,
+        Span.SPAN_ID_NAME,
+        Span.PARENT_ID_NAME,
+        Span.SPAN_NAME_NAME,
+        Span.PROCESS_ID_NAME,
+        Span.SAMPLED_NAME);
+  }
+
+  @Override
+  public void inject(Span span, AmqpMessageHeaderAccessor accessor) {
+    addHeader(traceIdHeader, span.traceIdString(), accessor);
+    addHeader(spanIdHeader, Span.idToHex(span.getSpanId()), accessor);
+    if (span.isExportable()) {
+      final List<Long> parents = span.getParents();
+      if (!parents.isEmpty()) {
+        addHeader(parentIdHeader, Span.idToHex(parents.get(0)), accessor);
+      }
+      addHeader(spanNameHeader, span.getName(), accessor);
+      addHeader(processIdHeader, span.getProcessId(), accessor);
+      addHeader(sampledHeader, Span.SPAN_SAMPLED, accessor);
+    } else {
+      addHeader(sampledHeader, Span.SPAN_NOT_SAMPLED, accessor);
+    }
+  }
+
+  @Override
+  public void injectNotSampled(AmqpMessageHeaderAccessor accessor) {
+    if (!Span.SPAN_SAMPLED.equals(accessor.getHeader(sampledHeader))) {
+      accessor.setHeader(sampledHeader, Span.SPAN_NOT_SAMPLED);
+    }
+  }
+
+  @Override
+  public void injectUnsampled(UnsampledContext context, AmqpMessageHeaderAccessor accessor) {
+    if (!context.hasIds()) {
+      injectNotSampled(accessor);
+      return;
+    }
+    accessor.setHeader(traceIdHeader, context.traceIdString());
+    accessor.setHeader(spanIdHeader, Span.idToHex(context.getSpanId()));
+    accessor.setHeader(sampledHeader, Span.SPAN_NOT_SAMPLED);
+  }
+
+  @Override
+  public UnsampledContext extractUnsampled(Map<String, Object> headers) {
+    if (!Span.SPAN_NOT_SAMPLED.equals(headers.get(sampledHeader))) {
+      return null;
+    }
+    final String traceId = stringHeader(headers, traceIdHeader);
+    final String spanId = stringHeader(headers, spanIdHeader);
+    if (traceId == null || spanId == null) {
+      return UnsampledContext.WITHOUT_IDS;
+    }
+    return new UnsampledContext(
+        HexIds.highBits(traceId), HexIds.lowBits(traceId), HexIds.lowBits(spanId));
+  }
+
+  @Override
+  public UnsampledContext extractIds(Map<String, Object> headers) {
+    final String traceId = stringHeader(headers, traceIdHeader);
+    final String spanId = stringHeader(headers, spanIdHeader);
+    if (traceId == null || spanId == null) {
+      return null;
+    }
+    return new UnsampledContext(
+        HexIds.highBits(traceId), HexIds.lowBits(traceId), HexIds.lowBits(spanId));
+  }
+
+  @Override
+  public Span extract(Map<String, Object> headers) {
+    final String traceId = stringHeader(headers, traceIdHeader);
+    if (traceId == null) {
+      return null;
+    }
+    final String spanId = stringHeader(headers, spanIdHeader);
+    if (spanId == null) {
+      return null;
+    }
+    final SpanBuilder spanBuilder = Span.builder().remote(true);
+    spanBuilder.traceIdHigh(HexIds.highBits(traceId));
+    spanBuilder.traceId(HexIds.lowBits(traceId));
+    spanBuilder.spanId(HexIds.lowBits(spanId));
+    final String sampled = stringHeader(headers, sampledHeader);
+    if (sampled != null) {
+      spanBuilder.exportable(Span.SPAN_SAMPLED.equals(sampled));
+    }
+    final String spanName = stringHeader(headers, spanNameHeader);
+    if (spanName != null) {
+      spanBuilder.name(spanName);
+    }
+    final String processId = stringHeader(headers, processIdHeader);
+    if (processId != null) {
+      spanBuilder.processId(processId);
+    }
+    final String parentId = stringHeader(headers, parentIdHeader);
+    if (parentId != null) {
+      spanBuilder.parent(HexIds.lowBits(parentId));
+    }
+    return spanBuilder.build();
+  }
+
+  private String stringHeader(Map<String, Object> headers, String name) {
+    final Object value = headers.get(name);
+    return value instanceof String ? (String) value : null;
+  }
+
+  private void addHeader(String name, String value, AmqpMessageHeaderAccessor accessor) {
+    if (StringUtils.hasText(value)) {
+      accessor.setHeader(name, value);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation;
+
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * Trace context of a message that is not sampled. It only holds IDs, so unsampled traces are
+ * propagated without building a {@link Span}, logging events or adding tags. IDs are kept so logs
+ * of producers and consumers can still be correlated. It also holds the IDs read by {@link
+ * AmqpPropagationFormat#extractIds(java.util.Map)} from a message of any sampling decision.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public final class UnsampledContext {
+  /** Context of a message only carrying the not sampled flag. */
+  public static final UnsampledContext WITHOUT_IDS = new UnsampledContext(0, 0, 0);
+
+  private final long traceIdHigh;
+  private final long traceId;
+  private final long spanId;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param traceIdHigh Higher 64 bits of trace ID, or 0
+   * @param traceId Lower 64 bits of trace ID
+   * @param spanId Span ID
+   */
+  public UnsampledContext(long traceIdHigh, long traceId, long spanId) {
+    this.traceIdHigh = traceIdHigh;
+    this.traceId = traceId;
+    this.spanId = spanId;
+  }
+
+  /**
+   * Creates the context of a span.
+   *
+   * @param span Span
+   * @return Context holding the IDs of the span
+   */
+  public static UnsampledContext of(Span span) {
+    return new UnsampledContext(span.getTraceIdHigh(), span.getTraceId(), span.getSpanId());
+  }
+
+  /**
+   * Creates the context of a child span in the same trace.
+   *
+   * @param spanId ID of child span
+   * @return Child context, or this context if it has no IDs
+   */
+  public UnsampledContext child(long spanId) {
+    return hasIds() ? new UnsampledContext(traceIdHigh, traceId, spanId) : this;
+  }
+
+  public long getTraceIdHigh() {
+    return traceIdHigh;
+  }
+
+  public long getTraceId() {
+    return traceId;
+  }
+
+  public long getSpanId() {
+    return spanId;
+  }
+
+  /**
+   * Whether the context carries trace and span IDs.
+   *
+   * @return False if the message only carried the not sampled flag
+   */
+  public boolean hasIds() {
+    return traceId != 0;
+  }
+
+  /**
+   * Gets the hex encoded trace ID, with 32 characters when the trace ID has 128 bits.
+   *
+   * @return Trace ID
+   */
+  public String traceIdString() {
+    return traceIdHigh != 0
+        ? Span.idToHex(traceIdHigh) + Span.idToHex(traceId)
+        : Span.idToHex(traceId);
+  }
+}
@@ -0,0 +1,113 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.Map;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Span.SpanBuilder;
+
+/**
+ * Format that writes a span in the W3C {@code traceparent} header: {@code
+ * 00-traceId-spanId-flags}, with a 128-bit trace ID. Only the sampled flag is propagated besides
+ * IDs, so the parent ID, span name and process ID are not available to consumers.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class W3cTraceContextPropagationFormat implements AmqpPropagationFormat {
+  public static final String TRACEPARENT_HEADER = "traceparent";
+  private static final String VERSION = "00";
+  private static final String SAMPLED_FLAGS = "01";
+  private static final String NOT_SAMPLED_FLAGS = "00";
+  private static final String ZERO_ID = "0000000000000000";
+  private static final int LENGTH = 55;
+  private static final char SEPARATOR = '-';
+
+  @Override
+  public void inject(Span span, AmqpMessageHeaderAccessor accessor) {
+    final StringBuilder sb = new StringBuilder(LENGTH);
+    sb.append(VERSION);
+    sb.append(SEPARATOR);
+    sb.append(span.getTraceIdHigh() != 0 ? Span.idToHex(span.getTraceIdHigh()) : ZERO_ID);
+    sb.append(Span.idToHex(span.getTraceId()));
+    sb.append(SEPARATOR);
+    sb.append(Span.idToHex(span.getSpanId()));
+    sb.append(SEPARATOR);
+    sb.append(span.isExportable() ? SAMPLED_FLAGS : NOT_SAMPLED_FLAGS);
+    accessor.setHeader(TRACEPARENT_HEADER, sb.toString());
+  }
+
+  @Override
+  public void injectNotSampled(AmqpMessageHeaderAccessor accessor) {
+    // traceparent can not carry a sampling decision without IDs
+  }
+
+  @Override
+  public void injectUnsampled(UnsampledContext context, AmqpMessageHeaderAccessor accessor) {
+    if (!context.hasIds()) {
+      return;
+    }
+    final StringBuilder sb = new StringBuilder(LENGTH);
+    sb.append(VERSION);
+    sb.append(SEPARATOR);
+    sb.append(context.getTraceIdHigh() != 0 ? Span.idToHex(context.getTraceIdHigh()) : ZERO_ID);
+    sb.append(Span.idToHex(context.getTraceId()));
+    sb.append(SEPARATOR);
+    sb.append(Span.idToHex(context.getSpanId()));
+    sb.append(SEPARATOR);
+    sb.append(NOT_SAMPLED_FLAGS);
+    accessor.setHeader(TRACEPARENT_HEADER, sb.toString());
+  }
+
+  @Override
+  public UnsampledContext extractUnsampled(Map<String, Object> headers) {
+    final String traceparent = getTraceparent(headers);
+    if (traceparent == null || (Character.digit(traceparent.charAt(54), 16) & 1) == 1) {
+      return null;
+    }
+    return new UnsampledContext(
+        HexIds.parse(traceparent, 3, 19),
+        HexIds.parse(traceparent, 19, 35),
+        HexIds.parse(traceparent, 36, 52));
+  }
+
+  @Override
+  public UnsampledContext extractIds(Map<String, Object> headers) {
+    final String traceparent = getTraceparent(headers);
+    if (traceparent == null) {
+      return null;
+    }
+    return new UnsampledContext(
+        HexIds.parse(traceparent, 3, 19),
+        HexIds.parse(traceparent, 19, 35),
+        HexIds.parse(traceparent, 36, 52));
+  }
+
+  @Override
+  public Span extract(Map<String, Object> headers) {
+    final String traceparent = getTraceparent(headers);
+    if (traceparent == null) {
+      return null;
+    }
+    final SpanBuilder spanBuilder = Span.builder().remote(true);
+    spanBuilder.traceIdHigh(HexIds.parse(traceparent, 3, 19));
+    spanBuilder.traceId(HexIds.parse(traceparent, 19, 35));
+    spanBuilder.spanId(HexIds.parse(traceparent, 36, 52));
+    spanBuilder.exportable((Character.digit(traceparent.charAt(54), 16) & 1) == 1);
+    return spanBuilder.build();
+  }
+
+  private String getTraceparent(Map<String, Object> headers) {
+    final Object value = headers.get(TRACEPARENT_HEADER);
+    if (!(value instanceof String)) {
+      return null;
+    }
+    final String traceparent = (String) value;
+    if (traceparent.length() < LENGTH
+        || traceparent.charAt(2) != SEPARATOR
+        || traceparent.charAt(35) != SEPARATOR
+        || traceparent.charAt(52) != SEPARATOR) {
+      return null;
+    }
+    return traceparent;
+  }
+}
@@ -0,0 +1,43 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.sampler;
+
+import org.springframework.util.Assert;
+import org.springframework.util.PatternMatchUtils;
+
+/**
+ * Limit of traces started per second for the destinations matching a pattern. Each matching
+ * destination gets its own limit.
+ *
+ * @see DestinationRateLimitingSampler
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class DestinationRateLimit {
+  private final String destinationPattern;
+  private final double tracesPerSecond;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param destinationPattern Pattern of destinations, span names like {@code
+   *     amqp://exchange/routingKey} where {@code *} matches any sequence of characters
+   * @param tracesPerSecond Maximum traces started per second, 0 to never sample
+   */
+  public DestinationRateLimit(String destinationPattern, double tracesPerSecond) {
+    Assert.hasText(destinationPattern, "destinationPattern must not be empty");
+    Assert.isTrue(tracesPerSecond >= 0, "tracesPerSecond must not be negative");
+    this.destinationPattern = destinationPattern;
+    this.tracesPerSecond = tracesPerSecond;
+  }
+
+  public String getDestinationPattern() {
+    return destinationPattern;
+  }
+
+  public double getTracesPerSecond() {
+    return tracesPerSecond;
+  }
+
+  boolean matches(String destination) {
+    return PatternMatchUtils.simpleMatch(destinationPattern, destination);
+  }
+}
@@ -0,0 +1,147 @@
+package com.netshoes.springframework.cloud.sleuth.instrument.amqp.sampler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sampler of the traces started by AMQP sends, limiting the traces per second of each destination
+ * so a chatty destination does not take the whole sampling budget. Destinations are span names,
+ * like {@code amqp://exchange/routingKey}. The first {@link DestinationRateLimit} matching a
+ * destination applies; destinations without a matching limit are left to the sampler of the
+ * tracer. Sends traced by {@link
+ * com.netshoes.springframework.cloud.sleuth.instrument.amqp.RabbitTemplateTracingBeanPostProcessor}
+ * are named after the default destination of their template, whatever the destination of the call.
+ *
+ * <p>Each destination has its own token bucket, refilled continuously at the rate of its limit and
+ * holding up to one second of traces. Decisions update the bucket with a compare and set, without
+ * locks.
+ *
+ * @author André Ignacio
+ * @since 0.11
+ */
+public class DestinationRateLimitingSampler {
+  private static final TokenBucket NO_LIMIT = new TokenBucket(0);
+  private final List<DestinationRateLimit> limits;
+  private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new instance.
+   *
+   * @param limits Limits, in the order they are matched against destinations
+   */
+  public DestinationRateLimitingSampler(List<DestinationRateLimit> limits) {
+    this.limits = new ArrayList<>(limits);
+  }
+
+  /**
+   * Decides whether a trace started by a send to a destination is sampled.
+   *
+   * @param destination Destination, the name of the send span
+   * @return True to sample, false to drop, or null if no limit applies to the destination
+   */
+  public Boolean isSampled(String destination) {
+    TokenBucket bucket = buckets.get(destination);
+    if (bucket == null) {
+      bucket = buckets.computeIfAbsent(destination, this::createBucket);
+    }
+    if (bucket == NO_LIMIT) {
+      return null;
+    }
+    return bucket.tryAcquire();
+  }
+
+  /**
+   * Gets the destinations sampled so far by a limit.
+   *
+   * @return Destinations
+   */
+  public Set<String> getDestinations() {
+    final Set<String> destinations = new TreeSet<>();
+    buckets.forEach(
+        (destination, bucket) -> {
+          if (bucket != NO_LIMIT) {
+            destinations.add(destination);
+          }
+        });
+    return Collections.unmodifiableSet(destinations);
+  }
+
+  /**
+   * Gets how many traces of a destination were sampled.
+   *
+   * @param destination Destination
+   * @return Sampled traces
+   */
+  public long getSampled(String destination) {
+    final TokenBucket bucket = buckets.get(destination);
+    return bucket != null ? bucket.sampled.sum() : 0;
+  }
+
+  /**
+   * Gets how many traces of a destination were dropped by its limit.
+   *
+   * @param destination Destination
+   * @return Dropped traces
+   */
+  public long getDropped(String destination) {
+    final TokenBucket bucket = buckets.get(destination);
+    return bucket != null ? bucket.dropped.sum() : 0;
+  }
+
+  private TokenBucket createBucket(String destination) {
+    for (DestinationRateLimit limit : limits) {
+      if (limit.matches(destination)) {
+        return new TokenBucket(limit.getTracesPerSecond());
+      }
+    }
+    return NO_LIMIT;
+  }
+
+  /**
+   * Token bucket kept as the theoretical arrival time of the next trace: a trace is sampled if that
+   * time is less than a second ahead of now, and then pushes it forward by the interval between
+   * traces.
+   */
+  private static class TokenBucket {
+    private static final long CAPACITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong nextArrival = new AtomicLong(System.nanoTime());
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private TokenBucket(double tracesPerSecond) {
+      this.intervalNanos =
+          tracesPerSecond > 0 ? (long) Math.max(1, CAPACITY_NANOS / tracesPerSecond) : 0;
+      this.toleranceNanos = Math.max(0, CAPACITY_NANOS - intervalNanos);
+    }
+
+    private boolean tryAcquire() {
+      if (intervalNanos == 0) {
+        dropped.increment();
+        return false;
+      }
+      final long now = System.nanoTime();
+      for (; ; ) {
+        final long arrival = nextArrival.get();
+        if (arrival - now > toleranceNanos) {
+          dropped.increment();
+          return false;
+        }
+        final long next = Math.max(arrival, now) + intervalNanos;
+        if (nextArrival.compareAndSet(arrival, next)) {
+          sampled.increment();
+          return true;
+        }
+      }
+    }
+  }
+}
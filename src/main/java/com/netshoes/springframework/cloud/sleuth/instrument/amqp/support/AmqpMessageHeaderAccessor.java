@@ -22,7 +22,11 @@ public class AmqpMessageHeaderAccessor {
    * @param message Message
    */
   private AmqpMessageHeaderAccessor(Message message) {
-    this.headers = message.getMessageProperties().getHeaders();
+    this(message.getMessageProperties().getHeaders());
+  }
+
+  private AmqpMessageHeaderAccessor(Map<String, Object> headers) {
+    this.headers = headers;
   }
 
   /**
@@ -35,6 +39,17 @@ public class AmqpMessageHeaderAccessor {
     return new AmqpMessageHeaderAccessor(message);
   }
 
+  /**
+   * Get instance from this class for a map of headers not attached to a message.
+   *
+   * @param headers Headers
+   * @return A instance of this class.
+   * @since 0.11
+   */
+  public static AmqpMessageHeaderAccessor getAccessor(Map<String, Object> headers) {
+    return new AmqpMessageHeaderAccessor(headers);
+  }
+
   /**
    * Set a header.
    *
@@ -86,8 +101,11 @@ public class AmqpMessageHeaderAccessor {
 
   protected void verifyType(String headerName, Object headerValue) {
     if (headerName != null && headerValue != null) {
-      if (!(headerValue instanceof String || headerValue instanceof Span)) {
-        throw new IllegalArgumentException("'" + headerName + "' header value must be a String");
+      if (!(headerValue instanceof String
+          || headerValue instanceof Long
+          || headerValue instanceof Span)) {
+        throw new IllegalArgumentException(
+            "'" + headerName + "' header value must be a String or a Long");
       }
     }
   }
@@ -0,0 +1,122 @@
+package com.netshoes.springframework.cloud.sleuth.test.benchmark.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanExtractor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpTemplateAspect;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.DefaultAmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.RabbitTemplateTracingBeanPostProcessor;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.cloud.sleuth.DefaultSpanNamer;
+import org.springframework.cloud.sleuth.NoOpSpanReporter;
+import org.springframework.cloud.sleuth.TraceKeys;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.log.NoOpSpanLogger;
+import org.springframework.cloud.sleuth.sampler.AlwaysSampler;
+import org.springframework.cloud.sleuth.trace.DefaultTracer;
+
+/**
+ * Compares the cost of publishing through a {@link RabbitTemplate} proxied by {@link
+ * AmqpTemplateAspect} with a template instrumented by {@link
+ * RabbitTemplateTracingBeanPostProcessor}. Run with {@code mvn verify -P benchmarks}.
+ *
+ * @author André Ignacio
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AmqpTemplateInstrumentationBenchmark {
+  private static final byte[] BODY = "benchmark".getBytes();
+
+  private RabbitTemplate uninstrumentedTemplate;
+  private RabbitTemplate aspectTemplate;
+  private RabbitTemplate postProcessorTemplate;
+
+  @Setup
+  public void setup() {
+    final Tracer tracer =
+        new DefaultTracer(
+            new AlwaysSampler(),
+            new Random(),
+            new DefaultSpanNamer(),
+            new NoOpSpanLogger(),
+            new NoOpSpanReporter(),
+            new TraceKeys());
+    final AmqpMessagingSpanManager spanManager =
+        new DefaultAmqpMessagingSpanManager(
+            new AmqpMessagingSpanInjector(new TraceKeys()),
+            new AmqpMessagingSpanExtractor(new Random()),
+            tracer);
+
+    uninstrumentedTemplate = createTemplate();
+
+    final AspectJProxyFactory proxyFactory = new AspectJProxyFactory(createTemplate());
+    proxyFactory.setProxyTargetClass(true);
+    proxyFactory.addAspect(new AmqpTemplateAspect(spanManager));
+    aspectTemplate = proxyFactory.getProxy();
+
+    postProcessorTemplate =
+        (RabbitTemplate)
+            new RabbitTemplateTracingBeanPostProcessor(spanManager)
+                .postProcessAfterInitialization(createTemplate(), "rabbitTemplate");
+  }
+
+  @Benchmark
+  public void sendUninstrumented() {
+    uninstrumentedTemplate.send("exchange", "rk", newMessage());
+  }
+
+  @Benchmark
+  public void sendWithAspect() {
+    aspectTemplate.send("exchange", "rk", newMessage());
+  }
+
+  @Benchmark
+  public void sendWithPostProcessor() {
+    postProcessorTemplate.send("exchange", "rk", newMessage());
+  }
+
+  @Benchmark
+  public void convertAndSendUninstrumented() {
+    uninstrumentedTemplate.convertAndSend("exchange", "rk", "benchmark");
+  }
+
+  @Benchmark
+  public void convertAndSendWithAspect() {
+    aspectTemplate.convertAndSend("exchange", "rk", "benchmark");
+  }
+
+  @Benchmark
+  public void convertAndSendWithPostProcessor() {
+    postProcessorTemplate.convertAndSend("exchange", "rk", "benchmark");
+  }
+
+  private Message newMessage() {
+    return new Message(BODY, new MessageProperties());
+  }
+
+  private RabbitTemplate createTemplate() {
+    final RabbitTemplate rabbitTemplate = new RabbitTemplate(StubConnectionFactory.create());
+    rabbitTemplate.setExchange("exchange");
+    rabbitTemplate.setRoutingKey("rk");
+    return rabbitTemplate;
+  }
+}
@@ -0,0 +1,173 @@
+package com.netshoes.springframework.cloud.sleuth.test.benchmark.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanExtractor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Span.SpanBuilder;
+import org.springframework.cloud.sleuth.SpanExtractor;
+import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
+
+/**
+ * Compares the {@link AmqpMessagingSpanExtractor} with the extractor it replaced, which looked
+ * every header up through an {@link AmqpMessageHeaderAccessor}. Run with {@code mvn verify -P
+ * benchmarks -Dbenchmark=SpanExtractionBenchmark}, the {@code gc} profiler reports the allocation
+ * rate of each method.
+ *
+ * @author André Ignacio
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpanExtractionBenchmark {
+  private SpanExtractor<Message> extractor;
+  private SpanExtractor<Message> accessorExtractor;
+  private Message message;
+  private Message untracedMessage;
+
+  @Setup
+  public void setup() {
+    extractor = new AmqpMessagingSpanExtractor(new Random());
+    accessorExtractor = new AccessorSpanExtractor();
+
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+    messageProperties.setHeader("__TypeId__", "com.example.Order");
+    messageProperties.setHeader(TraceMessageHeaders.TRACE_ID_NAME, "463ac35c9f6413ad");
+    messageProperties.setHeader(TraceMessageHeaders.SPAN_ID_NAME, "a2fb4a1d1a96d312");
+    messageProperties.setHeader(TraceMessageHeaders.PARENT_ID_NAME, "0020000000000001");
+    messageProperties.setHeader(TraceMessageHeaders.SPAN_NAME_NAME, "message:orders");
+    messageProperties.setHeader(TraceMessageHeaders.PROCESS_ID_NAME, "order-service");
+    messageProperties.setHeader(TraceMessageHeaders.SAMPLED_NAME, Span.SPAN_SAMPLED);
+    message = new Message("benchmark".getBytes(), messageProperties);
+
+    final MessageProperties untracedMessageProperties = new MessageProperties();
+    untracedMessageProperties.setHeader("__TypeId__", "com.example.Order");
+    untracedMessage = new Message("benchmark".getBytes(), untracedMessageProperties);
+  }
+
+  @Benchmark
+  public Span extract() {
+    return extractor.joinTrace(message);
+  }
+
+  @Benchmark
+  public Span extractWithAccessor() {
+    return accessorExtractor.joinTrace(message);
+  }
+
+  @Benchmark
+  public Span extractUntraced() {
+    return extractor.joinTrace(untracedMessage);
+  }
+
+  @Benchmark
+  public Span extractUntracedWithAccessor() {
+    return accessorExtractor.joinTrace(untracedMessage);
+  }
+
+  /** Copy of the extractor reading headers through an accessor, kept as the baseline. */
+  private static class AccessorSpanExtractor implements SpanExtractor<Message> {
+    private static final org.slf4j.Logger log =
+        org.slf4j.LoggerFactory.getLogger(AccessorSpanExtractor.class);
+
+    @Override
+    public Span joinTrace(Message message) {
+      log.debug("joining trace for message: {}", message);
+
+      final AmqpMessageHeaderAccessor accessor = AmqpMessageHeaderAccessor.getAccessor(message);
+
+      if ((!accessor.hasHeader(Span.TRACE_ID_NAME) || !accessor.hasHeader(Span.SPAN_ID_NAME))
+          && (!accessor.hasHeader(TraceMessageHeaders.SPAN_ID_NAME)
+              || !accessor.hasHeader(TraceMessageHeaders.TRACE_ID_NAME))) {
+        return null;
+      }
+
+      if (accessor.hasHeader(Span.TRACE_ID_NAME)) {
+        return extractSpanFromHeaders(
+            accessor,
+            Span.TRACE_ID_NAME,
+            Span.SPAN_ID_NAME,
+            Span.SAMPLED_NAME,
+            Span.PROCESS_ID_NAME,
+            Span.SPAN_NAME_NAME,
+            Span.PARENT_ID_NAME);
+      } else {
+        return extractSpanFromHeaders(
+            accessor,
+            TraceMessageHeaders.TRACE_ID_NAME,
+            TraceMessageHeaders.SPAN_ID_NAME,
+            TraceMessageHeaders.SAMPLED_NAME,
+            TraceMessageHeaders.PROCESS_ID_NAME,
+            TraceMessageHeaders.SPAN_NAME_NAME,
+            TraceMessageHeaders.PARENT_ID_NAME);
+      }
+    }
+
+    private Span extractSpanFromHeaders(
+        final AmqpMessageHeaderAccessor accessor,
+        final String traceIdHeader,
+        final String spanIdHeader,
+        final String spanSampledHeader,
+        final String spanProcessIdHeader,
+        final String spanNameHeader,
+        final String spanParentIdHeader) {
+      SpanBuilder spanBuilder = Span.builder().remote(true);
+
+      log.debug(
+          "extracting span from headers: ",
+          Arrays.asList(
+              traceIdHeader,
+              spanIdHeader,
+              spanSampledHeader,
+              spanProcessIdHeader,
+              spanNameHeader,
+              spanParentIdHeader));
+
+      withHeader(
+          accessor,
+          traceIdHeader,
+          traceId -> {
+            spanBuilder.traceIdHigh(traceId.length() == 32 ? Span.hexToId(traceId, 0) : 0);
+            spanBuilder.traceId(Span.hexToId(traceId));
+          });
+      withHeader(accessor, spanIdHeader, spanId -> spanBuilder.spanId(Span.hexToId(spanId)));
+      withHeader(
+          accessor,
+          spanSampledHeader,
+          spanSampled -> spanBuilder.exportable(Span.SPAN_SAMPLED.equals(spanSampled)));
+      withHeader(accessor, spanNameHeader, spanName -> spanBuilder.name(spanName));
+      withHeader(accessor, spanProcessIdHeader, processId -> spanBuilder.processId(processId));
+      withHeader(
+          accessor, spanParentIdHeader, parentId -> spanBuilder.parent(Span.hexToId(parentId)));
+
+      return spanBuilder.build();
+    }
+
+    private void withHeader(
+        AmqpMessageHeaderAccessor accessor, String headerName, Consumer<String> valueConsumer) {
+      String headerValue = accessor.getHeader(headerName, String.class);
+      if (headerValue != null) {
+        valueConsumer.accept(headerValue);
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.netshoes.springframework.cloud.sleuth.test.benchmark.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.SpanIdGenerator;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.SpanIdGeneratorRandom;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.ThreadLocalSpanIdGenerator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.sleuth.DefaultSpanNamer;
+import org.springframework.cloud.sleuth.NoOpSpanReporter;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.TraceKeys;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.log.NoOpSpanLogger;
+import org.springframework.cloud.sleuth.sampler.AlwaysSampler;
+import org.springframework.cloud.sleuth.trace.DefaultTracer;
+
+/**
+ * Compares the generation of span IDs from a {@link Random} shared by many threads with a {@link
+ * ThreadLocalSpanIdGenerator}, both directly and through a tracer creating spans. Run with {@code
+ * mvn verify -P benchmarks}; the contention of the shared {@link Random} only shows on a machine
+ * with several CPUs.
+ *
+ * @author André Ignacio
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(32)
+public class SpanIdGenerationBenchmark {
+  private Random sharedRandom;
+  private SpanIdGenerator idGenerator;
+  private Tracer sharedRandomTracer;
+  private Tracer idGeneratorTracer;
+
+  @Setup
+  public void setup() {
+    sharedRandom = new Random();
+    idGenerator = new ThreadLocalSpanIdGenerator();
+    sharedRandomTracer = tracer(sharedRandom);
+    idGeneratorTracer = tracer(new SpanIdGeneratorRandom(idGenerator));
+  }
+
+  @Benchmark
+  public long sharedRandom() {
+    return sharedRandom.nextLong();
+  }
+
+  @Benchmark
+  public long threadLocalIdGenerator() {
+    return idGenerator.nextId();
+  }
+
+  @Benchmark
+  public Span sharedRandomTracer() {
+    return sharedRandomTracer.close(sharedRandomTracer.createSpan("benchmark"));
+  }
+
+  @Benchmark
+  public Span threadLocalIdGeneratorTracer() {
+    return idGeneratorTracer.close(idGeneratorTracer.createSpan("benchmark"));
+  }
+
+  private Tracer tracer(Random random) {
+    return new DefaultTracer(
+        new AlwaysSampler(),
+        random,
+        new DefaultSpanNamer(),
+        new NoOpSpanLogger(),
+        new NoOpSpanReporter(),
+        new TraceKeys());
+  }
+}
@@ -0,0 +1,60 @@
+package com.netshoes.springframework.cloud.sleuth.test.benchmark.instrument.amqp;
+
+import com.rabbitmq.client.Channel;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+
+/**
+ * Factory of connections that publish nowhere, used to measure the cost of the instrumentation
+ * without a broker.
+ *
+ * @author André Ignacio
+ */
+final class StubConnectionFactory {
+  private StubConnectionFactory() {}
+
+  static ConnectionFactory create() {
+    final Channel channel = stub(Channel.class, null);
+    final Connection connection = stub(Connection.class, channel);
+    return stub(ConnectionFactory.class, connection);
+  }
+
+  private static <T> T stub(Class<T> type, Object child) {
+    final InvocationHandler handler = new StubInvocationHandler(child);
+    return type.cast(
+        Proxy.newProxyInstance(
+            StubConnectionFactory.class.getClassLoader(), new Class<?>[] {type}, handler));
+  }
+
+  private static class StubInvocationHandler implements InvocationHandler {
+    private final Object child;
+
+    private StubInvocationHandler(Object child) {
+      this.child = child;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      final Class<?> returnType = method.getReturnType();
+      if (child != null && returnType.isInstance(child)) {
+        return child;
+      }
+      if (returnType == boolean.class) {
+        return "isOpen".equals(method.getName());
+      }
+      if (returnType == int.class) {
+        return 0;
+      }
+      if (returnType == long.class) {
+        return 0L;
+      }
+      if (returnType == String.class) {
+        return "stub";
+      }
+      return null;
+    }
+  }
+}
@@ -7,6 +7,7 @@ import static org.mockito.Mockito.verify;
 
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpTemplateAspect;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.SendToken;
 import com.netshoes.springframework.cloud.sleuth.test.boot.instrument.amqp.mock.AmqpTemplateMockManager;
 import org.junit.Assert;
 import org.junit.Test;
@@ -47,8 +48,8 @@ public class AmqpTemplateAspectTest {
     final Message message = new Message("body-send".getBytes(), new MessageProperties());
     amqpTemplate.send(message);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -60,8 +61,9 @@ public class AmqpTemplateAspectTest {
 
     assertThatThrownBy(() -> amqpTemplate.send(message)).isInstanceOf(NullPointerException.class);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -71,8 +73,8 @@ public class AmqpTemplateAspectTest {
     final Message message = new Message("body-send-rk".getBytes(), new MessageProperties());
     amqpTemplate.send("rk", message);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -85,8 +87,9 @@ public class AmqpTemplateAspectTest {
     assertThatThrownBy(() -> amqpTemplate.send("rk", message))
         .isInstanceOf(NullPointerException.class);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -97,8 +100,8 @@ public class AmqpTemplateAspectTest {
         new Message("body-send-exchange-rk".getBytes(), new MessageProperties());
     amqpTemplate.send("exchange", "rk", message);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -110,8 +113,9 @@ public class AmqpTemplateAspectTest {
         new Message("body-send-exchange-rk".getBytes(), new MessageProperties());
     assertThatThrownBy(() -> amqpTemplate.send("exchange", "rk", message));
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -124,8 +128,8 @@ public class AmqpTemplateAspectTest {
 
     Assert.assertEquals(replyMessage, message);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -137,8 +141,9 @@ public class AmqpTemplateAspectTest {
         new Message("body-send-and-receive".getBytes(), new MessageProperties());
     assertThatThrownBy(() -> amqpTemplate.sendAndReceive(message));
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -149,8 +154,8 @@ public class AmqpTemplateAspectTest {
         new Message("body-send-and-receive-rk".getBytes(), new MessageProperties());
     amqpTemplate.sendAndReceive("rk", message);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -162,8 +167,9 @@ public class AmqpTemplateAspectTest {
         new Message("body-send-and-receive-rk".getBytes(), new MessageProperties());
     assertThatThrownBy(() -> amqpTemplate.sendAndReceive("rk", message));
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -174,8 +180,8 @@ public class AmqpTemplateAspectTest {
         new Message("body-send-and-receive-exchange-rk".getBytes(), new MessageProperties());
     amqpTemplate.sendAndReceive("exchange", "rk", message);
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -187,8 +193,9 @@ public class AmqpTemplateAspectTest {
         new Message("body-send-and-receive-exchange-rk".getBytes(), new MessageProperties());
     assertThatThrownBy(() -> amqpTemplate.sendAndReceive("exchange", "rk", message));
 
-    verify(amqpMessagingSpanManager).beforeSend(eq(message), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(eq(message), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -198,8 +205,8 @@ public class AmqpTemplateAspectTest {
     amqpTemplate.convertAndSend("body-convert-and-send");
 
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -210,8 +217,9 @@ public class AmqpTemplateAspectTest {
     assertThatThrownBy(() -> amqpTemplate.convertAndSend("body-convert-and-send"));
 
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -221,8 +229,8 @@ public class AmqpTemplateAspectTest {
     amqpTemplate.convertAndSend("rk", "body-convert-and-send-rk");
 
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -233,8 +241,9 @@ public class AmqpTemplateAspectTest {
     assertThatThrownBy(() -> amqpTemplate.convertAndSend("rk", "body-send-and-receive-rk"));
 
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -243,8 +252,8 @@ public class AmqpTemplateAspectTest {
 
     amqpTemplate.convertAndSend("exchange", "rk", "body-send-and-receive-exchange-rk");
 
-    verify(amqpMessagingSpanManager).beforeSend(any(Message.class), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(any(Message.class), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -255,8 +264,9 @@ public class AmqpTemplateAspectTest {
     assertThatThrownBy(
         () -> amqpTemplate.convertAndSend("exchange", "rk", "body-send-and-receive-exchange-rk"));
 
-    verify(amqpMessagingSpanManager).beforeSend(any(Message.class), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(any(Message.class), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -267,8 +277,8 @@ public class AmqpTemplateAspectTest {
 
     verify(messagePostProcessor).postProcessMessage(any(Message.class));
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -281,8 +291,9 @@ public class AmqpTemplateAspectTest {
 
     verify(messagePostProcessor).postProcessMessage(any(Message.class));
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/*"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/*"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -293,8 +304,8 @@ public class AmqpTemplateAspectTest {
 
     verify(messagePostProcessor).postProcessMessage(any(Message.class));
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -309,8 +320,9 @@ public class AmqpTemplateAspectTest {
 
     verify(messagePostProcessor).postProcessMessage(any(Message.class));
     verify(amqpMessagingSpanManager)
-        .beforeSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+        .startSend(any(Message.class), eq("amqp://my-default-exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 
   @Test
@@ -321,8 +333,8 @@ public class AmqpTemplateAspectTest {
         "exchange", "rk", "body-send-and-receive-exchange-rk", messagePostProcessor);
 
     verify(messagePostProcessor).postProcessMessage(any(Message.class));
-    verify(amqpMessagingSpanManager).beforeSend(any(Message.class), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(eq(null));
+    verify(amqpMessagingSpanManager).startSend(any(Message.class), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager).finishSend(any(SendToken.class), eq(null));
   }
 
   @Test
@@ -336,7 +348,8 @@ public class AmqpTemplateAspectTest {
                 "exchange", "rk", "body-send-and-receive-exchange-rk", messagePostProcessor));
 
     verify(messagePostProcessor).postProcessMessage(any(Message.class));
-    verify(amqpMessagingSpanManager).beforeSend(any(Message.class), eq("amqp://exchange/rk"));
-    verify(amqpMessagingSpanManager).afterSend(any(NullPointerException.class));
+    verify(amqpMessagingSpanManager).startSend(any(Message.class), eq("amqp://exchange/rk"));
+    verify(amqpMessagingSpanManager)
+        .finishSend(any(SendToken.class), any(NullPointerException.class));
   }
 }
@@ -43,7 +43,7 @@ public class MessageConverterAspectTest {
 
     messageConverter.fromMessage(message);
 
-    verify(amqpMessagingSpanManager).beforeHandle(eq(message));
+    verify(amqpMessagingSpanManager).beforeConvert(eq(message));
     verify(amqpMessagingSpanManager).afterHandle(eq(null));
   }
 
@@ -55,7 +55,7 @@ public class MessageConverterAspectTest {
     assertThatThrownBy(() -> messageConverter.fromMessage(message))
         .isInstanceOf(NullPointerException.class);
 
-    verify(amqpMessagingSpanManager).beforeHandle(eq(message));
+    verify(amqpMessagingSpanManager).beforeConvert(eq(message));
     verify(amqpMessagingSpanManager).afterHandle(any(NullPointerException.class));
   }
 }
@@ -49,7 +49,7 @@ public class RabbitHandlerAspectTest extends AbstractMessageReceiverTest {
 
     rabbitHandlerMock.onMessage(convertedMessage);
 
-    verify(amqpMessagingSpanManager).beforeHandle(eq(message));
+    verify(amqpMessagingSpanManager).beforeConvert(eq(message));
     verify(amqpMessagingSpanManager).afterHandle(eq(null));
   }
 
@@ -65,7 +65,7 @@ public class RabbitHandlerAspectTest extends AbstractMessageReceiverTest {
     assertThatThrownBy(() -> rabbitHandlerMock.onMessage(convertedMessage))
         .isInstanceOf(NullPointerException.class);
 
-    verify(amqpMessagingSpanManager).beforeHandle(eq(message));
+    verify(amqpMessagingSpanManager).beforeConvert(eq(message));
     verify(amqpMessagingSpanManager).afterHandle(any(NullPointerException.class));
   }
 }
@@ -5,12 +5,15 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.RabbitListenerAspect;
 import com.netshoes.springframework.cloud.sleuth.test.boot.instrument.amqp.mock.RabbitAspectMockManager;
 import com.netshoes.springframework.cloud.sleuth.test.boot.instrument.amqp.mock.RabbitListenerMock;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.amqp.core.Message;
@@ -63,6 +66,19 @@ public class RabbitListenerAspectTest extends AbstractMessageReceiverTest {
     verify(amqpMessagingSpanManager).afterHandle(any(NullPointerException.class));
   }
 
+  @Test
+  public void aspectInvokeBatchSuccess() {
+    final List<Message> messages =
+        Arrays.asList(
+            new Message("body5".getBytes(), new MessageProperties()),
+            new Message("body6".getBytes(), new MessageProperties()));
+    rabbitListenerMock.onMessages(messages);
+
+    verify(amqpMessagingSpanManager).beforeHandleBatch(eq(messages));
+    verify(amqpMessagingSpanManager, never()).beforeHandle(any(Message.class));
+    verify(amqpMessagingSpanManager).afterHandle(eq(null));
+  }
+
   @Test
   public void aspectInvokeSuccessWithReply() {
     assertNotNull(rabbitListenerMock);
@@ -80,7 +96,7 @@ public class RabbitListenerAspectTest extends AbstractMessageReceiverTest {
 
     rabbitListenerMock.onMessage(convertedMessage);
 
-    verify(amqpMessagingSpanManager).beforeHandle(eq(message));
+    verify(amqpMessagingSpanManager).beforeConvert(eq(message));
     verify(amqpMessagingSpanManager).afterHandle(eq(null));
   }
 }
@@ -1,5 +1,6 @@
 package com.netshoes.springframework.cloud.sleuth.test.boot.instrument.amqp.mock;
 
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
@@ -38,4 +39,10 @@ public class RabbitListenerMock {
     mockManager.throwExceptionIfConfigured();
     logger.info("Message {} received.", message);
   }
+
+  @RabbitListener(queues = "test-queue-batch")
+  public void onMessages(List<Message> messages) {
+    mockManager.throwExceptionIfConfigured();
+    logger.info("Batch of {} messages received.", messages.size());
+  }
 }
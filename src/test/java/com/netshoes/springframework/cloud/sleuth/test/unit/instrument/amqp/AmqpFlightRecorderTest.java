@@ -0,0 +1,171 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpTemplateAspect;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.MessageConverterAspect;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.RabbitListenerAspect;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpConfirmEvent;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpConsumeEvent;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpConvertEvent;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpFlightRecorder;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.jfr.AmqpPublishEvent;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * Unit tests for {@link AmqpFlightRecorder}.
+ *
+ * @author André Ignacio
+ */
+public class AmqpFlightRecorderTest {
+  private final AmqpMessagingSpanManager spanManager = mock(AmqpMessagingSpanManager.class);
+  private final Span span = Span.builder().traceId(0x456).spanId(0x123).build();
+  private final Message message = new Message("Test".getBytes(), new MessageProperties());
+
+  @Before
+  public void setUp() {
+    Assume.assumeTrue(AmqpFlightRecorder.isAvailable());
+    message.getMessageProperties().setConsumerQueue("orders");
+    message.getMessageProperties().setReceivedExchange("exchange");
+    message.getMessageProperties().setReceivedRoutingKey("created");
+    when(spanManager.beforeHandle(message)).thenReturn(span);
+  }
+
+  @Test
+  public void testRecordEvents() throws Throwable {
+    final ProceedingJoinPoint call = mock(ProceedingJoinPoint.class);
+    when(call.getArgs()).thenReturn(new Object[] {message});
+    final List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(AmqpPublishEvent.NAME);
+      recording.enable(AmqpConsumeEvent.NAME);
+      recording.enable(AmqpConvertEvent.NAME);
+      recording.enable(AmqpConfirmEvent.NAME);
+      recording.start();
+
+      final AmqpPublishEvent publish = AmqpFlightRecorder.beginPublish("exchange", "created");
+      AmqpFlightRecorder.publishing(message, span);
+      AmqpFlightRecorder.endPublish(publish);
+      AmqpFlightRecorder.endConfirm(AmqpFlightRecorder.beginConfirm(), span, "ack");
+      new RabbitListenerAspect(spanManager).executeAroundRabbitListenerAnnotation(call);
+      new MessageConverterAspect(spanManager).aroundFromMessage(call);
+
+      recording.stop();
+      final Path file = Files.createTempFile("amqp", ".jfr");
+      try {
+        recording.dump(file);
+        events = RecordingFile.readAllEvents(file);
+      } finally {
+        Files.delete(file);
+      }
+    }
+
+    assertThat(events)
+        .extracting(event -> event.getEventType().getName())
+        .containsExactly(
+            AmqpPublishEvent.NAME,
+            AmqpConfirmEvent.NAME,
+            AmqpConsumeEvent.NAME,
+            AmqpConvertEvent.NAME);
+    final RecordedEvent publish = events.get(0);
+    assertThat(publish.getString("traceId")).isEqualTo("0000000000000456");
+    assertThat(publish.getString("spanId")).isEqualTo("0000000000000123");
+    assertThat(publish.getString("exchange")).isEqualTo("exchange");
+    assertThat(publish.getLong("payloadSize")).isEqualTo(4);
+    assertThat(events.get(1).getString("outcome")).isEqualTo("ack");
+    final RecordedEvent consume = events.get(2);
+    assertThat(consume.getString("queue")).isEqualTo("orders");
+    assertThat(consume.getString("routingKey")).isEqualTo("created");
+    assertThat(consume.getInt("messages")).isEqualTo(1);
+    assertThat(consume.getString("spanId")).isEqualTo("0000000000000123");
+    assertThat(events.get(3).getString("queue")).isEqualTo("orders");
+  }
+
+  @Test
+  public void testEndPublishEventWhenSendThrowsError() throws Throwable {
+    final ProceedingJoinPoint call = mock(ProceedingJoinPoint.class);
+    final Signature signature = mock(Signature.class);
+    when(signature.getName()).thenReturn("send");
+    when(call.getSignature()).thenReturn(signature);
+    when(call.getArgs()).thenReturn(new Object[] {"exchange", "created", message});
+    when(call.proceed(any(Object[].class))).thenThrow(new StackOverflowError());
+    final List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(AmqpPublishEvent.NAME);
+      recording.start();
+
+      assertThatThrownBy(() -> new AmqpTemplateAspect(spanManager).executeAroundSend(call))
+          .isInstanceOf(StackOverflowError.class);
+      final AmqpPublishEvent next = AmqpFlightRecorder.beginPublish("other", "rk");
+      AmqpFlightRecorder.endPublish(next);
+
+      recording.stop();
+      final Path file = Files.createTempFile("amqp", ".jfr");
+      try {
+        recording.dump(file);
+        events = RecordingFile.readAllEvents(file);
+      } finally {
+        Files.delete(file);
+      }
+    }
+
+    assertThat(events)
+        .extracting(event -> event.getString("exchange"))
+        .containsExactly("exchange", "other");
+    assertThat(events.get(1).getLong("payloadSize")).isZero();
+  }
+
+  @Test
+  public void testThresholdConfirmEvents() throws Exception {
+    final List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(AmqpConfirmEvent.NAME).withThreshold(Duration.ofMillis(20));
+      recording.start();
+
+      AmqpFlightRecorder.endConfirm(AmqpFlightRecorder.beginConfirm(), span, "ack");
+      final AmqpConfirmEvent slow = AmqpFlightRecorder.beginConfirm();
+      Thread.sleep(50);
+      AmqpFlightRecorder.endConfirm(slow, span, "nack");
+
+      recording.stop();
+      final Path file = Files.createTempFile("amqp", ".jfr");
+      try {
+        recording.dump(file);
+        events = RecordingFile.readAllEvents(file);
+      } finally {
+        Files.delete(file);
+      }
+    }
+
+    assertThat(events).extracting(event -> event.getString("outcome")).containsExactly("nack");
+    assertThat(events.get(0).getDuration()).isGreaterThanOrEqualTo(Duration.ofMillis(50));
+    assertThat(events.get(0).getString("spanId")).isEqualTo("0000000000000123");
+  }
+
+  @Test
+  public void testSkipDisabledEvents() {
+    assertThat(AmqpFlightRecorder.beginPublish("exchange", "created")).isNull();
+    assertThat(AmqpFlightRecorder.beginConsume(message)).isNull();
+    assertThat(AmqpFlightRecorder.beginConvert(message)).isNull();
+    assertThat(AmqpFlightRecorder.beginConfirm()).isNull();
+  }
+}
@@ -0,0 +1,105 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingBeforePublishPostProcessor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.SendToken;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.retry.policy.NeverRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+
+/**
+ * Unit tests for {@link AmqpMessagingBeforePublishPostProcessor}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AmqpMessagingBeforePublishPostProcessorTest {
+  @Mock private AmqpMessagingSpanManager spanManager;
+
+  private AmqpMessagingBeforePublishPostProcessor postProcessor;
+  private RetryTemplate retryTemplate;
+
+  @Before
+  public void setup() {
+    postProcessor = new AmqpMessagingBeforePublishPostProcessor(spanManager, "amqp://exchange/rk");
+    retryTemplate = new RetryTemplate();
+    retryTemplate.setRetryPolicy(new NeverRetryPolicy());
+    retryTemplate.registerListener(postProcessor);
+  }
+
+  @Test
+  public void testPostProcessMessageSuccess() {
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+
+    final Message result = postProcessor.postProcessMessage(message);
+
+    Assert.assertSame(message, result);
+    final InOrder inOrder = inOrder(spanManager);
+    inOrder.verify(spanManager).startSend(eq(message), eq("amqp://exchange/rk"));
+    inOrder.verify(spanManager).finishSend(any(SendToken.class), eq(null));
+  }
+
+  @Test
+  public void testFinishSendAfterPublish() {
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+    final SendToken token = new SendToken(null, false);
+    when(spanManager.startSend(message, "amqp://exchange/rk")).thenReturn(token);
+
+    retryTemplate.execute(
+        context -> {
+          postProcessor.postProcessMessage(message);
+          verify(spanManager, never()).finishSend(any(SendToken.class), any(Exception.class));
+          return null;
+        });
+
+    verify(spanManager).finishSend(token, null);
+  }
+
+  @Test
+  public void testFinishSendAfterFailedPublish() {
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+    final SendToken token = new SendToken(null, false);
+    final IllegalStateException exception = new IllegalStateException("publish failed");
+    when(spanManager.startSend(message, "amqp://exchange/rk")).thenReturn(token);
+
+    assertThatThrownBy(
+            () ->
+                retryTemplate.execute(
+                    context -> {
+                      postProcessor.postProcessMessage(message);
+                      throw exception;
+                    }))
+        .isSameAs(exception);
+
+    verify(spanManager).finishSend(token, exception);
+  }
+
+  @Test
+  public void testPostProcessMessageError() {
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+    when(spanManager.startSend(any(Message.class), anyString()))
+        .thenThrow(new IllegalStateException());
+
+    assertThatThrownBy(() -> postProcessor.postProcessMessage(message))
+        .isInstanceOf(IllegalStateException.class);
+
+    verify(spanManager, never()).finishSend(any(SendToken.class), any(Exception.class));
+  }
+}
@@ -1,6 +1,5 @@
 package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
 
-import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingBeforeReceiveInterceptor;
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
 import org.aopalliance.intercept.MethodInvocation;
 import org.junit.Before;
@@ -13,19 +12,25 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.amqp.core.Message;
 
 /**
- * Unit tests for {@link AmqpMessagingBeforeReceiveInterceptor}.
+ * Unit tests for {@link
+ * com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingBeforeReceiveInterceptor}.
  *
  * @author André Ignacio
  */
+@SuppressWarnings("deprecation")
 @RunWith(MockitoJUnitRunner.class)
 public class AmqpMessagingBeforeReceiveInterceptorTest {
   @Mock private AmqpMessagingSpanManager spanManager;
 
-  private AmqpMessagingBeforeReceiveInterceptor interceptor;
+  private com.netshoes.springframework.cloud.sleuth.instrument.amqp
+          .AmqpMessagingBeforeReceiveInterceptor
+      interceptor;
 
   @Before
   public void setup() {
-    interceptor = new AmqpMessagingBeforeReceiveInterceptor(spanManager);
+    interceptor =
+        new com.netshoes.springframework.cloud.sleuth.instrument.amqp
+            .AmqpMessagingBeforeReceiveInterceptor(spanManager);
   }
 
   @Test
@@ -0,0 +1,68 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.AmqpMessagingMeterBinder;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.AmqpMessagingMetrics;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.AmqpTimerStats;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AmqpMessagingMetrics} and {@link AmqpMessagingMeterBinder}.
+ *
+ * @author André Ignacio
+ */
+public class AmqpMessagingMetricsTest {
+  private final AmqpMessagingMetrics metrics = new AmqpMessagingMetrics();
+
+  @Test
+  public void testRecordPublishes() {
+    metrics.recordPublish("amqp://orders/created", TimeUnit.MICROSECONDS.toNanos(100), false);
+    metrics.recordPublish("amqp://orders/created", TimeUnit.MICROSECONDS.toNanos(300), true);
+    metrics.recordProcessing(null, TimeUnit.MILLISECONDS.toNanos(5), false);
+
+    assertThat(metrics.getPublishStats()).hasSize(1);
+    final AmqpTimerStats stats = metrics.getPublishStats().iterator().next();
+    assertThat(stats.getName()).isEqualTo(AmqpMessagingMetrics.PUBLISH_METRIC_NAME);
+    assertThat(stats.getKey()).isEqualTo("amqp://orders/created");
+    assertThat(stats.getCount()).isEqualTo(2);
+    assertThat(stats.getErrors()).isEqualTo(1);
+    assertThat(stats.getTotalTime(TimeUnit.MICROSECONDS)).isEqualTo(400);
+    assertThat(stats.getMax(TimeUnit.MILLISECONDS)).isEqualTo(0.3);
+    assertThat(stats.getPercentile(0.5, TimeUnit.MICROSECONDS)).isEqualTo(127);
+    assertThat(stats.getPercentile(1, TimeUnit.MICROSECONDS)).isEqualTo(511);
+    assertThat(metrics.getProcessingStats())
+        .extracting(AmqpTimerStats::getKey)
+        .containsExactly(AmqpMessagingMetrics.UNKNOWN_QUEUE);
+  }
+
+  @Test
+  public void testBindToMeterRegistry() {
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    metrics.recordProcessing("orders", TimeUnit.MILLISECONDS.toNanos(2), true);
+    new AmqpMessagingMeterBinder(metrics).bindTo(registry);
+    metrics.recordPublish("amqp://orders/created", TimeUnit.MILLISECONDS.toNanos(1), false);
+
+    final FunctionTimer process =
+        registry
+            .get(AmqpMessagingMetrics.PROCESS_METRIC_NAME)
+            .tag("queue", "orders")
+            .functionTimer();
+    final FunctionCounter processErrors =
+        registry.get("amqp.process.errors").tag("queue", "orders").functionCounter();
+    final FunctionTimer publish =
+        registry
+            .get(AmqpMessagingMetrics.PUBLISH_METRIC_NAME)
+            .tag("destination", "amqp://orders/created")
+            .functionTimer();
+
+    assertThat(process.count()).isEqualTo(1);
+    assertThat(process.totalTime(TimeUnit.MILLISECONDS)).isEqualTo(2);
+    assertThat(processErrors.count()).isEqualTo(1);
+    assertThat(publish.count()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,93 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingReceiveInterceptor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.Message;
+
+/**
+ * Unit tests for {@link AmqpMessagingReceiveInterceptor}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AmqpMessagingReceiveInterceptorTest {
+  @Mock private AmqpMessagingSpanManager spanManager;
+  @Mock private MethodInvocation invocation;
+
+  private AmqpMessagingReceiveInterceptor interceptor;
+
+  @Before
+  public void setup() {
+    interceptor = new AmqpMessagingReceiveInterceptor(spanManager);
+  }
+
+  @Test
+  public void testInvokeHandlesMessage() throws Throwable {
+    final Message message = Mockito.mock(Message.class);
+    Mockito.when(invocation.getArguments()).thenReturn(new Object[] {"channel", message});
+    Mockito.when(invocation.proceed()).thenReturn("result");
+
+    final Object result = interceptor.invoke(invocation);
+
+    Assert.assertEquals("result", result);
+    final InOrder inOrder = Mockito.inOrder(spanManager, invocation);
+    inOrder.verify(spanManager).beforeHandle(Matchers.eq(message));
+    inOrder.verify(invocation).proceed();
+    inOrder.verify(spanManager).afterHandle(null);
+  }
+
+  @Test
+  public void testInvokeListenerFails() throws Throwable {
+    final Message message = Mockito.mock(Message.class);
+    final RuntimeException exception = new RuntimeException("listener failed");
+    Mockito.when(invocation.getArguments()).thenReturn(new Object[] {message});
+    Mockito.when(invocation.proceed()).thenThrow(exception);
+
+    try {
+      interceptor.invoke(invocation);
+      Assert.fail("Exception expected");
+    } catch (RuntimeException e) {
+      Assert.assertSame(exception, e);
+    }
+
+    Mockito.verify(spanManager).beforeHandle(Matchers.eq(message));
+    Mockito.verify(spanManager).afterHandle(exception);
+  }
+
+  @Test
+  public void testInvokeListenerFailsWithError() throws Throwable {
+    final Message message = Mockito.mock(Message.class);
+    final AssertionError error = new AssertionError("listener failed");
+    Mockito.when(invocation.getArguments()).thenReturn(new Object[] {message});
+    Mockito.when(invocation.proceed()).thenThrow(error);
+
+    try {
+      interceptor.invoke(invocation);
+      Assert.fail("Error expected");
+    } catch (AssertionError e) {
+      Assert.assertSame(error, e);
+    }
+
+    Mockito.verify(spanManager).afterHandle(Matchers.any(IllegalStateException.class));
+  }
+
+  @Test
+  public void testInvokeWithoutMessageArgument() throws Throwable {
+    Mockito.when(invocation.getArguments()).thenReturn(new Object[] {"some string"});
+
+    interceptor.invoke(invocation);
+
+    Mockito.verify(invocation).proceed();
+    Mockito.verifyZeroInteractions(spanManager);
+  }
+}
@@ -1,5 +1,6 @@
 package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Assert;
@@ -13,6 +14,9 @@ import org.springframework.cloud.sleuth.Span;
 import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
 
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanExtractor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.B3SinglePropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.W3cTraceContextPropagationFormat;
 
 /**
  * Unit tests for {@link AmqpMessagingSpanExtractor}.
@@ -100,4 +104,71 @@ public class AmqpMessagingSpanExtractorTest {
     Assert.assertEquals("0000000000000111", Span.idToHex(span.getParents().get(0)));
     Assert.assertEquals("process", span.getProcessId());
   }
+
+  @Test
+  public void testJoinTraceWithConfiguredFormats() {
+    spanExtractor =
+        new AmqpMessagingSpanExtractor(
+            new Random(),
+            Arrays.asList(
+                new W3cTraceContextPropagationFormat(), new B3SinglePropagationFormat()));
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setHeader(TraceMessageHeaders.TRACE_ID_NAME, "123");
+    messageProperties.setHeader(TraceMessageHeaders.SPAN_ID_NAME, "456");
+
+    Assert.assertNull(spanExtractor.joinTrace(new Message("Test".getBytes(), messageProperties)));
+
+    messageProperties.setHeader("b3", "0000000000000123-0000000000000456-1");
+    final Span span = spanExtractor.joinTrace(new Message("Test".getBytes(), messageProperties));
+
+    Assert.assertEquals("0000000000000123", span.traceIdString());
+    Assert.assertEquals("0000000000000456", Span.idToHex(span.getSpanId()));
+  }
+
+  @Test
+  public void testJoinTraceWith128BitTraceIdAndUnrelatedHeaders() {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setHeader("other", "value");
+    messageProperties.setHeader("count", 10);
+    messageProperties.setHeader(TraceMessageHeaders.TRACE_ID_NAME, "000000000000001a0000000000000123");
+    messageProperties.setHeader(TraceMessageHeaders.SPAN_ID_NAME, "ABC");
+    messageProperties.setHeader(TraceMessageHeaders.SAMPLED_NAME, Span.SPAN_NOT_SAMPLED);
+
+    final Message message = new Message("Test".getBytes(), messageProperties);
+    final Span span = spanExtractor.joinTrace(message);
+
+    Assert.assertEquals(0x1aL, span.getTraceIdHigh());
+    Assert.assertEquals(0x123L, span.getTraceId());
+    Assert.assertEquals(0xabcL, span.getSpanId());
+    Assert.assertFalse(span.isExportable());
+    Assert.assertTrue(span.getParents().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testJoinTraceWithMalformedId() {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setHeader(TraceMessageHeaders.TRACE_ID_NAME, "12x");
+    messageProperties.setHeader(TraceMessageHeaders.SPAN_ID_NAME, "456");
+
+    spanExtractor.joinTrace(new Message("Test".getBytes(), messageProperties));
+  }
+
+  @Test
+  public void testJoinUnsampled() {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setHeader(TraceMessageHeaders.TRACE_ID_NAME, "000000000000001a0000000000000123");
+    messageProperties.setHeader(TraceMessageHeaders.SPAN_ID_NAME, "abc");
+    messageProperties.setHeader(TraceMessageHeaders.SAMPLED_NAME, Span.SPAN_NOT_SAMPLED);
+
+    final UnsampledContext context =
+        spanExtractor.joinUnsampled(new Message("Test".getBytes(), messageProperties));
+
+    Assert.assertEquals(0x1aL, context.getTraceIdHigh());
+    Assert.assertEquals(0x123L, context.getTraceId());
+    Assert.assertEquals(0xabcL, context.getSpanId());
+
+    messageProperties.setHeader(TraceMessageHeaders.SAMPLED_NAME, Span.SPAN_SAMPLED);
+    Assert.assertNull(
+        spanExtractor.joinUnsampled(new Message("Test".getBytes(), messageProperties)));
+  }
 }
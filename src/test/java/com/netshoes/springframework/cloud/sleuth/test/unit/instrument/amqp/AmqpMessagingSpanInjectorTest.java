@@ -145,4 +145,48 @@ public class AmqpMessagingSpanInjectorTest {
     Assert.assertEquals("Custom header value", span.tags().get("message/custom_header"));
     Assert.assertEquals("null", span.tags().get("message/null_header"));
   }
+
+  @Test
+  public void testInjectWithTagsDisabledForDestination() {
+    final TraceKeys traceKeys = new TraceKeys();
+    traceKeys.getMessage().setHeaders(Arrays.asList("CUSTOM_HEADER"));
+    final AmqpMessagingSpanInjector spanInjector = new AmqpMessagingSpanInjector(traceKeys);
+    spanInjector.setHeaderTagsDisabled(Arrays.asList("amqp://exchange/quiet"));
+    spanInjector.setPayloadTagsDisabled(Arrays.asList("amqp://exchange/quiet"));
+
+    final Span quietSpan =
+        Span.builder().name("amqp://exchange/quiet").spanId(1L).traceId(2L).build();
+    final Span span = Span.builder().name("amqp://exchange/loud").spanId(3L).traceId(4L).build();
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setHeader("CUSTOM_HEADER", "value");
+
+    spanInjector.inject(quietSpan, new Message("Test".getBytes(), messageProperties));
+    spanInjector.inject(span, new Message("Test".getBytes(), messageProperties));
+
+    Assert.assertTrue(quietSpan.tags().isEmpty());
+    Assert.assertEquals("value", span.tags().get("message/custom_header"));
+    Assert.assertEquals("byte[]", span.tags().get(traceKeys.getMessage().getPayload().getType()));
+    Assert.assertEquals("4", span.tags().get(traceKeys.getMessage().getPayload().getSize()));
+  }
+
+  @Test
+  public void testInjectAfterTraceKeysChange() {
+    final TraceKeys traceKeys = new TraceKeys();
+    traceKeys.getMessage().setHeaders(Arrays.asList("FIRST"));
+    final AmqpMessagingSpanInjector spanInjector = new AmqpMessagingSpanInjector(traceKeys);
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setHeader("FIRST", "first");
+    messageProperties.setHeader("SECOND", "second");
+
+    final Span firstSpan = Span.builder().spanId(1L).traceId(2L).build();
+    spanInjector.inject(firstSpan, new Message("Test".getBytes(), messageProperties));
+    traceKeys.getMessage().setPrefix("amqp/");
+    traceKeys.getMessage().setHeaders(Arrays.asList("SECOND"));
+    final Span secondSpan = Span.builder().spanId(3L).traceId(4L).build();
+    spanInjector.inject(secondSpan, new Message("Test".getBytes(), messageProperties));
+
+    Assert.assertEquals("first", firstSpan.tags().get("message/first"));
+    Assert.assertNull(secondSpan.tags().get("amqp/first"));
+    Assert.assertEquals("second", secondSpan.tags().get("amqp/second"));
+  }
 }
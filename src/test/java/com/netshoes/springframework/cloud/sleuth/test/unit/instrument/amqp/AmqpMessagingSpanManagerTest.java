@@ -0,0 +1,89 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.SendToken;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * Unit tests for the default methods of {@link AmqpMessagingSpanManager}.
+ *
+ * @author André Ignacio
+ */
+public class AmqpMessagingSpanManagerTest {
+  private final Span span = Span.builder().traceId(1L).spanId(1L).build();
+  private final LegacySpanManager spanManager = new LegacySpanManager();
+
+  @Test
+  public void testSendTokenFallsBackToBeforeAndAfterSend() {
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+
+    final SendToken token = spanManager.startSend(message, "span");
+    spanManager.finishSend(token, null);
+    spanManager.finishSend(token, new IllegalStateException());
+
+    assertThat(token.getSpan()).isSameAs(span);
+    assertThat(spanManager.calls).containsExactly("beforeSend span", "afterSend null");
+  }
+
+  @Test
+  public void testSuspendedSendIsFinishedRightAway() {
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+
+    final SendToken token = spanManager.startSend(message, "span");
+    spanManager.suspendSend(token);
+    spanManager.finishSend(token, new IllegalStateException());
+
+    assertThat(spanManager.calls).containsExactly("beforeSend span", "afterSend null");
+  }
+
+  @Test
+  public void testBatchIsHandledAsItsFirstMessage() {
+    final List<Message> messages =
+        Arrays.asList(
+            new Message("first".getBytes(), new MessageProperties()),
+            new Message("second".getBytes(), new MessageProperties()));
+
+    assertThat(spanManager.beforeHandleBatch(messages)).isSameAs(span);
+    assertThat(spanManager.beforeHandleBatch(Collections.emptyList())).isNull();
+    assertThat(spanManager.calls).containsExactly("beforeHandle first");
+  }
+
+  /** Implementation written before the token based methods were added. */
+  private class LegacySpanManager implements AmqpMessagingSpanManager {
+    private final List<String> calls = new ArrayList<>();
+
+    @Override
+    public Span beforeHandle(Message message) {
+      calls.add("beforeHandle " + new String(message.getBody()));
+      return span;
+    }
+
+    @Override
+    public void afterHandle(Exception ex) {}
+
+    @Override
+    public Span beforeSend(Message message, String spanName) {
+      calls.add("beforeSend " + spanName);
+      return span;
+    }
+
+    @Override
+    public void afterSend(Exception ex) {
+      calls.add("afterSend " + ex);
+    }
+
+    @Override
+    public boolean isTracing() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming.AmqpSpanNameResolver;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.naming.RoutingKeyNormalizationRule;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AmqpSpanNameResolver} and {@link RoutingKeyNormalizationRule}.
+ *
+ * @author André Ignacio
+ */
+public class AmqpSpanNameResolverTest {
+
+  @Test
+  public void testResolveSpanName() {
+    final AmqpSpanNameResolver resolver = new AmqpSpanNameResolver();
+
+    assertEquals("amqp://exchange/rk", resolver.resolve("exchange", "rk"));
+    assertEquals("amqp://unknown-exchange/rk", resolver.resolve(null, "rk"));
+    assertEquals("amqp://exchange/*", resolver.resolve("exchange", null));
+  }
+
+  @Test
+  public void testResolveFromCache() {
+    final AmqpSpanNameResolver resolver = new AmqpSpanNameResolver();
+
+    final String first = resolver.resolve("exchange", "rk");
+    final String second = resolver.resolve("exchange", "rk");
+
+    assertSame(first, second);
+    assertEquals(1, resolver.getHits());
+    assertEquals(1, resolver.getMisses());
+  }
+
+  @Test
+  public void testEvictWhenCacheIsFull() {
+    final AmqpSpanNameResolver resolver =
+        new AmqpSpanNameResolver(Collections.emptyList(), 2, 10, "amqp://other");
+
+    resolver.resolve("exchange", "rk1");
+    resolver.resolve("exchange", "rk2");
+    resolver.resolve("exchange", "rk3");
+
+    assertEquals(1, resolver.getEvictions());
+    // The oldest entry was evicted
+    resolver.resolve("exchange", "rk2");
+    assertEquals(1, resolver.getHits());
+    resolver.resolve("exchange", "rk1");
+    assertEquals(4, resolver.getMisses());
+  }
+
+  @Test
+  public void testCacheNormalizedRoutingKeys() {
+    final AmqpSpanNameResolver resolver =
+        new AmqpSpanNameResolver(
+            Collections.singletonList(RoutingKeyNormalizationRule.idSegments()),
+            2,
+            10,
+            "amqp://other");
+
+    for (int id = 1; id <= 100; id++) {
+      assertEquals(
+          "amqp://exchange/order.{id}.created",
+          resolver.resolve("exchange", "order." + id + ".created"));
+    }
+
+    assertEquals(1, resolver.getMisses());
+    assertEquals(99, resolver.getHits());
+    assertEquals(1, resolver.getCacheSize());
+  }
+
+  @Test
+  public void testBoundCacheUnderConcurrentMisses() throws Exception {
+    final AmqpSpanNameResolver resolver =
+        new AmqpSpanNameResolver(Collections.emptyList(), 16, 100000, "amqp://other");
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        final int offset = thread * 1000;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 1000; i++) {
+                    resolver.resolve("exchange", "rk" + (offset + i));
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(4000, resolver.getMisses());
+    assertEquals(16, resolver.getCacheSize());
+  }
+
+  @Test
+  public void testFallbackWhenMaxSpanNamesIsReached() {
+    final AmqpSpanNameResolver resolver =
+        new AmqpSpanNameResolver(Collections.emptyList(), 10, 2, "amqp://other");
+
+    assertEquals("amqp://exchange/rk1", resolver.resolve("exchange", "rk1"));
+    assertEquals("amqp://exchange/rk2", resolver.resolve("exchange", "rk2"));
+    assertEquals("amqp://other", resolver.resolve("exchange", "rk3"));
+    assertEquals("amqp://exchange/rk1", resolver.resolve("exchange", "rk1"));
+    assertEquals("amqp://other", resolver.resolve("other-exchange", "rk1"));
+    assertEquals(2, resolver.getOverflows());
+    assertEquals(2, resolver.getSpanNameCount());
+  }
+
+  @Test
+  public void testNormalizeRoutingKeys() {
+    final AmqpSpanNameResolver resolver =
+        new AmqpSpanNameResolver(
+            Arrays.asList(
+                RoutingKeyNormalizationRule.template("customer.*.{id}"),
+                RoutingKeyNormalizationRule.idSegments()));
+
+    assertEquals(
+        "amqp://exchange/order.created.{id}", resolver.resolve("exchange", "order.created.12345"));
+    assertEquals(
+        "amqp://exchange/order.created.{id}", resolver.resolve("exchange", "order.created.67890"));
+    assertEquals(
+        "amqp://exchange/customer.*.{id}", resolver.resolve("exchange", "customer.updated.abc"));
+    assertEquals("amqp://exchange/order.created", resolver.resolve("exchange", "order.created"));
+    assertEquals(3, resolver.getSpanNameCount());
+  }
+
+  @Test
+  public void testIdSegmentsRule() {
+    final RoutingKeyNormalizationRule rule = RoutingKeyNormalizationRule.idSegments();
+
+    assertEquals("order.{id}.created", rule.normalize("order.42.created"));
+    assertEquals("order.{id}", rule.normalize("order.123e4567-e89b-12d3-a456-426655440000"));
+    assertEquals("{id}", rule.normalize("5f2b9c1e"));
+    assertNull(rule.normalize("order.created"));
+    assertNull(rule.normalize("order.deadbeef"));
+  }
+
+  @Test
+  public void testTemplateRule() {
+    final RoutingKeyNormalizationRule rule = RoutingKeyNormalizationRule.template("order.#.{id}");
+
+    assertEquals("order.#.{id}", rule.normalize("order.1"));
+    assertEquals("order.#.{id}", rule.normalize("order.created.eu.1"));
+    assertNull(rule.normalize("customer.created.1"));
+    assertEquals(
+        "#.created", RoutingKeyNormalizationRule.template("#.created").normalize("a.b.created"));
+    assertEquals("#", RoutingKeyNormalizationRule.template("#").normalize("anything.at.all"));
+    assertEquals("a.#.b", RoutingKeyNormalizationRule.template("a.#.b").normalize("a.b"));
+  }
+
+  @Test
+  public void testRegexRule() {
+    final RoutingKeyNormalizationRule rule = RoutingKeyNormalizationRule.regex("\\d+", "{n}");
+
+    assertEquals("order.{n}.line.{n}", rule.normalize("order.1.line.22"));
+    assertNull(rule.normalize("order.created"));
+  }
+}
@@ -0,0 +1,233 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AsyncRabbitTemplateAspect;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.SendToken;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpReplyTimeoutException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.AsyncRabbitTemplate;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
+
+/**
+ * Unit tests for {@link AsyncRabbitTemplateAspect}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncRabbitTemplateAspectTest {
+  @Mock private AmqpMessagingSpanManager spanManager;
+  @Mock private Span span;
+  private SendToken token;
+
+  private SimpleMessageListenerContainer container;
+  private StubAsyncRabbitTemplate target;
+  private AsyncRabbitTemplate asyncRabbitTemplate;
+
+  @Before
+  public void setup() {
+    final ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+    final RabbitTemplate rabbitTemplate = new RabbitTemplate(connectionFactory);
+    rabbitTemplate.setExchange("my-exchange");
+    container = new SimpleMessageListenerContainer(connectionFactory);
+    container.setQueueNames("replies");
+    target = new StubAsyncRabbitTemplate(rabbitTemplate, container);
+    final AspectJProxyFactory proxyFactory = new AspectJProxyFactory(target);
+    proxyFactory.setProxyTargetClass(true);
+    proxyFactory.addAspect(new AsyncRabbitTemplateAspect(spanManager));
+    asyncRabbitTemplate = proxyFactory.getProxy();
+    token = new SendToken(span, false);
+    when(spanManager.startSend(any(Message.class), anyString())).thenReturn(token);
+  }
+
+  @Test
+  public void testSendAndReceiveFinishedOnReply() {
+    final Message message = new Message("request".getBytes(), new MessageProperties());
+    final AsyncRabbitTemplate.RabbitMessageFuture future =
+        asyncRabbitTemplate.sendAndReceive("rk", message);
+
+    verify(spanManager).startSend(eq(message), eq("amqp://my-exchange/rk"));
+    verify(spanManager).suspendSend(token);
+    verify(spanManager, never()).finishSend(any(SendToken.class), any(Exception.class));
+
+    final Message reply = replyTo(message);
+    receiveReply(reply);
+    future.set(reply);
+
+    verify(span).logEvent("wr");
+    verify(spanManager).finishSend(eq(token), isNull(Exception.class));
+  }
+
+  @Test
+  public void testReplyReceivedBeforeSendReturns() {
+    target.onSend = request -> receiveReply(replyTo(request));
+    final Message message = new Message("request".getBytes(), new MessageProperties());
+
+    final AsyncRabbitTemplate.RabbitMessageFuture future =
+        asyncRabbitTemplate.sendAndReceive("rk", message);
+
+    verify(span).logEvent("wr");
+    future.set(replyTo(message));
+    verify(spanManager).finishSend(eq(token), isNull(Exception.class));
+  }
+
+  @Test
+  public void testConvertSendAndReceiveReplyReceivedBeforeSendReturns() {
+    target.onSend = request -> receiveReply(replyTo(request));
+
+    asyncRabbitTemplate.convertSendAndReceive("request");
+
+    verify(span).logEvent("wr");
+  }
+
+  @Test
+  public void testSendAndReceiveError() {
+    target.exception = new AmqpException("error");
+    final Message message = new Message("request".getBytes(), new MessageProperties());
+
+    assertThatThrownBy(() -> asyncRabbitTemplate.sendAndReceive("ex", "rk", message))
+        .isInstanceOf(AmqpException.class);
+
+    verify(spanManager).startSend(eq(message), eq("amqp://ex/rk"));
+    verify(spanManager).finishSend(token, target.exception);
+    verify(spanManager, never()).suspendSend(any(SendToken.class));
+    receiveReply(replyTo(message));
+    verify(span, never()).logEvent("wr");
+  }
+
+  @Test
+  public void testConvertSendAndReceiveTimeout() {
+    final AsyncRabbitTemplate.RabbitConverterFuture<Object> future =
+        asyncRabbitTemplate.convertSendAndReceive("request");
+
+    verify(spanManager).startSend(any(Message.class), eq("amqp://my-exchange/*"));
+    verify(spanManager).suspendSend(token);
+
+    final AmqpReplyTimeoutException timeout = new AmqpReplyTimeoutException("timeout", null);
+    future.setException(timeout);
+
+    verify(spanManager).finishSend(token, timeout);
+  }
+
+  @Test
+  public void testConvertSendAndReceiveWithPostProcessorCancelled() {
+    final MessagePostProcessor postProcessor = mock(MessagePostProcessor.class);
+    when(postProcessor.postProcessMessage(any(Message.class))).then(i -> i.getArguments()[0]);
+
+    final AsyncRabbitTemplate.RabbitConverterFuture<Object> future =
+        asyncRabbitTemplate.convertSendAndReceive("ex", "rk", "request", postProcessor);
+
+    verify(postProcessor).postProcessMessage(any(Message.class));
+    verify(spanManager).startSend(any(Message.class), eq("amqp://ex/rk"));
+
+    assertThat(future.cancel(true)).isTrue();
+
+    verify(spanManager).finishSend(eq(token), any(CancellationException.class));
+  }
+
+  // AsyncRabbitTemplate 1.7 matches replies on the deprecated byte[] correlation ID
+  @SuppressWarnings("deprecation")
+  private Message replyTo(Message request) {
+    final Message reply = new Message("reply".getBytes(), new MessageProperties());
+    reply.getMessageProperties().setCorrelationId(request.getMessageProperties().getCorrelationId());
+    return reply;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void receiveReply(Message reply) {
+    final Collection<MessagePostProcessor> postProcessors =
+        (Collection<MessagePostProcessor>)
+            new DirectFieldAccessor(container).getPropertyValue("afterReceivePostProcessors");
+    assertThat(postProcessors).hasSize(1);
+    for (MessagePostProcessor postProcessor : postProcessors) {
+      postProcessor.postProcessMessage(reply);
+    }
+  }
+
+  public static class StubAsyncRabbitTemplate extends AsyncRabbitTemplate {
+    private RuntimeException exception;
+    private Consumer<Message> onSend;
+
+    public StubAsyncRabbitTemplate(
+        RabbitTemplate template, SimpleMessageListenerContainer container) {
+      super(template, container);
+      setTaskScheduler(new ConcurrentTaskScheduler());
+      new DirectFieldAccessor(this).setPropertyValue("running", true);
+    }
+
+    @Override
+    public RabbitMessageFuture sendAndReceive(String routingKey, Message message) {
+      return sendAndReceive("my-exchange", routingKey, message);
+    }
+
+    @Override
+    public RabbitMessageFuture sendAndReceive(
+        String exchange, String routingKey, Message message) {
+      if (exception != null) {
+        throw exception;
+      }
+      return new RabbitMessageFuture(send(message), message);
+    }
+
+    @Override
+    public <C> RabbitConverterFuture<C> convertSendAndReceive(
+        Object object, MessagePostProcessor messagePostProcessor) {
+      return convertSendAndReceive("my-exchange", null, object, messagePostProcessor);
+    }
+
+    @Override
+    public <C> RabbitConverterFuture<C> convertSendAndReceive(
+        String exchange,
+        String routingKey,
+        Object object,
+        MessagePostProcessor messagePostProcessor) {
+      Message message = new Message(object.toString().getBytes(), new MessageProperties());
+      message = messagePostProcessor.postProcessMessage(message);
+      return new RabbitConverterFuture<>(send(message), message);
+    }
+
+    /**
+     * Sets the correlation ID of a request unless it has one, as the template does. It uses the
+     * deprecated byte[] correlation ID, which AsyncRabbitTemplate 1.7 matches replies on.
+     */
+    @SuppressWarnings("deprecation")
+    private String send(Message message) {
+      final MessageProperties messageProperties = message.getMessageProperties();
+      if (messageProperties.getCorrelationId() == null) {
+        messageProperties.setCorrelationId("1".getBytes(StandardCharsets.UTF_8));
+      }
+      if (onSend != null) {
+        onSend.accept(message);
+      }
+      return new String(messageProperties.getCorrelationId(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.B3SinglePropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * Unit tests for {@link B3SinglePropagationFormat}.
+ *
+ * @author André Ignacio
+ */
+public class B3SinglePropagationFormatTest {
+  private B3SinglePropagationFormat format;
+  private Message message;
+  private AmqpMessageHeaderAccessor accessor;
+
+  @Before
+  public void setup() {
+    format = new B3SinglePropagationFormat();
+    message = new Message("Test".getBytes(), new MessageProperties());
+    accessor = AmqpMessageHeaderAccessor.getAccessor(message);
+  }
+
+  @Test
+  public void testInjectWritesSingleHeader() {
+    final Span span =
+        Span.builder().traceId(0x456L).spanId(0x123L).parent(0x999L).exportable(true).build();
+
+    format.inject(span, accessor);
+
+    assertThat(message.getMessageProperties().getHeaders())
+        .containsOnlyKeys("b3")
+        .containsEntry("b3", "0000000000000456-0000000000000123-1-0000000000000999");
+  }
+
+  @Test
+  public void testInjectAndExtract128BitTraceId() {
+    final Span span =
+        Span.builder().traceIdHigh(0x1L).traceId(0x456L).spanId(0x123L).exportable(false).build();
+
+    format.inject(span, accessor);
+    final Span extracted = format.extract(message.getMessageProperties().getHeaders());
+
+    assertThat(extracted.traceIdString()).isEqualTo(span.traceIdString());
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+    assertThat(extracted.getParents()).isEmpty();
+    assertThat(extracted.isExportable()).isFalse();
+    assertThat(extracted.isRemote()).isTrue();
+  }
+
+  @Test
+  public void testExtractWithParent() {
+    accessor.setHeader("b3", "0000000000000456-0000000000000123-d-0000000000000999");
+
+    final Span span = format.extract(message.getMessageProperties().getHeaders());
+
+    assertThat(span.getTraceId()).isEqualTo(0x456L);
+    assertThat(span.getSpanId()).isEqualTo(0x123L);
+    assertThat(span.getParents()).containsExactly(0x999L);
+    assertThat(span.isExportable()).isTrue();
+  }
+
+  @Test
+  public void testExtractWithoutIds() {
+    format.injectNotSampled(accessor);
+
+    assertThat(message.getMessageProperties().getHeaders()).containsEntry("b3", "0");
+    assertThat(format.extract(message.getMessageProperties().getHeaders())).isNull();
+  }
+
+  @Test
+  public void testExtractWithoutHeader() {
+    assertThat(format.extract(message.getMessageProperties().getHeaders())).isNull();
+  }
+
+  @Test
+  public void testInjectAndExtractUnsampled() {
+    format.injectUnsampled(new UnsampledContext(0x1L, 0x456L, 0x123L), accessor);
+    final UnsampledContext extracted =
+        format.extractUnsampled(message.getMessageProperties().getHeaders());
+
+    assertThat(message.getMessageProperties().getHeaders())
+        .containsEntry("b3", "00000000000000010000000000000456-0000000000000123-0");
+    assertThat(extracted.getTraceIdHigh()).isEqualTo(0x1L);
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+  }
+
+  @Test
+  public void testExtractUnsampledOfSampledOrFlagOnlyHeader() {
+    accessor.setHeader("b3", "0000000000000456-0000000000000123-1");
+    assertThat(format.extractUnsampled(message.getMessageProperties().getHeaders())).isNull();
+
+    accessor.setHeader("b3", "0");
+    assertThat(format.extractUnsampled(message.getMessageProperties().getHeaders()))
+        .isSameAs(UnsampledContext.WITHOUT_IDS);
+  }
+
+  @Test
+  public void testExtractIdsOfSampledSpan() {
+    format.inject(
+        Span.builder().traceIdHigh(0x1L).traceId(0x456L).spanId(0x123L).exportable(true).build(),
+        accessor);
+
+    final UnsampledContext extracted =
+        format.extractIds(message.getMessageProperties().getHeaders());
+
+    assertThat(extracted.getTraceIdHigh()).isEqualTo(0x1L);
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+  }
+
+  @Test
+  public void testExtractIdsWithoutIds() {
+    format.injectNotSampled(accessor);
+
+    assertThat(format.extractIds(message.getMessageProperties().getHeaders())).isNull();
+  }
+}
@@ -1,11 +1,15 @@
 package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -13,22 +17,39 @@ import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSp
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
 import com.netshoes.springframework.cloud.sleuth.instrument.amqp.DefaultAmqpMessagingSpanManager;
-import java.util.ArrayList;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.DwellTimeRecorder;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.MessageHistory;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.MessageRecord;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.SendToken;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.AmqpMessagingMetrics;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.AmqpTimerStats;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.sampler.DestinationRateLimit;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.sampler.DestinationRateLimitingSampler;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageProperties;
 import org.springframework.cloud.sleuth.Log;
+import org.springframework.cloud.sleuth.Sampler;
 import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.SpanReporter;
+import org.springframework.cloud.sleuth.TraceKeys;
 import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
+import org.springframework.cloud.sleuth.sampler.NeverSampler;
 
 /**
  * Unit tests for {@link DefaultAmqpMessagingSpanManager}.
@@ -85,6 +106,179 @@ public class DefaultAmqpMessagingSpanManagerTest {
     assertEquals(newSpan, span);
   }
 
+  @Test
+  public void testNestedHandlesOfSameMessageExtractOnce() {
+    final Span remoteSpan = mock(Span.class, "remoteSpan");
+    final Span continuedSpan = mock(Span.class, "continuedSpan");
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+    when(extractor.joinTrace(message)).thenReturn(remoteSpan);
+    when(tracer.continueSpan(remoteSpan)).thenReturn(continuedSpan);
+    when(tracer.isTracing()).thenReturn(true);
+    when(tracer.getCurrentSpan()).thenReturn(continuedSpan);
+
+    assertEquals(continuedSpan, spanManager.beforeHandle(message));
+    assertEquals(continuedSpan, spanManager.beforeHandle(message));
+    spanManager.afterHandle(null);
+
+    verify(tracer, never()).detach(any(Span.class));
+
+    spanManager.afterHandle(null);
+
+    verify(extractor).joinTrace(message);
+    verify(tracer).continueSpan(remoteSpan);
+    verify(remoteSpan).logEvent(Span.SERVER_RECV);
+    verify(continuedSpan).logEvent(Span.SERVER_SEND);
+    verify(tracer).detach(continuedSpan);
+  }
+
+  @Test
+  public void testHandlesOfSameDeliveryReuseExtractedSpan() {
+    final Span remoteSpan = mock(Span.class, "remoteSpan");
+    final Message rawMessage = new Message("raw".getBytes(), delivery("consumer", 7L));
+    final Message message = new Message("converted".getBytes(), delivery("consumer", 7L));
+    final Message nextMessage = new Message("next".getBytes(), delivery("consumer", 8L));
+    final Span continuedSpan = mock(Span.class, "continuedSpan");
+    when(extractor.joinTrace(any(Message.class))).thenReturn(remoteSpan);
+    when(tracer.continueSpan(remoteSpan)).thenReturn(continuedSpan);
+    when(tracer.getCurrentSpan()).thenReturn(continuedSpan);
+
+    spanManager.beforeConvert(rawMessage);
+    spanManager.afterHandle(null);
+    spanManager.beforeHandle(message);
+    spanManager.afterHandle(null);
+    spanManager.beforeHandle(nextMessage);
+
+    verify(extractor).joinTrace(rawMessage);
+    verify(extractor, never()).joinTrace(message);
+    verify(extractor).joinTrace(nextMessage);
+    verify(tracer, times(3)).continueSpan(remoteSpan);
+    verify(continuedSpan).logEvent(Span.SERVER_SEND);
+  }
+
+  @Test
+  public void testListenerHandleReleasesExtractedSpan() {
+    final Span remoteSpan = mock(Span.class, "remoteSpan");
+    final Message message = new Message("Test".getBytes(), delivery("consumer", 7L));
+    when(extractor.joinTrace(any(Message.class))).thenReturn(remoteSpan);
+
+    spanManager.beforeHandle(message);
+    spanManager.afterHandle(null);
+    spanManager.beforeHandle(message);
+    spanManager.afterHandle(null);
+
+    verify(extractor, times(2)).joinTrace(message);
+  }
+
+  @Test
+  public void testBeforeHandleTagsDwellTime() {
+    final DefaultAmqpMessagingSpanManager dwellSpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    final DwellTimeRecorder dwellTimeRecorder = new DwellTimeRecorder();
+    dwellSpanManager.setDwellTimeRecorder(dwellTimeRecorder);
+    final Span remoteSpan = Span.builder().traceId(1L).spanId(1L).exportable(true).build();
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setConsumerQueue("orders");
+    messageProperties.setTimestamp(new Date(System.currentTimeMillis() - 1000));
+    final Message message = new Message("Test".getBytes(), messageProperties);
+    when(extractor.joinTrace(message)).thenReturn(remoteSpan);
+
+    dwellSpanManager.beforeHandle(message);
+
+    final String dwellTime =
+        remoteSpan.tags().get(DefaultAmqpMessagingSpanManager.DWELL_TIME_TAG_NAME);
+    assertThat(Long.parseLong(dwellTime)).isGreaterThanOrEqualTo(999000L);
+    assertThat(dwellTimeRecorder.getIntervalHistogram("orders").getTotalCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testBatchOfSameContextIsChildOfIt() {
+    final Span remoteSpan = Span.builder().traceId(0x456L).spanId(0x123L).build();
+    final Span batchSpan = mock(Span.class, "batchSpan");
+    final List<Message> messages =
+        Arrays.asList(
+            new Message("first".getBytes(), new MessageProperties()),
+            new Message("second".getBytes(), new MessageProperties()));
+    when(extractor.joinIds(any(Message.class))).thenReturn(UnsampledContext.of(remoteSpan));
+    when(extractor.joinTrace(messages.get(0))).thenReturn(remoteSpan);
+    when(tracer.createSpan(DefaultAmqpMessagingSpanManager.BATCH_SPAN_NAME, remoteSpan))
+        .thenReturn(batchSpan);
+
+    assertEquals(batchSpan, spanManager.beforeHandleBatch(messages));
+    spanManager.afterHandle(null);
+
+    verify(extractor).joinTrace(any(Message.class));
+
+    verify(batchSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_SIZE_TAG_NAME, "2");
+    verify(batchSpan, never())
+        .tag(eq(DefaultAmqpMessagingSpanManager.BATCH_LINKS_TAG_NAME), anyString());
+    verify(batchSpan).logEvent(Span.SERVER_RECV);
+    verify(batchSpan).logEvent(Span.SERVER_SEND);
+    verify(tracer).close(batchSpan);
+    verify(tracer, never()).continueSpan(any(Span.class));
+  }
+
+  @Test
+  public void testBatchOfManyContextsLinksThem() {
+    final Message first = new Message("first".getBytes(), timestamped(3000L));
+    final Message second = new Message("second".getBytes(), timestamped(1000L));
+    final Message untraced = new Message("untraced".getBytes(), new MessageProperties());
+    final Span batchSpan = mock(Span.class, "batchSpan");
+    when(extractor.joinIds(first)).thenReturn(new UnsampledContext(0, 0x1L, 0x2L));
+    when(extractor.joinIds(second)).thenReturn(new UnsampledContext(0, 0x3L, 0x4L));
+    when(tracer.createSpan(DefaultAmqpMessagingSpanManager.BATCH_SPAN_NAME)).thenReturn(batchSpan);
+
+    spanManager.beforeHandleBatch(Arrays.asList(first, second, untraced));
+    spanManager.afterHandle(new IllegalStateException("failed"));
+
+    verify(extractor, never()).joinTrace(any(Message.class));
+    verify(batchSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_SIZE_TAG_NAME, "3");
+    verify(batchSpan)
+        .tag(
+            DefaultAmqpMessagingSpanManager.BATCH_LINKS_TAG_NAME,
+            "0000000000000001/0000000000000002,0000000000000003/0000000000000004");
+    verify(batchSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_LINKS_COUNT_TAG_NAME, "2");
+    final ArgumentCaptor<String> minAge = ArgumentCaptor.forClass(String.class);
+    final ArgumentCaptor<String> maxAge = ArgumentCaptor.forClass(String.class);
+    verify(batchSpan)
+        .tag(eq(DefaultAmqpMessagingSpanManager.BATCH_AGE_MIN_TAG_NAME), minAge.capture());
+    verify(batchSpan)
+        .tag(eq(DefaultAmqpMessagingSpanManager.BATCH_AGE_MAX_TAG_NAME), maxAge.capture());
+    assertThat(Long.parseLong(minAge.getValue())).isBetween(1000L, 2000L);
+    assertThat(Long.parseLong(maxAge.getValue())).isBetween(3000L, 4000L);
+    verify(batchSpan).tag(Span.SPAN_ERROR_TAG_NAME, "failed");
+    verify(tracer).close(batchSpan);
+  }
+
+  @Test
+  public void testBatchOfManyContextsIsRootAndCapsLinks() {
+    final Message first = new Message("first".getBytes(), new MessageProperties());
+    final Message second = new Message("second".getBytes(), new MessageProperties());
+    final Message third = new Message("third".getBytes(), new MessageProperties());
+    final Span currentSpan = mock(Span.class, "currentSpan");
+    final Span batchSpan = mock(Span.class, "batchSpan");
+    when(extractor.joinIds(first)).thenReturn(new UnsampledContext(0, 0x1L, 0x2L));
+    when(extractor.joinIds(second)).thenReturn(new UnsampledContext(0, 0x3L, 0x4L));
+    when(extractor.joinIds(third)).thenReturn(new UnsampledContext(0, 0x5L, 0x6L));
+    when(tracer.isTracing()).thenReturn(true);
+    when(tracer.getCurrentSpan()).thenReturn(currentSpan);
+    when(tracer.createSpan(DefaultAmqpMessagingSpanManager.BATCH_SPAN_NAME)).thenReturn(batchSpan);
+    ((DefaultAmqpMessagingSpanManager) spanManager).setMaxBatchLinks(1);
+
+    spanManager.beforeHandleBatch(Arrays.asList(first, second, third));
+    spanManager.afterHandle(null);
+
+    final InOrder inOrder = inOrder(tracer);
+    inOrder.verify(tracer).detach(currentSpan);
+    inOrder.verify(tracer).createSpan(DefaultAmqpMessagingSpanManager.BATCH_SPAN_NAME);
+    inOrder.verify(tracer).close(batchSpan);
+    inOrder.verify(tracer).continueSpan(currentSpan);
+    verify(batchSpan)
+        .tag(
+            DefaultAmqpMessagingSpanManager.BATCH_LINKS_TAG_NAME,
+            "0000000000000001/0000000000000002");
+    verify(batchSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_LINKS_COUNT_TAG_NAME, "3");
+  }
+
   @Test
   public void testAfterHandleWithCurrentSpanAndWithoutException() {
     final Span currentSpan = mock(Span.class, "currentSpan");
@@ -182,68 +376,382 @@ public class DefaultAmqpMessagingSpanManagerTest {
   }
 
   @Test
-  public void testAfterSendOnServerSendWithCurrentSpanAndWithoutException() {
-    final Span currentSpan = mock(Span.class, "currentSpan");
-
-    when(currentSpan.logs()).thenReturn(getListFromOne(Span.SERVER_RECV));
-    when(tracer.getCurrentSpan()).thenReturn(currentSpan);
+  public void testAfterSendOnServerSendWithoutException() {
+    final Span sendSpan = startSend(messageSent());
 
     spanManager.afterSend(null);
 
-    verify(tracer).close(eq(currentSpan));
-    verify(tracer, never()).addTag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
-    verify(currentSpan).logEvent(eq(Span.SERVER_SEND));
+    verify(tracer).close(eq(sendSpan));
+    verify(sendSpan, never()).tag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
+    verify(sendSpan).logEvent(eq(Span.SERVER_SEND));
   }
 
   @Test
-  public void testAfterSendOnServerSendWithCurrentSpanAndException() {
-    final Span currentSpan = mock(Span.class, "currentSpan");
+  public void testAfterSendOnServerSendWithException() {
+    final Span sendSpan = startSend(messageSent());
 
-    when(currentSpan.logs()).thenReturn(getListFromOne(Span.SERVER_RECV));
-    when(tracer.getCurrentSpan()).thenReturn(currentSpan);
+    spanManager.afterSend(new NullPointerException());
+
+    verify(tracer).close(eq(sendSpan));
+    verify(sendSpan).tag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
+    verify(sendSpan).logEvent(eq(Span.SERVER_SEND));
+  }
+
+  @Test
+  public void testAfterSendOnClientReceiveWithoutException() {
+    final Span sendSpan = startSend(new Message("Test".getBytes(), new MessageProperties()));
+
+    spanManager.afterSend(null);
+
+    verify(tracer).close(eq(sendSpan));
+    verify(sendSpan, never()).tag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
+    verify(sendSpan).logEvent(eq(Span.CLIENT_RECV));
+  }
+
+  @Test
+  public void testAfterSendOnClientReceiveWithException() {
+    final Span sendSpan = startSend(new Message("Test".getBytes(), new MessageProperties()));
 
     spanManager.afterSend(new NullPointerException());
 
-    verify(tracer).close(eq(currentSpan));
-    verify(tracer).addTag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
-    verify(currentSpan).logEvent(eq(Span.SERVER_SEND));
+    verify(tracer).close(eq(sendSpan));
+    verify(sendSpan).tag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
+    verify(sendSpan).logEvent(eq(Span.CLIENT_RECV));
   }
 
   @Test
-  public void testAfterSendOnClientReceiveSendWithCurrentSpanAndWithoutException() {
+  public void testAfterSendWithoutSend() {
     final Span currentSpan = mock(Span.class, "currentSpan");
-
-    when(currentSpan.logs()).thenReturn(Collections.emptyList());
     when(tracer.getCurrentSpan()).thenReturn(currentSpan);
 
     spanManager.afterSend(null);
 
-    verify(tracer).close(eq(currentSpan));
-    verify(tracer, never()).addTag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
-    verify(currentSpan).logEvent(eq(Span.CLIENT_RECV));
+    verify(tracer, never()).close(any(Span.class));
+    verify(currentSpan, never()).logEvent(anyString());
   }
 
   @Test
-  public void testAfterSendOnClientReceiveWithCurrentSpanAndException() {
-    final Span currentSpan = mock(Span.class, "currentSpan");
+  public void testNestedSendsFinishTheirOwnSpans() {
+    final Span outerSpan = mock(Span.class, "outerSpan");
+    final Span innerSpan = mock(Span.class, "innerSpan");
+    final Message outerMessage = new Message("outer".getBytes(), new MessageProperties());
+    final Message innerMessage = new Message("inner".getBytes(), new MessageProperties());
+    when(tracer.createSpan(anyString(), any(Span.class))).thenReturn(outerSpan, innerSpan);
+
+    final Span outer = spanManager.beforeSend(outerMessage, "outer");
+    final SendToken innerToken = spanManager.startSend(innerMessage, "inner");
+    when(tracer.getCurrentSpan()).thenReturn(outerSpan);
+    spanManager.finishSend(innerToken, null);
+    spanManager.finishSend(innerToken, null);
+    spanManager.afterSend(null);
+    spanManager.afterSend(null);
+
+    verify(tracer).close(innerSpan);
+    verify(tracer).close(outerSpan);
+    verify(innerSpan).logEvent(eq(Span.CLIENT_RECV));
+    verify(outerSpan).logEvent(eq(Span.CLIENT_RECV));
+    assertThat(outer).isSameAs(outerSpan);
+  }
+
+  @Test
+  public void testSuspendSendRestoresParentSpan() {
+    final Span parentSpan = mock(Span.class, "parentSpan");
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+    final Span sendSpan = mock(Span.class, "sendSpan");
+    when(tracer.createSpan(anyString(), any(Span.class))).thenReturn(sendSpan);
+    when(tracer.detach(sendSpan)).thenReturn(parentSpan);
+
+    final SendToken token = spanManager.startSend(message, "span");
+    spanManager.suspendSend(token);
+    spanManager.afterSend(null);
+
+    verify(sendSpan).logEvent(eq("ws"));
+    verify(tracer).continueSpan(eq(parentSpan));
+    verify(tracer, never()).close(any(Span.class));
+  }
+
+  @Test
+  public void testSuspendLastSendAndFinishItBySpan() {
+    final Span parentSpan = mock(Span.class, "parentSpan");
+    final Span sendSpan = mock(Span.class, "sendSpan");
+    final Span continuedSpan = mock(Span.class, "continuedSpan");
+    when(tracer.createSpan(anyString(), any(Span.class))).thenReturn(sendSpan);
+    when(tracer.detach(sendSpan)).thenReturn(parentSpan);
+    when(tracer.continueSpan(sendSpan)).thenReturn(continuedSpan);
+
+    spanManager.beforeSend(new Message("Test".getBytes(), new MessageProperties()), "span");
+    final Span suspendedSpan = spanManager.suspendSend();
+    spanManager.afterSend(null);
+    spanManager.afterSend(suspendedSpan, new NullPointerException());
+
+    assertThat(suspendedSpan).isSameAs(sendSpan);
+    verify(sendSpan).logEvent(eq("ws"));
+    verify(tracer).continueSpan(eq(parentSpan));
+    verify(continuedSpan).logEvent(eq(Span.CLIENT_RECV));
+    verify(continuedSpan).tag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
+    verify(tracer).close(eq(continuedSpan));
+  }
+
+  @Test
+  public void testFinishSendOfSuspendedSpanWithException() {
+    final Span sendSpan = mock(Span.class, "sendSpan");
+    final Span continuedSpan = mock(Span.class, "continuedSpan");
+    final SendToken token = new SendToken(sendSpan, false);
+    when(tracer.continueSpan(sendSpan)).thenReturn(continuedSpan);
+
+    spanManager.suspendSend(token);
+    spanManager.finishSend(token, new NullPointerException());
+
+    verify(continuedSpan).logEvent(eq(Span.CLIENT_RECV));
+    verify(continuedSpan).tag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
+    verify(tracer).close(eq(continuedSpan));
+  }
+
+  @Test
+  public void testBeforeSendWithLeanPropagationKeepsSpansOutOfHeaders() {
+    final DefaultAmqpMessagingSpanManager leanSpanManager =
+        new DefaultAmqpMessagingSpanManager(
+            new AmqpMessagingSpanInjector(new TraceKeys()), extractor, tracer);
+    leanSpanManager.setLeanPropagation(true);
+    final Span parentSpan = Span.builder().traceId(1L).spanId(1L).exportable(true).build();
+    final Span span = Span.builder().traceId(1L).spanId(2L).parent(1L).exportable(true).build();
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+
+    when(tracer.isTracing()).thenReturn(true);
+    when(tracer.getCurrentSpan()).thenReturn(parentSpan);
+    when(tracer.createSpan(anyString(), eq(parentSpan))).thenReturn(span);
+
+    leanSpanManager.beforeSend(message, "span");
+
+    final Map<String, Object> headers = message.getMessageProperties().getHeaders();
+    assertThat(headers).doesNotContainKey("messageSent").doesNotContainKey("currentSpan");
+    assertThat(headers.values()).allMatch(value -> !(value instanceof Span));
+    assertThat(headers).containsKey(TraceMessageHeaders.TRACE_ID_NAME);
+    assertThat(leanSpanManager.getSendSpan(message)).isSameAs(span);
+    assertThat(span.logs()).extracting(Log::getEvent).containsExactly(Span.CLIENT_SEND);
+
+    when(tracer.getCurrentSpan()).thenReturn(span);
+    leanSpanManager.afterSend(null);
+
+    assertThat(leanSpanManager.getSendSpan(message)).isNull();
+  }
+
+  @Test
+  public void testEphemeralSendSpansNeverBecomeCurrent() {
+    final DefaultAmqpMessagingSpanManager ephemeralSpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    final SpanReporter spanReporter = mock(SpanReporter.class);
+    ephemeralSpanManager.setEphemeralSendSpans(spanReporter, new NeverSampler());
+    final Span parentSpan = Span.builder().traceId(1L).spanId(1L).exportable(true).build();
+    when(tracer.isTracing()).thenReturn(true);
+    when(tracer.getCurrentSpan()).thenReturn(parentSpan);
+
+    final Span outer =
+        ephemeralSpanManager.beforeSend(
+            new Message("outer".getBytes(), new MessageProperties()), "outer");
+    final Span inner =
+        ephemeralSpanManager.beforeSend(
+            new Message("inner".getBytes(), new MessageProperties()), "inner");
+    ephemeralSpanManager.afterSend(null);
+    ephemeralSpanManager.afterSend(new IllegalStateException("failed"));
+
+    assertThat(outer.getTraceId()).isEqualTo(1L);
+    assertThat(outer.getParents()).containsExactly(1L);
+    assertThat(inner.getParents()).containsExactly(outer.getSpanId());
+    assertThat(outer.logs())
+        .extracting(Log::getEvent)
+        .containsExactly(Span.CLIENT_SEND, Span.CLIENT_RECV);
+    assertThat(outer.tags()).containsEntry(Span.SPAN_ERROR_TAG_NAME, "failed");
+    assertThat(outer.getEnd()).isPositive();
+    verify(spanReporter).report(inner);
+    verify(spanReporter).report(outer);
+    verify(tracer, never()).createSpan(anyString(), any(Span.class));
+    verify(tracer, never()).continueSpan(any(Span.class));
+    verify(tracer, never()).detach(any(Span.class));
+    verify(tracer, never()).close(any(Span.class));
+  }
+
+  @Test
+  public void testEphemeralSendSpanWithoutParentIsSampled() {
+    final DefaultAmqpMessagingSpanManager ephemeralSpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    final SpanReporter spanReporter = mock(SpanReporter.class);
+    ephemeralSpanManager.setEphemeralSendSpans(spanReporter, new NeverSampler());
+
+    final Span span =
+        ephemeralSpanManager.beforeSend(
+            new Message("root".getBytes(), new MessageProperties()), "root");
+    ephemeralSpanManager.afterSend(null);
+
+    assertThat(span.getParents()).isEmpty();
+    assertThat(span.getTraceId()).isEqualTo(span.getSpanId());
+    assertThat(span.isExportable()).isFalse();
+    verify(injector).inject(eq(span), any(Message.class));
+    verify(spanReporter, never()).report(any(Span.class));
+    verify(tracer, never()).close(any(Span.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEphemeralSendSpansWithoutSamplerAreRejected() {
+    new DefaultAmqpMessagingSpanManager(injector, extractor, tracer)
+        .setEphemeralSendSpans(mock(SpanReporter.class), null);
+  }
+
+  @Test
+  public void testUnsampledFastPathPropagatesIdsWithoutSpans() {
+    final DefaultAmqpMessagingSpanManager fastPathSpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    fastPathSpanManager.setUnsampledFastPath(true);
+    final Message received = new Message("received".getBytes(), new MessageProperties());
+    final Message sent = new Message("sent".getBytes(), new MessageProperties());
+    when(extractor.joinUnsampled(received)).thenReturn(new UnsampledContext(0, 1L, 2L));
+    final ArgumentCaptor<UnsampledContext> contextCaptor =
+        ArgumentCaptor.forClass(UnsampledContext.class);
+
+    assertThat(fastPathSpanManager.beforeHandle(received)).isNull();
+    final SendToken token = fastPathSpanManager.startSend(sent, "send");
+    fastPathSpanManager.finishSend(token, null);
+    fastPathSpanManager.afterHandle(null);
+
+    assertThat(token.getSpan()).isNull();
+    verify(injector).injectUnsampled(contextCaptor.capture(), eq(sent));
+    assertThat(contextCaptor.getValue().getTraceId()).isEqualTo(1L);
+    assertThat(contextCaptor.getValue().getSpanId()).isNotEqualTo(2L);
+    verify(extractor, never()).joinTrace(any(Message.class));
+    verify(injector, never()).inject(any(Span.class), any());
+    verify(tracer, never()).continueSpan(any(Span.class));
+    verify(tracer, never()).createSpan(anyString(), any(Span.class));
+    verify(tracer, never()).detach(any(Span.class));
+  }
+
+  @Test
+  public void testMetricsOfUnsampledMessages() {
+    final DefaultAmqpMessagingSpanManager metricsSpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    final AmqpMessagingMetrics metrics = new AmqpMessagingMetrics();
+    metricsSpanManager.setMetrics(metrics);
+    metricsSpanManager.setUnsampledFastPath(true);
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setConsumerQueue("orders");
+    final Message received = new Message("received".getBytes(), messageProperties);
+    final Message sent = new Message("sent".getBytes(), new MessageProperties());
+    when(extractor.joinUnsampled(received)).thenReturn(UnsampledContext.WITHOUT_IDS);
+
+    metricsSpanManager.beforeHandle(received);
+    final SendToken token = metricsSpanManager.startSend(sent, "amqp://orders/created");
+    metricsSpanManager.finishSend(token, null);
+    metricsSpanManager.afterHandle(new IllegalStateException("failed"));
+
+    assertThat(metrics.getPublishStats())
+        .extracting(AmqpTimerStats::getKey, AmqpTimerStats::getCount, AmqpTimerStats::getErrors)
+        .containsExactly(tuple("amqp://orders/created", 1L, 0L));
+    assertThat(metrics.getProcessingStats())
+        .extracting(AmqpTimerStats::getKey, AmqpTimerStats::getCount, AmqpTimerStats::getErrors)
+        .containsExactly(tuple("orders", 1L, 1L));
+  }
+
+  @Test
+  public void testMessageHistoryOfUnsampledMessages() {
+    final DefaultAmqpMessagingSpanManager historySpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    final MessageHistory history = new MessageHistory();
+    historySpanManager.setMessageHistory(history);
+    historySpanManager.setUnsampledFastPath(true);
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setConsumerQueue("orders");
+    messageProperties.setReceivedExchange("checkout");
+    final Message received = new Message("received".getBytes(), messageProperties);
+    final Message sent = new Message("sent".getBytes(), new MessageProperties());
+    when(extractor.joinUnsampled(received)).thenReturn(new UnsampledContext(0, 0x456, 0x123));
+
+    historySpanManager.beforeHandle(received);
+    final SendToken token = historySpanManager.startSend(sent, "amqp://orders/created");
+    historySpanManager.finishSend(token, null);
+    historySpanManager.afterHandle(new IllegalStateException("failed"));
+
+    assertThat(history.getRecords(record -> true, 10))
+        .extracting(
+            MessageRecord::getType,
+            MessageRecord::getTraceId,
+            MessageRecord::getDestination,
+            MessageRecord::getExchange,
+            MessageRecord::isSampled,
+            MessageRecord::isError)
+        .containsExactly(
+            tuple(
+                MessageRecord.Type.DELIVERY,
+                "0000000000000456",
+                "orders",
+                "checkout",
+                false,
+                true),
+            tuple(
+                MessageRecord.Type.PUBLISH,
+                "0000000000000456",
+                "amqp://orders/created",
+                "orders",
+                false,
+                false));
+  }
 
-    when(currentSpan.logs()).thenReturn(Collections.emptyList());
+  @Test
+  public void testUnsampledFastPathSendWithinUnsampledSpan() {
+    final DefaultAmqpMessagingSpanManager fastPathSpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    fastPathSpanManager.setUnsampledFastPath(true);
+    final Span currentSpan = Span.builder().traceId(1L).spanId(2L).exportable(false).build();
+    when(tracer.isTracing()).thenReturn(true);
     when(tracer.getCurrentSpan()).thenReturn(currentSpan);
+    final Message message = new Message("sent".getBytes(), new MessageProperties());
 
-    spanManager.afterSend(new NullPointerException());
+    assertThat(fastPathSpanManager.beforeSend(message, "send")).isNull();
+    fastPathSpanManager.afterSend(null);
 
-    verify(tracer).close(eq(currentSpan));
-    verify(tracer).addTag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
-    verify(currentSpan).logEvent(eq(Span.CLIENT_RECV));
+    verify(injector).injectUnsampled(any(UnsampledContext.class), eq(message));
+    verify(tracer, never()).createSpan(anyString(), any(Span.class));
+    verify(tracer, never()).close(any(Span.class));
   }
 
   @Test
-  public void testAfterSendOnServerSendWithoutCurrentSpan() {
-    when(tracer.getCurrentSpan()).thenReturn(null);
+  public void testDestinationSamplerDecidesRootSends() {
+    final DefaultAmqpMessagingSpanManager samplingSpanManager =
+        new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    samplingSpanManager.setDestinationSampler(
+        new DestinationRateLimitingSampler(
+            Collections.singletonList(new DestinationRateLimit("amqp://telemetry/*", 1))));
+    final Span span = mock(Span.class);
+    when(tracer.createSpan(anyString(), any(Sampler.class))).thenReturn(span);
+    final Message sampled = new Message("sampled".getBytes(), new MessageProperties());
+    final Message dropped = new Message("dropped".getBytes(), new MessageProperties());
+
+    final SendToken sampledToken = samplingSpanManager.startSend(sampled, "amqp://telemetry/hb");
+    samplingSpanManager.finishSend(sampledToken, null);
+    final SendToken droppedToken = samplingSpanManager.startSend(dropped, "amqp://telemetry/hb");
+    samplingSpanManager.finishSend(droppedToken, null);
+
+    assertThat(sampledToken.getSpan()).isEqualTo(span);
+    assertThat(droppedToken.getSpan()).isNull();
+    verify(tracer).createSpan(eq("amqp://telemetry/hb"), any(Sampler.class));
+    verify(injector).injectUnsampled(any(UnsampledContext.class), eq(dropped));
+    verify(injector, never()).inject(any(Span.class), eq(dropped));
+  }
 
-    spanManager.afterSend(null);
+  @Test
+  public void testBeforeSendWithLeanPropagationOfMessageBeingSent() {
+    spanManager = new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    ((DefaultAmqpMessagingSpanManager) spanManager).setLeanPropagation(true);
+    final Span firstSpan = mock(Span.class, "firstSpan");
+    final Span secondSpan = mock(Span.class, "secondSpan");
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+
+    when(tracer.createSpan(anyString(), any(Span.class))).thenReturn(firstSpan, secondSpan);
 
-    verify(tracer).close(eq(null));
+    spanManager.beforeSend(message, "span");
+    spanManager.beforeSend(message, "span");
+
+    verify(firstSpan).logEvent(eq(Span.CLIENT_SEND));
+    verify(secondSpan).logEvent(eq(Span.SERVER_RECV));
+    assertThat(message.getMessageProperties().getHeaders()).doesNotContainKey("messageSent");
   }
 
   @Test
@@ -260,9 +768,29 @@ public class DefaultAmqpMessagingSpanManagerTest {
     Assert.assertFalse(spanManager.isTracing());
   }
 
-  private List<Log> getListFromOne(String event) {
-    final List<Log> logs = new ArrayList<>();
-    logs.add(new Log(System.currentTimeMillis(), event));
-    return logs;
+  private MessageProperties delivery(String consumerTag, long deliveryTag) {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setConsumerTag(consumerTag);
+    messageProperties.setDeliveryTag(deliveryTag);
+    return messageProperties;
+  }
+
+  private MessageProperties timestamped(long ageMillis) {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setTimestamp(new Date(System.currentTimeMillis() - ageMillis));
+    return messageProperties;
+  }
+
+  private Message messageSent() {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setHeader("messageSent", Boolean.TRUE.toString());
+    return new Message("Test".getBytes(), messageProperties);
+  }
+
+  private Span startSend(Message message) {
+    final Span sendSpan = mock(Span.class, "sendSpan");
+    when(tracer.createSpan(anyString(), any(Span.class))).thenReturn(sendSpan);
+    spanManager.beforeSend(message, "span");
+    return sendSpan;
   }
 }
@@ -0,0 +1,47 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.sampler.DestinationRateLimit;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.sampler.DestinationRateLimitingSampler;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DestinationRateLimitingSampler}.
+ *
+ * @author André Ignacio
+ */
+public class DestinationRateLimitingSamplerTest {
+
+  @Test
+  public void testLimitTracesPerDestination() {
+    final DestinationRateLimitingSampler sampler =
+        new DestinationRateLimitingSampler(
+            Arrays.asList(new DestinationRateLimit("amqp://telemetry/*", 2)));
+
+    assertThat(sampler.isSampled("amqp://telemetry/heartbeat")).isTrue();
+    assertThat(sampler.isSampled("amqp://telemetry/heartbeat")).isTrue();
+    assertThat(sampler.isSampled("amqp://telemetry/heartbeat")).isFalse();
+    assertThat(sampler.isSampled("amqp://telemetry/metrics")).isTrue();
+
+    assertThat(sampler.getSampled("amqp://telemetry/heartbeat")).isEqualTo(2);
+    assertThat(sampler.getDropped("amqp://telemetry/heartbeat")).isEqualTo(1);
+    assertThat(sampler.getDestinations())
+        .containsExactly("amqp://telemetry/heartbeat", "amqp://telemetry/metrics");
+  }
+
+  @Test
+  public void testFirstMatchingLimitApplies() {
+    final DestinationRateLimitingSampler sampler =
+        new DestinationRateLimitingSampler(
+            Arrays.asList(
+                new DestinationRateLimit("amqp://telemetry/heartbeat", 0),
+                new DestinationRateLimit("amqp://telemetry/*", 100)));
+
+    assertThat(sampler.isSampled("amqp://telemetry/heartbeat")).isFalse();
+    assertThat(sampler.isSampled("amqp://telemetry/metrics")).isTrue();
+    assertThat(sampler.isSampled("amqp://orders/created")).isNull();
+    assertThat(sampler.getDestinations()).doesNotContain("amqp://orders/created");
+  }
+}
@@ -0,0 +1,84 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.DwellTimeRecorder;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.TraceKeys;
+
+/**
+ * Unit tests for {@link DwellTimeRecorder}.
+ *
+ * @author André Ignacio
+ */
+public class DwellTimeRecorderTest {
+  private final DwellTimeRecorder recorder =
+      new DwellTimeRecorder(TimeUnit.MINUTES.toMicros(1), TimeUnit.SECONDS.toMicros(1));
+
+  @Test
+  public void testRecordFromPublishTimestampHeader() {
+    final AmqpMessagingSpanInjector injector = new AmqpMessagingSpanInjector(new TraceKeys());
+    injector.setPublishTimestampEnabled(true);
+    final Message message = message("orders");
+    injector.inject(null, message);
+
+    final long dwellTime = recorder.record(message);
+
+    assertThat(message.getMessageProperties().getHeaders())
+        .containsKey(AmqpMessagingSpanInjector.PUBLISH_TIMESTAMP_HEADER);
+    assertThat(dwellTime).isBetween(0L, TimeUnit.SECONDS.toMicros(10));
+    assertThat(recorder.getQueues()).containsExactly("orders");
+    assertThat(recorder.getIntervalHistogram("orders").getTotalCount()).isEqualTo(1);
+    assertThat(recorder.getIntervalHistogram("orders").getTotalCount()).isZero();
+  }
+
+  @Test
+  public void testRecordFromTimestampProperty() {
+    final Message message = message("orders");
+    message.getMessageProperties().setTimestamp(new Date(System.currentTimeMillis() - 2000));
+
+    final long dwellTime = recorder.record(message);
+
+    // Microseconds of the clock may lag the milliseconds of the timestamp by up to a millisecond
+    assertThat(dwellTime).isBetween(1999000L, TimeUnit.SECONDS.toMicros(10));
+    final Histogram histogram = recorder.getIntervalHistogram("orders");
+    assertThat(histogram.getTotalCount()).isEqualTo(1);
+    assertThat(histogram.getMaxValue()).isGreaterThanOrEqualTo(1990000L);
+  }
+
+  @Test
+  public void testClampClockSkewAndMaximum() {
+    final long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    final Message slightlyAhead = message("orders");
+    slightlyAhead
+        .getMessageProperties()
+        .setHeader(AmqpMessagingSpanInjector.PUBLISH_TIMESTAMP_HEADER, now + 500000);
+    final Message farAhead = message("orders");
+    farAhead
+        .getMessageProperties()
+        .setHeader(AmqpMessagingSpanInjector.PUBLISH_TIMESTAMP_HEADER, now + 5000000);
+    final Message tooOld = message("orders");
+    tooOld.getMessageProperties().setTimestamp(new Date(1000));
+
+    assertThat(recorder.record(slightlyAhead)).isZero();
+    assertThat(recorder.record(farAhead)).isEqualTo(-1);
+    assertThat(recorder.record(tooOld)).isEqualTo(TimeUnit.MINUTES.toMicros(1));
+    assertThat(recorder.record(message(null))).isEqualTo(-1);
+
+    assertThat(recorder.getDiscarded()).isEqualTo(1);
+    assertThat(recorder.getClamped()).isEqualTo(1);
+    assertThat(recorder.getIntervalHistogram("orders").getTotalCount()).isEqualTo(2);
+  }
+
+  private Message message(String queue) {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setConsumerQueue(queue);
+    return new Message("Test".getBytes(), messageProperties);
+  }
+}
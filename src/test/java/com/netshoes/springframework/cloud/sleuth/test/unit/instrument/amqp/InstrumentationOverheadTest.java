@@ -0,0 +1,132 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.RabbitListenerAspect;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverhead;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverhead.Stage;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.metrics.InstrumentationOverheadMeterBinder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.TraceKeys;
+
+/**
+ * Unit tests for {@link InstrumentationOverhead} and {@link InstrumentationOverheadMeterBinder}.
+ *
+ * @author André Ignacio
+ */
+public class InstrumentationOverheadTest {
+  private final InstrumentationOverhead overhead = new InstrumentationOverhead(1);
+
+  @Test
+  public void testAccountForInjections() {
+    final AmqpMessagingSpanInjector injector = new AmqpMessagingSpanInjector(new TraceKeys());
+    injector.setInstrumentationOverhead(overhead);
+    final Span span = Span.builder().spanId(1L).traceId(2L).build();
+
+    for (int i = 0; i < 10; i++) {
+      injector.inject(span, new Message("Test".getBytes(), new MessageProperties()));
+    }
+
+    assertThat(overhead.getMessages(Stage.INJECT)).isEqualTo(10);
+    assertThat(overhead.getNanosPerMessage(Stage.INJECT)).isPositive();
+    assertThat(overhead.getBytesPerMessage(Stage.INJECT)).isPositive();
+    assertThat(overhead.getMessages(Stage.EXTRACT)).isZero();
+    assertThat(overhead.getNanosPerMessage(Stage.EXTRACT)).isZero();
+  }
+
+  @Test
+  public void testExcludeListenerFromReceive() throws Throwable {
+    final AmqpMessagingSpanManager spanManager = mock(AmqpMessagingSpanManager.class);
+    final RabbitListenerAspect aspect = new RabbitListenerAspect(spanManager);
+    aspect.setInstrumentationOverhead(overhead);
+    final Message message = new Message("Test".getBytes(), new MessageProperties());
+    final ProceedingJoinPoint call = mock(ProceedingJoinPoint.class);
+    when(call.getArgs()).thenReturn(new Object[] {message});
+    when(call.proceed())
+        .thenAnswer(
+            invocation -> {
+              Thread.sleep(50);
+              return null;
+            });
+
+    aspect.executeAroundRabbitListenerAnnotation(call);
+
+    verify(spanManager).beforeHandle(message);
+    verify(spanManager).afterHandle(null);
+    assertThat(overhead.getMessages(Stage.RECEIVE)).isEqualTo(1);
+    assertThat(overhead.getNanosPerMessage(Stage.RECEIVE))
+        .isPositive()
+        .isLessThan(TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void testScaleSampledCalls() {
+    final InstrumentationOverhead sampled = new InstrumentationOverhead(4);
+    int probes = 0;
+    for (int i = 0; i < 1000; i++) {
+      final InstrumentationOverhead.Probe probe = sampled.startMessage(Stage.SEND);
+      if (probe != null) {
+        probes++;
+        probe.stop();
+      }
+    }
+
+    assertThat(sampled.getSampleRate()).isEqualTo(4);
+    assertThat(sampled.getMessages(Stage.SEND)).isEqualTo(1000);
+    assertThat(probes).isBetween(150, 350);
+  }
+
+  @Test
+  public void testRegisterMBean() throws Exception {
+    overhead.startMessage(Stage.EXTRACT).stop();
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(InstrumentationOverhead.OBJECT_NAME);
+    server.registerMBean(overhead, name);
+    try {
+      assertThat(server.getAttribute(name, "SampleRate")).isEqualTo(1);
+      final TabularData messages = (TabularData) server.getAttribute(name, "Messages");
+      final CompositeData extract = messages.get(new Object[] {Stage.EXTRACT.name()});
+      assertThat(extract.get("value")).isEqualTo(1L);
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  @Test
+  public void testBindToMeterRegistry() {
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    new InstrumentationOverheadMeterBinder(overhead).bindTo(registry);
+    overhead.startMessage(Stage.SEND).stop();
+
+    assertThat(
+            registry
+                .get(InstrumentationOverheadMeterBinder.NANOS_METRIC_NAME)
+                .tag(InstrumentationOverheadMeterBinder.STAGE_TAG, "send")
+                .gauge()
+                .value())
+        .isPositive();
+    assertThat(
+            registry
+                .get(InstrumentationOverheadMeterBinder.BYTES_METRIC_NAME)
+                .tag(InstrumentationOverheadMeterBinder.STAGE_TAG, "receive")
+                .gauge()
+                .value())
+        .isZero();
+  }
+}
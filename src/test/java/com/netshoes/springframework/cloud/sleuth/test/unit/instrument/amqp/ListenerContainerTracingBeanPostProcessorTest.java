@@ -0,0 +1,82 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingReceiveInterceptor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.ListenerContainerTracingBeanPostProcessor;
+import org.aopalliance.aop.Advice;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.DirectFieldAccessor;
+
+/**
+ * Unit tests for {@link ListenerContainerTracingBeanPostProcessor}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ListenerContainerTracingBeanPostProcessorTest {
+  @Mock private AmqpMessagingSpanManager spanManager;
+
+  private ListenerContainerTracingBeanPostProcessor beanPostProcessor;
+
+  @Before
+  public void setup() {
+    beanPostProcessor = new ListenerContainerTracingBeanPostProcessor(spanManager);
+  }
+
+  @Test
+  public void testInstrumentContainerFactory() {
+    final Advice existing = Mockito.mock(Advice.class);
+    final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+    factory.setAdviceChain(existing);
+
+    final Object result = beanPostProcessor.postProcessBeforeInitialization(factory, "factory");
+
+    Assert.assertSame(factory, result);
+    final Advice[] adviceChain = factory.getAdviceChain();
+    Assert.assertEquals(2, adviceChain.length);
+    Assert.assertTrue(adviceChain[0] instanceof AmqpMessagingReceiveInterceptor);
+    Assert.assertSame(existing, adviceChain[1]);
+  }
+
+  @Test
+  public void testInstrumentContainer() {
+    final SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+
+    final Object result = beanPostProcessor.postProcessBeforeInitialization(container, "container");
+
+    Assert.assertSame(container, result);
+    final Advice[] adviceChain = getAdviceChain(container);
+    Assert.assertEquals(1, adviceChain.length);
+    Assert.assertTrue(adviceChain[0] instanceof AmqpMessagingReceiveInterceptor);
+  }
+
+  @Test
+  public void testInstrumentOnlyOnce() {
+    final SimpleMessageListenerContainer container = new SimpleMessageListenerContainer();
+
+    beanPostProcessor.postProcessBeforeInitialization(container, "container");
+    beanPostProcessor.postProcessBeforeInitialization(container, "container");
+
+    Assert.assertEquals(1, getAdviceChain(container).length);
+  }
+
+  @Test
+  public void testIgnoreOtherBeans() {
+    final Object bean = new Object();
+
+    Assert.assertSame(bean, beanPostProcessor.postProcessBeforeInitialization(bean, "bean"));
+    Mockito.verifyZeroInteractions(spanManager);
+  }
+
+  private Advice[] getAdviceChain(SimpleMessageListenerContainer container) {
+    return (Advice[]) new DirectFieldAccessor(container).getPropertyValue("adviceChain");
+  }
+}
@@ -0,0 +1,123 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanExtractor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.LongHeaderPropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.MultiHeaderPropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
+
+/**
+ * Unit tests for {@link LongHeaderPropagationFormat}.
+ *
+ * @author André Ignacio
+ */
+public class LongHeaderPropagationFormatTest {
+  private LongHeaderPropagationFormat format;
+  private Message message;
+  private AmqpMessageHeaderAccessor accessor;
+
+  @Before
+  public void setup() {
+    format = new LongHeaderPropagationFormat();
+    message = new Message("Test".getBytes(), new MessageProperties());
+    accessor = AmqpMessageHeaderAccessor.getAccessor(message);
+  }
+
+  @Test
+  public void testInjectWritesLongValues() {
+    final Span span =
+        Span.builder()
+            .traceIdHigh(0x1L)
+            .traceId(0x456L)
+            .spanId(0x123L)
+            .parent(0x999L)
+            .exportable(true)
+            .build();
+
+    format.inject(span, accessor);
+
+    assertThat(message.getMessageProperties().getHeaders())
+        .containsEntry(LongHeaderPropagationFormat.TRACE_ID_HIGH_HEADER, 0x1L)
+        .containsEntry(LongHeaderPropagationFormat.TRACE_ID_HEADER, 0x456L)
+        .containsEntry(LongHeaderPropagationFormat.SPAN_ID_HEADER, 0x123L)
+        .containsEntry(LongHeaderPropagationFormat.PARENT_ID_HEADER, 0x999L)
+        .containsEntry(LongHeaderPropagationFormat.SAMPLED_HEADER, 1L)
+        .hasSize(5);
+  }
+
+  @Test
+  public void testInjectAndExtract() {
+    final Span span =
+        Span.builder().traceId(0x456L).spanId(0x123L).parent(0x999L).exportable(false).build();
+
+    format.inject(span, accessor);
+    final Span extracted = format.extract(message.getMessageProperties().getHeaders());
+
+    assertThat(extracted.getTraceIdHigh()).isZero();
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+    assertThat(extracted.getParents()).containsExactly(0x999L);
+    assertThat(extracted.isExportable()).isFalse();
+    assertThat(extracted.isRemote()).isTrue();
+  }
+
+  @Test
+  public void testExtractFallsBackToHexHeaders() {
+    final AmqpMessagingSpanExtractor extractor =
+        new AmqpMessagingSpanExtractor(
+            new Random(), Arrays.asList(format, MultiHeaderPropagationFormat.messagingHeaders()));
+    message.getMessageProperties().setHeader(TraceMessageHeaders.TRACE_ID_NAME, "456");
+    message.getMessageProperties().setHeader(TraceMessageHeaders.SPAN_ID_NAME, "123");
+
+    assertThat(format.extract(message.getMessageProperties().getHeaders())).isNull();
+
+    final Span span = extractor.joinTrace(message);
+
+    assertThat(span.getTraceId()).isEqualTo(0x456L);
+    assertThat(span.getSpanId()).isEqualTo(0x123L);
+  }
+
+  @Test
+  public void testInjectAndExtractUnsampled() {
+    format.injectUnsampled(new UnsampledContext(0, 0x456L, 0x123L), accessor);
+    final UnsampledContext extracted =
+        format.extractUnsampled(message.getMessageProperties().getHeaders());
+
+    assertThat(message.getMessageProperties().getHeaders())
+        .containsEntry(LongHeaderPropagationFormat.SAMPLED_HEADER, 0L)
+        .doesNotContainKey(LongHeaderPropagationFormat.TRACE_ID_HIGH_HEADER);
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+  }
+
+  @Test
+  public void testExtractIdsOfSampledSpan() {
+    format.inject(
+        Span.builder().traceIdHigh(0x1L).traceId(0x456L).spanId(0x123L).exportable(true).build(),
+        accessor);
+
+    final UnsampledContext extracted =
+        format.extractIds(message.getMessageProperties().getHeaders());
+
+    assertThat(extracted.getTraceIdHigh()).isEqualTo(0x1L);
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+  }
+
+  @Test
+  public void testExtractIdsWithoutIds() {
+    format.injectNotSampled(accessor);
+
+    assertThat(format.extractIds(message.getMessageProperties().getHeaders())).isNull();
+  }
+}
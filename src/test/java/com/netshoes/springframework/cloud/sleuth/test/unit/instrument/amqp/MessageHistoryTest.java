@@ -0,0 +1,129 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanExtractor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.DefaultAmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.MessageHistory;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.MessageRecord;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.actuate.MessageHistoryEndpoint;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.actuate.MessageHistoryMvcEndpoint;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Unit tests for {@link MessageHistory} and {@link MessageHistoryEndpoint}.
+ *
+ * @author André Ignacio
+ */
+public class MessageHistoryTest {
+  private final AmqpMessagingSpanExtractor extractor = mock(AmqpMessagingSpanExtractor.class);
+  private final Tracer tracer = mock(Tracer.class);
+  private final DefaultAmqpMessagingSpanManager spanManager =
+      new DefaultAmqpMessagingSpanManager(mock(AmqpMessagingSpanInjector.class), extractor, tracer);
+
+  @Before
+  public void setUp() {
+    spanManager.setUnsampledFastPath(true);
+  }
+
+  @Test
+  public void testOverwriteOldestRecords() {
+    final MessageHistory history = new MessageHistory(3, 2);
+    spanManager.setMessageHistory(history);
+
+    for (int i = 1; i <= 6; i++) {
+      deliver("queue-" + i, "exchange", i, null);
+    }
+
+    assertThat(history.getCapacity()).isEqualTo(4);
+    assertThat(history.getWritten()).isEqualTo(6);
+    assertThat(history.getRecords(record -> true, 10))
+        .extracting(MessageRecord::getTraceId)
+        .containsExactly(
+            "0000000000000006", "0000000000000005", "0000000000000004", "0000000000000003");
+    // Only two names fit, the exchange and the first queue
+    assertThat(history.getRecords(record -> true, 10))
+        .extracting(MessageRecord::getDestination)
+        .containsOnly((String) null);
+    assertThat(history.getRecords(record -> true, 2)).hasSize(2);
+  }
+
+  @Test
+  public void testRecordSampledDeliveries() {
+    final MessageHistory history = new MessageHistory();
+    spanManager.setMessageHistory(history);
+    final Span span =
+        Span.builder().traceIdHigh(0x1).traceId(0x456).spanId(0x123).exportable(true).build();
+    final Message message = message("orders", "checkout");
+    when(extractor.joinTrace(message)).thenReturn(span);
+    when(tracer.continueSpan(span)).thenReturn(span);
+
+    spanManager.beforeHandle(message);
+    spanManager.afterHandle(null);
+
+    final MessageRecord record = history.getRecords(r -> true, 1).get(0);
+    assertThat(record.getTraceId()).isEqualTo("00000000000000010000000000000456");
+    assertThat(record.getSpanId()).isEqualTo("0000000000000123");
+    assertThat(record.isSampled()).isTrue();
+    assertThat(record.getTimestamp()).isGreaterThan(0);
+  }
+
+  @Test
+  public void testFilterRecords() {
+    final MessageHistory history = new MessageHistory();
+    spanManager.setMessageHistory(history);
+    final MessageHistoryEndpoint endpoint = new MessageHistoryEndpoint(history);
+    deliver("orders", "checkout", 1, null);
+    deliver("orders", "returns", 2, new IllegalStateException("failed"));
+    deliver("invoices", "checkout", 3, null);
+
+    assertThat(endpoint.invoke()).hasSize(3);
+    assertThat(endpoint.getRecords("orders", null, 0, null, 10))
+        .extracting(MessageRecord::getTraceId)
+        .containsExactly("0000000000000002", "0000000000000001");
+    assertThat(endpoint.getRecords(null, "checkout", 0, null, 10))
+        .extracting(MessageRecord::getTraceId)
+        .containsExactly("0000000000000003", "0000000000000001");
+    assertThat(endpoint.getRecords(null, null, 0, true, 10))
+        .extracting(MessageRecord::getTraceId)
+        .containsExactly("0000000000000002");
+    assertThat(endpoint.getRecords(null, null, 60000000, null, 10)).isEmpty();
+  }
+
+  @Test
+  public void testDisabledMvcEndpoint() {
+    final MessageHistoryEndpoint endpoint = new MessageHistoryEndpoint(new MessageHistory());
+    endpoint.setEnabled(false);
+
+    final Object response =
+        new MessageHistoryMvcEndpoint(endpoint).invoke(null, null, 0, null, 10);
+
+    assertThat(response).isInstanceOf(ResponseEntity.class);
+    assertThat(((ResponseEntity<?>) response).getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+  }
+
+  private void deliver(String queue, String exchange, long traceId, Exception ex) {
+    final Message message = message(queue, exchange);
+    when(extractor.joinUnsampled(message)).thenReturn(new UnsampledContext(0, traceId, traceId));
+    spanManager.beforeHandle(message);
+    spanManager.afterHandle(ex);
+  }
+
+  private Message message(String queue, String exchange) {
+    final MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setConsumerQueue(queue);
+    messageProperties.setReceivedExchange(exchange);
+    return new Message("Test".getBytes(), messageProperties);
+  }
+}
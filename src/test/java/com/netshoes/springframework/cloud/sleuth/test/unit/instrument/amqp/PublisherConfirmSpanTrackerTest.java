@@ -0,0 +1,204 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanExtractor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.DefaultAmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.PublisherConfirmSpanTracker;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.SendToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.cloud.sleuth.Log;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.SpanReporter;
+import org.springframework.cloud.sleuth.Tracer;
+
+/**
+ * Unit tests for {@link PublisherConfirmSpanTracker}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PublisherConfirmSpanTrackerTest {
+  @Mock private Tracer tracer;
+  @Mock private SpanReporter spanReporter;
+  @Mock private AmqpMessagingSpanExtractor extractor;
+  @Mock private AmqpMessagingSpanInjector injector;
+  @Mock private ConfirmCallback confirmCallback;
+
+  private PublisherConfirmSpanTracker tracker;
+  private DefaultAmqpMessagingSpanManager spanManager;
+  private Span parentSpan;
+  private Span span;
+  private Message message;
+
+  @Before
+  public void setup() {
+    spanManager = new DefaultAmqpMessagingSpanManager(injector, extractor, tracer);
+    useTracker(60000);
+    parentSpan = Span.builder().traceId(1L).spanId(1L).exportable(true).build();
+    span =
+        Span.builder().traceId(1L).spanId(2L).parent(1L).savedSpan(parentSpan).exportable(true)
+            .build();
+    message = new Message("Test".getBytes(), new MessageProperties());
+    when(tracer.isTracing()).thenReturn(true);
+    when(tracer.getCurrentSpan()).thenReturn(span);
+    when(tracer.createSpan(eq("test"), any(Span.class))).thenReturn(span);
+    when(tracer.detach(span)).thenReturn(parentSpan);
+  }
+
+  private void useTracker(long timeoutMillis) {
+    if (tracker != null) {
+      tracker.destroy();
+    }
+    tracker = new PublisherConfirmSpanTracker(tracer, spanReporter, extractor, 2, timeoutMillis);
+    tracker.afterPropertiesSet();
+    tracker.setConfirmCallback(confirmCallback);
+    spanManager.setPublisherConfirmSpanTracker(tracker);
+  }
+
+  @After
+  public void tearDown() {
+    tracker.destroy();
+  }
+
+  @Test
+  public void testSpanFinishedOnAck() {
+    spanManager.beforeSend(message, "test");
+    final CorrelationData correlationData = tracker.postProcess(message, null);
+    spanManager.afterSend(null);
+
+    assertThat(correlationData).isNotNull();
+    assertThat(tracker.getPendingCount()).isEqualTo(1);
+    verify(tracer).detach(span);
+    verify(tracer).continueSpan(parentSpan);
+    verify(tracer, never()).close(any(Span.class));
+    verify(spanReporter, never()).report(any(Span.class));
+
+    tracker.confirm(correlationData, true, null);
+
+    assertThat(tracker.getPendingCount()).isZero();
+    assertThat(span.tags()).containsEntry(PublisherConfirmSpanTracker.CONFIRM_TAG_NAME, "ack");
+    assertThat(span.tags()).containsKey(PublisherConfirmSpanTracker.CONFIRM_LATENCY_TAG_NAME);
+    assertThat(span.tags()).doesNotContainKey(Span.SPAN_ERROR_TAG_NAME);
+    verify(spanReporter).report(span);
+    verify(confirmCallback).confirm(isNull(CorrelationData.class), eq(true), isNull(String.class));
+  }
+
+  @Test
+  public void testSpanFinishedOnNackWithProvidedCorrelationData() {
+    final CorrelationData provided = new CorrelationData("1");
+    spanManager.beforeSend(message, "test");
+    assertThat(tracker.postProcess(message, provided)).isSameAs(provided);
+    spanManager.afterSend(null);
+
+    tracker.confirm(provided, false, "broker error");
+
+    assertThat(span.tags()).containsEntry(PublisherConfirmSpanTracker.CONFIRM_TAG_NAME, "nack");
+    assertThat(span.tags()).containsEntry(Span.SPAN_ERROR_TAG_NAME, "broker error");
+    verify(spanReporter).report(span);
+    verify(confirmCallback).confirm(provided, false, "broker error");
+  }
+
+  @Test
+  public void testSpanTaggedOnReturn() {
+    when(extractor.joinTrace(message)).thenReturn(span);
+    spanManager.beforeSend(message, "test");
+    final CorrelationData correlationData = tracker.postProcess(message, null);
+    spanManager.afterSend(null);
+
+    tracker.returnedMessage(message, 312, "NO_ROUTE", "exchange", "key");
+    tracker.confirm(correlationData, true, null);
+
+    assertThat(span.tags())
+        .containsEntry(PublisherConfirmSpanTracker.RETURN_TAG_NAME, "312 NO_ROUTE");
+    verify(spanReporter).report(span);
+  }
+
+  @Test
+  public void testSpanClosedWhenSendFails() {
+    spanManager.beforeSend(message, "test");
+    tracker.postProcess(message, null);
+    spanManager.afterSend(new IllegalStateException("error"));
+
+    assertThat(tracker.getPendingCount()).isZero();
+    verify(tracer).close(span);
+    verify(tracer, never()).detach(any(Span.class));
+  }
+
+  @Test
+  public void testSpanReportedOnceWhenConfirmArrivesBeforeFailedSend() {
+    spanManager.beforeSend(message, "test");
+    final CorrelationData correlationData = tracker.postProcess(message, null);
+    tracker.confirm(correlationData, true, null);
+    spanManager.afterSend(new IllegalStateException("error"));
+
+    assertThat(tracker.getPendingCount()).isZero();
+    verify(spanReporter).report(span);
+    verify(tracer, never()).close(any(Span.class));
+    verify(tracer).detach(span);
+  }
+
+  @Test
+  public void testSuspendedSpanLeftAsReportedWhenConfirmArrivesFirst() {
+    final SendToken token = spanManager.startSend(message, "test");
+    final CorrelationData correlationData = tracker.postProcess(message, null);
+    tracker.confirm(correlationData, true, null);
+    spanManager.suspendSend(token);
+    spanManager.finishSend(token, null);
+
+    assertThat(span.logs()).extracting(Log::getEvent).doesNotContain("ws");
+    verify(spanReporter).report(span);
+    verify(tracer, never()).close(any(Span.class));
+    verify(tracer).detach(span);
+  }
+
+  @Test
+  public void testSpanNotTrackedWhenNotCurrent() {
+    spanManager.beforeSend(message, "test");
+    when(tracer.getCurrentSpan()).thenReturn(parentSpan);
+
+    assertThat(tracker.postProcess(message, null)).isNull();
+    assertThat(tracker.getPendingCount()).isZero();
+  }
+
+  @Test
+  public void testOverflow() {
+    for (int i = 0; i < 3; i++) {
+      spanManager.beforeSend(message, "test");
+      tracker.postProcess(message, new CorrelationData(String.valueOf(i)));
+    }
+
+    assertThat(tracker.getPendingCount()).isEqualTo(2);
+    assertThat(tracker.getOverflows()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSpanFinishedOnTimeout() {
+    useTracker(20);
+    spanManager.beforeSend(message, "test");
+    tracker.postProcess(message, null);
+    spanManager.afterSend(null);
+
+    verify(spanReporter, timeout(2000)).report(span);
+    assertThat(span.tags()).containsEntry(PublisherConfirmSpanTracker.CONFIRM_TAG_NAME, "timeout");
+    assertThat(tracker.getTimeouts()).isEqualTo(1);
+    assertThat(tracker.getPendingCount()).isZero();
+  }
+}
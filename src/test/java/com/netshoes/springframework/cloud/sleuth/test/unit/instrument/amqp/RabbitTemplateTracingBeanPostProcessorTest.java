@@ -0,0 +1,112 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingBeforePublishPostProcessor;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.RabbitTemplateTracingBeanPostProcessor;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.support.RetryTemplate;
+
+/**
+ * Unit tests for {@link RabbitTemplateTracingBeanPostProcessor}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RabbitTemplateTracingBeanPostProcessorTest {
+  @Mock private AmqpMessagingSpanManager spanManager;
+
+  private RabbitTemplateTracingBeanPostProcessor beanPostProcessor;
+
+  @Before
+  public void setup() {
+    beanPostProcessor = new RabbitTemplateTracingBeanPostProcessor(spanManager);
+  }
+
+  @Test
+  public void testInstrumentRabbitTemplate() {
+    final RabbitTemplate rabbitTemplate = new RabbitTemplate();
+
+    final Object result =
+        beanPostProcessor.postProcessAfterInitialization(rabbitTemplate, "rabbitTemplate");
+
+    Assert.assertSame(rabbitTemplate, result);
+    final List<MessagePostProcessor> postProcessors = getBeforePublishPostProcessors(rabbitTemplate);
+    Assert.assertEquals(1, postProcessors.size());
+    Assert.assertTrue(postProcessors.get(0) instanceof AmqpMessagingBeforePublishPostProcessor);
+    Assert.assertArrayEquals(
+        new Object[] {postProcessors.get(0)}, getRetryListeners(getRetryTemplate(rabbitTemplate)));
+  }
+
+  @Test
+  public void testInstrumentKeepsExistingRetryTemplate() {
+    final RetryTemplate retryTemplate = new RetryTemplate();
+    final RabbitTemplate rabbitTemplate = new RabbitTemplate();
+    rabbitTemplate.setRetryTemplate(retryTemplate);
+
+    beanPostProcessor.postProcessAfterInitialization(rabbitTemplate, "rabbitTemplate");
+
+    Assert.assertSame(retryTemplate, getRetryTemplate(rabbitTemplate));
+    Assert.assertEquals(1, getRetryListeners(retryTemplate).length);
+  }
+
+  @Test
+  public void testInstrumentKeepsExistingPostProcessors() {
+    final MessagePostProcessor existing = Mockito.mock(MessagePostProcessor.class);
+    final RabbitTemplate rabbitTemplate = new RabbitTemplate();
+    rabbitTemplate.setBeforePublishPostProcessors(existing);
+
+    beanPostProcessor.postProcessAfterInitialization(rabbitTemplate, "rabbitTemplate");
+
+    final List<MessagePostProcessor> postProcessors = getBeforePublishPostProcessors(rabbitTemplate);
+    Assert.assertEquals(2, postProcessors.size());
+    Assert.assertSame(existing, postProcessors.get(0));
+    Assert.assertTrue(postProcessors.get(1) instanceof AmqpMessagingBeforePublishPostProcessor);
+  }
+
+  @Test
+  public void testInstrumentOnlyOnce() {
+    final RabbitTemplate rabbitTemplate = new RabbitTemplate();
+
+    beanPostProcessor.postProcessAfterInitialization(rabbitTemplate, "rabbitTemplate");
+    beanPostProcessor.postProcessAfterInitialization(rabbitTemplate, "rabbitTemplate");
+
+    Assert.assertEquals(1, getBeforePublishPostProcessors(rabbitTemplate).size());
+  }
+
+  @Test
+  public void testIgnoreOtherBeans() {
+    final Object bean = new Object();
+
+    Assert.assertSame(bean, beanPostProcessor.postProcessAfterInitialization(bean, "bean"));
+    Assert.assertSame(bean, beanPostProcessor.postProcessBeforeInitialization(bean, "bean"));
+  }
+
+  private RetryTemplate getRetryTemplate(RabbitTemplate rabbitTemplate) {
+    return (RetryTemplate) new DirectFieldAccessor(rabbitTemplate).getPropertyValue("retryTemplate");
+  }
+
+  private RetryListener[] getRetryListeners(RetryTemplate retryTemplate) {
+    return (RetryListener[]) new DirectFieldAccessor(retryTemplate).getPropertyValue("listeners");
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<MessagePostProcessor> getBeforePublishPostProcessors(RabbitTemplate rabbitTemplate) {
+    return new ArrayList<>(
+        (Collection<MessagePostProcessor>)
+            new DirectFieldAccessor(rabbitTemplate)
+                .getPropertyValue("beforePublishPostProcessors"));
+  }
+}
@@ -34,6 +34,6 @@ public class SpanManagerMessagePostProcessorTest {
   public void testPostProcessMessageSuccess() {
     final Message message = Mockito.mock(Message.class);
     postProcessor.postProcessMessage(message);
-    verify(spanManager).beforeSend(Matchers.eq(message), anyString());
+    verify(spanManager).startSend(Matchers.eq(message), anyString());
   }
 }
@@ -0,0 +1,83 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.SpanIdGenerator;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.SpanIdGeneratorRandom;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.id.ThreadLocalSpanIdGenerator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.springframework.cloud.sleuth.DefaultSpanNamer;
+import org.springframework.cloud.sleuth.NoOpSpanReporter;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.TraceKeys;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.log.NoOpSpanLogger;
+import org.springframework.cloud.sleuth.sampler.AlwaysSampler;
+import org.springframework.cloud.sleuth.trace.DefaultTracer;
+
+/**
+ * Unit tests for {@link ThreadLocalSpanIdGenerator} and {@link SpanIdGeneratorRandom}.
+ *
+ * @author André Ignacio
+ */
+public class ThreadLocalSpanIdGeneratorTest {
+
+  @Test
+  public void testGenerateDistinctIds() {
+    final SpanIdGenerator generator = new ThreadLocalSpanIdGenerator();
+    final Set<Long> ids = new HashSet<>();
+
+    for (int i = 0; i < 1000; i++) {
+      final long id = generator.nextId();
+      assertNotEquals(0, id);
+      ids.add(id);
+    }
+
+    assertEquals(1000, ids.size());
+    assertEquals(0, generator.nextTraceIdHigh());
+  }
+
+  @Test
+  public void testGenerate128BitTraceIds() {
+    final SpanIdGenerator generator = new ThreadLocalSpanIdGenerator(true);
+
+    assertNotEquals(generator.nextTraceIdHigh(), generator.nextTraceIdHigh());
+  }
+
+  @Test
+  public void testTracerUsesGeneratorThroughRandom() {
+    final SpanIdGenerator generator =
+        new SpanIdGenerator() {
+          private long id = 41;
+
+          @Override
+          public long nextId() {
+            return ++id;
+          }
+
+          @Override
+          public long nextTraceIdHigh() {
+            return 0;
+          }
+        };
+    final Random random = new SpanIdGeneratorRandom(generator);
+    final Tracer tracer =
+        new DefaultTracer(
+            new AlwaysSampler(),
+            random,
+            new DefaultSpanNamer(),
+            new NoOpSpanLogger(),
+            new NoOpSpanReporter(),
+            new TraceKeys());
+
+    final Span span = tracer.createSpan("test");
+    tracer.close(span);
+
+    assertEquals(42, span.getSpanId());
+    assertEquals(42, span.getTraceId());
+  }
+}
@@ -0,0 +1,381 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.TracedRabbitPublisher;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ChannelProxy;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.PublisherCallbackChannelConnectionFactory;
+import org.springframework.amqp.rabbit.connection.RabbitUtils;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.PublisherCallbackChannel;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.SpanReporter;
+import org.springframework.cloud.sleuth.TraceKeys;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
+
+/**
+ * Unit tests for {@link TracedRabbitPublisher}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TracedRabbitPublisherTest {
+  @Mock private ConnectionFactory connectionFactory;
+  @Mock private Connection connection;
+  @Mock private Channel channel;
+  @Mock private Tracer tracer;
+  @Mock private SpanReporter spanReporter;
+
+  private Span bulkSpan;
+  private TracedRabbitPublisher publisher;
+
+  @Before
+  public void setup() {
+    when(connectionFactory.createConnection()).thenReturn(connection);
+    when(connection.createChannel(anyBoolean())).thenReturn(channel);
+    bulkSpan = Span.builder().traceId(0x456L).spanId(0x123L).exportable(true).build();
+    when(tracer.createSpan(anyString())).thenReturn(bulkSpan);
+    publisher =
+        new TracedRabbitPublisher(
+            new RabbitTemplate(connectionFactory),
+            new AmqpMessagingSpanInjector(new TraceKeys()),
+            tracer,
+            spanReporter);
+  }
+
+  @Test
+  public void testPublishAllUnderOneSpan() throws Exception {
+    publisher.setMaxOutstandingConfirms(0);
+
+    final long count = publisher.publishAll("exchange", "rk", Stream.of("first", "second"));
+
+    assertThat(count).isEqualTo(2);
+    verify(tracer).createSpan("amqp://exchange/rk");
+    verify(tracer).close(bulkSpan);
+    verify(tracer, never()).continueSpan(any(Span.class));
+    verify(connection).createChannel(anyBoolean());
+    verify(channel, never()).confirmSelect();
+    final ArgumentCaptor<BasicProperties> properties =
+        ArgumentCaptor.forClass(BasicProperties.class);
+    verify(channel, times(2))
+        .basicPublish(eq("exchange"), eq("rk"), eq(false), properties.capture(), any());
+    for (BasicProperties basicProperties : properties.getAllValues()) {
+      assertThat(basicProperties.getHeaders())
+          .containsEntry(TraceMessageHeaders.TRACE_ID_NAME, "0000000000000456")
+          .containsEntry(TraceMessageHeaders.PARENT_ID_NAME, "0000000000000123")
+          .doesNotContainEntry(TraceMessageHeaders.SPAN_ID_NAME, "0000000000000123");
+    }
+    assertThat(properties.getAllValues().get(0).getHeaders().get(TraceMessageHeaders.SPAN_ID_NAME))
+        .isNotEqualTo(
+            properties.getAllValues().get(1).getHeaders().get(TraceMessageHeaders.SPAN_ID_NAME));
+    assertThat(bulkSpan.tags()).containsEntry(TracedRabbitPublisher.BULK_COUNT_TAG_NAME, "2");
+  }
+
+  @Test
+  public void testPublishAllReportsChildOfEachMessage() throws Exception {
+    publisher.setMaxOutstandingConfirms(0);
+
+    publisher.publishAll("exchange", "rk", Stream.of("first", "second"));
+
+    final ArgumentCaptor<Span> children = ArgumentCaptor.forClass(Span.class);
+    verify(spanReporter, times(2)).report(children.capture());
+    final ArgumentCaptor<BasicProperties> properties =
+        ArgumentCaptor.forClass(BasicProperties.class);
+    verify(channel, times(2))
+        .basicPublish(eq("exchange"), eq("rk"), eq(false), properties.capture(), any());
+    for (int i = 0; i < 2; i++) {
+      final Span child = children.getAllValues().get(i);
+      assertThat(child.getTraceId()).isEqualTo(bulkSpan.getTraceId());
+      assertThat(child.getParents()).containsExactly(bulkSpan.getSpanId());
+      assertThat(child.getEnd()).isNotZero();
+      assertThat(properties.getAllValues().get(i).getHeaders())
+          .containsEntry(TraceMessageHeaders.SPAN_ID_NAME, Span.idToHex(child.getSpanId()));
+    }
+  }
+
+  @Test
+  public void testNegativeMaxOutstandingConfirmsIsRejected() {
+    assertThatThrownBy(() -> publisher.setMaxOutstandingConfirms(-1))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void testNonPositiveConfirmTimeoutIsRejected() {
+    assertThatThrownBy(() -> publisher.setConfirmTimeout(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void testPublishAllWaitsForConfirms() throws Exception {
+    confirmEachPublish(false);
+
+    final long count = publisher.publishAll("exchange", "rk", Stream.of("1", "2", "3"));
+
+    assertThat(count).isEqualTo(3);
+    verify(channel).confirmSelect();
+    verify(channel).removeConfirmListener(any(ConfirmListener.class));
+    assertThat(bulkSpan.tags()).doesNotContainKey(TracedRabbitPublisher.BULK_NACKS_TAG_NAME);
+  }
+
+  @Test
+  public void testChannelPutInConfirmModeIsClosed() throws Exception {
+    final Channel cachedChannel =
+        mock(Channel.class, withSettings().extraInterfaces(ChannelProxy.class));
+    when(connection.createChannel(anyBoolean())).thenReturn(cachedChannel);
+    publisher.setMaxOutstandingConfirms(1);
+    final List<ConfirmListener> listeners = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              listeners.add((ConfirmListener) invocation.getArguments()[0]);
+              return null;
+            })
+        .when(cachedChannel)
+        .addConfirmListener(any(ConfirmListener.class));
+    doAnswer(
+            invocation -> {
+              listeners.get(0).handleAck(0, false);
+              return null;
+            })
+        .when(cachedChannel)
+        .basicPublish(anyString(), anyString(), anyBoolean(), any(BasicProperties.class), any());
+
+    publisher.publishAll("exchange", "rk", Stream.of("1"));
+
+    verify(cachedChannel).confirmSelect();
+    assertThat(RabbitUtils.isPhysicalCloseRequired()).isTrue();
+  }
+
+  @Test
+  public void testChannelOfPublisherConfirmsFactoryIsUsedAsItIs() throws Exception {
+    final ConnectionFactory confirmsFactory =
+        mock(
+            ConnectionFactory.class,
+            withSettings().extraInterfaces(PublisherCallbackChannelConnectionFactory.class));
+    when(confirmsFactory.createConnection()).thenReturn(connection);
+    channel = mock(Channel.class, withSettings().extraInterfaces(PublisherCallbackChannel.class));
+    when(connection.createChannel(anyBoolean())).thenReturn(channel);
+    when(((PublisherCallbackChannelConnectionFactory) confirmsFactory).isPublisherConfirms())
+        .thenReturn(true);
+    publisher =
+        new TracedRabbitPublisher(
+            new RabbitTemplate(confirmsFactory),
+            new AmqpMessagingSpanInjector(new TraceKeys()),
+            tracer,
+            spanReporter);
+    confirmEachPublish(false);
+
+    publisher.publishAll("exchange", "rk", Stream.of("1", "2"));
+
+    verify(channel, never()).confirmSelect();
+    verify(channel).addConfirmListener(any(ConfirmListener.class));
+  }
+
+  @Test
+  public void testConfirmWindowCountsOutOfOrderConfirms() throws Exception {
+    publisher.setMaxOutstandingConfirms(2);
+    publisher.setConfirmTimeout(1000);
+    final AtomicLong sequenceNumber = new AtomicLong(7);
+    final List<ConfirmListener> listeners = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              listeners.add((ConfirmListener) invocation.getArguments()[0]);
+              return null;
+            })
+        .when(channel)
+        .addConfirmListener(any(ConfirmListener.class));
+    when(channel.getNextPublishSeqNo()).thenAnswer(invocation -> sequenceNumber.get());
+    doAnswer(
+            invocation -> {
+              final long deliveryTag = sequenceNumber.getAndIncrement();
+              final ConfirmListener listener = listeners.get(0);
+              // Stale confirm of a previous use of the channel, then out of order confirms
+              listener.handleAck(3, true);
+              if (deliveryTag % 2 == 0) {
+                listener.handleNack(deliveryTag, false);
+                listener.handleAck(deliveryTag - 1, true);
+              }
+              return null;
+            })
+        .when(channel)
+        .basicPublish(anyString(), anyString(), anyBoolean(), any(BasicProperties.class), any());
+
+    assertThatThrownBy(
+            () -> publisher.publishAll("exchange", "rk", Stream.of("1", "2", "3", "4")))
+        .isInstanceOf(AmqpException.class)
+        .hasMessageContaining("2 of 4");
+
+    assertThat(bulkSpan.tags()).containsEntry(TracedRabbitPublisher.BULK_NACKS_TAG_NAME, "2");
+  }
+
+  @Test
+  public void testInterruptedWaitForConfirmsKeepsInterruptFlag() throws Exception {
+    publisher.setMaxOutstandingConfirms(1);
+    Thread.currentThread().interrupt();
+    try {
+      assertThatThrownBy(() -> publisher.publishAll("exchange", "rk", Stream.of("1")))
+          .isInstanceOf(AmqpException.class)
+          .hasCauseInstanceOf(InterruptedException.class);
+      assertThat(Thread.currentThread().isInterrupted()).isTrue();
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void testPublishAllFailsOnNack() throws Exception {
+    confirmEachPublish(true);
+
+    assertThatThrownBy(() -> publisher.publishAll("exchange", "rk", Stream.of("1", "2")))
+        .isInstanceOf(AmqpException.class)
+        .hasMessageContaining("2 of 2");
+
+    assertThat(bulkSpan.tags())
+        .containsEntry(TracedRabbitPublisher.BULK_NACKS_TAG_NAME, "2")
+        .containsKey(Span.SPAN_ERROR_TAG_NAME);
+    verify(tracer).close(bulkSpan);
+  }
+
+  @Test
+  public void testFanOutConvertsOnceAndSharesBody() throws Exception {
+    publisher.setMaxOutstandingConfirms(0);
+
+    final long count =
+        publisher.fanOut(
+            "event", Arrays.asList(new Address("orders", "created"), new Address("audit", "all")));
+
+    assertThat(count).isEqualTo(2);
+    verify(tracer).createSpan(TracedRabbitPublisher.FANOUT_SPAN_NAME);
+    final ArgumentCaptor<BasicProperties> properties =
+        ArgumentCaptor.forClass(BasicProperties.class);
+    final ArgumentCaptor<byte[]> bodies = ArgumentCaptor.forClass(byte[].class);
+    verify(channel).basicPublish(eq("orders"), eq("created"), eq(false), any(), any());
+    verify(channel).basicPublish(eq("audit"), eq("all"), eq(false), any(), any());
+    verify(channel, times(2))
+        .basicPublish(anyString(), anyString(), eq(false), properties.capture(), bodies.capture());
+    assertThat(bodies.getAllValues().get(0)).isSameAs(bodies.getAllValues().get(1));
+    assertThat(properties.getAllValues().get(0).getHeaders())
+        .isNotSameAs(properties.getAllValues().get(1).getHeaders());
+    assertThat(bulkSpan.tags())
+        .containsEntry(TracedRabbitPublisher.FANOUT_DESTINATIONS_TAG_NAME, "2")
+        .containsEntry(TracedRabbitPublisher.BULK_COUNT_TAG_NAME, "2");
+  }
+
+  @Test
+  public void testFanOutGivesEachDestinationItsOwnChildSpan() throws Exception {
+    publisher.setMaxOutstandingConfirms(0);
+
+    publisher.fanOut(
+        "event", Arrays.asList(new Address("orders", "created"), new Address("audit", "all")));
+
+    final ArgumentCaptor<Span> children = ArgumentCaptor.forClass(Span.class);
+    verify(spanReporter, times(2)).report(children.capture());
+    final Span orders = children.getAllValues().get(0);
+    final Span audit = children.getAllValues().get(1);
+    assertThat(orders.getSpanId()).isNotEqualTo(audit.getSpanId());
+    assertThat(orders.getParents()).containsExactly(bulkSpan.getSpanId());
+    assertThat(audit.getParents()).containsExactly(bulkSpan.getSpanId());
+    assertThat(orders.getName()).isEqualTo("amqp://orders/created");
+    assertThat(orders.tags())
+        .containsEntry(TracedRabbitPublisher.EXCHANGE_TAG_NAME, "orders")
+        .containsEntry(TracedRabbitPublisher.ROUTING_KEY_TAG_NAME, "created");
+    assertThat(audit.tags())
+        .containsEntry(TracedRabbitPublisher.EXCHANGE_TAG_NAME, "audit")
+        .containsEntry(TracedRabbitPublisher.ROUTING_KEY_TAG_NAME, "all");
+    final ArgumentCaptor<BasicProperties> ordersProperties =
+        ArgumentCaptor.forClass(BasicProperties.class);
+    final ArgumentCaptor<BasicProperties> auditProperties =
+        ArgumentCaptor.forClass(BasicProperties.class);
+    verify(channel)
+        .basicPublish(eq("orders"), eq("created"), eq(false), ordersProperties.capture(), any());
+    verify(channel)
+        .basicPublish(eq("audit"), eq("all"), eq(false), auditProperties.capture(), any());
+    assertThat(ordersProperties.getValue().getHeaders())
+        .containsEntry(TraceMessageHeaders.TRACE_ID_NAME, "0000000000000456")
+        .containsEntry(TraceMessageHeaders.PARENT_ID_NAME, "0000000000000123")
+        .containsEntry(TraceMessageHeaders.SPAN_ID_NAME, Span.idToHex(orders.getSpanId()));
+    assertThat(auditProperties.getValue().getHeaders())
+        .containsEntry(TraceMessageHeaders.TRACE_ID_NAME, "0000000000000456")
+        .containsEntry(TraceMessageHeaders.PARENT_ID_NAME, "0000000000000123")
+        .containsEntry(TraceMessageHeaders.SPAN_ID_NAME, Span.idToHex(audit.getSpanId()));
+  }
+
+  @Test
+  public void testFanOutOfUnconvertiblePayloadStartsNoSpan() {
+    final MessageConverter messageConverter = mock(MessageConverter.class);
+    when(messageConverter.toMessage(any(), any(MessageProperties.class)))
+        .thenThrow(new MessageConversionException("failed"));
+    final RabbitTemplate rabbitTemplate = new RabbitTemplate(connectionFactory);
+    rabbitTemplate.setMessageConverter(messageConverter);
+    publisher =
+        new TracedRabbitPublisher(
+            rabbitTemplate, new AmqpMessagingSpanInjector(new TraceKeys()), tracer, spanReporter);
+
+    assertThatThrownBy(
+            () -> publisher.fanOut(new Object(), Arrays.asList(new Address("orders", "created"))))
+        .isInstanceOf(MessageConversionException.class);
+
+    verify(tracer, never()).createSpan(anyString());
+  }
+
+  private void confirmEachPublish(boolean nack) throws Exception {
+    final AtomicLong sequenceNumber = new AtomicLong(1);
+    final List<ConfirmListener> listeners = new ArrayList<>();
+    doAnswer(
+            invocation -> {
+              listeners.add((ConfirmListener) invocation.getArguments()[0]);
+              return null;
+            })
+        .when(channel)
+        .addConfirmListener(any(ConfirmListener.class));
+    when(channel.getNextPublishSeqNo()).thenAnswer(invocation -> sequenceNumber.get());
+    doAnswer(
+            invocation -> {
+              final long deliveryTag = sequenceNumber.getAndIncrement();
+              for (ConfirmListener listener : listeners) {
+                if (nack) {
+                  listener.handleNack(deliveryTag, false);
+                } else {
+                  listener.handleAck(deliveryTag, false);
+                }
+              }
+              return null;
+            })
+        .when(channel)
+        .basicPublish(anyString(), anyString(), anyBoolean(), any(BasicProperties.class), any());
+  }
+}
@@ -0,0 +1,192 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.AmqpMessagingSpanInjector;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.DefaultAmqpMessagingSpanManager;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.TracingBatchingRabbitTemplate;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.util.Date;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.support.SimpleBatchingStrategy;
+import org.springframework.cloud.sleuth.Span;
+import org.springframework.cloud.sleuth.TraceKeys;
+import org.springframework.cloud.sleuth.Tracer;
+import org.springframework.cloud.sleuth.instrument.messaging.TraceMessageHeaders;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.scheduling.TaskScheduler;
+
+/**
+ * Unit tests for {@link TracingBatchingRabbitTemplate}.
+ *
+ * @author André Ignacio
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TracingBatchingRabbitTemplateTest {
+  @Mock private ConnectionFactory connectionFactory;
+  @Mock private Connection connection;
+  @Mock private Channel channel;
+  @Mock private TaskScheduler scheduler;
+  @Mock private Tracer tracer;
+  @Mock private Span publishSpan;
+
+  private Span senderSpan;
+
+  @Before
+  public void setup() {
+    when(connectionFactory.createConnection()).thenReturn(connection);
+    when(connection.createChannel(anyBoolean())).thenReturn(channel);
+    senderSpan = Span.builder().traceId(0x456L).spanId(0x123L).exportable(true).build();
+    when(tracer.isTracing()).thenReturn(true);
+    when(tracer.getCurrentSpan()).thenReturn(senderSpan);
+    when(tracer.createSpan(anyString())).thenReturn(publishSpan);
+    when(publishSpan.traceIdString()).thenReturn("0000000000000789");
+    when(publishSpan.getSpanId()).thenReturn(0x789L);
+    when(publishSpan.isExportable()).thenReturn(true);
+  }
+
+  @Test
+  public void testBatchReleasedBySize() throws Exception {
+    final TracingBatchingRabbitTemplate template = template(2, 10000);
+    final Message first = message("first");
+
+    template.send("exchange", "rk", first);
+
+    verify(tracer, never()).createSpan(anyString());
+    assertThat(first.getMessageProperties().getHeaders())
+        .doesNotContainKey(TraceMessageHeaders.TRACE_ID_NAME);
+
+    template.send("exchange", "rk", message("second"));
+
+    verify(tracer).createSpan("amqp://exchange/rk");
+    final ArgumentCaptor<BasicProperties> properties =
+        ArgumentCaptor.forClass(BasicProperties.class);
+    verify(channel).basicPublish(eq("exchange"), eq("rk"), eq(false), properties.capture(), any());
+    // Only the properties of the first message are published, they carry the publish span
+    assertThat(properties.getValue().getHeaders().get(TraceMessageHeaders.SPAN_ID_NAME))
+        .hasToString("0000000000000789");
+    // The batch message shares them with the first message, which must be left as sent
+    assertThat(first.getMessageProperties().getHeaders())
+        .doesNotContainKey(TraceMessageHeaders.TRACE_ID_NAME);
+    verify(publishSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_SIZE_TAG_NAME, "2");
+    verify(publishSpan).tag(TracingBatchingRabbitTemplate.BATCH_BYTES_TAG_NAME, "19");
+    verify(publishSpan)
+        .tag(
+            TracingBatchingRabbitTemplate.BATCH_TRIGGER_TAG_NAME,
+            TracingBatchingRabbitTemplate.TRIGGER_SIZE);
+    verify(publishSpan)
+        .tag(
+            DefaultAmqpMessagingSpanManager.BATCH_LINKS_TAG_NAME,
+            "0000000000000456/0000000000000123,0000000000000456/0000000000000123");
+    verify(publishSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_LINKS_COUNT_TAG_NAME, "2");
+    verify(publishSpan)
+        .tag(eq(TracingBatchingRabbitTemplate.BATCH_FLUSH_LATENCY_TAG_NAME), anyString());
+    verify(publishSpan).logEvent(Span.CLIENT_SEND);
+    verify(publishSpan).logEvent(Span.CLIENT_RECV);
+    verify(tracer).close(publishSpan);
+  }
+
+  @Test
+  public void testBatchReleasedByBufferLimit() throws Exception {
+    final TracingBatchingRabbitTemplate template = template(10, 20);
+
+    template.send("exchange", "rk", message("12345678"));
+    template.send("exchange", "rk", message("87654321"));
+
+    verify(publishSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_SIZE_TAG_NAME, "1");
+    verify(publishSpan)
+        .tag(
+            TracingBatchingRabbitTemplate.BATCH_TRIGGER_TAG_NAME,
+            TracingBatchingRabbitTemplate.TRIGGER_BUFFER_LIMIT);
+  }
+
+  @Test
+  public void testBatchReleasedByFlushAndTimeout() throws Exception {
+    final ArgumentCaptor<Runnable> releaseTask = ArgumentCaptor.forClass(Runnable.class);
+    final TracingBatchingRabbitTemplate template = template(10, 10000);
+
+    template.send("exchange", "rk", message("first"));
+    template.flush();
+    template.send("exchange", "rk", message("second"));
+    verify(scheduler, times(2)).schedule(releaseTask.capture(), any(Date.class));
+    releaseTask.getValue().run();
+
+    verify(publishSpan)
+        .tag(
+            TracingBatchingRabbitTemplate.BATCH_TRIGGER_TAG_NAME,
+            TracingBatchingRabbitTemplate.TRIGGER_FLUSH);
+    verify(publishSpan)
+        .tag(
+            TracingBatchingRabbitTemplate.BATCH_TRIGGER_TAG_NAME,
+            TracingBatchingRabbitTemplate.TRIGGER_TIMEOUT);
+    verify(tracer, times(2)).close(publishSpan);
+  }
+
+  @Test
+  public void testBatchLinksAreCapped() throws Exception {
+    final TracingBatchingRabbitTemplate template = template(3, 10000);
+    template.setMaxBatchLinks(1);
+
+    template.send("exchange", "rk", message("first"));
+    template.send("exchange", "rk", message("second"));
+    template.send("exchange", "rk", message("third"));
+
+    verify(publishSpan)
+        .tag(
+            DefaultAmqpMessagingSpanManager.BATCH_LINKS_TAG_NAME,
+            "0000000000000456/0000000000000123");
+    verify(publishSpan).tag(DefaultAmqpMessagingSpanManager.BATCH_LINKS_COUNT_TAG_NAME, "3");
+  }
+
+  @Test
+  public void testRetriedBatchPublishIsTracedAgain() throws Exception {
+    final TracingBatchingRabbitTemplate template = template(1, 10000);
+    template.setRetryTemplate(new RetryTemplate());
+    doThrow(new IOException("failed"))
+        .doNothing()
+        .when(channel)
+        .basicPublish(anyString(), anyString(), anyBoolean(), any(BasicProperties.class), any());
+
+    template.send("exchange", "rk", message("first"));
+
+    verify(tracer, times(2)).createSpan("amqp://exchange/rk");
+    verify(publishSpan, times(2)).tag(DefaultAmqpMessagingSpanManager.BATCH_SIZE_TAG_NAME, "1");
+    verify(publishSpan).tag(eq(Span.SPAN_ERROR_TAG_NAME), anyString());
+    verify(tracer, times(2)).close(publishSpan);
+  }
+
+  private TracingBatchingRabbitTemplate template(int batchSize, int bufferLimit) {
+    final TracingBatchingRabbitTemplate template =
+        new TracingBatchingRabbitTemplate(
+            new SimpleBatchingStrategy(batchSize, bufferLimit, 30000),
+            scheduler,
+            new AmqpMessagingSpanInjector(new TraceKeys()),
+            tracer);
+    template.setConnectionFactory(connectionFactory);
+    return template;
+  }
+
+  private Message message(String body) {
+    return new Message(body.getBytes(), new MessageProperties());
+  }
+}
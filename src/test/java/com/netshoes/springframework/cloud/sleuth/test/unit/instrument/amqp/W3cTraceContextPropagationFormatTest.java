@@ -0,0 +1,115 @@
+package com.netshoes.springframework.cloud.sleuth.test.unit.instrument.amqp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.UnsampledContext;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.propagation.W3cTraceContextPropagationFormat;
+import com.netshoes.springframework.cloud.sleuth.instrument.amqp.support.AmqpMessageHeaderAccessor;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.cloud.sleuth.Span;
+
+/**
+ * Unit tests for {@link W3cTraceContextPropagationFormat}.
+ *
+ * @author André Ignacio
+ */
+public class W3cTraceContextPropagationFormatTest {
+  private W3cTraceContextPropagationFormat format;
+  private Message message;
+  private AmqpMessageHeaderAccessor accessor;
+
+  @Before
+  public void setup() {
+    format = new W3cTraceContextPropagationFormat();
+    message = new Message("Test".getBytes(), new MessageProperties());
+    accessor = AmqpMessageHeaderAccessor.getAccessor(message);
+  }
+
+  @Test
+  public void testInjectWritesTraceparent() {
+    final Span span =
+        Span.builder().traceId(0x456L).spanId(0x123L).parent(0x999L).exportable(true).build();
+
+    format.inject(span, accessor);
+
+    assertThat(message.getMessageProperties().getHeaders())
+        .containsOnlyKeys("traceparent")
+        .containsEntry(
+            "traceparent", "00-00000000000000000000000000000456-0000000000000123-01");
+  }
+
+  @Test
+  public void testExtract() {
+    accessor.setHeader(
+        "traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+
+    final Span span = format.extract(message.getMessageProperties().getHeaders());
+
+    assertThat(span.traceIdString()).isEqualTo("4bf92f3577b34da6a3ce929d0e0e4736");
+    assertThat(Span.idToHex(span.getSpanId())).isEqualTo("00f067aa0ba902b7");
+    assertThat(span.isExportable()).isTrue();
+    assertThat(span.isRemote()).isTrue();
+  }
+
+  @Test
+  public void testExtractNotSampled() {
+    final Span span =
+        Span.builder().traceId(0x456L).spanId(0x123L).exportable(false).build();
+
+    format.inject(span, accessor);
+    final Span extracted = format.extract(message.getMessageProperties().getHeaders());
+
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getTraceIdHigh()).isZero();
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+    assertThat(extracted.isExportable()).isFalse();
+  }
+
+  @Test
+  public void testExtractInvalidHeader() {
+    accessor.setHeader("traceparent", "00-4bf92f3577b34da6-00f067aa0ba902b7-01");
+
+    assertThat(format.extract(message.getMessageProperties().getHeaders())).isNull();
+  }
+
+  @Test
+  public void testInjectAndExtractUnsampled() {
+    format.injectUnsampled(new UnsampledContext(0, 0x456L, 0x123L), accessor);
+    final UnsampledContext extracted =
+        format.extractUnsampled(message.getMessageProperties().getHeaders());
+
+    assertThat(message.getMessageProperties().getHeaders())
+        .containsEntry(
+            "traceparent", "00-00000000000000000000000000000456-0000000000000123-00");
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+
+    accessor.setHeader(
+        "traceparent", "00-00000000000000000000000000000456-0000000000000123-01");
+    assertThat(format.extractUnsampled(message.getMessageProperties().getHeaders())).isNull();
+  }
+
+  @Test
+  public void testExtractIdsOfSampledSpan() {
+    format.inject(
+        Span.builder().traceIdHigh(0x1L).traceId(0x456L).spanId(0x123L).exportable(true).build(),
+        accessor);
+
+    final UnsampledContext extracted =
+        format.extractIds(message.getMessageProperties().getHeaders());
+
+    assertThat(extracted.getTraceIdHigh()).isEqualTo(0x1L);
+    assertThat(extracted.getTraceId()).isEqualTo(0x456L);
+    assertThat(extracted.getSpanId()).isEqualTo(0x123L);
+  }
+
+  @Test
+  public void testExtractIdsWithoutIds() {
+    format.injectNotSampled(accessor);
+
+    assertThat(format.extractIds(message.getMessageProperties().getHeaders())).isNull();
+  }
+}